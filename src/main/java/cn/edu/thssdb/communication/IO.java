@@ -1,29 +1,29 @@
 package cn.edu.thssdb.communication;
 
+import cn.edu.thssdb.runtime.Configuration;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.storage.DiskBuffer;
 import cn.edu.thssdb.storage.page.Page;
 import cn.edu.thssdb.storage.writeahead.DummyLog;
+import cn.edu.thssdb.storage.writeahead.UndoLog;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
 import cn.edu.thssdb.storage.writeahead.WriteLog;
 
 import java.io.FileOutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.HashMap;
 
 import static cn.edu.thssdb.runtime.ServerRuntime.config;
 import static cn.edu.thssdb.storage.writeahead.WriteLog.*;
 import static java.lang.System.exit;
 
 public class IO {
-  static HashSet<Long> dirtyPages = new HashSet<>();
-
-  static ReentrantReadWriteLock dirtyPageLatch = new ReentrantReadWriteLock();
-
   /**
-   * This method can be used safely due to the presence of locks.
+   * This method can be used safely due to the presence of locks. The page is pinned in buffer and
+   * shall be released by {@code unpin} when it is no longer used.
    *
    * @param spaceId spaceId
    * @param pageId pageId
@@ -39,6 +39,25 @@ public class IO {
     return null;
   }
 
+  /**
+   * add one more pin to a page that is already pinned by the caller, e.g. when the page is kept in
+   * another place.
+   *
+   * @param page pinned page
+   */
+  public static void pin(Page page) {
+    DiskBuffer.pin(page);
+  }
+
+  /**
+   * release a pin got from {@code read}, {@code pin} or creating a page.
+   *
+   * @param page pinned page
+   */
+  public static void unpin(Page page) {
+    DiskBuffer.unpin(page);
+  }
+
   /**
    * This method write values on both disk buffer and the WAL log buffer. Can be used safely due to
    * the presence of locks.
@@ -56,46 +75,40 @@ public class IO {
     if (config.useDummyLog) {
       page.pageWriteAndOutputLatch.lock();
       for (int i = offset, s = 0; i < offset + length; i++, s++) {
-        page.bytes[i] = newValue[s];
+        page.bytes.put(i, newValue[s]);
       }
+      if (!page.isDirty.get()) page.recoveryLSN = currentLSN();
       page.isDirty.set(true);
       page.pageWriteAndOutputLatch.unlock();
     } else {
-      /* Write the changes to disk buffer */
-      /* Latch for page reading is not needed because of our design avoid reading from bytes directly. */
-
-      dirtyPageLatch.readLock().lock();
       /* avoid writing and outputting page simultaneously */
       page.pageWriteAndOutputLatch.lock();
 
       boolean dirty = false;
-      byte[] oldValue = new byte[0];
+      byte[] oldValue = redo_only ? new byte[0] : new byte[length];
       byte[] realNewValue = new byte[length]; /* in case newValue.length != length */
-      if (!redo_only) {
-        oldValue = new byte[length];
-        for (int i = offset, s = 0; i < offset + length; i++, s++) {
-          if (page.bytes[i] != newValue[s]) {
-            dirty = true;
-          }
-          oldValue[s] = page.bytes[i];
-          page.bytes[i] = newValue[s];
-          realNewValue[s] = newValue[s];
-        }
+      for (int i = offset, s = 0; i < offset + length; i++, s++) {
+        byte old = page.bytes.get(i);
+        if (!redo_only) oldValue[s] = old;
+        if (old != newValue[s]) dirty = true;
+        page.bytes.put(i, newValue[s]);
+        realNewValue[s] = newValue[s];
       }
 
       /* Write-Ahead Log */
       /* only add write log when there is actually change. */
       if (dirty) {
-        WriteLog.addCommonLog(
-            transactionId, page.spaceId, page.pageId, offset, length, oldValue, realNewValue);
-        dirtyPages.add(DiskBuffer.concat(page.spaceId, page.pageId));
+        long lsn =
+            WriteLog.addCommonLog(
+                transactionId, page.spaceId, page.pageId, offset, length, oldValue, realNewValue);
+        if (!page.isDirty.get()) page.recoveryLSN = lsn;
+        page.pageLSN = lsn;
+        page.isDirty.set(true);
       }
 
       /* avoid writing and outputting page simultaneously */
       /* we slightly delay the release of this latch. This is to avoid reversing of the Write-ahead log's order. */
       page.pageWriteAndOutputLatch.unlock();
-
-      dirtyPageLatch.readLock().unlock();
     }
   }
 
@@ -105,7 +118,7 @@ public class IO {
     if (config.useDummyLog) {
       DummyLog.outputDummyLogToDisk();
     } else {
-      WriteLog.outputWriteLogToDisk(true);
+      WriteLog.forceAll();
     }
   }
 
@@ -125,12 +138,6 @@ public class IO {
       throws Exception {
     if (config.useDummyLog) {
       DummyLog.writeDummyLog(transactionId, "create database " + name + " with id " + databaseId);
-
-      Database.DatabaseMetadata.metaDataLatch.readLock().lock();
-      FileOutputStream metadataStream = new FileOutputStream(config.MetadataFilename);
-      metadataStream.write(ServerRuntime.metadataArray.toString().getBytes(StandardCharsets.UTF_8));
-      metadataStream.close();
-      Database.DatabaseMetadata.metaDataLatch.readLock().unlock();
     } else {
       WriteLog.addSpecialDatabaseLog(
           transactionId,
@@ -138,17 +145,13 @@ public class IO {
           databaseId,
           name.getBytes(StandardCharsets.UTF_8));
     }
+    writeMetadataFile();
   }
 
   public static void writeDropDatabase(long transactionId, String name, int databaseId)
       throws Exception {
     if (config.useDummyLog) {
       DummyLog.writeDummyLog(transactionId, "drop database " + name + " with id" + databaseId);
-      Database.DatabaseMetadata.metaDataLatch.readLock().lock();
-      FileOutputStream metadataStream = new FileOutputStream(config.MetadataFilename);
-      metadataStream.write(ServerRuntime.metadataArray.toString().getBytes(StandardCharsets.UTF_8));
-      metadataStream.close();
-      Database.DatabaseMetadata.metaDataLatch.readLock().unlock();
     } else {
       WriteLog.addSpecialDatabaseLog(
           transactionId,
@@ -156,6 +159,7 @@ public class IO {
           databaseId,
           name.getBytes(StandardCharsets.UTF_8));
     }
+    writeMetadataFile();
   }
 
   public static void writeCreateTable(
@@ -163,14 +167,10 @@ public class IO {
     if (config.useDummyLog) {
       DummyLog.writeDummyLog(
           transactionId, "create table " + metadata.toString() + " in database " + databaseId);
-      Database.DatabaseMetadata.metaDataLatch.readLock().lock();
-      FileOutputStream metadataStream = new FileOutputStream(config.MetadataFilename);
-      metadataStream.write(ServerRuntime.metadataArray.toString().getBytes(StandardCharsets.UTF_8));
-      metadataStream.close();
-      Database.DatabaseMetadata.metaDataLatch.readLock().unlock();
     } else {
       WriteLog.addCreateTableLog(transactionId, databaseId, metadata);
     }
+    writeMetadataFile();
   }
 
   public static void writeDropTable(
@@ -178,44 +178,181 @@ public class IO {
     if (config.useDummyLog) {
       DummyLog.writeDummyLog(
           transactionId, "drop table " + metadata.toString() + " in database " + databaseId);
-      Database.DatabaseMetadata.metaDataLatch.readLock().lock();
+    } else {
+      // WriteLog.addCreateTableLog(transactionId, databaseId, metadata);
+    }
+    writeMetadataFile();
+  }
+
+  public static void writeCreateIndex(
+      long transactionId, int databaseId, Table.TableMetadata metadata, SecondaryIndex index)
+      throws Exception {
+    if (config.useDummyLog) {
+      DummyLog.writeDummyLog(
+          transactionId,
+          "create index "
+              + index.name
+              + " on "
+              + metadata.name
+              + "("
+              + index.column.getName()
+              + ") using "
+              + index.method
+              + " in database "
+              + databaseId);
+    } else {
+      /* the tree is logged as a table, since recovery treats both the same. */
+      if (index.tree != null) WriteLog.addCreateTableLog(transactionId, databaseId, index.tree);
+    }
+    writeMetadataFile();
+  }
+
+  public static void writeDropIndex(
+      long transactionId, int databaseId, Table.TableMetadata metadata, SecondaryIndex index)
+      throws Exception {
+    if (config.useDummyLog) {
+      DummyLog.writeDummyLog(
+          transactionId,
+          "drop index " + index.name + " on " + metadata.name + " in database " + databaseId);
+    }
+    writeMetadataFile();
+  }
+
+  /**
+   * write metadata of every database to the metadata file. Recovery only replays pages, so the
+   * metadata file shall be up to date in both log modes.
+   */
+  private static void writeMetadataFile() throws Exception {
+    Database.DatabaseMetadata.metaDataLatch.readLock().lock();
+    try {
       FileOutputStream metadataStream = new FileOutputStream(config.MetadataFilename);
       metadataStream.write(ServerRuntime.metadataArray.toString().getBytes(StandardCharsets.UTF_8));
       metadataStream.close();
+    } finally {
       Database.DatabaseMetadata.metaDataLatch.readLock().unlock();
+    }
+  }
+
+  /**
+   * LSN of the last log put into log buffer. It counts logs of the dummy log, and it is the LSN of
+   * the last record in the write-ahead log.
+   *
+   * @return log sequence number
+   */
+  public static long currentLSN() {
+    if (config.useDummyLog) return DummyLog.dirtyCounter.get();
+    return WriteLog.logSequenceNumber.get();
+  }
+
+  /**
+   * transactions that have not finished.
+   *
+   * @param beginLSN LSN at the beginning of the checkpoint
+   * @return map from transaction to the LSN of its first log. The dummy log does not track the
+   *     first log of a transaction, so {@code beginLSN} is given instead.
+   */
+  public static HashMap<Long, Long> activeTransactions(long beginLSN) {
+    HashMap<Long, Long> transactions = new HashMap<>();
+    if (config.useDummyLog) {
+      for (Long transactionId : ServerRuntime.transactions)
+        transactions.put(transactionId, beginLSN);
     } else {
-      // WriteLog.addCreateTableLog(transactionId, databaseId, metadata);
+      transactions.putAll(WriteLog.activeTransactions);
     }
+    return transactions;
   }
 
   /**
-   * transaction requests a commit The current implementation is unsafe, incorrect and has poor
-   * performance.
+   * write a checkpoint record and push it to disk together with every log before it.
+   *
+   * @param record checkpoint record
+   * @return log sequence number of the checkpoint record
+   */
+  public static long writeCheckpoint(String record) throws Exception {
+    long lsn;
+    if (config.useDummyLog) {
+      lsn = DummyLog.writeDummyLog(-2, "checkpoint " + record);
+    } else {
+      lsn = WriteLog.addCheckpointLog(record.getBytes(StandardCharsets.UTF_8));
+    }
+    pushWriteAheadLogOnly();
+    return lsn;
+  }
+
+  /**
+   * discard the write-ahead log before {@code lsn}, which restart no longer reads. The dummy log is
+   * kept as it is.
+   *
+   * @param lsn LSN from which the last checkpoint recovers
+   */
+  public static void truncateLog(long lsn) throws Exception {
+    if (!config.useDummyLog) WriteLog.truncate(lsn);
+  }
+
+  /**
+   * transaction requests a commit. Whether it waits for its log to reach disk depends on {@code
+   * config.durability}.
    *
    * @param transactionId transaction
    */
   public static void pushTransactionCommit(long transactionId) {
+    UndoLog.forget(transactionId);
+    boolean sync = config.durability == Configuration.Durability.SYNC;
     try {
       if (config.useDummyLog) {
         int stamp = DummyLog.writeDummyLog(transactionId, "transaction commit.");
-        if (DummyLog.checkCounter.get() < stamp) pushWriteAheadLogOnly();
+        if (sync) DummyLog.force(stamp);
       } else {
-        WriteLog.addSpecialLog(transactionId, WriteLog.COMMIT_LOG);
-        pushWriteAheadLogOnly();
+        long lsn = WriteLog.addSpecialLog(transactionId, WriteLog.COMMIT_LOG);
+        /* commits of concurrent transactions are forced together by the flusher. */
+        if (sync) WriteLog.force(lsn);
       }
     } catch (Exception e) {
       e.printStackTrace();
       exit(63);
     }
+    /* snapshots taken from now on see the changes. */
+    VersionStore.commit(transactionId);
+  }
+
+  /**
+   * transaction requests an abort. Its changes are undone before the abort log is written, so the
+   * log shows the compensating changes inside the transaction.
+   *
+   * @param transactionId transaction
+   * @return number of changes undone
+   */
+  public static int pushTransactionAbort(long transactionId) {
+    int undone = UndoLog.rollback(transactionId, 0);
+    UndoLog.forget(transactionId);
+    VersionStore.abort(transactionId);
+    if (config.useDummyLog) {
+      DummyLog.writeDummyLog(transactionId, "transaction abort.");
+    } else {
+      /* nothing waits for an abort, so it is not forced. */
+      WriteLog.addSpecialLog(transactionId, WriteLog.ABORT_LOG);
+    }
+    return undone;
   }
 
   /**
    * trace a newly created page object. this method is lock/latch free. Because it is impossible for
-   * multiple transactions to create two different pages with the same Page object.
+   * multiple transactions to create two different pages with the same Page object. The page is
+   * pinned for its creator.
    *
    * @param page page to be traced
    */
   public static void traceNewPage(Page page) {
+    page.recoveryLSN = currentLSN();
     DiskBuffer.putToBuffer(page);
   }
+
+  /**
+   * release the file handle of a tablespace after its file is replaced.
+   *
+   * @param spaceId tablespace
+   */
+  public static void closeTablespace(int spaceId) {
+    DiskBuffer.closeTablespace(spaceId);
+  }
 }
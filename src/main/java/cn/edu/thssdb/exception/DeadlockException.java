@@ -0,0 +1,8 @@
+package cn.edu.thssdb.exception;
+
+public class DeadlockException extends RuntimeException {
+  @Override
+  public String getMessage() {
+    return "Exception: deadlock detected, the transaction is chosen as the victim!";
+  }
+}
@@ -12,15 +12,21 @@ sqlStmtList :
 
 sqlStmt :
     createTableStmt
+    | createIndexStmt
     | commitStmt
     | beginTransactionStmt
+    | rollbackStmt
+    | savepointStmt
+    | setTransactionStmt
     | createDbStmt
     | createUserStmt
     | dropDbStmt
     | dropUserStmt
     | deleteStmt
     | dropTableStmt
+    | dropIndexStmt
     | insertStmt
+    | copyStmt
     | selectStmt
     | createViewStmt
     | dropViewStmt
@@ -38,6 +44,20 @@ commitStmt:
 beginTransactionStmt:
     K_BEGIN K_TRANSACTION ;
 
+rollbackStmt:
+    K_ROLLBACK ( K_TO K_SAVEPOINT? savepointName )? ;
+
+savepointStmt:
+    K_SAVEPOINT savepointName ;
+
+setTransactionStmt:
+    K_SET K_TRANSACTION K_ISOLATION K_LEVEL isolationLevel ;
+
+isolationLevel :
+    K_READ K_COMMITTED
+    | K_REPEATABLE K_READ
+    | K_SERIALIZABLE ;
+
 createDbStmt :
     K_CREATE K_DATABASE databaseName ;
 
@@ -54,6 +74,9 @@ createTableStmt :
     K_CREATE K_TABLE tableName
         '(' columnDef ( ',' columnDef )* ( ',' tableConstraint )? ')' ;
 
+createIndexStmt :
+    K_CREATE K_INDEX indexName K_ON tableName '(' columnName ')' ( K_USING ( K_BTREE | K_HASH ) )? ;
+
 grantStmt :
     K_GRANT authLevel ( ',' authLevel )* K_ON tableName K_TO userName ;
 
@@ -69,6 +92,9 @@ deleteStmt :
 dropTableStmt :
     K_DROP K_TABLE ( K_IF K_EXISTS )? tableName ;
 
+dropIndexStmt :
+    K_DROP K_INDEX indexName K_ON tableName ;
+
 showDbStmt :
     K_SHOW K_DATABASES;
 
@@ -82,6 +108,9 @@ insertStmt :
     K_INSERT K_INTO tableName ( '(' columnName ( ',' columnName )* ')' )?
         K_VALUES valueEntry ( ',' valueEntry )* ;
 
+copyStmt :
+    K_COPY tableName K_FROM STRING_LITERAL ;
+
 valueEntry :
     '(' literalValue ( ',' literalValue )* ')' ;
 
@@ -169,6 +198,12 @@ userName :
 columnName :
     IDENTIFIER ;
 
+savepointName :
+    IDENTIFIER ;
+
+indexName :
+    IDENTIFIER ;
+
 viewName :
     IDENTIFIER;
 
@@ -199,8 +234,10 @@ T_STRING : S T R I N G;
 K_ADD : A D D;
 K_ALL : A L L;
 K_AS : A S;
+K_BTREE : B T R E E;
 K_BY : B Y;
 K_COLUMN : C O L U M N;
+K_COPY : C O P Y;
 K_CREATE : C R E A T E;
 K_DATABASE : D A T A B A S E;
 K_DATABASES : D A T A B A S E S;
@@ -210,8 +247,10 @@ K_DROP : D R O P;
 K_EXISTS : E X I S T S;
 K_FROM : F R O M;
 K_GRANT : G R A N T;
+K_HASH : H A S H;
 K_IF : I F;
 K_IDENTIFIED : I D E N T I F I E D;
+K_INDEX : I N D E X;
 K_INSERT : I N S E R T;
 K_INTO : I N T O;
 K_JOIN : J O I N;
@@ -230,12 +269,21 @@ K_TO : T O;
 K_UPDATE : U P D A T E;
 K_USE : U S E;
 K_USER : U S E R;
+K_USING : U S I N G;
 K_VALUES : V A L U E S;
 K_VIEW : V I E W;
 K_WHERE : W H E R E;
 K_COMMIT : C O M M I T;
 K_TRANSACTION : T R A N S A C T I O N;
 K_BEGIN : B E G I N;
+K_ROLLBACK : R O L L B A C K;
+K_SAVEPOINT : S A V E P O I N T;
+K_ISOLATION : I S O L A T I O N;
+K_LEVEL : L E V E L;
+K_READ : R E A D;
+K_COMMITTED : C O M M I T T E D;
+K_REPEATABLE : R E P E A T A B L E;
+K_SERIALIZABLE : S E R I A L I Z A B L E;
 
 IDENTIFIER :
     [a-zA-Z_] [a-zA-Z_0-9]* ;
@@ -20,8 +20,10 @@ package cn.edu.thssdb.parser;
 
 import cn.edu.thssdb.plan.LogicalPlan;
 import cn.edu.thssdb.plan.impl.*;
+import cn.edu.thssdb.runtime.Configuration;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.sql.SQLBaseVisitor;
 import cn.edu.thssdb.sql.SQLParser;
@@ -46,6 +48,27 @@ public class ThssDBSQLVisitor extends SQLBaseVisitor<LogicalPlan> {
     return new BeginTransactionPlan();
   }
 
+  @Override
+  public LogicalPlan visitRollbackStmt(SQLParser.RollbackStmtContext ctx) {
+    if (ctx.savepointName() == null) return new RollbackPlan(null);
+    return new RollbackPlan(ctx.savepointName().getText().toLowerCase());
+  }
+
+  @Override
+  public LogicalPlan visitSavepointStmt(SQLParser.SavepointStmtContext ctx) {
+    return new SavepointPlan(ctx.savepointName().getText().toLowerCase());
+  }
+
+  @Override
+  public LogicalPlan visitSetTransactionStmt(SQLParser.SetTransactionStmtContext ctx) {
+    SQLParser.IsolationLevelContext level = ctx.isolationLevel();
+    if (level.K_SERIALIZABLE() != null)
+      return new SetTransactionPlan(Configuration.Isolation.SERIALIZABLE);
+    if (level.K_REPEATABLE() != null)
+      return new SetTransactionPlan(Configuration.Isolation.REPEATABLE_READ);
+    return new SetTransactionPlan(Configuration.Isolation.READ_COMMITTED);
+  }
+
   @Override
   public LogicalPlan visitUseDbStmt(SQLParser.UseDbStmtContext ctx) {
     return new UseDatabasePlan(ctx.databaseName().getText().toLowerCase());
@@ -127,6 +150,21 @@ public class ThssDBSQLVisitor extends SQLBaseVisitor<LogicalPlan> {
     return new DropTablePlan(ctx.tableName().getText().toLowerCase());
   }
 
+  @Override
+  public LogicalPlan visitCreateIndexStmt(SQLParser.CreateIndexStmtContext ctx) {
+    return new CreateIndexPlan(
+        ctx.indexName().getText().toLowerCase(),
+        ctx.tableName().getText().toLowerCase(),
+        ctx.columnName().getText().toLowerCase(),
+        ctx.K_HASH() != null ? SecondaryIndex.HASH : SecondaryIndex.BTREE);
+  }
+
+  @Override
+  public LogicalPlan visitDropIndexStmt(SQLParser.DropIndexStmtContext ctx) {
+    return new DropIndexPlan(
+        ctx.indexName().getText().toLowerCase(), ctx.tableName().getText().toLowerCase());
+  }
+
   public LogicalPlan visitInsertStmt(SQLParser.InsertStmtContext ctx) {
     String tableName = ctx.tableName().getText().toLowerCase();
 
@@ -153,6 +191,14 @@ public class ThssDBSQLVisitor extends SQLBaseVisitor<LogicalPlan> {
     return new InsertPlan(tableName, columnName, values);
   }
 
+  @Override
+  public LogicalPlan visitCopyStmt(SQLParser.CopyStmtContext ctx) {
+    String filename = ctx.STRING_LITERAL().getText();
+    return new CopyPlan(
+        ctx.tableName().getText().toLowerCase(),
+        filename.substring(1, filename.length() - 1).replace("''", "'"));
+  }
+
   public LogicalPlan visitSelectStmt(SQLParser.SelectStmtContext ctx) {
     // SELECT *
     List<SQLParser.ResultColumnContext> columnNames = ctx.resultColumn();
@@ -1,5 +1,11 @@
 package cn.edu.thssdb.plan;
 
+import cn.edu.thssdb.schema.SecondaryIndex;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.sql.SQLParser;
+
+import java.util.ArrayList;
+
 public abstract class LogicalPlan {
 
   protected LogicalPlanType type;
@@ -12,18 +18,61 @@ public abstract class LogicalPlan {
     return type;
   }
 
+  /**
+   * check if a where condition {@code column cmp value} can be answered by a secondary index.
+   *
+   * @param transactionId transaction
+   * @param index index on the column, or null if there is none
+   * @param value value compared with
+   * @param cmp comparator
+   * @return true if the index can be used
+   */
+  protected static boolean canUseIndex(
+      long transactionId,
+      SecondaryIndex index,
+      ValueWrapper value,
+      SQLParser.ComparatorContext cmp) {
+    /* null values are not indexed, and inequality matches nearly every record. */
+    return index != null && !value.isNull && cmp.NE() == null && index.isUsableBy(transactionId);
+  }
+
+  /**
+   * find the primary keys of records that satisfy {@code column cmp value} through a secondary
+   * index on the column.
+   *
+   * @param transactionId transaction
+   * @param index index on the column
+   * @param value value compared with
+   * @param cmp comparator, which shall not be NE
+   * @return primary keys of the records, in the order of the column
+   */
+  protected static ArrayList<ValueWrapper[]> findWithIndex(
+      long transactionId, SecondaryIndex index, ValueWrapper value, SQLParser.ComparatorContext cmp)
+      throws Exception {
+    boolean equal = cmp.EQ() != null || cmp.LE() != null || cmp.GE() != null;
+    ValueWrapper lower = cmp.LT() != null || cmp.LE() != null ? null : value;
+    ValueWrapper upper = cmp.GT() != null || cmp.GE() != null ? null : value;
+    return index.findPrimaryKeys(transactionId, lower, equal, upper, equal);
+  }
+
   public enum LogicalPlanType {
     CREATE_DATABASE,
     USE_DATABASE,
     COMMIT,
     CREATE_TABLE,
     DROP_TABLE,
+    CREATE_INDEX,
+    DROP_INDEX,
     SHOW_TABLE,
     INSERT,
+    COPY,
     SELECT,
     DELETE,
     UPDATE,
     DROP_DATABASE,
-    BEGIN_TRANSACTION
+    BEGIN_TRANSACTION,
+    ROLLBACK,
+    SAVEPOINT,
+    SET_TRANSACTION
   }
 }
@@ -0,0 +1,20 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+
+public class CopyPlan extends LogicalPlan {
+
+  public String tableName;
+  public String filename;
+
+  public CopyPlan(String tableName, String filename) {
+    super(LogicalPlanType.COPY);
+    this.tableName = tableName;
+    this.filename = filename;
+  }
+
+  @Override
+  public String toString() {
+    return "CopyPlan{" + "tableName='" + tableName + "', filename='" + filename + "'}";
+  }
+}
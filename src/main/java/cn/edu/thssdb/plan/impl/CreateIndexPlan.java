@@ -0,0 +1,33 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+
+public class CreateIndexPlan extends LogicalPlan {
+
+  public String indexName;
+  public String tableName;
+  public String columnName;
+  public String method;
+
+  public CreateIndexPlan(String indexName, String tableName, String columnName, String method) {
+    super(LogicalPlanType.CREATE_INDEX);
+    this.indexName = indexName;
+    this.tableName = tableName;
+    this.columnName = columnName;
+    this.method = method;
+  }
+
+  @Override
+  public String toString() {
+    return "CreateIndexPlan{"
+        + "indexName='"
+        + indexName
+        + "', tableName='"
+        + tableName
+        + "', columnName='"
+        + columnName
+        + "', method='"
+        + method
+        + "'}";
+  }
+}
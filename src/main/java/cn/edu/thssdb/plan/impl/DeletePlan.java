@@ -4,12 +4,17 @@ import cn.edu.thssdb.communication.IO;
 import cn.edu.thssdb.plan.LogicalPlan;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.schema.ValueWrapper;
 import cn.edu.thssdb.sql.SQLParser;
+import cn.edu.thssdb.storage.LeafPrefetcher;
 import cn.edu.thssdb.storage.page.IndexPage;
 import cn.edu.thssdb.utils.Pair;
 
+import java.util.ArrayList;
+
 public class DeletePlan extends LogicalPlan {
   public boolean broken = false;
   public boolean useWhere;
@@ -23,6 +28,9 @@ public class DeletePlan extends LogicalPlan {
 
   public Table.TableMetadata tableMetadata;
 
+  /** records deleted from a table with secondary indexes, whose entries are removed afterwards. */
+  private ArrayList<IndexPage.RecordInPage> recordsDeleted = null;
+
   public void initialization(Table.TableMetadata table) {
     this.tableMetadata = table;
     if (useWhere) {
@@ -49,14 +57,23 @@ public class DeletePlan extends LogicalPlan {
                 getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
 
     Pair<Integer, Integer> pageIter = new Pair<>(null, null);
-    pageIter.left = rootPage.deleteFromLeftmostDataPage(transactionId, condition, null);
+    try {
+      pageIter.left = rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsDeleted);
+    } finally {
+      IO.unpin(rootPage);
+    }
     IndexPage rightPage;
 
     ValueWrapper[] query = {queryValue};
 
     while (pageIter.left > 0) {
       rightPage = (IndexPage) IO.read(table.spaceId, pageIter.left);
-      pageIter = rightPage.deleteWithPrimaryCondition(transactionId, condition, query, null);
+      try {
+        pageIter =
+            rightPage.deleteWithPrimaryCondition(transactionId, condition, query, recordsDeleted);
+      } finally {
+        IO.unpin(rightPage);
+      }
       if (pageIter.right > 0) break;
     }
   }
@@ -70,19 +87,28 @@ public class DeletePlan extends LogicalPlan {
             checkCondition(
                 getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
 
-    Pair<Integer, Integer> pageResult =
-        rootPage.scanTreeAndDeleteFromPage(transactionId, query, condition, null);
+    Pair<Integer, Integer> pageResult;
+    try {
+      pageResult =
+          rootPage.scanTreeAndDeleteFromPage(transactionId, query, condition, recordsDeleted);
+    } finally {
+      IO.unpin(rootPage);
+    }
     IndexPage rightPage;
 
     boolean deleteAll = false;
     while (pageResult.left > 0) {
-      if (deleteAll) {
-        rightPage = (IndexPage) IO.read(table.spaceId, pageResult.left);
-        pageResult.left = rightPage.deleteAll(transactionId, null);
-      } else {
-        rightPage = (IndexPage) IO.read(table.spaceId, pageResult.left);
-        pageResult = rightPage.deleteWithPrimaryCondition(transactionId, condition, query, null);
-        if (pageResult.right < 0) deleteAll = true;
+      rightPage = (IndexPage) IO.read(table.spaceId, pageResult.left);
+      try {
+        if (deleteAll) {
+          pageResult.left = rightPage.deleteAll(transactionId, recordsDeleted);
+        } else {
+          pageResult =
+              rightPage.deleteWithPrimaryCondition(transactionId, condition, query, recordsDeleted);
+          if (pageResult.right < 0) deleteAll = true;
+        }
+      } finally {
+        IO.unpin(rightPage);
       }
     }
   }
@@ -91,7 +117,38 @@ public class DeletePlan extends LogicalPlan {
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
     ValueWrapper[] queryKey = {queryValue};
-    rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
+    RecordLogical recordDeleted;
+    try {
+      recordDeleted = rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
+    } finally {
+      IO.unpin(rootPage);
+    }
+    if (recordDeleted != null) table.deleteFromIndexes(transactionId, recordDeleted);
+  }
+
+  /**
+   * find records through a secondary index on the where column, and delete each of them by primary
+   * key. A record is deleted only if it still satisfies the condition under its row lock.
+   *
+   * @param table table
+   * @param index index on the where column
+   */
+  public void deleteWithIndex(Table.TableMetadata table, SecondaryIndex index) throws Exception {
+    IndexPage.recordCondition condition =
+        (recordInPage) ->
+            checkCondition(
+                getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
+    IndexPage rootPage =
+        (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
+    try {
+      for (ValueWrapper[] primaryKey : findWithIndex(transactionId, index, queryValue, cmp_where)) {
+        RecordLogical recordDeleted =
+            rootPage.scanTreeAndDeleteRecordWithKey(transactionId, primaryKey, condition);
+        if (recordDeleted != null) table.deleteFromIndexes(transactionId, recordDeleted);
+      }
+    } finally {
+      IO.unpin(rootPage);
+    }
   }
 
   public boolean checkCondition(ValueWrapper A, ValueWrapper B, SQLParser.ComparatorContext cmp) {
@@ -118,23 +175,35 @@ public class DeletePlan extends LogicalPlan {
       condition = (recordInPage) -> true;
     }
 
-    int pageIter = rootPage.deleteFromLeftmostDataPage(transactionId, condition, null);
+    int pageIter;
+    try {
+      pageIter = rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsDeleted);
+    } finally {
+      IO.unpin(rootPage);
+    }
     IndexPage rightpage;
+    LeafPrefetcher prefetcher = new LeafPrefetcher(table.spaceId);
     while (pageIter > 0) {
       rightpage = (IndexPage) IO.read(table.spaceId, pageIter);
-      pageIter = rightpage.deleteWithCondition(transactionId, condition, null);
+      try {
+        pageIter = rightpage.deleteWithCondition(transactionId, condition, recordsDeleted);
+      } finally {
+        IO.unpin(rightpage);
+      }
+      prefetcher.visit(pageIter);
     }
   }
 
   public ValueWrapper getRecordInPageValue(IndexPage.RecordInPage record, int primary) {
     return primary < 0
-        ? record.nonPrimaryKeyValues[-primary - 1]
+        ? record.getNonPrimaryKeyValues()[-primary - 1]
         : record.primaryKeyValues[primary];
   }
 
   public void doDelete(long transactionId, Table.TableMetadata table) throws Exception {
     this.transactionId = transactionId;
     initialization(table);
+    recordsDeleted = table.indexes.isEmpty() ? null : new ArrayList<>();
     if (!useWhere) {
       deleteCondition(table);
     } else {
@@ -150,9 +219,15 @@ public class DeletePlan extends LogicalPlan {
           deleteCondition(table);
         }
       } else {
-        deleteCondition(table);
+        SecondaryIndex index = table.getIndexOnColumn(queryCol.getName());
+        if (canUseIndex(transactionId, index, queryValue, cmp_where)) deleteWithIndex(table, index);
+        else deleteCondition(table);
       }
     }
+    if (recordsDeleted != null) {
+      for (IndexPage.RecordInPage record : recordsDeleted)
+        table.deleteFromIndexes(transactionId, new RecordLogical(record));
+    }
   }
 
   public void init_where(SQLParser.ConditionContext cond) {
@@ -0,0 +1,20 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+
+public class DropIndexPlan extends LogicalPlan {
+
+  public String indexName;
+  public String tableName;
+
+  public DropIndexPlan(String indexName, String tableName) {
+    super(LogicalPlanType.DROP_INDEX);
+    this.indexName = indexName;
+    this.tableName = tableName;
+  }
+
+  @Override
+  public String toString() {
+    return "DropIndexPlan{" + "indexName='" + indexName + "', tableName='" + tableName + "'}";
+  }
+}
@@ -0,0 +1,23 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+
+public class RollbackPlan extends LogicalPlan {
+
+  /** savepoint to roll back to, or null to roll back the whole transaction. */
+  private final String savepointName;
+
+  public RollbackPlan(String savepointName) {
+    super(LogicalPlanType.ROLLBACK);
+    this.savepointName = savepointName;
+  }
+
+  public String getSavepointName() {
+    return savepointName;
+  }
+
+  @Override
+  public String toString() {
+    return "Rollback{" + "savepointName='" + savepointName + '\'' + '}';
+  }
+}
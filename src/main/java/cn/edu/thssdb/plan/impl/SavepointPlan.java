@@ -0,0 +1,22 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+
+public class SavepointPlan extends LogicalPlan {
+
+  private final String savepointName;
+
+  public SavepointPlan(String savepointName) {
+    super(LogicalPlanType.SAVEPOINT);
+    this.savepointName = savepointName;
+  }
+
+  public String getSavepointName() {
+    return savepointName;
+  }
+
+  @Override
+  public String toString() {
+    return "Savepoint{" + "savepointName='" + savepointName + '\'' + '}';
+  }
+}
@@ -6,10 +6,13 @@ import cn.edu.thssdb.query.QueryResult;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Column;
 import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.schema.ValueWrapper;
 import cn.edu.thssdb.sql.SQLParser;
+import cn.edu.thssdb.storage.LeafPrefetcher;
 import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.RecordCursor;
 import cn.edu.thssdb.utils.Pair;
 
 import java.util.ArrayList;
@@ -98,6 +101,32 @@ public class SelectPlan extends LogicalPlan {
     queryValue.setWithNull(R_where.getText());
   }
 
+  /**
+   * apply projection on the record that cursor points to. Only projected fields are materialized.
+   *
+   * @param cursor cursor of record
+   * @return projected row
+   */
+  public ArrayList<String> applyProjection(RecordCursor cursor) {
+    ArrayList<String> result = new ArrayList<>();
+    for (int i = 0; i < columns.size(); ++i)
+      result.add(cursor.getString(colInTable.get(i).primary));
+    return result;
+  }
+
+  public ArrayList<String> applyProjection(IndexPage.RecordInPage record) {
+    ArrayList<String> result = new ArrayList<>();
+    for (int i = 0; i < columns.size(); ++i) {
+      int primary = colInTable.get(i).primary;
+      ValueWrapper value =
+          primary < 0
+              ? record.getNonPrimaryKeyValues()[-primary - 1]
+              : record.primaryKeyValues[primary];
+      result.add(value.toString());
+    }
+    return result;
+  }
+
   public ArrayList<String> applyProjection(RecordLogical record) {
     ArrayList<String> result = new ArrayList<>();
     //            System.out.println("---Proj---");
@@ -112,62 +141,141 @@ public class SelectPlan extends LogicalPlan {
   public QueryResult getLess(Table.TableMetadata table) throws Exception {
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
-    Pair<Integer, ArrayList<RecordLogical>> pageIter = rootPage.getLeftmostDataPage(transactionId);
-
-    if (pageIter.left == 0) addRowsWithLess(pageIter);
-    else {
-      do {
-        IndexPage page = (IndexPage) IO.read(table.spaceId, pageIter.left);
-        pageIter = page.getAllRecordLogical(transactionId);
-        if (addRowsWithLess(pageIter)) return res;
-      } while (pageIter.left > 0);
+    /* records are visited in order of primary key, stop at the first one not less than the key. */
+    IndexPage.recordVisitor visitor =
+        (cursor) -> {
+          Integer result = cursor.compareTo(0, queryValue);
+          if (result != null && result < 0) return res.addPendingRow(applyProjection(cursor));
+          if (result != null && result == 0 && cmp_where.LE() != null)
+            res.addPendingRow(applyProjection(cursor));
+          return false;
+        };
+    int leftmostPageId;
+    try {
+      leftmostPageId = rootPage.getLeftmostDataPage(transactionId).left;
+    } finally {
+      IO.unpin(rootPage);
     }
+    scanFromPage(table, leftmostPageId, visitor);
     return res;
   }
 
-  private boolean addRowsWithLess(Pair<Integer, ArrayList<RecordLogical>> pageIter) {
-    for (RecordLogical record : pageIter.right) {
-      Integer result = record.primaryKeyValues[0].compareTo(queryValue);
-      if (result != null && result.intValue() < 0) res.rows.add(applyProjection(record));
-      else {
-        if (cmp_where.LE() != null) res.rows.add(applyProjection(record));
-        return true;
-      }
-    }
-    return false;
-  }
-
   public QueryResult getGreater(Table.TableMetadata table) throws Exception {
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
     ValueWrapper[] query = {queryValue};
-    Pair<Integer, ArrayList<RecordLogical>> pageIter =
-        rootPage.scanTreeAndReturnPage(transactionId, query);
-
     IndexPage page;
-    do {
-      addRowsWithCondition(pageIter, table);
-      if (pageIter.left <= 0) break;
-      page = (IndexPage) IO.read(table.spaceId, pageIter.left);
-      pageIter = page.getAllRecordLogical(transactionId);
-    } while (true);
-
+    try {
+      page = rootPage.scanTreeAndReturnLeaf(transactionId, query);
+    } finally {
+      IO.unpin(rootPage);
+    }
+    RecordCursor cursor = new RecordCursor(table);
+    IndexPage.recordVisitor visitor = conditionVisitor();
+    int pageId;
+    try {
+      pageId = page.scanRecords(transactionId, cursor, visitor);
+    } finally {
+      IO.unpin(page);
+    }
+    if (res.admit()) scanFromPage(table, pageId, visitor);
     return res;
   }
 
+  /**
+   * scan data pages from {@code pageId} to the rightmost one. The visitor adds rows by {@code
+   * addPendingRow}, and they are admitted after each page is released.
+   *
+   * @param table table
+   * @param pageId leftmost page to scan. Nothing is scanned if it is not positive.
+   * @param visitor visitor of records
+   */
+  private void scanFromPage(
+      Table.TableMetadata table, int pageId, IndexPage.recordVisitor visitor) {
+    RecordCursor cursor = new RecordCursor(table);
+    LeafPrefetcher prefetcher = new LeafPrefetcher(table.spaceId);
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(table.spaceId, pageId);
+      try {
+        pageId = page.scanRecords(transactionId, cursor, visitor);
+      } finally {
+        IO.unpin(page);
+      }
+      if (!res.admit()) return;
+      prefetcher.visit(pageId);
+    }
+  }
+
+  /** visitor that adds every record satisfying the where condition (if any) as a pending row. */
+  private IndexPage.recordVisitor conditionVisitor() {
+    return (cursor) -> {
+      if (useWhere
+          && !checkCompareResult(cursor.compareTo(queryCol.primary, queryValue), cmp_where))
+        return true;
+      return res.addPendingRow(applyProjection(cursor));
+    };
+  }
+
   public QueryResult getEqual(Table.TableMetadata table) throws Exception {
     //    System.out.println("select equal!!!!");
+    ValueWrapper[] query = {queryValue};
+    Pair<Boolean, IndexPage.RecordInPage> key;
+    SecondaryIndex hashIndex = table.getHashIndex();
+    if (hashIndex != null) {
+      /* the leaf of the record is found by its hash, without descending the tree. */
+      key = hashIndex.findRecord(transactionId, table, query);
+    } else {
+      IndexPage rootPage =
+          (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
+      try {
+        key = rootPage.scanTreeAndReturnRecord(transactionId, query);
+      } finally {
+        IO.unpin(rootPage);
+      }
+    }
+    if (key.left) res.addRow(applyProjection(key.right));
+    return res;
+  }
+
+  /**
+   * find records through a secondary index on the where column, and read each of them from the
+   * table by primary key.
+   *
+   * @param table table
+   * @param index index on the where column
+   * @return query result
+   */
+  public QueryResult getWithIndex(Table.TableMetadata table, SecondaryIndex index)
+      throws Exception {
+    ArrayList<ValueWrapper[]> primaryKeys =
+        findWithIndex(transactionId, index, queryValue, cmp_where);
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
-    ValueWrapper[] query = {queryValue};
-    Pair<Boolean, IndexPage.RecordInPage> key =
-        rootPage.scanTreeAndReturnRecord(transactionId, query);
-    if (key.left) res.rows.add(applyProjection(new RecordLogical(key.right, table)));
+    try {
+      for (ValueWrapper[] primaryKey : primaryKeys) {
+        Pair<Boolean, IndexPage.RecordInPage> key =
+            rootPage.scanTreeAndReturnRecord(transactionId, primaryKey);
+        if (!key.left) continue;
+        /* the record is checked again, since it is read after its entry. */
+        int primary = queryCol.primary;
+        ValueWrapper value =
+            primary < 0
+                ? key.right.getNonPrimaryKeyValues()[-primary - 1]
+                : key.right.primaryKeyValues[primary];
+        if (checkCondition(value, queryValue, cmp_where) && !res.addRow(applyProjection(key.right)))
+          break;
+      }
+    } finally {
+      IO.unpin(rootPage);
+    }
     return res;
   }
 
   public boolean checkCondition(ValueWrapper A, ValueWrapper B, SQLParser.ComparatorContext cmp) {
-    Integer result = A.compareTo(B);
+    return checkCompareResult(A.compareTo(B), cmp);
+  }
+
+  public boolean checkCompareResult(Integer result, SQLParser.ComparatorContext cmp) {
     if (result == null) return false;
     if (cmp.NE() != null && result.intValue() != 0) return true;
     if (cmp.EQ() != null && result.intValue() == 0) return true;
@@ -181,15 +289,13 @@ public class SelectPlan extends LogicalPlan {
     //    System.out.println("select getCondition!!!!");
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
-    Pair<Integer, ArrayList<RecordLogical>> pageIter = rootPage.getLeftmostDataPage(transactionId);
-    if (pageIter.left == 0) addRowsWithCondition(pageIter, table);
-    else {
-      do {
-        IndexPage page = (IndexPage) IO.read(table.spaceId, pageIter.left);
-        pageIter = page.getAllRecordLogical(transactionId);
-        addRowsWithCondition(pageIter, table);
-      } while (pageIter.left > 0);
+    int leftmostPageId;
+    try {
+      leftmostPageId = rootPage.getLeftmostDataPage(transactionId).left;
+    } finally {
+      IO.unpin(rootPage);
     }
+    scanFromPage(table, leftmostPageId, conditionVisitor());
     return res;
   }
 
@@ -199,16 +305,6 @@ public class SelectPlan extends LogicalPlan {
         : record.primaryKeyValues[primary];
   }
 
-  private void addRowsWithCondition(
-      Pair<Integer, ArrayList<RecordLogical>> pageIter, Table.TableMetadata table) {
-    for (RecordLogical record : pageIter.right) {
-      if (useWhere
-          && !checkCondition(getRecordValue(record, queryCol.primary), queryValue, cmp_where))
-        continue;
-      res.rows.add(applyProjection(record));
-    }
-  }
-
   // useJoin = true
   public void enumPages(
       ArrayList<Table.TableMetadata> tables,
@@ -222,7 +318,12 @@ public class SelectPlan extends LogicalPlan {
     Table.TableMetadata table = tables.get(iter);
     IndexPage rootPage =
         (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
-    Pair<Integer, ArrayList<RecordLogical>> pageIter = rootPage.getLeftmostDataPage(transactionId);
+    Pair<Integer, ArrayList<RecordLogical>> pageIter;
+    try {
+      pageIter = rootPage.getLeftmostDataPage(transactionId);
+    } finally {
+      IO.unpin(rootPage);
+    }
     if (pageIter.left == 0) {
       pages.add(new Pair<>(table, pageIter.right));
       enumPages(tables, iter + 1, pages);
@@ -230,7 +331,11 @@ public class SelectPlan extends LogicalPlan {
     } else {
       IndexPage page = (IndexPage) IO.read(table.spaceId, pageIter.left);
       do {
-        pageIter = page.getAllRecordLogical(transactionId);
+        try {
+          pageIter = page.getAllRecordLogical(transactionId);
+        } finally {
+          IO.unpin(page);
+        }
         pages.add(new Pair<>(table, pageIter.right));
         enumPages(tables, iter + 1, pages);
         pages.remove(iter);
@@ -244,6 +349,7 @@ public class SelectPlan extends LogicalPlan {
       ArrayList<Pair<Table.TableMetadata, ArrayList<RecordLogical>>> pages,
       int iter,
       ArrayList<Pair<Table.TableMetadata, RecordLogical>> records) {
+    if (res.rejected) return;
     if (iter == pages.size()) {
       ArrayList<String> result = new ArrayList<>();
       int i = 0;
@@ -255,7 +361,7 @@ public class SelectPlan extends LogicalPlan {
           }
         ++i;
       }
-      res.rows.add(result);
+      res.addRow(result);
       return;
     }
     Pair<Table.TableMetadata, ArrayList<RecordLogical>> page = pages.get(iter);
@@ -307,8 +413,12 @@ public class SelectPlan extends LogicalPlan {
         IndexPage rootPage =
             (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
         ValueWrapper[] query = {queryValue};
-        Pair<Boolean, IndexPage.RecordInPage> key =
-            rootPage.scanTreeAndReturnRecord(transactionId, query);
+        Pair<Boolean, IndexPage.RecordInPage> key;
+        try {
+          key = rootPage.scanTreeAndReturnRecord(transactionId, query);
+        } finally {
+          IO.unpin(rootPage);
+        }
         if (key.left) records.add(new RecordLogical(key.right, table));
       }
       // apply projection operation
@@ -327,7 +437,7 @@ public class SelectPlan extends LogicalPlan {
             }
           ++i;
         }
-        res.rows.add(result);
+        res.addRow(result);
       }
       return res;
     }
@@ -336,12 +446,36 @@ public class SelectPlan extends LogicalPlan {
     return res;
   }
 
+  /**
+   * run the query. Rows of the result hold memory of the memory budget, which shall be given back
+   * by {@code QueryResult.release} once they are handed to the response.
+   *
+   * @param transactionId transaction
+   * @param tables tables in FROM clause
+   * @return query result
+   * @throws Exception if the query fails or its result exceeds the memory budget
+   */
   public QueryResult getResult(long transactionId, ArrayList<Table.TableMetadata> tables)
       throws Exception {
     this.transactionId = transactionId;
     initialization(tables);
     counter++;
     //    System.out.println("SELECT GET RESULT!" + counter);
+    QueryResult result;
+    try {
+      result = select(tables);
+    } catch (Exception e) {
+      res.release();
+      throw e;
+    }
+    if (res.rejected) {
+      res.release();
+      throw new Exception("The result of the query exceeds the memory budget. Please retry later.");
+    }
+    return result;
+  }
+
+  private QueryResult select(ArrayList<Table.TableMetadata> tables) throws Exception {
     if (!useJoin) {
       if (!useWhere) {
         return getCondition(tables.get(0));
@@ -358,7 +492,12 @@ public class SelectPlan extends LogicalPlan {
           else if (cmp_where.GE() != null || cmp_where.GT() != null) return getGreater(table);
           else if (cmp_where.NE() != null) return getCondition(table);
           else return null;
-        } else return getCondition(tables.get(0));
+        } else {
+          SecondaryIndex index = table.getIndexOnColumn(queryCol.getName());
+          if (canUseIndex(transactionId, index, queryValue, cmp_where))
+            return getWithIndex(table, index);
+          return getCondition(table);
+        }
       }
     } else return getJoin(tables);
   }
@@ -0,0 +1,24 @@
+package cn.edu.thssdb.plan.impl;
+
+import cn.edu.thssdb.plan.LogicalPlan;
+import cn.edu.thssdb.runtime.Configuration;
+
+public class SetTransactionPlan extends LogicalPlan {
+
+  /** isolation level of the following transactions of the session. */
+  private final Configuration.Isolation isolation;
+
+  public SetTransactionPlan(Configuration.Isolation isolation) {
+    super(LogicalPlanType.SET_TRANSACTION);
+    this.isolation = isolation;
+  }
+
+  public Configuration.Isolation getIsolation() {
+    return isolation;
+  }
+
+  @Override
+  public String toString() {
+    return "SetTransaction{" + "isolation=" + isolation + '}';
+  }
+}
@@ -5,9 +5,11 @@ import cn.edu.thssdb.plan.LogicalPlan;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Column;
 import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.schema.ValueWrapper;
 import cn.edu.thssdb.sql.SQLParser;
+import cn.edu.thssdb.storage.LeafPrefetcher;
 import cn.edu.thssdb.storage.page.IndexPage;
 import cn.edu.thssdb.utils.Pair;
 
@@ -63,167 +65,142 @@ public class UpdatePlan extends LogicalPlan {
   public boolean updateWherePrimaryLess() throws Exception {
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
-    IndexPage.recordCondition condition =
-        (recordInPage) ->
-            checkCondition(
-                getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
-
-    ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
-    Pair<Integer, Integer> pageIter = new Pair<>(null, null);
-    pageIter.left =
-        rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsNeedToUpdate);
-    IndexPage rightPage;
-
-    if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-      for (IndexPage.RecordInPage record : recordsNeedToUpdate) {
-        /* recover delete */
-        record.unsetDeleted();
-        record.write(transactionId, rootPage, record.myOffset);
-      }
-      return false;
-    }
-    int maxSize = recordsNeedToUpdate.size();
-
-    ValueWrapper[] query = {queryValue};
-
-    while (pageIter.left > 0) {
-      rightPage = (IndexPage) IO.read(tableMetadata.spaceId, pageIter.left);
-      pageIter =
-          rightPage.deleteWithPrimaryCondition(
-              transactionId, condition, query, recordsNeedToUpdate);
-      if (pageIter.right > 0) break;
+    try {
+      IndexPage.recordCondition condition =
+          (recordInPage) ->
+              checkCondition(
+                  getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
 
-      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-        for (int i = 0; i < maxSize; i++) {
-          rootPage.scanTreeAndDeleteRecordWithKey(
-              transactionId, recordsNeedToUpdate.get(i).primaryKeyValues);
+      ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
+      Pair<Integer, Integer> pageIter = new Pair<>(null, null);
+      pageIter.left =
+          rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsNeedToUpdate);
+      IndexPage rightPage;
+
+      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
+
+      ValueWrapper[] query = {queryValue};
+
+      while (pageIter.left > 0) {
+        rightPage = (IndexPage) IO.read(tableMetadata.spaceId, pageIter.left);
+        try {
+          pageIter =
+              rightPage.deleteWithPrimaryCondition(
+                  transactionId, condition, query, recordsNeedToUpdate);
+        } finally {
+          /* the page stays in buffer, pinned by the write lock of this transaction. */
+          IO.unpin(rightPage);
         }
-        for (int i = maxSize; i < recordsNeedToUpdate.size(); i++) {
-          /* recover delete */
-          IndexPage.RecordInPage record = recordsNeedToUpdate.get(i);
-          record.unsetDeleted();
-          record.write(transactionId, rightPage, record.myOffset);
-        }
-        return false;
-      } else {
-        maxSize = recordsNeedToUpdate.size();
+        if (pageIter.right > 0) break;
+
+        if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
       }
-    }
 
-    return updateRecordList(recordsNeedToUpdate);
+      return updateRecordList(recordsNeedToUpdate);
+    } finally {
+      IO.unpin(rootPage);
+    }
   }
 
   public boolean updateWherePrimaryGreater() throws Exception {
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
-    ValueWrapper[] query = {queryValue};
-    IndexPage.recordCondition condition =
-        (recordInPage) ->
-            checkCondition(
-                getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
+    try {
+      ValueWrapper[] query = {queryValue};
+      IndexPage.recordCondition condition =
+          (recordInPage) ->
+              checkCondition(
+                  getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
 
-    ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
+      ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
 
-    Pair<Integer, Integer> pageResult =
-        rootPage.scanTreeAndDeleteFromPage(transactionId, query, condition, recordsNeedToUpdate);
-    IndexPage rightPage;
+      Pair<Integer, Integer> pageResult =
+          rootPage.scanTreeAndDeleteFromPage(transactionId, query, condition, recordsNeedToUpdate);
+      IndexPage rightPage;
 
-    if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-      for (IndexPage.RecordInPage record : recordsNeedToUpdate) {
-        /* recover delete */
-        record.unsetDeleted();
-        record.write(transactionId, rootPage, record.myOffset);
-      }
-      return false;
-    }
-    int maxSize = recordsNeedToUpdate.size();
+      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
 
-    boolean deleteAll = false;
-    while (pageResult.left > 0) {
-      if (deleteAll) {
+      boolean deleteAll = false;
+      while (pageResult.left > 0) {
         rightPage = (IndexPage) IO.read(tableMetadata.spaceId, pageResult.left);
-        pageResult.left = rightPage.deleteAll(transactionId, recordsNeedToUpdate);
-      } else {
-        rightPage = (IndexPage) IO.read(tableMetadata.spaceId, pageResult.left);
-        pageResult =
-            rightPage.deleteWithPrimaryCondition(
-                transactionId, condition, query, recordsNeedToUpdate);
-        if (pageResult.right < 0) deleteAll = true;
-      }
-      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-        for (int i = 0; i < maxSize; i++) {
-          rootPage.scanTreeAndDeleteRecordWithKey(
-              transactionId, recordsNeedToUpdate.get(i).primaryKeyValues);
+        try {
+          if (deleteAll) {
+            pageResult.left = rightPage.deleteAll(transactionId, recordsNeedToUpdate);
+          } else {
+            pageResult =
+                rightPage.deleteWithPrimaryCondition(
+                    transactionId, condition, query, recordsNeedToUpdate);
+            if (pageResult.right < 0) deleteAll = true;
+          }
+        } finally {
+          /* the page stays in buffer, pinned by the write lock of this transaction. */
+          IO.unpin(rightPage);
         }
-        for (int i = maxSize; i < recordsNeedToUpdate.size(); i++) {
-          /* recover delete */
-          IndexPage.RecordInPage record = recordsNeedToUpdate.get(i);
-          record.unsetDeleted();
-          record.write(transactionId, rightPage, record.myOffset);
-        }
-        return false;
-      } else {
-        maxSize = recordsNeedToUpdate.size();
+        if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
       }
-    }
 
-    return updateRecordList(recordsNeedToUpdate);
+      return updateRecordList(recordsNeedToUpdate);
+    } finally {
+      IO.unpin(rootPage);
+    }
   }
 
   public boolean updateWherePrimaryEqual() throws Exception {
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
-    //    System.out.println("update where primary equal!");
-    if (updateSingleAndOnlyPrimary) {
-      ValueWrapper[] queryKey = {queryValue};
-      Integer result = queryValue.compareTo(valueToSet);
-      if (result != null && result == 0) {
-        /* update table set primaryKey = value where primaryKey = value */
-        /* no work shall be done. */
-        return true;
-      }
-      RecordLogical recordDeleted =
-          rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
-      if (recordDeleted == null) {
-        /* no such record */
-        return true;
-      }
-      RecordLogical recordToInsert = new RecordLogical(recordDeleted);
-      recordToInsert.primaryKeyValues[0].setWithNull(valueLiteralToSet);
-      boolean insertResult = rootPage.insertDataRecordIntoTree(transactionId, recordToInsert);
-      if (!insertResult) {
-        rootPage.insertDataRecordIntoTree(transactionId, recordDeleted);
-      } else {
-        return true;
-      }
-    } else {
-      //      System.out.println("here we delete, no conflict!" + transactionId);
-      ValueWrapper[] queryKey = {queryValue};
-      //      System.out.println("try delete." + transactionId);
-      RecordLogical recordDeleted =
-          rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
-      //      System.out.println("delete ok." + transactionId);
-      if (recordDeleted == null) {
-        /* no such record */
+    try {
+      //    System.out.println("update where primary equal!");
+      if (updateSingleAndOnlyPrimary) {
+        ValueWrapper[] queryKey = {queryValue};
+        Integer result = queryValue.compareTo(valueToSet);
+        if (result != null && result == 0) {
+          /* update table set primaryKey = value where primaryKey = value */
+          /* no work shall be done. */
+          return true;
+        }
+        RecordLogical recordDeleted =
+            rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
+        if (recordDeleted == null) {
+          /* no such record */
+          return true;
+        }
+        tableMetadata.deleteFromIndexes(transactionId, recordDeleted);
+        RecordLogical recordToInsert = new RecordLogical(recordDeleted);
+        recordToInsert.primaryKeyValues[0].setWithNull(valueLiteralToSet);
+        int leafPageId =
+            rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, recordToInsert);
+        if (leafPageId == 0) return false;
+        tableMetadata.insertIntoIndexes(transactionId, recordToInsert, leafPageId);
         return true;
-      }
-      RecordLogical recordToInsert = new RecordLogical(recordDeleted);
-      if (columnToSet.primary >= 0) {
-        recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
-      } else {
-        recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(valueLiteralToSet);
-      }
-      //      System.out.println("try insert." + transactionId);
-      boolean insertResult = rootPage.insertDataRecordIntoTree(transactionId, recordToInsert);
-      //      System.out.println("insert ok." + transactionId);
-      if (!insertResult) {
-        //        System.out.println("let us recover" + transactionId);
-        rootPage.insertDataRecordIntoTree(transactionId, recordDeleted);
       } else {
+        //      System.out.println("here we delete, no conflict!" + transactionId);
+        ValueWrapper[] queryKey = {queryValue};
+        //      System.out.println("try delete." + transactionId);
+        RecordLogical recordDeleted =
+            rootPage.scanTreeAndDeleteRecordWithKey(transactionId, queryKey);
+        //      System.out.println("delete ok." + transactionId);
+        if (recordDeleted == null) {
+          /* no such record */
+          return true;
+        }
+        tableMetadata.deleteFromIndexes(transactionId, recordDeleted);
+        RecordLogical recordToInsert = new RecordLogical(recordDeleted);
+        if (columnToSet.primary >= 0) {
+          recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
+        } else {
+          recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(
+              valueLiteralToSet);
+        }
+        //      System.out.println("try insert." + transactionId);
+        int leafPageId =
+            rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, recordToInsert);
+        if (leafPageId == 0) return false;
+        tableMetadata.insertIntoIndexes(transactionId, recordToInsert, leafPageId);
         return true;
       }
+    } finally {
+      IO.unpin(rootPage);
     }
-    return true;
   }
 
   public boolean checkCondition(ValueWrapper A, ValueWrapper B, SQLParser.ComparatorContext cmp) {
@@ -239,59 +216,71 @@ public class UpdatePlan extends LogicalPlan {
 
   public boolean updateRecordList(ArrayList<IndexPage.RecordInPage> recordsToUpdate)
       throws Exception {
+    ArrayList<RecordLogical> records = new ArrayList<>();
+    for (IndexPage.RecordInPage recordInPage : recordsToUpdate) {
+      records.add(new RecordLogical(recordInPage));
+    }
+    return updateRecords(records);
+  }
+
+  /**
+   * insert records that have been deleted again, with the column set. The entries of secondary
+   * indexes are moved from the old records to the new ones.
+   *
+   * @param recordsToUpdate records deleted
+   * @return false if a constraint is violated
+   */
+  public boolean updateRecords(ArrayList<RecordLogical> recordsToUpdate) throws Exception {
+    for (RecordLogical record : recordsToUpdate) {
+      tableMetadata.deleteFromIndexes(transactionId, record);
+    }
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
-
-    //    System.out.println("update record list start");
-    if (conflictingUpdate) {
-      /* shadow insert */
-      //      System.out.println("shadow insert start.");
-      ArrayList<RecordLogical> shadows = new ArrayList<>();
-      boolean noConflict = true;
-      for (IndexPage.RecordInPage recordInPage : recordsToUpdate) {
-        RecordLogical recordToInsert = new RecordLogical(recordInPage);
-        if (columnToSet.primary >= 0) {
-          recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
-        } else {
-          recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(
-              valueLiteralToSet);
+    try {
+
+      //    System.out.println("update record list start");
+      if (conflictingUpdate) {
+        /* shadow insert */
+        //      System.out.println("shadow insert start.");
+        for (RecordLogical record : recordsToUpdate) {
+          RecordLogical recordToInsert = new RecordLogical(record);
+          if (columnToSet.primary >= 0) {
+            recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
+          } else {
+            recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(
+                valueLiteralToSet);
+          }
+          //        System.out.println("try to insert: ");
+          System.out.println(recordToInsert);
+          int leafPageId =
+              rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, recordToInsert);
+          if (leafPageId == 0) return false;
+          tableMetadata.insertIntoIndexes(transactionId, recordToInsert, leafPageId);
         }
-        //        System.out.println("try to insert: ");
-        System.out.println(recordToInsert);
-        noConflict = rootPage.insertDataRecordIntoTree(transactionId, recordToInsert);
-        //        System.out.println("noConflict: " + noConflict);
-        if (!noConflict) break;
-        shadows.add(recordToInsert);
-      }
-      if (!noConflict) {
-        /* remove shadow and recover deleted records. */
-        for (RecordLogical recordInPage : shadows) {
-          rootPage.scanTreeAndDeleteRecordWithKey(transactionId, recordInPage.primaryKeyValues);
-        }
-        for (IndexPage.RecordInPage recordInPage : recordsToUpdate) {
-          rootPage.insertDataRecordIntoTree(transactionId, new RecordLogical(recordInPage));
-        }
-        return false;
-      } else {
         return true;
-      }
-    } else {
-      /* insert */
-      //      System.out.println("insert start.");
-      for (IndexPage.RecordInPage recordInPage : recordsToUpdate) {
-        RecordLogical recordToInsert = new RecordLogical(recordInPage);
-        if (columnToSet.primary >= 0) {
-          recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
-        } else {
-          recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(
-              valueLiteralToSet);
+      } else {
+        /* insert */
+        //      System.out.println("insert start.");
+        for (RecordLogical record : recordsToUpdate) {
+          RecordLogical recordToInsert = new RecordLogical(record);
+          if (columnToSet.primary >= 0) {
+            recordToInsert.primaryKeyValues[columnToSet.primary].setWithNull(valueLiteralToSet);
+          } else {
+            recordToInsert.nonPrimaryKeyValues[-columnToSet.primary - 1].setWithNull(
+                valueLiteralToSet);
+          }
+          //        System.out.println("new record to insert:");
+          //        System.out.println(recordInPage);
+          int leafPageId =
+              rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, recordToInsert);
+          if (leafPageId > 0)
+            tableMetadata.insertIntoIndexes(transactionId, recordToInsert, leafPageId);
         }
-        //        System.out.println("new record to insert:");
-        //        System.out.println(recordInPage);
-        rootPage.insertDataRecordIntoTree(transactionId, recordToInsert);
       }
+      return true;
+    } finally {
+      IO.unpin(rootPage);
     }
-    return true;
   }
 
   public boolean updateCondition() throws Exception {
@@ -309,59 +298,84 @@ public class UpdatePlan extends LogicalPlan {
 
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
-    ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
+    try {
+      ArrayList<IndexPage.RecordInPage> recordsNeedToUpdate = new ArrayList<>();
 
-    int nextPageId =
-        rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsNeedToUpdate);
+      int nextPageId =
+          rootPage.deleteFromLeftmostDataPage(transactionId, condition, recordsNeedToUpdate);
 
-    //    System.out.println("delete these:");
+      //    System.out.println("delete these:");
 
-    //    for (IndexPage.RecordInPage record : recordsNeedToUpdate) {
-    //      System.out.println(record);
-    //    }
+      //    for (IndexPage.RecordInPage record : recordsNeedToUpdate) {
+      //      System.out.println(record);
+      //    }
 
-    if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-      for (IndexPage.RecordInPage record : recordsNeedToUpdate) {
-        /* recover delete */
-        record.unsetDeleted();
-        record.write(transactionId, rootPage, record.myOffset);
-      }
-      return false;
-    }
-    int maxSize = recordsNeedToUpdate.size();
-
-    IndexPage rightpage;
-    while (nextPageId > 0) {
+      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
 
-      rightpage = (IndexPage) IO.read(tableMetadata.spaceId, nextPageId);
-      nextPageId = rightpage.deleteWithCondition(transactionId, condition, recordsNeedToUpdate);
+      IndexPage rightpage;
+      LeafPrefetcher prefetcher = new LeafPrefetcher(tableMetadata.spaceId);
+      while (nextPageId > 0) {
 
-      if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) {
-        for (int i = 0; i < maxSize; i++) {
-          rootPage.scanTreeAndDeleteRecordWithKey(
-              transactionId, recordsNeedToUpdate.get(i).primaryKeyValues);
+        rightpage = (IndexPage) IO.read(tableMetadata.spaceId, nextPageId);
+        try {
+          nextPageId = rightpage.deleteWithCondition(transactionId, condition, recordsNeedToUpdate);
+        } finally {
+          /* the page stays in buffer, pinned by the write lock of this transaction. */
+          IO.unpin(rightpage);
         }
-        for (int i = maxSize; i < recordsNeedToUpdate.size(); i++) {
-          /* recover delete */
-          IndexPage.RecordInPage record = recordsNeedToUpdate.get(i);
-          record.unsetDeleted();
-          record.write(transactionId, rightpage, record.myOffset);
-        }
-        return false;
-      } else {
-        maxSize = recordsNeedToUpdate.size();
+        prefetcher.visit(nextPageId);
+
+        if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
       }
+
+      return updateRecordList(recordsNeedToUpdate);
+    } finally {
+      IO.unpin(rootPage);
     }
+  }
 
-    return updateRecordList(recordsNeedToUpdate);
+  /**
+   * find records through a secondary index on the where column, and update each of them. A record
+   * is updated only if it still satisfies the condition under its row lock.
+   *
+   * @param index index on the where column
+   * @return false if a constraint is violated
+   */
+  public boolean updateWithIndex(SecondaryIndex index) throws Exception {
+    IndexPage.recordCondition condition =
+        (recordInPage) ->
+            checkCondition(
+                getRecordInPageValue(recordInPage, queryCol.primary), queryValue, cmp_where);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    ArrayList<RecordLogical> recordsNeedToUpdate = new ArrayList<>();
+    try {
+      for (ValueWrapper[] primaryKey : findWithIndex(transactionId, index, queryValue, cmp_where)) {
+        RecordLogical recordDeleted =
+            rootPage.scanTreeAndDeleteRecordWithKey(transactionId, primaryKey, condition);
+        if (recordDeleted != null) recordsNeedToUpdate.add(recordDeleted);
+        if (updateSingleAndOnlyPrimary && recordsNeedToUpdate.size() > 1) return false;
+      }
+    } finally {
+      IO.unpin(rootPage);
+    }
+    return updateRecords(recordsNeedToUpdate);
   }
 
   public ValueWrapper getRecordInPageValue(IndexPage.RecordInPage record, int primary) {
     return primary < 0
-        ? record.nonPrimaryKeyValues[-primary - 1]
+        ? record.getNonPrimaryKeyValues()[-primary - 1]
         : record.primaryKeyValues[primary];
   }
 
+  /**
+   * update records of the table. Records are updated by deleting and inserting them again.
+   *
+   * @param transactionId transaction
+   * @param table table to update
+   * @return false if a constraint is violated. Changes already made are not undone here, and shall
+   *     be rolled back by the caller.
+   */
   public boolean doUpdate(long transactionId, Table.TableMetadata table) throws Exception {
     this.transactionId = transactionId;
     initialization(table);
@@ -372,7 +386,7 @@ public class UpdatePlan extends LogicalPlan {
 
     /* set non-primary key. */
     if (!useWhere) {
-      updateCondition();
+      return updateCondition();
     } else {
       if (table.getPrimaryKeyNumber() == 1
           && L_where.columnName().getText().equals(table.getPrimaryKeyList().get(0))) {
@@ -386,10 +400,11 @@ public class UpdatePlan extends LogicalPlan {
         else return true;
 
       } else {
+        SecondaryIndex index = table.getIndexOnColumn(queryCol.getName());
+        if (canUseIndex(transactionId, index, queryValue, cmp_where)) return updateWithIndex(index);
         return updateCondition();
       }
     }
-    return true;
   }
 
   public void init_where(SQLParser.ConditionContext cond) {
@@ -1,13 +1,80 @@
 package cn.edu.thssdb.query;
 
+import cn.edu.thssdb.runtime.MemoryBudget;
+import cn.edu.thssdb.runtime.ServerRuntime;
+
 import java.util.ArrayList;
 
 public class QueryResult {
   public ArrayList<String> columns;
   public ArrayList<ArrayList<String>> rows;
 
+  /** true if a row is dropped because the memory budget does not admit it. */
+  public boolean rejected = false;
+
+  /* estimated bytes of rows, and bytes acquired from the memory budget for them. */
+  private long usedBytes = 0;
+  private long acquiredBytes = 0;
+
+  /* number of rows whose memory is acquired. The rows after them are pending. */
+  private int admittedRows = 0;
+
   public QueryResult() {
     rows = new ArrayList<>();
     columns = new ArrayList<>();
   }
+
+  /**
+   * add a row, acquiring memory for it from the memory budget chunk by chunk.
+   *
+   * @param row row
+   * @return false if the memory budget does not admit the row in time. The row is dropped and so
+   *     are all rows after it.
+   */
+  public boolean addRow(ArrayList<String> row) {
+    return addPendingRow(row) && admit();
+  }
+
+  /**
+   * add a row found while a page is latched or locked. Its memory is acquired by the next {@code
+   * admit}, which shall be called once the page is released, so that the scan never waits for the
+   * memory budget while it holds the page.
+   *
+   * @param row row
+   * @return false if rows have been rejected, and the row is dropped.
+   */
+  public boolean addPendingRow(ArrayList<String> row) {
+    if (rejected) return false;
+    /* header of the list, and of each string with its chars. */
+    usedBytes += 32;
+    for (String value : row) usedBytes += 48 + 2L * value.length();
+    rows.add(row);
+    return true;
+  }
+
+  /**
+   * acquire memory for the pending rows.
+   *
+   * @return false if the memory budget does not admit them in time. The pending rows are dropped
+   *     and so are all rows after them.
+   */
+  public boolean admit() {
+    if (rejected) return false;
+    while (usedBytes > acquiredBytes) {
+      if (!ServerRuntime.memoryBudget.acquire(MemoryBudget.CHUNK)) {
+        rejected = true;
+        rows.subList(admittedRows, rows.size()).clear();
+        return false;
+      }
+      acquiredBytes += MemoryBudget.CHUNK;
+    }
+    admittedRows = rows.size();
+    return true;
+  }
+
+  /** give back the memory of rows, which shall be done once the rows are handed to the response. */
+  public void release() {
+    ServerRuntime.memoryBudget.release(acquiredBytes);
+    acquiredBytes = 0;
+  }
 }
@@ -6,6 +6,7 @@ public class Configuration {
   public String testPath = "./metadata";
 
   public String tablespacePath = testPath + "/" + "base";
+  /* master record of the last checkpoint. */
   public String testPathRecover = testPath + "/" + "checkpoint";
   public String WALFilename = testPath + "/" + "WAL.log";
   public String DummyLogFilename = testPath + "/" + "DummyLog.log";
@@ -14,6 +15,50 @@ public class Configuration {
   public int pageSize = 16 * 1024;
   public final int bufferSize = 300;
 
+  /** interval (in milliseconds) at which the background flusher writes dirty unpinned pages. */
+  public final int bufferFlushInterval = 100;
+
+  /** interval (in milliseconds) between two fuzzy checkpoints. */
+  public final int checkpointInterval = 1000;
+
+  /**
+   * When {@code useDirectBuffer} is set to true, buffer frames are slices of one off-heap arena
+   * allocated at startup, so that page bytes are neither scanned nor moved by the garbage
+   * collector. Otherwise, every page has its own heap buffer.
+   */
+  public boolean useDirectBuffer = false;
+
+  /**
+   * When {@code useMappedTablespace} is set to true, tablespace files are read and written through
+   * memory-mapped regions, which suits read-mostly workloads. Otherwise, every tablespace file is
+   * accessed through one persistent file channel.
+   */
+  public boolean useMappedTablespace = false;
+
+  /** bytes of memory that pages in buffer and query results may hold together. */
+  public long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+
+  /** maximum time (in milliseconds) a query waits for memory before it is rejected. */
+  public final int memoryBudgetWait = 1000;
+
+  /** interval (in milliseconds) between two searches for deadlocks among waiting transactions. */
+  public final int deadlockDetectionInterval = 100;
+
+  /** number of leaves read ahead of a sequential leaf scan. Read-ahead is disabled if it is 0. */
+  public final int prefetchDepth = 8;
+
+  /** fraction of each page that bulk load fills, leaving room for later inserts before a split. */
+  public double bulkLoadFillFactor = 0.9;
+
+  /** number of rows bulk load sorts in memory before it spills them to a run file. */
+  public int bulkLoadRunSize = 100000;
+
+  /** interval (in milliseconds) between two passes of vacuum over the leaves noted by deletes. */
+  public int vacuumInterval = 1000;
+
+  /** fraction of the records of a leaf that shall be deleted before vacuum purges them. */
+  public double vacuumThreshold = 0.25;
+
   public final int overallPageIndex = 0;
   public final int indexRootPageIndex = 1;
   public final int indexLeftmostLeafIndex = 2;
@@ -30,9 +75,20 @@ public class Configuration {
    */
   public boolean auto_commit;
 
+  /** what a transaction may see of the changes made by concurrent transactions. */
+  public enum Isolation {
+    /** each statement reads the rows committed before the statement began. It takes no locks. */
+    READ_COMMITTED,
+    /** every statement reads the rows committed before the transaction began. It takes no locks. */
+    REPEATABLE_READ,
+    /** readers take shared locks on pages and keep them until the transaction ends. */
+    SERIALIZABLE
+  }
+
   /**
-   * When {@code serializable} is set to true, the database will use serializable isolation level.
-   * Otherwise, the database will use read committed isolation level.
+   * When {@code serializable} is set to true, sessions start with serializable isolation level.
+   * Otherwise, they start with repeatable read, which reads snapshots. A session may change its
+   * level by 'set transaction isolation level'.
    */
   public boolean serializable;
 
@@ -40,6 +96,46 @@ public class Configuration {
 
   public boolean useDummyLog = true;
 
+  /** bytes of the ring buffer of write-ahead log. */
+  public final int walBufferSize = 4 * 1024 * 1024;
+
+  /**
+   * maximum time (in milliseconds) a log stays in the ring buffer when no one waits for it. Commits
+   * do not wait for this interval: they wake up the flusher.
+   */
+  public final int walFlushInterval = 10;
+
+  /**
+   * bytes of log before the last checkpoint that restart no longer needs, at which the log file is
+   * truncated. It is truncated later if the log restart still needs is longer.
+   */
+  public long walTruncateSize = 64L * 1024 * 1024;
+
+  /** how long a committed transaction may live only in memory before its log reaches disk. */
+  public enum Durability {
+    /**
+     * a commit waits until its log is forced to disk. Commits of concurrent transactions are forced
+     * together. No committed transaction is lost.
+     */
+    SYNC,
+    /**
+     * a commit returns once its log is in the log buffer, and the buffer is forced every {@code
+     * asyncFlushInterval}. Transactions committed within the last interval before a crash are lost.
+     */
+    ASYNC,
+    /**
+     * a commit never waits, and the log is forced only when the log buffer fills up, a dirty page
+     * is written back or a checkpoint is made. Transactions committed since the last checkpoint may
+     * be lost on a crash.
+     */
+    NONE
+  }
+
+  public Durability durability = Durability.SYNC;
+
+  /** maximum time (in milliseconds) a commit stays in the log buffer under ASYNC durability. */
+  public int asyncFlushInterval = 1000;
+
   public boolean recoverFromDummyLog;
 
   public Configuration() {
@@ -0,0 +1,638 @@
+package cn.edu.thssdb.runtime;
+
+import cn.edu.thssdb.exception.DeadlockException;
+import cn.edu.thssdb.schema.ValueWrapper;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Two-phase locks of transactions. Locks form a hierarchy of tables, pages and rows, and are kept
+ * in a lock table partitioned by the hash of lock keys into stripes, each with a latch of its own.
+ * A transaction takes an intention lock on the table and on the page before it locks a row, so that
+ * a page or table lock in shared or exclusive mode conflicts with the row locks below it. Rows are
+ * locked by primary key, so that a row lock stays valid when the row moves to another page. <br>
+ * A request that conflicts with the holders of a lock waits in the queue of the lock, and waiters
+ * are granted in arrival order, so that a writer is not starved by a stream of readers. A holder
+ * that asks for a stronger mode is queued ahead of new requests. <br>
+ * A detector builds the wait-for graph every {@code deadlockDetectionInterval} and aborts the
+ * youngest transaction of each cycle: its request fails with {@code DeadlockException}, and the
+ * transaction shall be rolled back, which releases its locks. <br>
+ * A transaction may take the same lock many times. Locks taken for a short time are given back by
+ * {@code release}, and every lock of a transaction is given back by {@code releaseAll}.
+ */
+public class LockManager {
+
+  public static final int INTENTION_SHARED = 0;
+  public static final int INTENTION_EXCLUSIVE = 1;
+  public static final int SHARED = 2;
+  public static final int SHARED_INTENTION_EXCLUSIVE = 3;
+  public static final int EXCLUSIVE = 4;
+
+  private static final int LOCK_METRICS_CAPACITY = 1024;
+
+  private static final boolean[][] compatible = {
+    {true, true, true, true, false},
+    {true, true, false, false, false},
+    {true, false, true, false, false},
+    {true, false, false, false, false},
+    {false, false, false, false, false}
+  };
+
+  /* the weakest mode that covers both modes, which a holder converts to. */
+  private static final int[][] supremum = {
+    {0, 1, 2, 3, 4},
+    {1, 1, 3, 3, 4},
+    {2, 3, 2, 3, 4},
+    {3, 3, 3, 3, 4},
+    {4, 4, 4, 4, 4}
+  };
+
+  private static final int TABLE = -1;
+  private static final int ROW = -2;
+
+  /** identity of a lock: a table, a page of a table, or a row of a table. */
+  public static final class LockKey {
+    public final int spaceId;
+    public final int pageId;
+    /* primary key of a row, or null. */
+    public final String row;
+
+    private LockKey(int spaceId, int pageId, String row) {
+      this.spaceId = spaceId;
+      this.pageId = pageId;
+      this.row = row;
+    }
+
+    public LockKey(int spaceId, int pageId) {
+      this(spaceId, pageId, null);
+    }
+
+    public static LockKey table(int spaceId) {
+      return new LockKey(spaceId, TABLE, null);
+    }
+
+    /**
+     * lock of the row with the primary key.
+     *
+     * @param spaceId table
+     * @param primaryKeyValues primary key of the row
+     * @return lock key
+     */
+    public static LockKey row(int spaceId, ValueWrapper[] primaryKeyValues) {
+      return new LockKey(spaceId, ROW, ValueWrapper.toKeyString(primaryKeyValues));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof LockKey)) return false;
+      LockKey other = (LockKey) o;
+      return spaceId == other.spaceId && pageId == other.pageId && Objects.equals(row, other.row);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * spaceId + pageId) + (row == null ? 0 : row.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      if (pageId == TABLE) return String.valueOf(spaceId);
+      if (pageId == ROW) return spaceId + ":(" + row + ")";
+      return spaceId + ":" + pageId;
+    }
+  }
+
+  /** a request that waits in the queue of a lock. */
+  private static class Request {
+    final Lock lock;
+    final long transactionId;
+    final int mode;
+    final Condition ready;
+    boolean granted = false;
+    boolean victim = false;
+
+    Request(Lock lock, long transactionId, int mode, Condition ready) {
+      this.lock = lock;
+      this.transactionId = transactionId;
+      this.mode = mode;
+      this.ready = ready;
+    }
+  }
+
+  /** mode of a holder and the number of times it has taken the lock. */
+  private static class Holder {
+    int mode;
+    int count;
+
+    Holder(int mode) {
+      this.mode = mode;
+    }
+  }
+
+  /** an entry of the lock table. It is guarded by the latch of its stripe. */
+  private static class Lock {
+    final LockKey key;
+    final Stripe stripe;
+    final HashMap<Long, Holder> holders = new HashMap<>();
+    final ArrayDeque<Request> queue = new ArrayDeque<>();
+
+    Lock(LockKey key, Stripe stripe) {
+      this.key = key;
+      this.stripe = stripe;
+    }
+  }
+
+  /** a partition of the lock table by the hash of lock keys, with a latch of its own. */
+  private static class Stripe {
+    final int index;
+    final ReentrantLock latch = new ReentrantLock();
+
+    /* the fields below are guarded by latch. */
+    final HashMap<LockKey, Lock> table = new HashMap<>();
+    /* number of waits, total and maximum wait time of the recently waited-for locks. */
+    final LinkedHashMap<LockKey, long[]> lockWaits =
+        new LinkedHashMap<LockKey, long[]>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<LockKey, long[]> eldest) {
+            return size() > LOCK_METRICS_CAPACITY / STRIPES;
+          }
+        };
+    long waits = 0;
+    long totalWaitNanos = 0;
+    long maxWaitNanos = 0;
+
+    Stripe(int index) {
+      this.index = index;
+    }
+
+    Lock lockOf(LockKey key) {
+      return table.computeIfAbsent(key, k -> new Lock(k, this));
+    }
+  }
+
+  /** number of stripes of the lock table. */
+  private static final int STRIPES = 64;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /* locks held by each transaction. */
+  private final ConcurrentHashMap<Long, Set<Lock>> held = new ConcurrentHashMap<>();
+  /* request each transaction is waiting for. A transaction waits for one request at a time. */
+  private final ConcurrentHashMap<Long, Request> waiting = new ConcurrentHashMap<>();
+  /* transactions aborted by the detector whose locks are not released yet. */
+  private final Set<Long> victims = ConcurrentHashMap.newKeySet();
+  /* transactions undoing their changes. They are never chosen as victims. */
+  private final Set<Long> rollingBack = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong deadlocks = new AtomicLong(0);
+
+  private Thread detector;
+
+  public LockManager() {
+    for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(i);
+  }
+
+  private Stripe stripeOf(LockKey key) {
+    int hash = key.hashCode();
+    return stripes[Math.floorMod(hash ^ (hash >>> 16), STRIPES)];
+  }
+
+  /**
+   * take a lock, waiting until it is granted.
+   *
+   * @param transactionId transaction
+   * @param key lock
+   * @param mode one of the five lock modes
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
+   */
+  public void acquire(long transactionId, LockKey key, int mode) {
+    Stripe stripe = stripeOf(key);
+    stripe.latch.lock();
+    try {
+      Lock lock = stripe.lockOf(key);
+      Holder holder = lock.holders.get(transactionId);
+      if (holder != null && supremum[holder.mode][mode] == holder.mode) {
+        holder.count++;
+        return;
+      }
+      /* a holder converts to a mode that covers both the old and the new one. */
+      if (holder != null) mode = supremum[holder.mode][mode];
+      if ((holder != null || lock.queue.isEmpty()) && grantable(lock, transactionId, mode)) {
+        grant(lock, transactionId, mode);
+        return;
+      }
+
+      Request request = new Request(lock, transactionId, mode, stripe.latch.newCondition());
+      /* a conversion is granted as soon as the other holders allow it. */
+      if (holder != null) lock.queue.addFirst(request);
+      else lock.queue.addLast(request);
+      waiting.put(transactionId, request);
+      startDetector();
+      long start = System.nanoTime();
+      while (!request.granted && !request.victim) request.ready.awaitUninterruptibly();
+      waiting.remove(transactionId);
+
+      long waitNanos = System.nanoTime() - start;
+      long[] lockWait = stripe.lockWaits.computeIfAbsent(key, k -> new long[3]);
+      lockWait[0]++;
+      lockWait[1] += waitNanos;
+      lockWait[2] = Math.max(lockWait[2], waitNanos);
+      stripe.waits++;
+      stripe.totalWaitNanos += waitNanos;
+      stripe.maxWaitNanos = Math.max(stripe.maxWaitNanos, waitNanos);
+      if (request.victim) throw new DeadlockException();
+    } finally {
+      stripe.latch.unlock();
+    }
+  }
+
+  /**
+   * take a lock only if it can be granted at once. It is used where the caller must not wait, e.g.
+   * under a latch.
+   *
+   * @param transactionId transaction
+   * @param key lock
+   * @param mode one of the five lock modes
+   * @return true if the lock is granted
+   */
+  public boolean tryAcquire(long transactionId, LockKey key, int mode) {
+    Stripe stripe = stripeOf(key);
+    stripe.latch.lock();
+    try {
+      Lock lock = stripe.lockOf(key);
+      Holder holder = lock.holders.get(transactionId);
+      if (holder != null && supremum[holder.mode][mode] == holder.mode) {
+        holder.count++;
+        return true;
+      }
+      if (holder != null) mode = supremum[holder.mode][mode];
+      if ((holder != null || lock.queue.isEmpty()) && grantable(lock, transactionId, mode)) {
+        grant(lock, transactionId, mode);
+        return true;
+      }
+      if (lock.holders.isEmpty() && lock.queue.isEmpty()) stripe.table.remove(key);
+      return false;
+    } finally {
+      stripe.latch.unlock();
+    }
+  }
+
+  /**
+   * give the holders of a page the same locks on a new page that takes over part of its rows, e.g.
+   * when the page splits. The new page shall not be locked by others.
+   *
+   * @param from page that splits
+   * @param to new page
+   * @return transactions that hold a lock on the new page now
+   */
+  public List<Long> inherit(LockKey from, LockKey to) {
+    ArrayList<Long> heirs = new ArrayList<>();
+    Stripe sourceStripe = stripeOf(from);
+    Stripe targetStripe = stripeOf(to);
+    /* stripes are latched in order of index. */
+    Stripe first = sourceStripe.index <= targetStripe.index ? sourceStripe : targetStripe;
+    Stripe second = first == sourceStripe ? targetStripe : sourceStripe;
+    first.latch.lock();
+    if (second != first) second.latch.lock();
+    try {
+      Lock source = sourceStripe.table.get(from);
+      if (source == null) return heirs;
+      Lock target = targetStripe.lockOf(to);
+      for (Map.Entry<Long, Holder> entry : source.holders.entrySet()) {
+        Holder holder = target.holders.get(entry.getKey());
+        if (holder != null && supremum[holder.mode][entry.getValue().mode] == holder.mode) continue;
+        grant(target, entry.getKey(), entry.getValue().mode);
+        heirs.add(entry.getKey());
+      }
+      return heirs;
+    } finally {
+      if (second != first) second.latch.unlock();
+      first.latch.unlock();
+    }
+  }
+
+  /**
+   * give back a lock taken by {@code acquire} once. The lock is released when it has been given
+   * back as many times as it was taken.
+   *
+   * @param transactionId transaction
+   * @param key lock
+   */
+  public void release(long transactionId, LockKey key) {
+    Stripe stripe = stripeOf(key);
+    stripe.latch.lock();
+    try {
+      Lock lock = stripe.table.get(key);
+      if (lock == null) return;
+      Holder holder = lock.holders.get(transactionId);
+      if (holder == null || --holder.count > 0) return;
+      lock.holders.remove(transactionId);
+      Set<Lock> locks = held.get(transactionId);
+      if (locks != null) locks.remove(lock);
+      grantWaiters(lock);
+    } finally {
+      stripe.latch.unlock();
+    }
+  }
+
+  /**
+   * release every lock of a transaction.
+   *
+   * @param transactionId transaction
+   */
+  public void releaseAll(long transactionId) {
+    victims.remove(transactionId);
+    Set<Lock> locks;
+    /* a lock inherited while the others are released is found in the next round. */
+    while ((locks = held.remove(transactionId)) != null) {
+      while (!locks.isEmpty()) {
+        for (Lock lock : locks) {
+          if (!locks.remove(lock)) continue;
+          lock.stripe.latch.lock();
+          try {
+            lock.holders.remove(transactionId);
+            grantWaiters(lock);
+          } finally {
+            lock.stripe.latch.unlock();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * mark a transaction that undoes its changes, so that it is not chosen as a victim. A rollback
+   * that failed half way could not be completed.
+   *
+   * @param transactionId transaction
+   * @param undoing true when the rollback begins, and false when it ends
+   */
+  public void setRollingBack(long transactionId, boolean undoing) {
+    if (undoing) rollingBack.add(transactionId);
+    else rollingBack.remove(transactionId);
+  }
+
+  /**
+   * check if the transaction has been chosen as the victim of a deadlock. It stays a victim until
+   * its locks are released.
+   *
+   * @param transactionId transaction
+   * @return true if the transaction shall be rolled back
+   */
+  public boolean isVictim(long transactionId) {
+    return victims.contains(transactionId);
+  }
+
+  private boolean grantable(Lock lock, long transactionId, int mode) {
+    for (Map.Entry<Long, Holder> entry : lock.holders.entrySet()) {
+      if (entry.getKey() != transactionId && !compatible[entry.getValue().mode][mode]) return false;
+    }
+    return true;
+  }
+
+  /** the latch of the stripe of the lock shall be held. */
+  private void grant(Lock lock, long transactionId, int mode) {
+    Holder holder = lock.holders.get(transactionId);
+    if (holder == null) {
+      holder = new Holder(mode);
+      lock.holders.put(transactionId, holder);
+      held.computeIfAbsent(transactionId, k -> ConcurrentHashMap.newKeySet()).add(lock);
+    }
+    holder.mode = supremum[holder.mode][mode];
+    holder.count++;
+  }
+
+  /**
+   * grant waiters of the lock in order, until one of them has to wait. The latch of the stripe of
+   * the lock shall be held.
+   */
+  private void grantWaiters(Lock lock) {
+    while (!lock.queue.isEmpty()) {
+      Request request = lock.queue.peekFirst();
+      if (!grantable(lock, request.transactionId, request.mode)) break;
+      lock.queue.removeFirst();
+      grant(lock, request.transactionId, request.mode);
+      request.granted = true;
+      request.ready.signal();
+    }
+    if (lock.holders.isEmpty() && lock.queue.isEmpty()) lock.stripe.table.remove(lock.key);
+  }
+
+  private synchronized void startDetector() {
+    if (detector != null) return;
+    detector = new Thread(this::detectLoop, "deadlock-detector");
+    detector.setDaemon(true);
+    detector.start();
+  }
+
+  private void detectLoop() {
+    while (true) {
+      try {
+        Thread.sleep(ServerRuntime.config.deadlockDetectionInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      detectDeadlocks();
+    }
+  }
+
+  /**
+   * find cycles in the wait-for graph and abort the youngest transaction of each of them. The graph
+   * is built from the waits of one stripe at a time, so no latch is held across the lock table. A
+   * cycle found in it is checked again with only the stripes where its transactions wait latched,
+   * before a victim is chosen.
+   *
+   * @return number of victims
+   */
+  public int detectDeadlocks() {
+    int found = 0;
+    while (true) {
+      List<Long> cycle = findCycle(waitForGraph());
+      if (cycle == null || !abortVictim(cycle)) return found;
+      deadlocks.incrementAndGet();
+      found++;
+    }
+  }
+
+  /**
+   * abort the youngest transaction of a cycle if every transaction of the cycle still waits for the
+   * next one.
+   *
+   * @param cycle transactions, each waiting for the next one, and the last for the first
+   * @return false if the cycle is gone
+   */
+  private boolean abortVictim(List<Long> cycle) {
+    TreeMap<Integer, Stripe> latched = new TreeMap<>();
+    for (long transactionId : cycle) {
+      Request request = waiting.get(transactionId);
+      if (request == null) return false;
+      latched.put(request.lock.stripe.index, request.lock.stripe);
+    }
+    for (Stripe stripe : latched.values()) stripe.latch.lock();
+    try {
+      HashMap<Long, HashSet<Long>> graph = new HashMap<>();
+      for (long transactionId : cycle) {
+        Request request = waiting.get(transactionId);
+        if (request == null
+            || request.granted
+            || request.victim
+            || !latched.containsKey(request.lock.stripe.index)) return false;
+        addWaits(request.lock, graph);
+      }
+      for (int i = 0; i < cycle.size(); i++) {
+        HashSet<Long> edges = graph.get(cycle.get(i));
+        if (edges == null || !edges.contains(cycle.get((i + 1) % cycle.size()))) return false;
+      }
+      /* the youngest transaction has done the least work. */
+      long victim = -1;
+      for (long transactionId : cycle) {
+        if (!rollingBack.contains(transactionId) && !victims.contains(transactionId))
+          victim = Math.max(victim, transactionId);
+      }
+      if (victim < 0) victim = Collections.max(cycle);
+      Request request = waiting.get(victim);
+      request.victim = true;
+      victims.add(victim);
+      request.lock.queue.remove(request);
+      grantWaiters(request.lock);
+      request.ready.signal();
+      return true;
+    } finally {
+      for (Stripe stripe : latched.descendingMap().values()) stripe.latch.unlock();
+    }
+  }
+
+  /** edges from each waiting transaction to the transactions it waits for, stripe by stripe. */
+  private HashMap<Long, HashSet<Long>> waitForGraph() {
+    HashMap<Long, HashSet<Long>> graph = new HashMap<>();
+    for (Stripe stripe : stripes) {
+      stripe.latch.lock();
+      try {
+        for (Lock lock : stripe.table.values()) {
+          if (!lock.queue.isEmpty()) addWaits(lock, graph);
+        }
+      } finally {
+        stripe.latch.unlock();
+      }
+    }
+    return graph;
+  }
+
+  /**
+   * add the edges from the waiters of a lock to the graph. The latch of the stripe of the lock
+   * shall be held.
+   */
+  private static void addWaits(Lock lock, HashMap<Long, HashSet<Long>> graph) {
+    ArrayList<Request> ahead = new ArrayList<>();
+    for (Request request : lock.queue) {
+      if (request.victim) continue;
+      HashSet<Long> edges = graph.computeIfAbsent(request.transactionId, k -> new HashSet<>());
+      for (Map.Entry<Long, Holder> entry : lock.holders.entrySet()) {
+        if (entry.getKey() != request.transactionId
+            && !compatible[entry.getValue().mode][request.mode]) edges.add(entry.getKey());
+      }
+      /* requests are granted in order, so a request also waits for the ones ahead of it. */
+      for (Request other : ahead) {
+        if (other.transactionId != request.transactionId && !compatible[other.mode][request.mode])
+          edges.add(other.transactionId);
+      }
+      ahead.add(request);
+    }
+  }
+
+  private static List<Long> findCycle(HashMap<Long, HashSet<Long>> graph) {
+    HashSet<Long> done = new HashSet<>();
+    for (Long start : graph.keySet()) {
+      if (done.contains(start)) continue;
+      /* iterative depth-first search. path holds the transactions on the current path. */
+      ArrayList<Long> path = new ArrayList<>();
+      ArrayList<Iterator<Long>> iterators = new ArrayList<>();
+      HashSet<Long> onPath = new HashSet<>();
+      path.add(start);
+      onPath.add(start);
+      iterators.add(graph.get(start).iterator());
+      while (!path.isEmpty()) {
+        Iterator<Long> iterator = iterators.get(iterators.size() - 1);
+        if (!iterator.hasNext()) {
+          Long finished = path.remove(path.size() - 1);
+          iterators.remove(iterators.size() - 1);
+          onPath.remove(finished);
+          done.add(finished);
+          continue;
+        }
+        Long next = iterator.next();
+        if (onPath.contains(next))
+          return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
+        if (done.contains(next) || !graph.containsKey(next)) continue;
+        path.add(next);
+        onPath.add(next);
+        iterators.add(graph.get(next).iterator());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * current state of the lock table.
+   *
+   * @return map from metric name to value. Times are in microseconds.
+   */
+  public LinkedHashMap<String, Long> getMetrics() {
+    long locks = 0;
+    long waits = 0;
+    long totalWaitNanos = 0;
+    long maxWaitNanos = 0;
+    for (Stripe stripe : stripes) {
+      stripe.latch.lock();
+      try {
+        locks += stripe.table.size();
+        waits += stripe.waits;
+        totalWaitNanos += stripe.totalWaitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, stripe.maxWaitNanos);
+      } finally {
+        stripe.latch.unlock();
+      }
+    }
+    LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+    metrics.put("locks", locks);
+    metrics.put("transactions", (long) held.size());
+    metrics.put("waiting", (long) waiting.size());
+    metrics.put("waits", waits);
+    metrics.put("deadlocks", deadlocks.get());
+    metrics.put("totalWait", totalWaitNanos / 1000);
+    metrics.put("maxWait", maxWaitNanos / 1000);
+    return metrics;
+  }
+
+  /**
+   * wait metrics of the most waited-for locks.
+   *
+   * @param limit maximum number of locks
+   * @return map from lock to its number of waits, total and maximum wait time in microseconds, in
+   *     descending order of total wait time.
+   */
+  public LinkedHashMap<String, long[]> getLockMetrics(int limit) {
+    ArrayList<Map.Entry<LockKey, long[]>> locks = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      stripe.latch.lock();
+      try {
+        for (Map.Entry<LockKey, long[]> lock : stripe.lockWaits.entrySet()) {
+          locks.add(new AbstractMap.SimpleEntry<>(lock.getKey(), lock.getValue().clone()));
+        }
+      } finally {
+        stripe.latch.unlock();
+      }
+    }
+    locks.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+    LinkedHashMap<String, long[]> metrics = new LinkedHashMap<>();
+    for (Map.Entry<LockKey, long[]> lock : locks.subList(0, Math.min(limit, locks.size()))) {
+      long[] wait = lock.getValue();
+      metrics.put(lock.getKey().toString(), new long[] {wait[0], wait[1] / 1000, wait[2] / 1000});
+    }
+    return metrics;
+  }
+}
@@ -0,0 +1,163 @@
+package cn.edu.thssdb.runtime;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control of memory. Pages in buffer and query working sets account the bytes they hold
+ * against one budget. A request that does not fit waits in a FIFO queue, so that a large request is
+ * not starved by small ones, and it is rejected after a bounded wait instead of exhausting the
+ * heap. <br>
+ * Pages of buffer are accounted by {@code reserve}, which never waits: a page that must be read
+ * cannot be refused, but its bytes leave less room for queries.
+ */
+public class MemoryBudget {
+
+  /** granularity of reservations of query working sets. */
+  public static final long CHUNK = 64 * 1024;
+
+  private final long budget;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  /* threads waiting for memory, in arrival order. Only the head may be admitted. */
+  private final ArrayDeque<Thread> waiters = new ArrayDeque<>();
+
+  /* metrics, guarded by lock. */
+  private long used = 0;
+  private long peak = 0;
+  private long admitted = 0;
+  private long rejected = 0;
+  private long totalWaitNanos = 0;
+  private long maxWaitNanos = 0;
+
+  public MemoryBudget(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * acquire memory, waiting in turn for at most {@code memoryBudgetWait} milliseconds.
+   *
+   * @param bytes number of bytes
+   * @return true if admitted. The bytes shall be given back by {@code release}.
+   */
+  public boolean acquire(long bytes) {
+    return acquire(bytes, ServerRuntime.config.memoryBudgetWait, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * acquire memory, waiting in turn for at most {@code timeout}.
+   *
+   * @param bytes number of bytes
+   * @param timeout maximum time to wait
+   * @param unit unit of timeout
+   * @return true if admitted. The bytes shall be given back by {@code release}.
+   */
+  public boolean acquire(long bytes, long timeout, TimeUnit unit) {
+    long start = System.nanoTime();
+    long remaining = unit.toNanos(timeout);
+    Thread self = Thread.currentThread();
+    lock.lock();
+    try {
+      if (bytes > budget) {
+        rejected++;
+        return false;
+      }
+      waiters.addLast(self);
+      while (waiters.peekFirst() != self || used + bytes > budget) {
+        if (remaining <= 0) {
+          waiters.remove(self);
+          rejected++;
+          /* the next waiter may become the head. */
+          changed.signalAll();
+          return false;
+        }
+        try {
+          remaining = changed.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          remaining = 0;
+        }
+      }
+      waiters.removeFirst();
+      add(bytes);
+      admitted++;
+      long waitNanos = System.nanoTime() - start;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      changed.signalAll();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * account memory that cannot be refused. It never waits, even if the budget is exceeded.
+   *
+   * @param bytes number of bytes
+   */
+  public void reserve(long bytes) {
+    lock.lock();
+    try {
+      add(bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * give back memory taken by {@code acquire} or {@code reserve}.
+   *
+   * @param bytes number of bytes
+   */
+  public void release(long bytes) {
+    if (bytes == 0) return;
+    lock.lock();
+    try {
+      used -= bytes;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void add(long bytes) {
+    used += bytes;
+    peak = Math.max(peak, used);
+  }
+
+  public long getUsed() {
+    lock.lock();
+    try {
+      return used;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * current state of the budget.
+   *
+   * @return map from metric name to value. Sizes are in bytes, and times are in microseconds.
+   */
+  public LinkedHashMap<String, Long> getMetrics() {
+    LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+    lock.lock();
+    try {
+      metrics.put("budget", budget);
+      metrics.put("used", used);
+      metrics.put("peak", peak);
+      metrics.put("waiting", (long) waiters.size());
+      metrics.put("admitted", admitted);
+      metrics.put("rejected", rejected);
+      metrics.put("totalWait", totalWaitNanos / 1000);
+      metrics.put("maxWait", maxWaitNanos / 1000);
+    } finally {
+      lock.unlock();
+    }
+    return metrics;
+  }
+}
@@ -1,14 +1,22 @@
 package cn.edu.thssdb.runtime;
 
+import cn.edu.thssdb.exception.DeadlockException;
 import cn.edu.thssdb.plan.LogicalGenerator;
 import cn.edu.thssdb.plan.LogicalPlan;
 import cn.edu.thssdb.rpc.thrift.ExecuteStatementResp;
+import cn.edu.thssdb.schema.Catalog;
 import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.schema.ValueWrapper;
 import cn.edu.thssdb.storage.DiskBuffer;
+import cn.edu.thssdb.storage.Vacuum;
 import cn.edu.thssdb.storage.page.IndexPage;
 import cn.edu.thssdb.storage.page.Page;
 import cn.edu.thssdb.storage.writeahead.DummyLog;
+import cn.edu.thssdb.storage.writeahead.Recovery;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
+import cn.edu.thssdb.storage.writeahead.WriteLog;
 import cn.edu.thssdb.utils.Pair;
 import cn.edu.thssdb.utils.StatusUtil;
 import org.apache.commons.io.FileUtils;
@@ -21,8 +29,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
 
 /**
  * The runtime of the database server. Every member variable and function shall be static in this
@@ -36,26 +43,25 @@ public class ServerRuntime {
   /** An array shadow of all metadata. */
   public static JSONArray metadataArray;
 
-  /** From databaseId to databaseMetadata Object. Fast reference of metadata object. */
-  public static HashMap<Integer, Database.DatabaseMetadata> databaseMetadata = new HashMap<>();
-
-  /** From tablespaceId to tablespaceMetadata Object. Fast reference of metadata object. */
-  public static HashMap<Integer, Table.TableMetadata> tableMetadata = new HashMap<>();
-
-  /** From databaseName to databaseId Object. Fast reference of metadata object. */
-  public static HashMap<String, Integer> databaseNameLookup = new HashMap<>();
+  /**
+   * Published snapshot of metadata, the fast reference of metadata objects. It is replaced as a
+   * whole by {@code updateCatalog}, and read without locks.
+   */
+  public static volatile Catalog catalog = Catalog.EMPTY;
 
   /** A map from {@code sessionId} to {@code SessionRuntime} */
-  public static HashMap<Long, SessionRuntime> sessions = new HashMap<>();
+  public static final ConcurrentHashMap<Long, SessionRuntime> sessions = new ConcurrentHashMap<>();
 
   private static final AtomicLong sessionCounter = new AtomicLong(0);
 
   private static final AtomicLong transactionCounter = new AtomicLong(0);
 
-  /** A map from {@code transactionId} to the locks it holds. */
-  public static ConcurrentHashMap<Long, ArrayList<Lock>> locks = new ConcurrentHashMap<>();
+  /** transactions that have begun and have not released their locks. */
+  public static final Set<Long> transactions = ConcurrentHashMap.newKeySet();
 
-  public static ConcurrentHashMap<Long, HashSet<Page>> persistPage = new ConcurrentHashMap<>();
+  /** isolation level of each running transaction. */
+  private static final ConcurrentHashMap<Long, Configuration.Isolation> isolationLevels =
+      new ConcurrentHashMap<>();
 
   private static final AtomicInteger tablespaceCounter = new AtomicInteger(0);
 
@@ -63,59 +69,167 @@ public class ServerRuntime {
   /** Configuration of the whole server. */
   public static final Configuration config = new Configuration();
 
+  /** memory held by pages in buffer and query results. */
+  public static final MemoryBudget memoryBudget = new MemoryBudget(config.memoryBudget);
+
+  /** two-phase locks of transactions. */
+  public static final LockManager lockManager = new LockManager();
+
+  private static LockManager.LockKey lockKey(Page page) {
+    return new LockManager.LockKey(page.spaceId, page.pageId);
+  }
+
   /**
-   * transaction get a two phase lock
+   * transaction get a write-lock, which is an intention lock on the page and its table. The rows
+   * changed in the page are locked by {@code getRowLock}. The lock does not pin the page: it may be
+   * evicted once its readers unpin it, and the lock still covers it when it is read again.
    *
    * @param transactionId transaction id
-   * @param lock lock
+   * @param tracePage page to lock
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
    */
-  private static void getTwoPhaseLock(long transactionId, Lock lock) {
-    lock.lock();
-    locks.get(transactionId).add(lock);
+  public static void getWriteLock(long transactionId, IndexPage tracePage) {
+    if (!tracePage.lockable) return;
+    lockManager.acquire(
+        transactionId,
+        LockManager.LockKey.table(tracePage.spaceId),
+        LockManager.INTENTION_EXCLUSIVE);
+    lockManager.acquire(transactionId, lockKey(tracePage), LockManager.INTENTION_EXCLUSIVE);
   }
 
   /**
-   * transaction get a write-lock
+   * transaction get the exclusive lock of a row before inserting or deleting it.
    *
    * @param transactionId transaction id
-   * @param lock lock
+   * @param spaceId table
+   * @param primaryKeyValues primary key of the row
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
    */
-  public static void getWriteLock(
-      long transactionId, ReentrantReadWriteLock lock, IndexPage tracePage) {
-    if (lock == null) return;
-    persistPage.putIfAbsent(transactionId, new HashSet<>());
-    persistPage.get(transactionId).add(tracePage);
-    getTwoPhaseLock(transactionId, lock.writeLock());
+  public static void getRowLock(long transactionId, int spaceId, ValueWrapper[] primaryKeyValues) {
+    lockManager.acquire(
+        transactionId, LockManager.LockKey.row(spaceId, primaryKeyValues), LockManager.EXCLUSIVE);
   }
 
   /**
-   * transaction get a read lock
+   * transaction get the exclusive lock of a row only if no one else holds it, e.g. when the row is
+   * found under a page latch.
    *
    * @param transactionId transaction id
-   * @param lock lock
+   * @param spaceId table
+   * @param primaryKeyValues primary key of the row
+   * @return true if the lock is granted
    */
-  public static void getReadLock(
-      long transactionId, ReentrantReadWriteLock lock, IndexPage tracePage) {
-    if (lock == null) return;
-    if (config.serializable) {
-      if (!persistPage.containsKey(transactionId)) persistPage.put(transactionId, new HashSet<>());
-      persistPage.get(transactionId).add(tracePage);
-      getTwoPhaseLock(transactionId, lock.writeLock());
-    } else {
-      lock.readLock().lock();
-    }
+  public static boolean tryRowLock(
+      long transactionId, int spaceId, ValueWrapper[] primaryKeyValues) {
+    return lockManager.tryAcquire(
+        transactionId, LockManager.LockKey.row(spaceId, primaryKeyValues), LockManager.EXCLUSIVE);
   }
 
   /**
-   * release a read lock when serializable is off
+   * transaction get a table lock, e.g. an exclusive one before dropping the table.
    *
-   * @param lock lock
+   * @param transactionId transaction id
+   * @param spaceId table
+   * @param mode lock mode
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
    */
-  public static void releaseReadLock(ReentrantReadWriteLock lock) {
-    if (lock == null) return;
-    if (!config.serializable && lock.getReadLockCount() > 0) {
-      lock.readLock().unlock();
-    }
+  public static void getTableLock(long transactionId, int spaceId, int mode) {
+    lockManager.acquire(transactionId, LockManager.LockKey.table(spaceId), mode);
+  }
+
+  /**
+   * a page splits: the transactions that hold locks on it get the same locks on the new page, so
+   * that the rows they changed stay covered.
+   *
+   * @param page page that splits
+   * @param newPage new page on its right
+   */
+  public static void inheritLocks(IndexPage page, IndexPage newPage) {
+    lockManager.inherit(lockKey(page), lockKey(newPage));
+  }
+
+  /**
+   * publish a changed catalog. Changes of different databases may be made at the same time, so they
+   * are applied one by one to the latest catalog.
+   *
+   * @param change function from the current catalog to the changed one
+   */
+  public static synchronized void updateCatalog(UnaryOperator<Catalog> change) {
+    catalog = change.apply(catalog);
+  }
+
+  /**
+   * isolation level that sessions start with.
+   *
+   * @return level given by {@code config.serializable}
+   */
+  public static Configuration.Isolation defaultIsolation() {
+    return config.serializable
+        ? Configuration.Isolation.SERIALIZABLE
+        : Configuration.Isolation.REPEATABLE_READ;
+  }
+
+  /**
+   * isolation level of a transaction. A transaction that was not begun by {@code newTransaction},
+   * e.g. one being recovered, has the default level.
+   *
+   * @param transactionId transaction id
+   * @return isolation level
+   */
+  public static Configuration.Isolation isolationOf(long transactionId) {
+    Configuration.Isolation isolation = isolationLevels.get(transactionId);
+    return isolation == null ? defaultIsolation() : isolation;
+  }
+
+  /**
+   * check if reads of the transaction see a snapshot instead of taking read locks. See {@code
+   * VersionStore}.
+   *
+   * @param transactionId transaction id
+   * @return true if the transaction reads snapshots
+   */
+  public static boolean readsSnapshot(long transactionId) {
+    return isolationOf(transactionId) != Configuration.Isolation.SERIALIZABLE;
+  }
+
+  /**
+   * a statement of the transaction begins. Under read committed, it reads a new snapshot.
+   *
+   * @param transactionId transaction id
+   */
+  public static void beginStatement(long transactionId) {
+    if (isolationOf(transactionId) == Configuration.Isolation.READ_COMMITTED)
+      VersionStore.begin(transactionId);
+  }
+
+  /**
+   * transaction get a shared read lock of the page. It is released by {@code releaseReadLock}
+   * unless the transaction is serializable, in which case it is kept until its end and readers of a
+   * page still run in parallel. A later write to the page converts the lock to SIX, which waits for
+   * the other readers to finish.
+   *
+   * @param transactionId transaction id
+   * @param tracePage page to lock
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
+   */
+  public static void getReadLock(long transactionId, IndexPage tracePage) {
+    if (!tracePage.lockable) return;
+    lockManager.acquire(
+        transactionId, LockManager.LockKey.table(tracePage.spaceId), LockManager.INTENTION_SHARED);
+    lockManager.acquire(transactionId, lockKey(tracePage), LockManager.SHARED);
+  }
+
+  /**
+   * release a read lock unless the transaction is serializable.
+   *
+   * @param transactionId transaction id
+   * @param tracePage page locked by {@code getReadLock}
+   */
+  public static void releaseReadLock(long transactionId, IndexPage tracePage) {
+    if (!tracePage.lockable) return;
+    if (!readsSnapshot(transactionId)) return;
+    lockManager.release(transactionId, lockKey(tracePage));
+    lockManager.release(transactionId, LockManager.LockKey.table(tracePage.spaceId));
   }
 
   /**
@@ -124,31 +238,55 @@ public class ServerRuntime {
    * @param transactionId transaction id
    */
   public static void releaseAllLocks(long transactionId) {
-    if (locks.get(transactionId) == null) return;
-    ArrayList<Lock> lockToRelease = locks.get(transactionId);
-    locks.remove(transactionId);
-    for (Lock lock : lockToRelease) {
-      lock.unlock();
-    }
-    persistPage.remove(transactionId);
+    transactions.remove(transactionId);
+    isolationLevels.remove(transactionId);
+    VersionStore.end(transactionId);
+    lockManager.releaseAll(transactionId);
   }
 
   /**
-   * increase transaction_counter by one
+   * increase transaction_counter by one. The transaction has the default isolation level.
    *
    * @return 8-byte new transaction id (unused).
    * @throws IllegalStateException the transaction counter is exhausted.
    */
   public static long newTransaction() throws IllegalStateException {
+    return newTransaction(defaultIsolation());
+  }
+
+  /**
+   * increase transaction_counter by one
+   *
+   * @param isolation isolation level of the transaction
+   * @return 8-byte new transaction id (unused).
+   * @throws IllegalStateException the transaction counter is exhausted.
+   */
+  public static long newTransaction(Configuration.Isolation isolation)
+      throws IllegalStateException {
     long tid = transactionCounter.incrementAndGet();
     if (tid == Long.MAX_VALUE) {
       throw new IllegalStateException(
           "The transaction counter is exhausted. Please restart the server. ");
     }
-    locks.put(tid, new ArrayList<>());
+    transactions.add(tid);
+    isolationLevels.put(tid, isolation);
+    VersionStore.begin(tid);
     return tid;
   }
 
+  /**
+   * take up a transaction unfinished at a crash, so that restart can roll it back. Transactions
+   * made later get larger ids.
+   *
+   * @param transactionId id of the transaction in the log
+   */
+  public static void resumeTransaction(long transactionId) {
+    transactionCounter.accumulateAndGet(transactionId, Math::max);
+    transactions.add(transactionId);
+    isolationLevels.put(transactionId, defaultIsolation());
+    VersionStore.begin(transactionId);
+  }
+
   /**
    * increase database_counter by one
    *
@@ -197,9 +335,9 @@ public class ServerRuntime {
    * @param sessionId for the session to be closed.
    */
   public static void closeSession(long sessionId) {
-    SessionRuntime sessionRuntime = sessions.get(sessionId);
+    /* only the caller that removes the session stops it. */
+    SessionRuntime sessionRuntime = sessions.remove(sessionId);
     if (sessionRuntime != null) sessionRuntime.stop();
-    sessions.remove(sessionId);
   }
 
   /**
@@ -293,40 +431,14 @@ public class ServerRuntime {
       File DummyFile = new File(config.DummyLogFilename);
       DummyFile.createNewFile();
       if (!DummyFile.exists()) throw new Exception("We cannot create WAL file.");
-      DummyLog.writer = new BufferedWriter(new FileWriter(config.DummyLogFilename, true));
+      DummyLog.open(config.DummyLogFilename);
     } else {
       File WALFile = new File(config.WALFilename);
       WALFile.createNewFile();
       if (!WALFile.exists()) throw new Exception("We cannot create WAL file.");
+      WriteLog.open(config.WALFilename);
     }
 
-    /* memory monitor, can be commented for real use */
-    Timer timer = new Timer();
-    timer.schedule(new DiskBuffer.MemoryMonitor(), 0, 2000);
-    /* Throw pages out of memory. */
-    new Thread(DiskBuffer::throwPages).start();
-    new Thread(DiskBuffer::throwPages).start();
-    new Thread(DiskBuffer::throwPages).start();
-    new Thread(DiskBuffer::throwPages).start();
-    new Thread(DiskBuffer::throwPages).start();
-    /* Checkpoint maker */
-    new Thread(
-            () -> {
-              while (true) {
-                long lastTransaction = transactionCounter.get();
-                try {
-                  /* TODO: busy waiting */
-                  Thread.sleep(1000);
-                } catch (Exception ignored) {
-                }
-                if (lastTransaction == transactionCounter.get()) {
-                  DiskBuffer.buffer.invalidateAll();
-                  System.gc();
-                }
-              }
-            })
-        .start();
-
     File metadataFile = new File(config.MetadataFilename);
     if (!metadataFile.exists()) {
       metadataFile.createNewFile();
@@ -345,15 +457,39 @@ public class ServerRuntime {
       for (int i = 0; i < metadataArray.length(); i++) {
         Database.DatabaseMetadata m =
             Database.DatabaseMetadata.createDatabaseMetadata(metadataArray.getJSONObject(i));
-        databaseMetadata.put(m.databaseId, m);
-        databaseNameLookup.put(m.name, m.databaseId);
+        updateCatalog(current -> current.withDatabase(m));
         if (databaseCounter.intValue() < m.databaseId) databaseCounter.set(m.databaseId);
-        for (Integer k : m.tables.keySet()) {
-          tableMetadata.put(k, m.tables.get(k));
-          if (tablespaceCounter.intValue() < m.tables.get(k).spaceId)
-            tablespaceCounter.set(m.tables.get(k).spaceId);
+        for (Table.TableMetadata table : m.tables.bySpaceId.values()) {
+          if (tablespaceCounter.intValue() < table.spaceId) tablespaceCounter.set(table.spaceId);
+          for (SecondaryIndex index : table.indexes) {
+            if (tablespaceCounter.intValue() < index.spaceId) tablespaceCounter.set(index.spaceId);
+          }
         }
       }
     }
+
+    /* Pages are recovered before any new transaction and any background writer. */
+    if (!config.useDummyLog) Recovery.recover();
+
+    /* memory monitor, can be commented for real use */
+    Timer timer = new Timer();
+    timer.schedule(new DiskBuffer.MemoryMonitor(), 0, 2000);
+    /* Write dirty pages back in background. */
+    new Thread(DiskBuffer::flushPages).start();
+    /* Checkpoint maker. Checkpoints are fuzzy, so they are made under load as well. */
+    new Thread(
+            () -> {
+              while (true) {
+                try {
+                  Thread.sleep(config.checkpointInterval);
+                  DiskBuffer.checkpoint();
+                } catch (Exception e) {
+                  e.printStackTrace();
+                }
+              }
+            })
+        .start();
+    /* Space of deleted records is reclaimed in background. */
+    Vacuum.start();
   }
 }
@@ -1,17 +1,22 @@
 package cn.edu.thssdb.runtime;
 
 import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.exception.DeadlockException;
 import cn.edu.thssdb.plan.LogicalPlan;
 import cn.edu.thssdb.plan.impl.*;
 import cn.edu.thssdb.query.QueryResult;
 import cn.edu.thssdb.rpc.thrift.ExecuteStatementResp;
+import cn.edu.thssdb.schema.BulkLoader;
 import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.SecondaryIndex;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.storage.writeahead.DummyLog;
+import cn.edu.thssdb.storage.writeahead.UndoLog;
 import cn.edu.thssdb.utils.Global;
 import cn.edu.thssdb.utils.StatusUtil;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /** The runtime of one session. */
 public class SessionRuntime {
@@ -26,14 +31,29 @@ public class SessionRuntime {
 
   public boolean usingBeginTransaction = false;
 
-  /** stop the session. */
+  /** isolation level of the transactions of the session, set by 'set transaction'. */
+  public Configuration.Isolation isolation = ServerRuntime.defaultIsolation();
+
+  /** savepoints of the current transaction, from name to position in its undo chain. */
+  private final HashMap<String, Integer> savepoints = new HashMap<>();
+
+  /** stop the session. Changes that have not been committed are rolled back. */
   public void stop() {
-    if (transactionId > 0) {
-      IO.writeDummyStatementLog(transactionId, sessionId + "commit");
-      IO.pushTransactionCommit(transactionId);
-      ServerRuntime.releaseAllLocks(transactionId);
-    }
+    if (transactionId > 0) abort();
+    transactionId = -1;
+  }
+
+  /**
+   * roll back the current transaction and end it.
+   *
+   * @return number of changes undone
+   */
+  private int abort() {
+    int undone = IO.pushTransactionAbort(transactionId);
+    ServerRuntime.releaseAllLocks(transactionId);
     transactionId = -1;
+    savepoints.clear();
+    return undone;
   }
 
   /**
@@ -47,7 +67,8 @@ public class SessionRuntime {
       case BEGIN_TRANSACTION:
         usingBeginTransaction = true;
         if (transactionId < 0) {
-          transactionId = ServerRuntime.newTransaction();
+          savepoints.clear();
+          transactionId = ServerRuntime.newTransaction(isolation);
           IO.writeTransactionStart(sessionId, transactionId);
           return new ExecuteStatementResp(
               StatusUtil.success("You are now in transaction " + transactionId), false);
@@ -55,15 +76,18 @@ public class SessionRuntime {
           IO.pushTransactionCommit(transactionId);
           ServerRuntime.releaseAllLocks(transactionId);
           transactionId = -1;
-          transactionId = ServerRuntime.newTransaction();
+          savepoints.clear();
+          transactionId = ServerRuntime.newTransaction(isolation);
           IO.writeTransactionStart(sessionId, transactionId);
           return new ExecuteStatementResp(
               StatusUtil.success("There is already an active transaction now."), false);
         }
       case USE_DATABASE:
         UseDatabasePlan useDatabasePlan = (UseDatabasePlan) plan;
-        if (ServerRuntime.databaseNameLookup.containsKey(useDatabasePlan.getDatabaseName())) {
-          databaseId = ServerRuntime.databaseNameLookup.get(useDatabasePlan.getDatabaseName());
+        Integer useDatabaseId =
+            ServerRuntime.catalog.databaseNameLookup.get(useDatabasePlan.getDatabaseName());
+        if (useDatabaseId != null) {
+          databaseId = useDatabaseId;
           DummyLog.writeDummyLog(transactionId, sessionId + ":success:" + statement);
           return new ExecuteStatementResp(
               StatusUtil.success("switch to database " + useDatabasePlan.getDatabaseName()), false);
@@ -71,6 +95,54 @@ public class SessionRuntime {
           return new ExecuteStatementResp(
               StatusUtil.fail("cannot find database " + useDatabasePlan.getDatabaseName()), false);
         }
+      case ROLLBACK:
+        if (transactionId < 0)
+          return new ExecuteStatementResp(
+              StatusUtil.fail("There is no active transaction now."), false);
+        RollbackPlan rollbackPlan = (RollbackPlan) plan;
+        if (rollbackPlan.getSavepointName() == null) {
+          int undone = abort();
+          return new ExecuteStatementResp(
+              StatusUtil.success(
+                  "The transaction has been rolled back. " + undone + " changes undone."),
+              false);
+        }
+        Integer position = savepoints.get(rollbackPlan.getSavepointName());
+        if (position == null)
+          return new ExecuteStatementResp(
+              StatusUtil.fail("Savepoint " + rollbackPlan.getSavepointName() + " does not exist."),
+              false);
+        int undone = UndoLog.rollback(transactionId, position);
+        /* the savepoint itself is kept, and later ones are forgotten. */
+        savepoints.values().removeIf(p -> p > position);
+        return new ExecuteStatementResp(
+            StatusUtil.success(
+                "Rolled back to savepoint "
+                    + rollbackPlan.getSavepointName()
+                    + ". "
+                    + undone
+                    + " changes undone."),
+            false);
+      case SAVEPOINT:
+        if (transactionId < 0)
+          return new ExecuteStatementResp(
+              StatusUtil.fail(
+                  "There is no active transaction now. Please begin a transaction first."),
+              false);
+        SavepointPlan savepointPlan = (SavepointPlan) plan;
+        savepoints.put(savepointPlan.getSavepointName(), UndoLog.savepoint(transactionId));
+        return new ExecuteStatementResp(
+            StatusUtil.success("Savepoint " + savepointPlan.getSavepointName() + " created."),
+            false);
+      case SET_TRANSACTION:
+        isolation = ((SetTransactionPlan) plan).getIsolation();
+        /* the running transaction keeps the level it began with. */
+        return new ExecuteStatementResp(
+            StatusUtil.success(
+                "Isolation level is set to "
+                    + isolation
+                    + (transactionId < 0 ? "." : " from the next transaction.")),
+            false);
       default:
     }
 
@@ -78,13 +150,15 @@ public class SessionRuntime {
     if (transactionId < 0 && ServerRuntime.config.allow_implicit_transaction) {
       // automatically begin the transaction if allow_implicit_transaction is on.
       usingBeginTransaction = false;
-      transactionId = ServerRuntime.newTransaction();
+      savepoints.clear();
+      transactionId = ServerRuntime.newTransaction(isolation);
       IO.writeTransactionStart(sessionId, transactionId);
     } else if (transactionId < 0) {
       return new ExecuteStatementResp(
           StatusUtil.fail("There is no active transaction now. Please begin a transaction first."),
           false);
     }
+    ServerRuntime.beginStatement(transactionId);
     ExecuteStatementResp response = null;
     switch (plan.getType()) {
       case COMMIT:
@@ -134,7 +208,7 @@ public class SessionRuntime {
     }
 
     Database.DatabaseMetadata currentDatabaseMetadata =
-        ServerRuntime.databaseMetadata.get(databaseId);
+        ServerRuntime.catalog.databaseMetadata.get(databaseId);
     if (currentDatabaseMetadata == null) {
       IO.pushTransactionCommit(transactionId);
       ServerRuntime.releaseAllLocks(transactionId);
@@ -143,6 +217,9 @@ public class SessionRuntime {
           StatusUtil.fail("There is no active database now. Please use a database first."), false);
     }
 
+    /* changes of a failed statement are rolled back from here. */
+    int statementStart = UndoLog.savepoint(transactionId);
+    boolean constraintViolated = false;
     switch (plan.getType()) {
       case CREATE_TABLE:
         CreateTablePlan createTablePlan = (CreateTablePlan) plan;
@@ -172,11 +249,116 @@ public class SessionRuntime {
               new ExecuteStatementResp(StatusUtil.fail("Table " + name + " not existed."), false);
           break;
         }
-        currentDatabaseMetadata.dropTable(
-            transactionId, currentDatabaseMetadata.getTableByName(name));
+        Table.TableMetadata dropTable = currentDatabaseMetadata.getTableByName(name);
+        try {
+          /* wait until no other transaction uses the table. */
+          ServerRuntime.getTableLock(transactionId, dropTable.spaceId, LockManager.EXCLUSIVE);
+        } catch (DeadlockException e) {
+          response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
+          break;
+        }
+        currentDatabaseMetadata.dropTable(transactionId, dropTable);
         response =
             new ExecuteStatementResp(StatusUtil.success("Table " + name + " deleted."), false);
         break;
+      case CREATE_INDEX:
+        CreateIndexPlan createIndexPlan = (CreateIndexPlan) plan;
+        Table.TableMetadata indexTable =
+            currentDatabaseMetadata.getTableByName(createIndexPlan.tableName);
+        if (indexTable == null) {
+          response =
+              new ExecuteStatementResp(
+                  StatusUtil.fail("Table " + createIndexPlan.tableName + " not found."), false);
+          break;
+        }
+        name = createIndexPlan.indexName;
+        if (indexTable.getIndexByName(name) != null) {
+          response =
+              new ExecuteStatementResp(StatusUtil.fail("Index " + name + " existed."), false);
+          break;
+        }
+        Integer indexedField = indexTable.getPrimaryFieldByName(createIndexPlan.columnName);
+        if (createIndexPlan.method.equals(SecondaryIndex.HASH)) {
+          if (indexedField == null || indexedField != 0 || indexTable.getPrimaryKeyNumber() != 1) {
+            response =
+                new ExecuteStatementResp(
+                    StatusUtil.fail(
+                        "Column "
+                            + createIndexPlan.columnName
+                            + " is not the only primary key column of table "
+                            + indexTable.name
+                            + "."),
+                    false);
+            break;
+          }
+          if (indexTable.getHashIndex() != null) {
+            response =
+                new ExecuteStatementResp(
+                    StatusUtil.fail(
+                        "Table "
+                            + indexTable.name
+                            + " already has hash index "
+                            + indexTable.getHashIndex().name
+                            + "."),
+                    false);
+            break;
+          }
+        } else if (indexedField == null || indexedField >= 0) {
+          response =
+              new ExecuteStatementResp(
+                  StatusUtil.fail(
+                      "Column "
+                          + createIndexPlan.columnName
+                          + " is not a non-primary-key column of table "
+                          + indexTable.name
+                          + "."),
+                  false);
+          break;
+        }
+        try {
+          /* no record of the table changes while the index is built. */
+          ServerRuntime.getTableLock(transactionId, indexTable.spaceId, LockManager.EXCLUSIVE);
+          currentDatabaseMetadata.createIndex(
+              transactionId,
+              indexTable,
+              SecondaryIndex.prepare(
+                  name, indexTable, createIndexPlan.columnName, createIndexPlan.method));
+        } catch (Exception e) {
+          response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
+          break;
+        }
+        response =
+            new ExecuteStatementResp(StatusUtil.success("Index " + name + " created."), false);
+        break;
+      case DROP_INDEX:
+        DropIndexPlan dropIndexPlan = (DropIndexPlan) plan;
+        indexTable = currentDatabaseMetadata.getTableByName(dropIndexPlan.tableName);
+        SecondaryIndex dropIndex =
+            indexTable == null ? null : indexTable.getIndexByName(dropIndexPlan.indexName);
+        if (dropIndex == null) {
+          response =
+              new ExecuteStatementResp(
+                  StatusUtil.fail(
+                      "Index "
+                          + dropIndexPlan.indexName
+                          + " on "
+                          + dropIndexPlan.tableName
+                          + " not existed."),
+                  false);
+          break;
+        }
+        try {
+          /* wait until no other transaction uses the table and its index. */
+          ServerRuntime.getTableLock(transactionId, indexTable.spaceId, LockManager.EXCLUSIVE);
+        } catch (DeadlockException e) {
+          response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
+          break;
+        }
+        currentDatabaseMetadata.dropIndex(transactionId, indexTable, dropIndex);
+        response =
+            new ExecuteStatementResp(
+                StatusUtil.success("Index " + dropIndexPlan.indexName + " deleted."), false);
+        break;
 
       case SHOW_TABLE:
         ShowTablePlan showTablePlan = (ShowTablePlan) plan;
@@ -212,19 +394,41 @@ public class SessionRuntime {
           response = new ExecuteStatementResp(StatusUtil.fail("Value Not Allowed!"), false);
           break;
         }
-        boolean insertResult = true;
-        int index;
-        for (index = 0; index < results.size(); index++) {
-          insertResult = table.insertRecord(transactionId, results.get(index));
-          if (!insertResult) break;
+        boolean insertResult;
+        try {
+          insertResult = table.insertRecords(transactionId, results);
+        } catch (DeadlockException e) {
+          response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
+          break;
         }
         if (insertResult) {
           response = new ExecuteStatementResp(StatusUtil.success("Insertion succeeded."), false);
         } else {
+          constraintViolated = true;
           response =
               new ExecuteStatementResp(StatusUtil.fail("The primary key already exists."), false);
         }
         break;
+      case COPY:
+        CopyPlan copyPlan = (CopyPlan) plan;
+        Table.TableMetadata copyTable = currentDatabaseMetadata.getTableByName(copyPlan.tableName);
+        if (copyTable == null) {
+          response =
+              new ExecuteStatementResp(
+                  StatusUtil.fail("Table " + copyPlan.tableName + " not found."), false);
+          break;
+        }
+        int loaded;
+        try {
+          /* no one else reads or changes the table while its tree is rebuilt. */
+          ServerRuntime.getTableLock(transactionId, copyTable.spaceId, LockManager.EXCLUSIVE);
+          loaded = new BulkLoader(copyTable).load(transactionId, copyPlan.filename);
+        } catch (Exception e) {
+          response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
+          break;
+        }
+        response = new ExecuteStatementResp(StatusUtil.success(loaded + " rows loaded."), false);
+        break;
       case SELECT:
         SelectPlan selectPlan = (SelectPlan) plan;
         if (selectPlan.broken) {
@@ -258,6 +462,7 @@ public class SessionRuntime {
         for (ArrayList<String> row : result.rows) {
           response.addToRowList(row);
         }
+        result.release();
         break;
       case DELETE:
         DeletePlan deletePlan = (DeletePlan) plan;
@@ -302,12 +507,17 @@ public class SessionRuntime {
           response = new ExecuteStatementResp(StatusUtil.fail(e.getMessage()), false);
           break;
         }
-        response =
-            new ExecuteStatementResp(StatusUtil.success("update operation completed"), false);
-        if (!updateResult)
-          response.status.msg =
-              "Update Rejected! No changes occur because of the constraint violation.\n"
-                  + response.status.msg;
+        if (updateResult) {
+          response =
+              new ExecuteStatementResp(StatusUtil.success("update operation completed"), false);
+        } else {
+          constraintViolated = true;
+          response =
+              new ExecuteStatementResp(
+                  StatusUtil.fail(
+                      "Update Rejected! No changes occur because of the constraint violation."),
+                  false);
+        }
         break;
       default:
     }
@@ -315,12 +525,19 @@ public class SessionRuntime {
     if (response != null) {
       if (response.status.getCode() == Global.SUCCESS_CODE && !response.hasResult)
         IO.writeDummyStatementLog(transactionId, sessionId + ":success:" + statement);
-      if (!usingBeginTransaction && ServerRuntime.config.auto_commit) {
-        if (response.status.getCode() == Global.FAILURE_CODE) {
-          response.status.msg =
-              " [WARNING!] The operation not succeed. But we 'commit' it for now.\n"
-                  + response.status.msg;
+      if (response.status.getCode() == Global.FAILURE_CODE) {
+        if (constraintViolated
+            || ServerRuntime.lockManager.isVictim(transactionId)
+            || (!usingBeginTransaction && ServerRuntime.config.auto_commit)) {
+          /* a constraint violation or a deadlock aborts the whole transaction. */
+          abort();
+          response.status.msg = response.status.msg + "\n\nThe transaction has been rolled back.";
+          return response;
         }
+        /* other failures leave the transaction as it was before the statement. */
+        UndoLog.rollback(transactionId, statementStart);
+      }
+      if (!usingBeginTransaction && ServerRuntime.config.auto_commit) {
         IO.pushTransactionCommit(transactionId);
         ServerRuntime.releaseAllLocks(transactionId);
         transactionId = -1;
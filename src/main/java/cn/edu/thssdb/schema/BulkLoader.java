@@ -0,0 +1,259 @@
+package cn.edu.thssdb.schema;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.LeafPrefetcher;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Pair;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Load of a file of rows into a table. Each line of the file holds the values of one row in the
+ * order of the columns in the create table statement, written as in an insert statement and
+ * separated by commas, e.g. {@code 1, 'Alice', null}. <br>
+ * Rows are sorted by primary key first. Up to {@code bulkLoadRunSize} rows are sorted in memory at
+ * a time; larger inputs are spilled to sorted run files, which are merged while the rows are
+ * loaded. If the table holds no record, its tree is built bottom-up from the sorted rows by {@code
+ * IndexPage.bulkLoad}. Otherwise, the rows are inserted one by one in order, so that consecutive
+ * inserts go to the same leaf.
+ */
+public class BulkLoader {
+
+  private final Table.TableMetadata table;
+
+  /* sorted run files spilled to disk. */
+  private final ArrayList<File> runs = new ArrayList<>();
+
+  private RunMerger merger = null;
+
+  public BulkLoader(Table.TableMetadata table) {
+    this.table = table;
+  }
+
+  /**
+   * load all rows of a file into the table. The caller shall hold the exclusive lock of the table.
+   * Loaded records are rolled back with the transaction as inserted ones.
+   *
+   * @param transactionId transaction
+   * @param filename file of rows
+   * @return number of rows loaded
+   * @throws Exception if the file cannot be read, a value is not allowed, or a primary key is
+   *     duplicated. Records loaded before are left to the rollback of the transaction.
+   */
+  public int load(long transactionId, String filename) throws Exception {
+    try {
+      Iterator<RecordLogical> records = sort(filename);
+      IndexPage rootPage =
+          (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
+      try {
+        if (rootPage.canBulkLoad()) {
+          int loaded =
+              rootPage.bulkLoad(transactionId, records, ServerRuntime.config.bulkLoadFillFactor);
+          if (!table.indexes.isEmpty()) insertIntoIndexes(transactionId);
+          return loaded;
+        }
+        int loaded = 0;
+        while (records.hasNext()) {
+          RecordLogical record = records.next();
+          int leafPageId = rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, record);
+          if (leafPageId == 0)
+            throw new Exception(
+                "The primary key "
+                    + ValueWrapper.toKeyString(record.primaryKeyValues)
+                    + " already exists.");
+          table.insertIntoIndexes(transactionId, record, leafPageId);
+          loaded++;
+        }
+        return loaded;
+      } finally {
+        IO.unpin(rootPage);
+      }
+    } finally {
+      if (merger != null) merger.close();
+      for (File run : runs) run.delete();
+      runs.clear();
+    }
+  }
+
+  /* add the entries of every record in the table, which are all loaded, to its indexes. */
+  private void insertIntoIndexes(long transactionId) {
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    LeafPrefetcher prefetcher = new LeafPrefetcher(table.spaceId);
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(table.spaceId, pageId);
+      Pair<Integer, ArrayList<RecordLogical>> records;
+      try {
+        records = page.getAllRecordLogical(transactionId);
+      } finally {
+        IO.unpin(page);
+      }
+      for (RecordLogical record : records.right)
+        table.insertIntoIndexes(transactionId, record, pageId);
+      pageId = records.left;
+      prefetcher.visit(pageId);
+    }
+  }
+
+  /**
+   * read the rows of a file and sort them by primary key.
+   *
+   * @param filename file of rows
+   * @return rows in ascending order of primary key
+   */
+  private Iterator<RecordLogical> sort(String filename) throws Exception {
+    int runSize = ServerRuntime.config.bulkLoadRunSize;
+    ArrayList<Pair<RecordLogical, String>> rows = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) continue;
+        rows.add(new Pair<>(parseRow(line), line));
+        if (rows.size() == runSize) {
+          spill(rows);
+          rows.clear();
+        }
+      }
+    }
+    rows.sort(
+        (a, b) -> table.keyComparator.compare(a.left.primaryKeyValues, b.left.primaryKeyValues));
+    if (runs.isEmpty()) {
+      ArrayList<RecordLogical> records = new ArrayList<>();
+      for (Pair<RecordLogical, String> row : rows) records.add(row.left);
+      return records.iterator();
+    }
+    if (!rows.isEmpty()) spill(rows);
+    merger = new RunMerger();
+    return merger;
+  }
+
+  /* write sorted rows to a new run file. */
+  private void spill(ArrayList<Pair<RecordLogical, String>> rows) throws IOException {
+    rows.sort(
+        (a, b) -> table.keyComparator.compare(a.left.primaryKeyValues, b.left.primaryKeyValues));
+    File run = File.createTempFile("bulkload", ".run");
+    run.deleteOnExit();
+    runs.add(run);
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(run))) {
+      for (Pair<RecordLogical, String> row : rows) {
+        writer.write(row.right);
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * parse a line of the file into a record.
+   *
+   * @param line values separated by commas
+   * @return record
+   * @throws Exception if the number of values does not match, or a value is not allowed
+   */
+  private RecordLogical parseRow(String line) throws Exception {
+    ArrayList<String> values = splitValues(line);
+    int columnNumber = table.getColumnNumber();
+    if (values.size() != columnNumber) {
+      throw new Exception(
+          "The row has "
+              + values.size()
+              + " values but the table has "
+              + columnNumber
+              + ": "
+              + line);
+    }
+    /* values in the order of (primaryKeys, nonPrimaryKeys). */
+    ArrayList<String> ordered = new ArrayList<>();
+    for (int i = 0; i < columnNumber; i++) ordered.add(null);
+    int primaryKeyNumber = table.getPrimaryKeyNumber();
+    for (int i = 0; i < columnNumber; i++) {
+      int primary = table.getPrimaryFieldByCreatingOrder(i);
+      ordered.set(primary >= 0 ? primary : primaryKeyNumber - 1 - primary, values.get(i));
+    }
+    RecordLogical record;
+    try {
+      record = table.makeRecord(ordered);
+    } catch (Exception e) {
+      throw new Exception("Value not allowed: " + line);
+    }
+    if (record == null) throw new Exception("A column that is not null has null value: " + line);
+    return record;
+  }
+
+  /* split a line by the commas that are not quoted. */
+  private static ArrayList<String> splitValues(String line) {
+    ArrayList<String> values = new ArrayList<>();
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '\'') quoted = !quoted;
+      if (c == ',' && !quoted) {
+        values.add(value.toString().trim());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString().trim());
+    for (int i = 0; i < values.size(); i++) {
+      if (values.get(i).isEmpty() || values.get(i).equalsIgnoreCase("null")) values.set(i, "null");
+    }
+    return values;
+  }
+
+  /** k-way merge of the sorted run files. */
+  private class RunMerger implements Iterator<RecordLogical> {
+
+    /* (head record, reader) of each run that is not exhausted. */
+    private final PriorityQueue<Pair<RecordLogical, BufferedReader>> heads =
+        new PriorityQueue<>(
+            (a, b) ->
+                table.keyComparator.compare(a.left.primaryKeyValues, b.left.primaryKeyValues));
+
+    RunMerger() throws Exception {
+      for (File run : runs) advance(new BufferedReader(new FileReader(run)));
+    }
+
+    private void advance(BufferedReader reader) throws Exception {
+      String line = reader.readLine();
+      if (line == null) reader.close();
+      else heads.add(new Pair<>(parseRow(line), reader));
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public RecordLogical next() {
+      Pair<RecordLogical, BufferedReader> head = heads.poll();
+      if (head == null) throw new NoSuchElementException();
+      try {
+        advance(head.right);
+      } catch (Exception e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      return head.left;
+    }
+
+    void close() {
+      for (Pair<RecordLogical, BufferedReader> head : heads) {
+        try {
+          head.right.close();
+        } catch (IOException ignored) {
+        }
+      }
+      heads.clear();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package cn.edu.thssdb.schema;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the metadata of all databases and tables. The maps of a snapshot never
+ * change, so lookups through {@code ServerRuntime.catalog} take no lock. <br>
+ * A statement that changes metadata holds {@code DatabaseMetadata.metaDataLatch}, makes a changed
+ * copy of the current snapshot and publishes it by replacing {@code ServerRuntime.catalog}. A
+ * reader sees either all of the change or none of it.
+ */
+public class Catalog {
+
+  /** From databaseId to databaseMetadata Object. */
+  public final Map<Integer, Database.DatabaseMetadata> databaseMetadata;
+
+  /** From tablespaceId to tablespaceMetadata Object. */
+  public final Map<Integer, Table.TableMetadata> tableMetadata;
+
+  /** From databaseName to databaseId. */
+  public final Map<String, Integer> databaseNameLookup;
+
+  public static final Catalog EMPTY =
+      new Catalog(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+  /* maps shall be unmodifiable. Those not changed are shared with the previous snapshot. */
+  private Catalog(
+      Map<Integer, Database.DatabaseMetadata> databaseMetadata,
+      Map<Integer, Table.TableMetadata> tableMetadata,
+      Map<String, Integer> databaseNameLookup) {
+    this.databaseMetadata = databaseMetadata;
+    this.tableMetadata = tableMetadata;
+    this.databaseNameLookup = databaseNameLookup;
+  }
+
+  /**
+   * copy of this catalog with a database and all its tables and indexes added.
+   *
+   * @param metadata database
+   * @return new catalog
+   */
+  public Catalog withDatabase(Database.DatabaseMetadata metadata) {
+    HashMap<Integer, Database.DatabaseMetadata> databases = new HashMap<>(databaseMetadata);
+    HashMap<Integer, Table.TableMetadata> tables = new HashMap<>(tableMetadata);
+    HashMap<String, Integer> names = new HashMap<>(databaseNameLookup);
+    databases.put(metadata.databaseId, metadata);
+    tables.putAll(metadata.tables.bySpaceId);
+    for (Table.TableMetadata table : metadata.tables.bySpaceId.values()) {
+      for (SecondaryIndex index : table.indexes) {
+        if (index.tree != null) tables.put(index.tree.spaceId, index.tree);
+      }
+    }
+    names.put(metadata.name, metadata.databaseId);
+    return new Catalog(
+        Collections.unmodifiableMap(databases),
+        Collections.unmodifiableMap(tables),
+        Collections.unmodifiableMap(names));
+  }
+
+  /**
+   * copy of this catalog with a database removed. Its tables are still found by spaceId, so that
+   * undo of a running transaction can tell whether a tablespace exists.
+   *
+   * @param metadata database
+   * @return new catalog
+   */
+  public Catalog withoutDatabase(Database.DatabaseMetadata metadata) {
+    HashMap<Integer, Database.DatabaseMetadata> databases = new HashMap<>(databaseMetadata);
+    HashMap<String, Integer> names = new HashMap<>(databaseNameLookup);
+    databases.remove(metadata.databaseId);
+    names.remove(metadata.name);
+    return new Catalog(
+        Collections.unmodifiableMap(databases), tableMetadata, Collections.unmodifiableMap(names));
+  }
+
+  /**
+   * copy of this catalog with a table, or the tree of an index, added.
+   *
+   * @param metadata table
+   * @return new catalog
+   */
+  public Catalog withTable(Table.TableMetadata metadata) {
+    HashMap<Integer, Table.TableMetadata> tables = new HashMap<>(tableMetadata);
+    tables.put(metadata.spaceId, metadata);
+    return new Catalog(databaseMetadata, Collections.unmodifiableMap(tables), databaseNameLookup);
+  }
+
+  /**
+   * copy of this catalog with a table, or the tree of an index, removed.
+   *
+   * @param spaceId tablespace of the table
+   * @return new catalog
+   */
+  public Catalog withoutTable(int spaceId) {
+    HashMap<Integer, Table.TableMetadata> tables = new HashMap<>(tableMetadata);
+    tables.remove(spaceId);
+    return new Catalog(databaseMetadata, Collections.unmodifiableMap(tables), databaseNameLookup);
+  }
+}
@@ -2,10 +2,15 @@ package cn.edu.thssdb.schema;
 
 import cn.edu.thssdb.communication.IO;
 import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.System.exit;
@@ -14,12 +19,66 @@ public class Database {
   public static class DatabaseMetadata {
     public String name;
     public int databaseId;
-    /** spaceId to tableMetadata */
-    public HashMap<Integer, Table.TableMetadata> tables = new HashMap<>();
 
-    /** lock for databaseMetadata */
+    /** Immutable set of the tables of a database. Each DDL statement publishes a new one. */
+    public static class Tables {
+      /** spaceId to tableMetadata */
+      public final Map<Integer, Table.TableMetadata> bySpaceId;
+      /** table name to tableMetadata */
+      public final Map<String, Table.TableMetadata> byName;
+
+      public static final Tables EMPTY = new Tables(new HashMap<>(), new HashMap<>());
+
+      private Tables(
+          HashMap<Integer, Table.TableMetadata> bySpaceId,
+          HashMap<String, Table.TableMetadata> byName) {
+        this.bySpaceId = Collections.unmodifiableMap(bySpaceId);
+        this.byName = Collections.unmodifiableMap(byName);
+      }
+
+      /**
+       * copy of this set with a table added.
+       *
+       * @param tableMetadata table
+       * @return new set
+       */
+      public Tables with(Table.TableMetadata tableMetadata) {
+        HashMap<Integer, Table.TableMetadata> newBySpaceId = new HashMap<>(bySpaceId);
+        HashMap<String, Table.TableMetadata> newByName = new HashMap<>(byName);
+        newBySpaceId.put(tableMetadata.spaceId, tableMetadata);
+        newByName.put(tableMetadata.name, tableMetadata);
+        return new Tables(newBySpaceId, newByName);
+      }
+
+      /**
+       * copy of this set with a table removed.
+       *
+       * @param tableMetadata table
+       * @return new set
+       */
+      public Tables without(Table.TableMetadata tableMetadata) {
+        HashMap<Integer, Table.TableMetadata> newBySpaceId = new HashMap<>(bySpaceId);
+        HashMap<String, Table.TableMetadata> newByName = new HashMap<>(byName);
+        newBySpaceId.remove(tableMetadata.spaceId);
+        newByName.remove(tableMetadata.name);
+        return new Tables(newBySpaceId, newByName);
+      }
+    }
+
+    /** tables of the database, read without locks. */
+    public volatile Tables tables = Tables.EMPTY;
+
+    /**
+     * lock for the metadata document of all databases ({@code ServerRuntime.metadataArray}) and for
+     * creating and dropping databases. Statements do not take it to find tables.
+     */
     public static final ReentrantReadWriteLock metaDataLatch = new ReentrantReadWriteLock();
 
+    /**
+     * lock for creating and dropping tables of this database. Taken before {@code metaDataLatch}.
+     */
+    public final ReentrantLock tableLatch = new ReentrantLock();
+
     JSONObject object;
 
     /**
@@ -37,60 +96,161 @@ public class Database {
       JSONArray tableArray = object.getJSONArray("tables");
       for (int i = 0; i < tableArray.length(); i++) {
         Table.TableMetadata tableMetadata = Table.TableMetadata.parse(tableArray.getJSONObject(i));
-        metadata.tables.put(tableMetadata.spaceId, tableMetadata);
+        metadata.tables = metadata.tables.with(tableMetadata);
       }
       return metadata;
     }
 
     /**
      * This method drop table, covering both data and metadata. Proper changes shall be done to WAL
-     * buffer as well. The lock is not required. Only the transaction requested this method can
-     * access tableMetadata now. It will not affect other tables.
+     * buffer as well. Only the transaction requested this method can access tableMetadata now. It
+     * will not affect other tables, nor statements on other databases.
      *
      * @param transactionId transactionId
      * @param tableMetadata tableMetadata
      */
     public void dropTable(long transactionId, Table.TableMetadata tableMetadata) {
-      metaDataLatch.writeLock().lock();
+      tableLatch.lock();
       try {
-        tables.remove(tableMetadata.spaceId);
-        for (int i = 0; i < object.getJSONArray("tables").length(); ++i) {
-          if (object.getJSONArray("tables").getJSONObject(i).equals(tableMetadata.object)) {
-            object.getJSONArray("tables").remove(i);
-            break;
+        tables = tables.without(tableMetadata);
+        metaDataLatch.writeLock().lock();
+        try {
+          JSONArray tableArray = object.getJSONArray("tables");
+          for (int i = 0; i < tableArray.length(); ++i) {
+            if (tableArray.getJSONObject(i).equals(tableMetadata.object)) {
+              tableArray.remove(i);
+              break;
+            }
           }
+        } finally {
+          metaDataLatch.writeLock().unlock();
         }
         IO.writeDropTable(transactionId, this.databaseId, tableMetadata);
-        ServerRuntime.tableMetadata.remove(tableMetadata.spaceId);
+        ServerRuntime.updateCatalog(
+            catalog -> {
+              Catalog changed = catalog.withoutTable(tableMetadata.spaceId);
+              for (SecondaryIndex index : tableMetadata.indexes)
+                changed = changed.withoutTable(index.spaceId);
+              return changed;
+            });
       } catch (Exception shallNeverHappen) {
         exit(4);
+      } finally {
+        tableLatch.unlock();
       }
-      metaDataLatch.writeLock().unlock();
     }
 
     /**
      * This method create table, covering both data and metadata. Proper changes shall be done to
-     * WAL buffer as well. The lock is not required. Only the transaction requested this method can
-     * access tableMetadata now. It will not affect other tables.
+     * WAL buffer as well. Only the transaction requested this method can access tableMetadata now.
+     * It will not affect other tables, nor statements on other databases.
      *
      * @param transactionId transactionId
      * @param tableMetadata tableMetadata
      */
     public void createTable(long transactionId, Table.TableMetadata tableMetadata) {
-      metaDataLatch.writeLock().lock();
+      tableLatch.lock();
       try {
-        tables.put(tableMetadata.spaceId, tableMetadata);
-        object.getJSONArray("tables").put(tableMetadata.object);
+        metaDataLatch.writeLock().lock();
+        try {
+          object.getJSONArray("tables").put(tableMetadata.object);
+        } finally {
+          metaDataLatch.writeLock().unlock();
+        }
         IO.writeCreateTable(transactionId, this.databaseId, tableMetadata);
         tableMetadata.initTablespaceFile(transactionId);
-        ServerRuntime.tableMetadata.put(tableMetadata.spaceId, tableMetadata);
+        ServerRuntime.updateCatalog(catalog -> catalog.withTable(tableMetadata));
 
         tableMetadata.insertRecord(transactionId, null);
+        /* the table is found by name once its tablespace is ready. */
+        tables = tables.with(tableMetadata);
+      } catch (Exception shallNeverHappen) {
+        exit(4);
+      } finally {
+        tableLatch.unlock();
+      }
+    }
 
+    /**
+     * This method creates a secondary index of a table and adds the entries of all records of the
+     * table to it. The caller shall hold the exclusive lock of the table, so that no record changes
+     * until the index is published.
+     *
+     * @param transactionId transactionId
+     * @param tableMetadata table to index
+     * @param index index prepared on the table
+     * @throws Exception if the entries cannot be added, in which case the index is not published
+     */
+    public void createIndex(
+        long transactionId, Table.TableMetadata tableMetadata, SecondaryIndex index)
+        throws Exception {
+      tableLatch.lock();
+      try {
+        if (index.tree != null) {
+          index.tree.initTablespaceFile(transactionId);
+          ServerRuntime.updateCatalog(catalog -> catalog.withTable(index.tree));
+          index.tree.insertRecord(transactionId, null);
+        } else {
+          index.initHashTablespaceFile(transactionId);
+        }
+        /* records committed after the snapshot of the transaction are indexed as well. */
+        if (ServerRuntime.readsSnapshot(transactionId)) VersionStore.begin(transactionId);
+        index.build(transactionId, tableMetadata);
+        try {
+          metaDataLatch.writeLock().lock();
+          try {
+            if (!tableMetadata.object.has("indexes"))
+              tableMetadata.object.put("indexes", new JSONArray());
+            tableMetadata.object.getJSONArray("indexes").put(index.object);
+          } finally {
+            metaDataLatch.writeLock().unlock();
+          }
+          IO.writeCreateIndex(transactionId, this.databaseId, tableMetadata, index);
+          ArrayList<SecondaryIndex> indexes = new ArrayList<>(tableMetadata.indexes);
+          indexes.add(index);
+          tableMetadata.indexes = Collections.unmodifiableList(indexes);
+        } catch (Exception shallNeverHappen) {
+          exit(4);
+        }
+      } finally {
+        tableLatch.unlock();
+      }
+    }
+
+    /**
+     * This method drops a secondary index of a table. The caller shall hold the exclusive lock of
+     * the table.
+     *
+     * @param transactionId transactionId
+     * @param tableMetadata table of the index
+     * @param index index to drop
+     */
+    public void dropIndex(
+        long transactionId, Table.TableMetadata tableMetadata, SecondaryIndex index) {
+      tableLatch.lock();
+      try {
+        ArrayList<SecondaryIndex> indexes = new ArrayList<>(tableMetadata.indexes);
+        indexes.remove(index);
+        tableMetadata.indexes = Collections.unmodifiableList(indexes);
+        metaDataLatch.writeLock().lock();
+        try {
+          JSONArray indexArray = tableMetadata.object.getJSONArray("indexes");
+          for (int i = 0; i < indexArray.length(); ++i) {
+            if (indexArray.getJSONObject(i).equals(index.object)) {
+              indexArray.remove(i);
+              break;
+            }
+          }
+        } finally {
+          metaDataLatch.writeLock().unlock();
+        }
+        IO.writeDropIndex(transactionId, this.databaseId, tableMetadata, index);
+        ServerRuntime.updateCatalog(catalog -> catalog.withoutTable(index.spaceId));
       } catch (Exception shallNeverHappen) {
         exit(4);
+      } finally {
+        tableLatch.unlock();
       }
-      metaDataLatch.writeLock().unlock();
     }
 
     /**
@@ -106,68 +266,66 @@ public class Database {
       metaDataLatch.writeLock().lock();
       DatabaseMetadata metadata = new DatabaseMetadata();
       try {
-        if (ServerRuntime.databaseNameLookup.containsKey(name)) return null;
+        if (ServerRuntime.catalog.databaseNameLookup.containsKey(name)) return null;
         metadata.name = name;
         metadata.databaseId = ServerRuntime.newDatabase();
-        metadata.tables = new HashMap<>();
-        ServerRuntime.databaseMetadata.put(metadata.databaseId, metadata);
         metadata.object = new JSONObject();
         metadata.object.put("databaseName", name);
         metadata.object.put("databaseId", metadata.databaseId);
         metadata.object.put("tables", new JSONArray());
         ServerRuntime.metadataArray.put(metadata.object);
-        ServerRuntime.databaseNameLookup.put(name, metadata.databaseId);
+        ServerRuntime.updateCatalog(catalog -> catalog.withDatabase(metadata));
         IO.writeCreateDatabase(transactionId, name, metadata.databaseId);
       } catch (Exception shallNeverHappen) {
         exit(5);
+      } finally {
+        metaDataLatch.writeLock().unlock();
       }
-      metaDataLatch.writeLock().unlock();
       return metadata;
     }
 
     public static boolean dropDatabase(long transactionId, String name) {
-      Integer databaseId = ServerRuntime.databaseNameLookup.get(name);
+      Catalog catalog = ServerRuntime.catalog;
+      Integer databaseId = catalog.databaseNameLookup.get(name);
       if (databaseId == null) {
         /* database not exists. */
         return false;
       }
-      DatabaseMetadata metadata = ServerRuntime.databaseMetadata.get(databaseId);
-      int index = -1;
-      for (int i = 0; i < ServerRuntime.metadataArray.length(); i++) {
-        if (ServerRuntime.metadataArray.getJSONObject(i).getString("databaseName").equals(name)) {
-          index = i;
-          break;
-        }
-      }
-      if (index == -1) {
-        /* This shall never happen. */
-        return false;
-      }
+      DatabaseMetadata metadata = catalog.databaseMetadata.get(databaseId);
+      metadata.tableLatch.lock();
       metaDataLatch.writeLock().lock();
       try {
-        ServerRuntime.databaseMetadata.remove(metadata.databaseId);
-        ServerRuntime.databaseNameLookup.remove(name);
+        int index = -1;
+        for (int i = 0; i < ServerRuntime.metadataArray.length(); i++) {
+          if (ServerRuntime.metadataArray.getJSONObject(i).getString("databaseName").equals(name)) {
+            index = i;
+            break;
+          }
+        }
+        if (index == -1) {
+          /* This shall never happen. */
+          return false;
+        }
+        ServerRuntime.updateCatalog(current -> current.withoutDatabase(metadata));
         ServerRuntime.metadataArray.remove(index);
         IO.writeDropDatabase(transactionId, name, metadata.databaseId);
       } catch (Exception shallNeverHappen) {
         exit(6);
+      } finally {
+        metaDataLatch.writeLock().unlock();
+        metadata.tableLatch.unlock();
       }
-      metaDataLatch.writeLock().unlock();
       return true;
     }
 
+    /**
+     * find a table of the database by name, without locks.
+     *
+     * @param name table name
+     * @return table, or null if it does not exist
+     */
     public Table.TableMetadata getTableByName(String name) {
-      metaDataLatch.readLock().lock();
-      // optimization
-      for (Integer i : tables.keySet()) {
-        if (name.equals(tables.get(i).name)) {
-          metaDataLatch.readLock().unlock();
-          return tables.get(i);
-        }
-      }
-
-      metaDataLatch.readLock().unlock();
-      return null;
+      return tables.byName.get(name);
     }
   }
 }
@@ -0,0 +1,129 @@
+package cn.edu.thssdb.schema;
+
+import cn.edu.thssdb.type.DataType;
+
+import java.util.ArrayList;
+
+/**
+ * Comparator of primary keys of one table. It is made from the column types once when the table
+ * metadata is computed, so comparing two keys neither dispatches on {@code DataType} nor allocates.
+ * <br>
+ * Values are compared on their raw big-endian bytes: INT/LONG/FLOAT/DOUBLE as primitives, STRING as
+ * unsigned UTF-8 bytes (which is the order of code points). Null sorts before any other value.
+ */
+public class KeyComparator {
+
+  /** comparator of one field on raw bytes. */
+  public interface FieldComparator {
+    /**
+     * compare {@code a[aOffset, aOffset + aLength)} with {@code b[bOffset, bOffset + bLength)}.
+     * Lengths are only used by variable-length types.
+     */
+    int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength);
+  }
+
+  public static final FieldComparator INT_COMPARATOR =
+      (a, aOffset, aLength, b, bOffset, bLength) ->
+          Integer.compare(parseIntegerBig(a, aOffset), parseIntegerBig(b, bOffset));
+
+  public static final FieldComparator LONG_COMPARATOR =
+      (a, aOffset, aLength, b, bOffset, bLength) ->
+          Long.compare(parseLongBig(a, aOffset), parseLongBig(b, bOffset));
+
+  public static final FieldComparator FLOAT_COMPARATOR =
+      (a, aOffset, aLength, b, bOffset, bLength) ->
+          Float.compare(
+              Float.intBitsToFloat(parseIntegerBig(a, aOffset)),
+              Float.intBitsToFloat(parseIntegerBig(b, bOffset)));
+
+  public static final FieldComparator DOUBLE_COMPARATOR =
+      (a, aOffset, aLength, b, bOffset, bLength) ->
+          Double.compare(
+              Double.longBitsToDouble(parseLongBig(a, aOffset)),
+              Double.longBitsToDouble(parseLongBig(b, bOffset)));
+
+  public static final FieldComparator STRING_COMPARATOR =
+      (a, aOffset, aLength, b, bOffset, bLength) -> {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+          int result = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+          if (result != 0) return result;
+        }
+        return aLength - bLength;
+      };
+
+  public static FieldComparator forType(DataType type) {
+    switch (type) {
+      case INT:
+        return INT_COMPARATOR;
+      case LONG:
+        return LONG_COMPARATOR;
+      case FLOAT:
+        return FLOAT_COMPARATOR;
+      case DOUBLE:
+        return DOUBLE_COMPARATOR;
+      case STRING:
+      default:
+        return STRING_COMPARATOR;
+    }
+  }
+
+  /**
+   * compare two values of the same type. Null is less than any other value.
+   *
+   * @param comparator comparator of the type
+   * @param a value
+   * @param b value
+   * @return negative, zero or positive as {@code a} is less than, equal to or greater than {@code
+   *     b}
+   */
+  public static int compareValue(FieldComparator comparator, ValueWrapper a, ValueWrapper b) {
+    if (a.isNull || b.isNull) return (a.isNull ? 0 : 1) - (b.isNull ? 0 : 1);
+    return comparator.compare(a.bytes, 0, a.getValueLength(), b.bytes, 0, b.getValueLength());
+  }
+
+  /** comparators of primary keys, in the order of primary field. */
+  private final FieldComparator[] comparators;
+
+  /**
+   * make the comparator of primary keys.
+   *
+   * @param primaryColumns primary key columns in the order of primary field
+   */
+  public KeyComparator(ArrayList<Column> primaryColumns) {
+    comparators = new FieldComparator[primaryColumns.size()];
+    for (int i = 0; i < comparators.length; i++) {
+      comparators[i] = forType(primaryColumns.get(i).type);
+    }
+  }
+
+  /**
+   * compare two primary keys field by field. If one is a prefix of the other, the shorter one is
+   * less.
+   *
+   * @param a primary key values
+   * @param b primary key values
+   * @return negative, zero or positive as {@code a} is less than, equal to or greater than {@code
+   *     b}
+   */
+  public int compare(ValueWrapper[] a, ValueWrapper[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int result = compareValue(comparators[i], a[i], b[i]);
+      if (result != 0) return result;
+    }
+    return a.length - b.length;
+  }
+
+  private static int parseIntegerBig(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24)
+        | ((bytes[offset + 1] & 0xFF) << 16)
+        | ((bytes[offset + 2] & 0xFF) << 8)
+        | (bytes[offset + 3] & 0xFF);
+  }
+
+  private static long parseLongBig(byte[] bytes, int offset) {
+    return ((long) parseIntegerBig(bytes, offset) << 32)
+        | Integer.toUnsignedLong(parseIntegerBig(bytes, offset + 4));
+  }
+}
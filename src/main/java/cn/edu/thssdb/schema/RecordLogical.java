@@ -24,6 +24,11 @@ public class RecordLogical {
     nonPrimaryKeyValues = new ValueWrapper[metadata.getNonPrimaryKeyNumber()];
   }
 
+  public RecordLogical(int primaryKeyNumber, int nonPrimaryKeyNumber) {
+    primaryKeyValues = new ValueWrapper[primaryKeyNumber];
+    nonPrimaryKeyValues = new ValueWrapper[nonPrimaryKeyNumber];
+  }
+
   public RecordLogical(IndexPage.RecordInPage record) {
     int primaryKeyNumber = record.primaryKeyValues.length;
     primaryKeyValues = new ValueWrapper[primaryKeyNumber];
@@ -31,10 +36,11 @@ public class RecordLogical {
       primaryKeyValues[i] = new ValueWrapper(record.primaryKeyValues[i]);
     }
     if (record.recordType == IndexPage.RecordInPage.USER_DATA_RECORD) {
-      int nonPrimaryKeyNumber = record.nonPrimaryKeyValues.length;
+      ValueWrapper[] recordNonPrimaryKeyValues = record.getNonPrimaryKeyValues();
+      int nonPrimaryKeyNumber = recordNonPrimaryKeyValues.length;
       nonPrimaryKeyValues = new ValueWrapper[nonPrimaryKeyNumber];
       for (int i = 0; i < nonPrimaryKeyNumber; i++) {
-        nonPrimaryKeyValues[i] = new ValueWrapper(record.nonPrimaryKeyValues[i]);
+        nonPrimaryKeyValues[i] = new ValueWrapper(recordNonPrimaryKeyValues[i]);
       }
     } else {
       nonPrimaryKeyValues = new ValueWrapper[0];
@@ -50,8 +56,9 @@ public class RecordLogical {
     if (record.recordType == IndexPage.RecordInPage.USER_DATA_RECORD) {
       nonPrimaryKeyValues = new ValueWrapper[metadata.getNonPrimaryKeyNumber()];
       int nonPrimaryKeyNumber = metadata.getNonPrimaryKeyNumber();
+      ValueWrapper[] recordNonPrimaryKeyValues = record.getNonPrimaryKeyValues();
       for (int i = 0; i < nonPrimaryKeyNumber; i++) {
-        nonPrimaryKeyValues[i] = new ValueWrapper(record.nonPrimaryKeyValues[i]);
+        nonPrimaryKeyValues[i] = new ValueWrapper(recordNonPrimaryKeyValues[i]);
       }
     } else {
       nonPrimaryKeyValues = new ValueWrapper[0];
@@ -0,0 +1,378 @@
+package cn.edu.thssdb.schema;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.LeafPrefetcher;
+import cn.edu.thssdb.storage.page.HashPage;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.RecordCursor;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
+import cn.edu.thssdb.utils.Pair;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * Secondary index on one non-primary-key column of a table. The index is a B-link tree in its own
+ * tablespace, made of the same {@code IndexPage}s as the table. Each entry is a data record whose
+ * key is (indexed value, primary key of the base record) and which has no other fields, so entries
+ * are unique and ordered by value, and each points to a base record by its primary key. Records
+ * with a null value are not indexed. <br>
+ * The tree is registered in {@code ServerRuntime.catalog} by its spaceId like a table, so that
+ * locks, undo, versions and the buffer work on entries as they do on records. <br>
+ * An index may use the {@code HASH} access method instead, on the primary key of a table with one
+ * primary key column. Its tablespace is an extendible hash table of {@code HashPage}s from the hash
+ * of each primary key to the leaf of the table where the record was inserted. Since a split of the
+ * B-link tree only moves records right, the record is found from that leaf by moving right, without
+ * descending the tree. A leaf found this way is checked like any other, so the table does not need
+ * to be logged or rolled back with records; a key that it misses is looked up in the tree.
+ */
+public class SecondaryIndex {
+
+  /** access method of a B-link tree, for equality and range lookups. */
+  public static final String BTREE = "btree";
+
+  /** access method of a hash table on the primary key, for equality lookups. */
+  public static final String HASH = "hash";
+
+  public final String name;
+
+  public final String method;
+
+  /** indexed column of the base table. */
+  public final Column column;
+
+  /**
+   * metadata of the tree, or null for a hash index. Field 0 is the indexed value, the rest the
+   * primary key of the base.
+   */
+  public final Table.TableMetadata tree;
+
+  /** tablespace of the tree or the hash table. */
+  public final int spaceId;
+
+  /** Json object of the index, saved in the {@code indexes} array of the base table. */
+  JSONObject object;
+
+  /**
+   * the latest commit when the index was built. A snapshot older than it may see records that are
+   * not in the index, so it does not use the index.
+   */
+  volatile long builtAt = 0;
+
+  private SecondaryIndex(
+      String name,
+      String method,
+      Column column,
+      Table.TableMetadata tree,
+      int spaceId,
+      JSONObject object) {
+    this.name = name;
+    this.method = method;
+    this.column = column;
+    this.tree = tree;
+    this.spaceId = spaceId;
+    this.object = object;
+  }
+
+  /**
+   * Prepare an index of a table on one column. A tablespace is allocated for the tree or the hash
+   * table, which does not exist on disk yet.
+   *
+   * @param name index name
+   * @param table base table
+   * @param columnName indexed column. It shall not be a primary key for {@code BTREE}, and shall be
+   *     the only primary key for {@code HASH}.
+   * @param method access method
+   * @return new index
+   */
+  public static SecondaryIndex prepare(
+      String name, Table.TableMetadata table, String columnName, String method) {
+    Column column = table.getColumnDetailByName(columnName);
+    if (method.equals(HASH)) {
+      int spaceId = ServerRuntime.newTablespace();
+      JSONObject object = new JSONObject();
+      object.put("indexName", name);
+      object.put("columnName", columnName);
+      object.put("method", HASH);
+      object.put("spaceId", spaceId);
+      return new SecondaryIndex(name, HASH, column, null, spaceId, object);
+    }
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Column> columns = new ArrayList<>();
+    ArrayList<Integer> orders = new ArrayList<>();
+    names.add(columnName);
+    columns.add(column);
+    for (String primaryKeyName : table.getPrimaryKeyList()) {
+      names.add(primaryKeyName);
+      columns.add(table.getColumnDetailByName(primaryKeyName));
+    }
+    ArrayList<Column> keyColumns = new ArrayList<>();
+    for (int i = 0; i < columns.size(); i++) {
+      Column keyColumn = new Column();
+      keyColumn.prepare(names.get(i), columns.get(i).type, columns.get(i).getStringLength());
+      keyColumn.setPrimaryKey(i);
+      keyColumns.add(keyColumn);
+      orders.add(i);
+    }
+    Table.TableMetadata tree = new Table.TableMetadata();
+    tree.prepare(name, ServerRuntime.newTablespace());
+    tree.setColumnsAndCompute(names, keyColumns, orders, keyColumns.size(), 0);
+
+    JSONObject object = new JSONObject();
+    object.put("indexName", name);
+    object.put("columnName", columnName);
+    object.put("tree", tree.object);
+    return new SecondaryIndex(name, BTREE, column, tree, tree.spaceId, object);
+  }
+
+  public static SecondaryIndex parse(JSONObject object, Table.TableMetadata table)
+      throws Exception {
+    String name = object.getString("indexName");
+    Column column = table.getColumnDetailByName(object.getString("columnName"));
+    if (object.optString("method", BTREE).equals(HASH)) {
+      return new SecondaryIndex(name, HASH, column, null, object.getInt("spaceId"), object);
+    }
+    Table.TableMetadata tree = Table.TableMetadata.parse(object.getJSONObject("tree"));
+    return new SecondaryIndex(name, BTREE, column, tree, tree.spaceId, object);
+  }
+
+  /**
+   * init the tablespace of a hash index on disk (buffer), with an empty hash table.
+   *
+   * @param transactionId transaction
+   */
+  public void initHashTablespaceFile(long transactionId) {
+    Table.TableMetadata.createTablespaceFile(spaceId);
+    HashPage.createHashTable(transactionId, spaceId);
+  }
+
+  /**
+   * make the entry of a base record.
+   *
+   * @param record base record
+   * @return entry, or null if the indexed value is null
+   */
+  private RecordLogical entryOf(RecordLogical record) {
+    ValueWrapper value =
+        column.primary < 0
+            ? record.nonPrimaryKeyValues[-column.primary - 1]
+            : record.primaryKeyValues[column.primary];
+    if (value.isNull) return null;
+    RecordLogical entry = new RecordLogical(tree);
+    entry.primaryKeyValues[0] = new ValueWrapper(value);
+    for (int i = 0; i < record.primaryKeyValues.length; i++) {
+      entry.primaryKeyValues[i + 1] = new ValueWrapper(record.primaryKeyValues[i]);
+    }
+    return entry;
+  }
+
+  /**
+   * add the entry of a base record that has been inserted.
+   *
+   * @param transactionId transaction
+   * @param record base record
+   * @param leafPageId leaf of the table the record is inserted into
+   */
+  public void insert(long transactionId, RecordLogical record, int leafPageId) {
+    if (tree == null) {
+      HashPage directory = (HashPage) IO.read(spaceId, ServerRuntime.config.indexRootPageIndex);
+      try {
+        directory.put(transactionId, hashOf(record.primaryKeyValues), leafPageId);
+      } finally {
+        IO.unpin(directory);
+      }
+      return;
+    }
+    RecordLogical entry = entryOf(record);
+    if (entry == null) return;
+    IndexPage rootPage = (IndexPage) IO.read(tree.spaceId, ServerRuntime.config.indexRootPageIndex);
+    try {
+      rootPage.insertDataRecordIntoTree(transactionId, entry);
+    } finally {
+      IO.unpin(rootPage);
+    }
+  }
+
+  /**
+   * remove the entry of a base record that has been deleted.
+   *
+   * @param transactionId transaction
+   * @param record base record
+   */
+  public void delete(long transactionId, RecordLogical record) throws Exception {
+    if (tree == null) {
+      HashPage directory = (HashPage) IO.read(spaceId, ServerRuntime.config.indexRootPageIndex);
+      try {
+        directory.remove(transactionId, hashOf(record.primaryKeyValues));
+      } finally {
+        IO.unpin(directory);
+      }
+      return;
+    }
+    RecordLogical entry = entryOf(record);
+    if (entry == null) return;
+    IndexPage rootPage = (IndexPage) IO.read(tree.spaceId, ServerRuntime.config.indexRootPageIndex);
+    try {
+      rootPage.scanTreeAndDeleteRecordWithKey(transactionId, entry.primaryKeyValues);
+    } finally {
+      IO.unpin(rootPage);
+    }
+  }
+
+  /**
+   * add the entries of all records of the base table when the index is created. The caller shall
+   * hold the exclusive lock of the table.
+   *
+   * @param transactionId transaction
+   * @param table base table
+   */
+  public void build(long transactionId, Table.TableMetadata table) throws Exception {
+    IndexPage rootPage =
+        (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
+    int pageId;
+    try {
+      pageId = rootPage.getLeftmostDataPage(transactionId).left;
+    } finally {
+      IO.unpin(rootPage);
+    }
+    LeafPrefetcher prefetcher = new LeafPrefetcher(table.spaceId);
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(table.spaceId, pageId);
+      Pair<Integer, ArrayList<RecordLogical>> records;
+      try {
+        records = page.getAllRecordLogical(transactionId);
+      } finally {
+        IO.unpin(page);
+      }
+      for (RecordLogical record : records.right) insert(transactionId, record, pageId);
+      pageId = records.left;
+      prefetcher.visit(pageId);
+    }
+    if (tree == null) return;
+    /* no one reads the tree before the index is published, and the table does not change until the
+     * transaction ends, so the entries are visible at once to snapshots taken from now on. */
+    VersionStore.forget(tree.spaceId);
+    builtAt = VersionStore.latestCommit();
+  }
+
+  /**
+   * check if a transaction may find records through the index.
+   *
+   * @param transactionId transaction
+   * @return true if the index covers every record the transaction can read
+   */
+  public boolean isUsableBy(long transactionId) {
+    if (tree == null) return true;
+    return !ServerRuntime.readsSnapshot(transactionId)
+        || VersionStore.snapshotOf(transactionId) >= builtAt;
+  }
+
+  /**
+   * find the primary keys of base records whose indexed value lies between two bounds, in the order
+   * of the value. The tree is read like a table, under read locks or in the snapshot of the
+   * transaction.
+   *
+   * @param transactionId transaction
+   * @param lower lower bound, or null if there is none
+   * @param lowerInclusive if a value equal to {@code lower} is found
+   * @param upper upper bound, or null if there is none
+   * @param upperInclusive if a value equal to {@code upper} is found
+   * @return primary keys of base records
+   */
+  public ArrayList<ValueWrapper[]> findPrimaryKeys(
+      long transactionId,
+      ValueWrapper lower,
+      boolean lowerInclusive,
+      ValueWrapper upper,
+      boolean upperInclusive)
+      throws Exception {
+    ArrayList<ValueWrapper[]> primaryKeys = new ArrayList<>();
+    int primaryKeyNumber = tree.getPrimaryKeyNumber() - 1;
+    IndexPage.recordVisitor visitor =
+        (cursor) -> {
+          if (lower != null) {
+            Integer result = cursor.compareTo(0, lower);
+            if (result == null || result < 0 || (result == 0 && !lowerInclusive)) return true;
+          }
+          if (upper != null) {
+            Integer result = cursor.compareTo(0, upper);
+            if (result == null || result > 0 || (result == 0 && !upperInclusive)) return false;
+          }
+          ValueWrapper[] primaryKey = new ValueWrapper[primaryKeyNumber];
+          for (int i = 0; i < primaryKeyNumber; i++) primaryKey[i] = cursor.getValue(i + 1);
+          primaryKeys.add(primaryKey);
+          return true;
+        };
+
+    IndexPage rootPage = (IndexPage) IO.read(tree.spaceId, ServerRuntime.config.indexRootPageIndex);
+    int pageId;
+    try {
+      if (lower == null) {
+        pageId = rootPage.getLeftmostDataPage(transactionId).left;
+      } else {
+        /* the value alone is less than every entry with it, so the leaf of its first entry is found. */
+        ValueWrapper[] searchKey = {lower};
+        IndexPage leaf = rootPage.scanTreeAndReturnLeaf(transactionId, searchKey);
+        pageId = leaf.pageId;
+        IO.unpin(leaf);
+      }
+    } finally {
+      IO.unpin(rootPage);
+    }
+    RecordCursor cursor = new RecordCursor(tree);
+    LeafPrefetcher prefetcher = new LeafPrefetcher(tree.spaceId);
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(tree.spaceId, pageId);
+      try {
+        pageId = page.scanRecords(transactionId, cursor, visitor);
+      } finally {
+        IO.unpin(page);
+      }
+      prefetcher.visit(pageId);
+    }
+    return primaryKeys;
+  }
+
+  /**
+   * find a record of the table by its primary key through the hash index, as {@code
+   * scanTreeAndReturnRecord} of the root does. The search starts from the leaf the hash table
+   * points to, and descends the tree only if the record is not found there or on its right.
+   *
+   * @param transactionId transaction
+   * @param table base table
+   * @param primaryKey primary key
+   * @return see as scanTreeAndReturnRecord
+   */
+  public Pair<Boolean, IndexPage.RecordInPage> findRecord(
+      long transactionId, Table.TableMetadata table, ValueWrapper[] primaryKey) throws Exception {
+    HashPage directory = (HashPage) IO.read(spaceId, ServerRuntime.config.indexRootPageIndex);
+    int leafPageId;
+    try {
+      leafPageId = directory.find(hashOf(primaryKey));
+    } finally {
+      IO.unpin(directory);
+    }
+    if (leafPageId > 0) {
+      IndexPage leaf = (IndexPage) IO.read(table.spaceId, leafPageId);
+      Pair<Boolean, IndexPage.RecordInPage> result;
+      try {
+        result = leaf.scanTreeAndReturnRecord(transactionId, primaryKey);
+      } finally {
+        IO.unpin(leaf);
+      }
+      if (result.left) return result;
+    }
+    IndexPage rootPage =
+        (IndexPage) IO.read(table.spaceId, ServerRuntime.config.indexRootPageIndex);
+    try {
+      return rootPage.scanTreeAndReturnRecord(transactionId, primaryKey);
+    } finally {
+      IO.unpin(rootPage);
+    }
+  }
+
+  private static long hashOf(ValueWrapper[] primaryKey) {
+    return HashPage.hash(ValueWrapper.toKeyString(primaryKey));
+  }
+}
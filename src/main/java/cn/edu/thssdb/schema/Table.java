@@ -10,7 +10,9 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import static java.lang.System.exit;
 
@@ -58,6 +60,15 @@ public class Table {
 
     private int nullableKeyNumber = 0;
 
+    /** comparator of primary keys, made from the types of primary key columns. */
+    public KeyComparator keyComparator;
+
+    /**
+     * secondary indexes of the table. The list never changes; creating or dropping an index
+     * publishes a new one.
+     */
+    public volatile List<SecondaryIndex> indexes = Collections.emptyList();
+
     public int getColumnNumber() {
       return nonPrimaryKeyNumber + primaryKeyNumber;
     }
@@ -105,6 +116,7 @@ public class Table {
         primaryKeyOffset.add(primaryKeyLength);
         primaryKeyLength += getColumnDetailByPrimaryField(i).getLength();
       }
+      this.keyComparator = makeKeyComparator();
       this.nonPrimaryKeyLength = 0;
       for (int i = -1; i >= -nonPrimaryKeyNumber; i--) {
         nonPrimaryKeyOffset.add(nonPrimaryKeyLength);
@@ -116,6 +128,14 @@ public class Table {
       }
     }
 
+    private KeyComparator makeKeyComparator() {
+      ArrayList<Column> primaryColumns = new ArrayList<>();
+      for (int i = 0; i < primaryKeyNumber; i++) {
+        primaryColumns.add(getColumnDetailByPrimaryField(i));
+      }
+      return new KeyComparator(primaryColumns);
+    }
+
     public int getPrimaryKeyNumber() {
       return primaryKeyNumber;
     }
@@ -244,6 +264,7 @@ public class Table {
         metadata.primaryKeyOffset.add(metadata.primaryKeyLength);
         metadata.primaryKeyLength += metadata.getColumnDetailByPrimaryField(i).getLength();
       }
+      metadata.keyComparator = metadata.makeKeyComparator();
 
       metadata.nonPrimaryKeyLength = 0;
       for (int i = -1; i >= -metadata.nonPrimaryKeyNumber; i--) {
@@ -251,6 +272,15 @@ public class Table {
         metadata.nonPrimaryKeyLength += metadata.getColumnDetailByPrimaryField(i).getLength();
       }
 
+      if (object.has("indexes")) {
+        ArrayList<SecondaryIndex> indexes = new ArrayList<>();
+        JSONArray indexArray = object.getJSONArray("indexes");
+        for (int i = 0; i < indexArray.length(); i++) {
+          indexes.add(SecondaryIndex.parse(indexArray.getJSONObject(i), metadata));
+        }
+        metadata.indexes = Collections.unmodifiableList(indexes);
+      }
+
       /* since the tableMetadata is formed according to an existed json object, it must be on disk. */
       return metadata;
     }
@@ -260,6 +290,24 @@ public class Table {
      * Metadata and Tablespace Data. A suitable tablespaceId will be allocated automatically.
      */
     public void initTablespaceFile(long transactionId) {
+      createTablespaceFile(spaceId);
+      IO.unpin(
+          OverallPage.createOverallPage(
+              transactionId, spaceId, ServerRuntime.config.overallPageIndex));
+      IO.unpin(
+          IndexPage.createIndexPage(
+              transactionId, spaceId, ServerRuntime.config.indexRootPageIndex));
+      IO.unpin(
+          IndexPage.createIndexPage(
+              transactionId, spaceId, ServerRuntime.config.indexLeftmostLeafIndex));
+    }
+
+    /**
+     * create an empty file for a tablespace, replacing the old one if any.
+     *
+     * @param spaceId tablespace
+     */
+    static void createTablespaceFile(int spaceId) {
       /* Tablespace File Creation */
       String tablespaceFilename = ServerRuntime.getTablespaceFile(spaceId);
       //      System.out.println(tablespaceFilename);
@@ -277,22 +325,19 @@ public class Table {
         e.printStackTrace();
         exit(64);
       }
-
-      OverallPage.createOverallPage(transactionId, spaceId, ServerRuntime.config.overallPageIndex);
-      IndexPage.createIndexPage(transactionId, spaceId, ServerRuntime.config.indexRootPageIndex);
-      IndexPage.createIndexPage(
-          transactionId, spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
+      /* a file handle opened before the file is replaced is stale. */
+      IO.closeTablespace(spaceId);
     }
 
     /**
-     * insert values into this table
+     * make a record of this table from values.
      *
-     * @param transactionId transaction
      * @param values value (in the format of ('string', 1234, null)), in the order of (primaryKeys,
-     *     nonPrimaryKeys).
+     *     nonPrimaryKeys). A record of default primary keys and null values is made if it is null.
+     * @return record, or null if a column that is not null has null value
      */
-    public boolean insertRecord(long transactionId, ArrayList<String> values) {
-      RecordLogical recordToBeInserted = new RecordLogical(this);
+    public RecordLogical makeRecord(ArrayList<String> values) {
+      RecordLogical record = new RecordLogical(this);
 
       int primaryKeyNumber = getPrimaryKeyNumber();
       int nonPrimaryKeyNumber = getNonPrimaryKeyNumber();
@@ -303,12 +348,12 @@ public class Table {
           ValueWrapper valueWrapper = new ValueWrapper(column);
           if (column.type != DataType.STRING) valueWrapper.setWithNull("0");
           else valueWrapper.setWithNull("''");
-          recordToBeInserted.primaryKeyValues[i] = valueWrapper;
+          record.primaryKeyValues[i] = valueWrapper;
         } else {
-          if (values.get(i).equals("null") && column.isNotNull()) return false;
+          if (values.get(i).equals("null") && column.isNotNull()) return null;
           ValueWrapper valueWrapper = new ValueWrapper(column);
           valueWrapper.setWithNull(values.get(i));
-          recordToBeInserted.primaryKeyValues[i] = valueWrapper;
+          record.primaryKeyValues[i] = valueWrapper;
         }
       }
 
@@ -317,24 +362,143 @@ public class Table {
         if (values == null) {
           ValueWrapper valueWrapper = new ValueWrapper(column);
           valueWrapper.setWithNull("null");
-          recordToBeInserted.nonPrimaryKeyValues[i] = valueWrapper;
+          record.nonPrimaryKeyValues[i] = valueWrapper;
         } else {
-          if (values.get(primaryKeyNumber + i).equals("null") && column.isNotNull()) return false;
+          if (values.get(primaryKeyNumber + i).equals("null") && column.isNotNull()) return null;
           ValueWrapper valueWrapper = new ValueWrapper(column);
           valueWrapper.setWithNull(values.get(primaryKeyNumber + i));
-          recordToBeInserted.nonPrimaryKeyValues[i] = valueWrapper;
+          record.nonPrimaryKeyValues[i] = valueWrapper;
         }
       }
+      return record;
+    }
+
+    /**
+     * insert values into this table
+     *
+     * @param transactionId transaction
+     * @param values value (in the format of ('string', 1234, null)), in the order of (primaryKeys,
+     *     nonPrimaryKeys).
+     */
+    public boolean insertRecord(long transactionId, ArrayList<String> values) {
+      RecordLogical recordToBeInserted = makeRecord(values);
+      if (recordToBeInserted == null) return false;
+
+      IndexPage rootPage = null;
+      try {
+        rootPage = (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexRootPageIndex);
+      } catch (Exception e) {
+        e.printStackTrace();
+        exit(65);
+      }
+      int leafPageId;
+      try {
+        leafPageId =
+            rootPage.insertDataRecordIntoTreeAndReturnLeaf(transactionId, recordToBeInserted);
+      } finally {
+        IO.unpin(rootPage);
+      }
+      if (leafPageId == 0) return false;
+      insertIntoIndexes(transactionId, recordToBeInserted, leafPageId);
+      return true;
+    }
+
+    /**
+     * insert rows into this table as one operation on the tree. The rows are sorted by primary key,
+     * so that the rows going to the same leaf are inserted together by {@code
+     * IndexPage.insertDataRecordsIntoTree}.
+     *
+     * @param transactionId transaction
+     * @param values values of each row, as {@code insertRecord} takes
+     * @return false if a column that is not null has null value, or a primary key already exists.
+     *     Rows inserted before are left to the rollback of the transaction.
+     */
+    public boolean insertRecords(long transactionId, ArrayList<ArrayList<String>> values) {
+      ArrayList<RecordLogical> records = new ArrayList<>();
+      for (ArrayList<String> value : values) {
+        RecordLogical record = makeRecord(value);
+        if (record == null) return false;
+        records.add(record);
+      }
+      records.sort((a, b) -> keyComparator.compare(a.primaryKeyValues, b.primaryKeyValues));
 
-      IndexPage rootPage;
+      IndexPage rootPage = null;
       try {
         rootPage = (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexRootPageIndex);
-        return rootPage.insertDataRecordIntoTree(transactionId, recordToBeInserted);
       } catch (Exception e) {
         e.printStackTrace();
         exit(65);
       }
-      return false;
+      int[] leafPageIds;
+      try {
+        leafPageIds = rootPage.insertDataRecordsIntoTree(transactionId, records);
+      } finally {
+        IO.unpin(rootPage);
+      }
+      for (int i = 0; i < records.size(); i++) {
+        if (leafPageIds[i] == 0) return false;
+        insertIntoIndexes(transactionId, records.get(i), leafPageIds[i]);
+      }
+      return true;
+    }
+
+    /**
+     * find the B-link tree index on a column.
+     *
+     * @param columnName column name
+     * @return index, or null if the column is not indexed by a tree
+     */
+    public SecondaryIndex getIndexOnColumn(String columnName) {
+      for (SecondaryIndex index : indexes) {
+        if (index.tree != null && index.column.getName().equals(columnName)) return index;
+      }
+      return null;
+    }
+
+    /**
+     * find the hash index on the primary key.
+     *
+     * @return index, or null if the table has none
+     */
+    public SecondaryIndex getHashIndex() {
+      for (SecondaryIndex index : indexes) {
+        if (index.tree == null) return index;
+      }
+      return null;
+    }
+
+    /**
+     * find a secondary index of the table by name.
+     *
+     * @param indexName index name
+     * @return index, or null if it does not exist
+     */
+    public SecondaryIndex getIndexByName(String indexName) {
+      for (SecondaryIndex index : indexes) {
+        if (index.name.equals(indexName)) return index;
+      }
+      return null;
+    }
+
+    /**
+     * add the entries of a record that has been inserted into the table to all its indexes.
+     *
+     * @param transactionId transaction
+     * @param record record inserted
+     * @param leafPageId leaf the record is inserted into
+     */
+    public void insertIntoIndexes(long transactionId, RecordLogical record, int leafPageId) {
+      for (SecondaryIndex index : indexes) index.insert(transactionId, record, leafPageId);
+    }
+
+    /**
+     * remove the entries of a record that has been deleted from the table from all its indexes.
+     *
+     * @param transactionId transaction
+     * @param record record deleted
+     */
+    public void deleteFromIndexes(long transactionId, RecordLogical record) throws Exception {
+      for (SecondaryIndex index : indexes) index.delete(transactionId, record);
     }
   }
 }
@@ -53,6 +53,19 @@ public class ValueWrapper {
     }
   }
 
+  /**
+   * deep copy constructor, copying {@code bytes[offset, offset + length)}.
+   *
+   * @param bytes bytes to be copied (e.g. raw bytes of a page)
+   * @param offset offset of the value in bytes
+   * @param type data type
+   * @param length maximum length of the value (may have zero suffix).
+   * @param offPage if the value is stored offPage;
+   */
+  public ValueWrapper(byte[] bytes, int offset, DataType type, int length, boolean offPage) {
+    this(Arrays.copyOfRange(bytes, offset, offset + length), type, length, offPage);
+  }
+
   /**
    * construct a null value wrapper
    *
@@ -144,34 +157,61 @@ public class ValueWrapper {
     }
   }
 
+  /**
+   * length of the meaningful bytes: string bytes without zero suffix for STRING, or the whole bytes
+   * for other types.
+   *
+   * @return length of value bytes
+   */
+  public int getValueLength() {
+    return type == DataType.STRING ? strLength : bytes.length;
+  }
+
+  /**
+   * compare with a value of the same type, without decoding either of them.
+   *
+   * @param o value to compare with
+   * @return negative, zero or positive integer. null if either of them is null.
+   */
   public Integer compareTo(ValueWrapper o) {
     if (isNull || o.isNull) return null;
-    switch (type) {
-      case INT:
-        return Integer.compare(parseIntegerBig(), o.parseIntegerBig());
-      case LONG:
-        return Long.compare(parseLongBig(), o.parseLongBig());
-      case FLOAT:
-        return Float.compare(
-            Float.intBitsToFloat(parseIntegerBig()), Float.intBitsToFloat(o.parseIntegerBig()));
-      case DOUBLE:
-        return Double.compare(
-            Double.longBitsToDouble(parseLongBig()), Double.longBitsToDouble((o.parseLongBig())));
-      case STRING:
-      default:
-        return this.toString().compareTo(o.toString());
-    }
+    return KeyComparator.forType(type)
+        .compare(bytes, 0, getValueLength(), o.bytes, 0, o.getValueLength());
   }
 
-  public static Integer compareArray(ValueWrapper[] a, ValueWrapper[] b) {
-    int i;
-    for (i = 0; i < Math.min(a.length, b.length); i++) {
-      if (a[i].compareTo(b[i]) == null || a[i].compareTo(b[i]) != 0) break;
+  /**
+   * compare two arrays of values field by field. Null is less than any other value. Prefer {@code
+   * TableMetadata.keyComparator} for primary keys of a known table.
+   *
+   * @param a values
+   * @param b values
+   * @return negative, zero or positive integer
+   */
+  public static int compareArray(ValueWrapper[] a, ValueWrapper[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int result = KeyComparator.compareValue(KeyComparator.forType(a[i].type), a[i], b[i]);
+      if (result != 0) return result;
     }
-    if (i < Math.min(a.length, b.length)) return a[i].compareTo(b[i]);
     return a.length - b.length;
   }
 
+  /**
+   * text that identifies a primary key, e.g. in lock and version tables. Each value is prefixed by
+   * its length, so that different keys never share a text.
+   *
+   * @param values primary key values
+   * @return identity of the key
+   */
+  public static String toKeyString(ValueWrapper[] values) {
+    StringBuilder key = new StringBuilder();
+    for (ValueWrapper value : values) {
+      String text = value.isNull ? "" : value.toString();
+      key.append(value.isNull ? -1 : text.length()).append(':').append(text);
+    }
+    return key.toString();
+  }
+
   public String toRawString() {
     StringBuilder result = new StringBuilder();
     for (byte b : this.bytes) {
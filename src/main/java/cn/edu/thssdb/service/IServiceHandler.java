@@ -47,11 +47,10 @@ public class IServiceHandler implements IService.Iface {
   @Override
   public ExecuteStatementResp executeStatement(ExecuteStatementReq req) throws TException {
     if (req.statement.equals("force quit")) {
-      DiskBuffer.buffer.invalidateAll();
       try {
-        System.gc();
-        Thread.sleep(10000);
-      } catch (Exception ignored) {
+        DiskBuffer.flushAll();
+      } catch (Exception e) {
+        e.printStackTrace();
       }
       exit(50);
     }
@@ -1,292 +1,687 @@
 package cn.edu.thssdb.storage;
 
+import cn.edu.thssdb.communication.IO;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.storage.page.*;
-import cn.edu.thssdb.storage.writeahead.DummyLog;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-import org.apache.commons.io.FileUtils;
+import cn.edu.thssdb.storage.pagestore.ChannelPageStore;
+import cn.edu.thssdb.storage.pagestore.MappedPageStore;
+import cn.edu.thssdb.storage.pagestore.PageStore;
+import cn.edu.thssdb.storage.writeahead.WriteLog;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.File;
-import java.io.RandomAccessFile;
-import java.lang.ref.PhantomReference;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static cn.edu.thssdb.runtime.ServerRuntime.persistPage;
 import static cn.edu.thssdb.storage.page.Page.*;
 import static java.lang.System.exit;
 
+/**
+ * Buffer pool of pages. Pages live in a fixed array of frames. A page is pinned by {@code read} and
+ * stays in its frame until every pin is released by {@code unpin}. When a frame is needed, an
+ * unpinned page is chosen by the CLOCK policy and written back if it is dirty. A background flusher
+ * writes dirty unpinned pages in advance, so that eviction seldom waits for disk. <br>
+ * {@code poolLatch} is only held to choose a frame: the frame is reserved, and the write-back of
+ * its former page and the read of the new page are done after the latch is released. Threads that
+ * want either page meanwhile wait for the reservation. <br>
+ * If {@code useDirectBuffer} is set, each frame owns a fixed slice of an off-heap arena, and pages
+ * are read from disk straight into the slice of their frame.
+ */
 public class DiskBuffer {
 
-  static HashMap<String, FileChannel> outputChannel = new HashMap<>();
-
   public static class MemoryMonitor extends TimerTask {
     public void run() {
       System.out.println(
-          "persist page:"
-              + persistPage.size()
-              + ", recover area size:"
-              + recoverArea.size()
-              + ", buffer size: "
-              + buffer.estimatedSize());
+          "buffer size: "
+              + pageTable.size()
+              + ", pinned: "
+              + pinnedPageNumber()
+              + ", dirty: "
+              + dirtyPageNumber());
       System.out.println("free memory:" + Runtime.getRuntime().freeMemory());
+      System.out.println("memory budget:" + ServerRuntime.memoryBudget.getMetrics());
+      System.out.println("locks:" + ServerRuntime.lockManager.getMetrics());
+      System.out.println("hash indexes:" + HashPage.getMetrics());
     }
   }
 
-  public static int blockingFactor = 1;
-  /** reference queue of page object that are removed by GC. */
-  public static final ReferenceQueue<Page> referenceQueue = new ReferenceQueue<>();
-  /** ConcurrentHashMap from concat(spaceId, pageId) to share suite. */
-  public static final ConcurrentHashMap<Long, SharedSuite> recoverArea = new ConcurrentHashMap<>();
-  /** ConcurrentHashMap from weak reference to concat(spaceId, pageId) */
-  public static final ConcurrentHashMap<PhantomReference<Page>, Long> throwSet =
-      new ConcurrentHashMap<>();
+  /** frames of the buffer pool. {@code frames[i]} is null if the frame is free. */
+  static final Page[] frames = new Page[ServerRuntime.config.bufferSize];
+
+  static {
+    ServerRuntime.memoryBudget.reserve(
+        (long) ServerRuntime.config.bufferSize * ServerRuntime.config.pageSize);
+  }
+
+  /** off-heap bytes of each frame, or null if {@code useDirectBuffer} is not set. */
+  static final ByteBuffer[] frameBuffers = allocateArena(ServerRuntime.config.bufferSize);
+
+  /** file access of tablespaces. */
+  static final PageStore pageStore =
+      ServerRuntime.config.useMappedTablespace ? new MappedPageStore() : new ChannelPageStore();
+
+  /** map from concat(spaceId, pageId) to the page in buffer. */
+  static final ConcurrentHashMap<Long, Page> pageTable = new ConcurrentHashMap<>();
+
+  /** latch of frame allocation and replacement. Hits of {@code read} do not need it. */
+  static final ReentrantLock poolLatch = new ReentrantLock();
+
+  /** signalled when a page is unpinned and there are threads waiting for a free frame. */
+  static final Condition frameReleased = poolLatch.newCondition();
+
+  static volatile int frameWaiters = 0;
+
+  /** hand of the CLOCK policy. Guarded by {@code poolLatch}. */
+  static int clockHand = 0;
+
+  /**
+   * A frame reserved for a page that is being read from disk or created. If the frame held a dirty
+   * page, that page stays in buffer with {@code pinCount < 0} until it is written back.
+   */
+  static class Reservation {
+    int frame;
+
+    /* dirty page evicted from the frame, or null. */
+    Page victim;
+
+    /* guarded by poolLatch. */
+    boolean done = false;
+  }
+
+  /**
+   * map from concat(spaceId, pageId) to the reservation of a page being placed or evicted. Guarded
+   * by {@code poolLatch}.
+   */
+  static final HashMap<Long, Reservation> reservations = new HashMap<>();
+
+  /** frames under reservation. Guarded by {@code poolLatch}. */
+  static final HashSet<Integer> reservedFrames = new HashSet<>();
+
+  /** signalled when a reservation is done. */
+  static final Condition reservationDone = poolLatch.newCondition();
 
   public static long lastCheckpointVersion = -1;
 
-  /** throw out pages to disk and remove them from memory */
-  public static void throwPages() {
-    try {
-      Reference<?> ref;
-      while (true) {
-        ref = referenceQueue.poll();
-        if (ref == null) {
-          /* There are no weak reference in the poll. */
-          //          System.gc();
-          Thread.sleep(0, 10);
-        } else {
-          Long key = throwSet.get(ref);
-          throwSet.remove(ref);
-          if (key == null) continue;
-          SharedSuite suite = recoverArea.get(key);
-          if (suite == null) continue;
-          suite.suiteLock.lock();
-          //          System.out.println("suite count of " + key.intValue() + " is " +
-          // suite.counter);
-          if (--suite.counter == 0) {
-            try {
-              if (suite.isDirty.get()) DiskBuffer.output(key, suite);
-            } catch (Exception e) {
-              e.printStackTrace();
-              exit(45);
-            }
-            recoverArea.remove(key);
-            suite.suiteLock.unlock();
-            if (DiskBuffer.recoverArea.size() == 0) {
-              /*
-               * Checkpoint can be written safely. This is because pages are flushed to disk only by
-               * this thread. Any new modifications on data and write logs are held until this
-               * method finished.
-               */
-              DummyLog.dummyLogOutputLock.lock();
-              if (DiskBuffer.recoverArea.size() != 0) {
-                DummyLog.dummyLogOutputLock.unlock();
-              } else {
-                lastCheckpointVersion++;
-                File srcDirectory = new File(ServerRuntime.config.tablespacePath);
-                File dstDirectory =
-                    new File(ServerRuntime.config.testPathRecover + lastCheckpointVersion);
-                FileUtils.copyDirectory(srcDirectory, dstDirectory);
-                DummyLog.writeDummyLog(-2, "checkpoint" + lastCheckpointVersion);
-                DummyLog.outputDummyLogToDisk();
-              }
-              DummyLog.dummyLogOutputLock.unlock();
-            }
-          } else {
-            suite.suiteLock.unlock();
-          }
-        }
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      exit(44);
+  /** log sequence number at the beginning of the last checkpoint. */
+  static long lastCheckpointLSN = -1;
+
+  /** log sequence number of the last checkpoint record. */
+  static long lastCheckpointRecordLSN = -1;
+
+  /** latch that keeps checkpoints in sequence. */
+  static final ReentrantLock checkpointLatch = new ReentrantLock();
+
+  private static ByteBuffer[] allocateArena(int frameNumber) {
+    if (!ServerRuntime.config.useDirectBuffer) return null;
+    int pageSize = ServerRuntime.config.pageSize;
+    ByteBuffer arena = ByteBuffer.allocateDirect(frameNumber * pageSize);
+    ByteBuffer[] buffers = new ByteBuffer[frameNumber];
+    for (int i = 0; i < frameNumber; i++) {
+      arena.limit((i + 1) * pageSize);
+      arena.position(i * pageSize);
+      buffers[i] = arena.slice();
     }
+    return buffers;
   }
 
   /**
-   * map from {@code spID = spaceId[4byte]-pageID[4byte] } to a page class. !important: Buffer shall
-   * be accessed with diskBufferLatch.
+   * bytes of a page that is going to be placed in the frame.
+   *
+   * @param frame index of the frame
+   * @return the slice of the frame, or a new heap buffer if {@code useDirectBuffer} is not set
    */
-  public static final LoadingCache<Long, Page> buffer =
-      Caffeine.newBuilder()
-          .maximumSize(ServerRuntime.config.bufferSize)
-          .removalListener(
-              (Long key, Page value, com.github.benmanes.caffeine.cache.RemovalCause cause) -> {
-                //                int spaceId = (int) (key >> 32);
-                //                int pageId = key.intValue();
-                //                System.out.println("output " + spaceId + " " + pageId);
-              })
-          .build(
-              key -> {
-                if (Runtime.getRuntime().freeMemory() <= ServerRuntime.config.warningMemory) {
-                  // better thread sleep control for memory limitation.
-                  // replace busy waiting with something faster
-                  System.gc();
-                  blockingFactor = blockingFactor << 1;
-                  int sleepTime = blockingFactor * 5;
-                  Thread.sleep(sleepTime / 1000, sleepTime % 1000);
-                  while (Runtime.getRuntime().freeMemory() <= ServerRuntime.config.warningMemory) {
-                    if (sleepTime / 1000 > 50) {
-                      if (ThreadLocalRandom.current().nextFloat() < 0.05) break;
-                    } else {
-                      sleepTime = sleepTime * 2;
-                    }
-                    Thread.sleep(sleepTime / 1000, sleepTime % 1000);
-                    System.gc();
-                  }
-                  blockingFactor >>= 1;
-                }
-                Page page;
-                SharedSuite suite = recoverArea.get(key);
-                if (suite == null) {
-                  /* no shared suite currently stores in memory */
-                  page = input(key);
-                  int spaceId = (int) (key >> 32);
-                  int pageId = key.intValue();
-                  //                  System.out.println("input " + spaceId + " " + pageId);
-                  recoverArea.put(key, page.makeSuite());
-                } else {
-                  /* The corresponding share suite currently stores in memory, therefore we recover from the shared suite. */
-                  int spaceId = (int) (key >> 32);
-                  int pageId = key.intValue();
-                  //                  System.out.println("recover " + spaceId + " " + pageId);
-                  page = recover(suite);
-                  suite.suiteLock.lock();
-                  //                  System.out.println("[recover] suite count of " +
-                  // key.intValue() + " is " + suite.counter);
-                  if (++suite.counter == 1) {
-                    /* optimistic locking:
-                    the shared suite has been removed asynchronously from memory just after we retrieve it from recoverArea. */
-                    recoverArea.put(key, suite);
-                  }
-                  suite.suiteLock.unlock();
-                }
-                throwSet.put(new PhantomReference<>(page, referenceQueue), key);
-                return page;
-              });
+  private static ByteBuffer frameBuffer(int frame) {
+    if (frameBuffers == null) return ByteBuffer.allocate(ServerRuntime.config.pageSize);
+    return frameBuffers[frame];
+  }
 
   public static long concat(int spaceId, int pageId) {
     return (Integer.toUnsignedLong(spaceId) << 32) | pageId;
   }
 
   /**
-   * read a page from buffer this method shall be used carefully due to the lack of lock.
+   * read a page from buffer and pin it. Every read shall be paired with an {@code unpin}.
    *
    * @param spaceId spaceId
    * @param pageId pageId
-   * @return Page object
+   * @return pinned Page object
    */
   public static Page read(int spaceId, int pageId) throws Exception {
-    return getFromBuffer(concat(spaceId, pageId));
+    long key = concat(spaceId, pageId);
+    while (true) {
+      Page page = pageTable.get(key);
+      if (page != null && tryPin(page)) return page;
+      page = load(key);
+      if (page != null) return page;
+      /* the page is being dropped, try again. */
+      Thread.yield();
+    }
+  }
+
+  /**
+   * add one more pin to a page which is already pinned by the caller.
+   *
+   * @param page pinned page
+   */
+  public static void pin(Page page) {
+    if (!tryPin(page)) {
+      System.out.println("pin a page that is not in buffer: " + page.spaceId + " " + page.pageId);
+      exit(46);
+    }
+  }
+
+  /**
+   * release one pin of a page. The page shall not be used by the caller afterwards.
+   *
+   * @param page pinned page
+   */
+  public static void unpin(Page page) {
+    if (page.pinCount.decrementAndGet() == 0 && frameWaiters > 0) {
+      poolLatch.lock();
+      frameReleased.signalAll();
+      poolLatch.unlock();
+    }
+  }
+
+  /**
+   * pin the page unless it is being evicted ({@code pinCount < 0}).
+   *
+   * @return true if it is pinned
+   */
+  private static boolean tryPin(Page page) {
+    while (true) {
+      int count = page.pinCount.get();
+      if (count < 0) return false;
+      if (page.pinCount.compareAndSet(count, count + 1)) {
+        page.referenced = true;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * read a missing page from disk into a frame. If the page is being read or evicted by another
+   * thread, wait for it first.
+   *
+   * @param key concat(spaceId, pageId)
+   * @return pinned page, or null if the page is found in the buffer but being dropped.
+   */
+  private static Page load(long key) throws Exception {
+    Reservation reservation = new Reservation();
+    poolLatch.lock();
+    try {
+      while (true) {
+        Reservation pending = reservations.get(key);
+        if (pending == null) break;
+        while (!pending.done) reservationDone.awaitUninterruptibly();
+      }
+      Page page = pageTable.get(key);
+      if (page != null) return tryPin(page) ? page : null;
+      reservations.put(key, reservation);
+      reserve(reservation, allocateFrame());
+    } finally {
+      poolLatch.unlock();
+    }
+    return fill(key, reservation);
   }
 
   /**
-   * get from buffer, the buffer is thread-safe
+   * read a page into buffer in advance and pin it. Unlike {@code read}, it gives up rather than
+   * waits if the buffer is busy, the page is being read by another thread or every page is pinned,
+   * so that read-ahead never delays the buffer. Only the frame is reserved under {@code poolLatch};
+   * the page is read into it by the calling thread (a read-ahead worker) afterwards.
    *
-   * @param key hashmap key
-   * @return hashmap value
+   * @param spaceId spaceId
+   * @param pageId pageId
+   * @return pinned page, or null if it is not read
    */
-  public static Page getFromBuffer(long key) {
-    return buffer.get(key);
+  public static Page prefetch(int spaceId, int pageId) throws Exception {
+    long key = concat(spaceId, pageId);
+    Page page = pageTable.get(key);
+    if (page != null) return tryPin(page) ? page : null;
+    Reservation reservation = new Reservation();
+    if (!poolLatch.tryLock()) return null;
+    try {
+      if (reservations.containsKey(key)) return null;
+      page = pageTable.get(key);
+      if (page != null) return tryPin(page) ? page : null;
+      int frame = sweep();
+      if (frame < 0) return null;
+      reservations.put(key, reservation);
+      reserve(reservation, frame);
+    } finally {
+      poolLatch.unlock();
+    }
+    return fill(key, reservation);
   }
 
   /**
-   * put page to buffer, the buffer is thread-safe
+   * put a newly created page into buffer. The page is pinned for the creator. A page with the same
+   * id left in buffer (e.g. of a dropped tablespace whose id is reused) is replaced.
    *
    * @param page page object
    */
   public static void putToBuffer(Page page) {
-    recoverArea.put(concat(page.spaceId, page.pageId), page.makeSuite());
-    //    System.out.println("first pin " + page.spaceId + " " + page.pageId);
-    throwSet.put(new PhantomReference<>(page, referenceQueue), concat(page.spaceId, page.pageId));
-    buffer.put(concat(page.spaceId, page.pageId), page);
+    long key = concat(page.spaceId, page.pageId);
+    Reservation reservation = new Reservation();
+    poolLatch.lock();
+    try {
+      Page stalePage = pageTable.get(key);
+      if (stalePage != null) discard(stalePage);
+      reservations.put(key, reservation);
+      reserve(reservation, allocateFrame());
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      exit(47);
+    } finally {
+      poolLatch.unlock();
+    }
+    writeBack(reservation);
+    if (frameBuffers != null) {
+      /* move the bytes of the new page into its frame. */
+      ByteBuffer buffer = frameBuffers[reservation.frame];
+      buffer.duplicate().put((ByteBuffer) page.bytes.duplicate().clear());
+      page.bytes = buffer;
+    }
+    page.isDirty.set(true);
+    poolLatch.lock();
+    try {
+      complete(key, reservation, page);
+    } finally {
+      poolLatch.unlock();
+    }
   }
 
   /**
-   * read a page from disk to buffer.
+   * reserve a frame chosen by {@code allocateFrame} or {@code sweep}. {@code poolLatch} shall be
+   * held.
+   *
+   * @param reservation reservation of the page, already put into {@code reservations}
+   * @param frame free frame, or frame of a dirty page that is being evicted
+   */
+  private static void reserve(Reservation reservation, int frame) {
+    reservation.frame = frame;
+    reservation.victim = frames[frame];
+    reservedFrames.add(frame);
+    if (reservation.victim != null) {
+      reservations.put(concat(reservation.victim.spaceId, reservation.victim.pageId), reservation);
+    }
+  }
+
+  /**
+   * write back the page evicted from a reserved frame, and read a page into the frame. {@code
+   * poolLatch} is taken only to finish the reservation.
    *
    * @param key concat(spaceId, pageId)
-   * @throws Exception if the reading process fails.
+   * @return pinned page
    */
-  public static Page input(Long key) throws Exception {
-    int spaceId = (int) (key >> 32);
-    int pageId = key.intValue();
-    String tablespaceFilename = ServerRuntime.getTablespaceFile(spaceId);
-    RandomAccessFile tablespaceFile = new RandomAccessFile(tablespaceFilename, "r");
-    byte[] pageBytes = new byte[(int) ServerRuntime.config.pageSize];
-    tablespaceFile.seek(ServerRuntime.config.pageSize * ((long) 0x00000000FFFFFFFF & pageId));
-    int bytes = tablespaceFile.read(pageBytes, 0, ServerRuntime.config.pageSize);
-    if (bytes != ServerRuntime.config.pageSize) {
-      throw new Exception(
-          "read page error. Wrong length" + bytes + "input:" + spaceId + " " + pageId);
+  private static Page fill(long key, Reservation reservation) throws Exception {
+    Page page = null;
+    try {
+      writeBack(reservation);
+      page = input(key, frameBuffer(reservation.frame));
+      return page;
+    } finally {
+      poolLatch.lock();
+      try {
+        complete(key, reservation, page);
+      } finally {
+        poolLatch.unlock();
+      }
     }
-    int pageType = ((int) pageBytes[12] << 8) | pageBytes[13];
-    Page page;
-    switch (pageType) {
-      case OVERALL_PAGE:
-        page = new OverallPage(pageBytes);
-        break;
-      case INDEX_PAGE:
-        page = new IndexPage(pageBytes, false);
-        break;
-      default:
-        page = new Page(pageBytes);
+  }
+
+  /**
+   * write back the page evicted from a reserved frame, with the write-ahead log it needs. An output
+   * of the flusher under way ends first, since the page is no longer dirty meanwhile.
+   */
+  private static void writeBack(Reservation reservation) {
+    if (reservation.victim == null) return;
+    reservation.victim.pageWriteAndOutputLatch.lock();
+    try {
+      flush(reservation.victim);
+    } catch (Exception e) {
+      e.printStackTrace();
+      exit(45);
+    } finally {
+      reservation.victim.pageWriteAndOutputLatch.unlock();
+    }
+  }
+
+  /**
+   * drop the page evicted from a reserved frame, place the new page into the frame and wake up the
+   * threads waiting for either page. {@code poolLatch} shall be held.
+   *
+   * @param key concat(spaceId, pageId)
+   * @param page new page, or null if it could not be read, in which case the frame is freed
+   */
+  private static void complete(long key, Reservation reservation, Page page) {
+    if (reservation.victim != null) {
+      drop(reservation.victim);
+      reservations.remove(
+          concat(reservation.victim.spaceId, reservation.victim.pageId), reservation);
+    }
+    reservations.remove(key, reservation);
+    reservedFrames.remove(reservation.frame);
+    if (page != null) place(reservation.frame, page);
+    reservation.done = true;
+    reservationDone.signalAll();
+  }
+
+  private static void place(int frame, Page page) {
+    page.pinCount.set(1);
+    page.referenced = true;
+    page.frameIndex = frame;
+    frames[frame] = page;
+    pageTable.put(concat(page.spaceId, page.pageId), page);
+  }
+
+  /**
+   * find a free frame, evicting an unpinned page by the CLOCK policy if necessary. When every page
+   * is pinned, block until an unpin frees one. Pages are pinned only while a thread uses them, not
+   * for the locks of a transaction, so the wait is short. The frame may still hold a dirty page
+   * being evicted, which the caller shall write back without {@code poolLatch}. {@code poolLatch}
+   * shall be held.
+   *
+   * @return index of the free frame
+   */
+  private static int allocateFrame() throws InterruptedException {
+    while (true) {
+      int frame = sweep();
+      if (frame >= 0) return frame;
+      /* the wait is timed, since an unpin only signals waiters it has seen. */
+      frameWaiters++;
+      try {
+        frameReleased.await(10, TimeUnit.MILLISECONDS);
+      } finally {
+        frameWaiters--;
+      }
+    }
+  }
+
+  /**
+   * move the CLOCK hand for at most two rounds to find a free frame. A clean victim is dropped at
+   * once, while a dirty victim, or one being output, is only marked as being evicted ({@code
+   * pinCount < 0}) and stays in its frame. {@code poolLatch} shall be held.
+   *
+   * @return index of the frame, or -1 if every page is pinned
+   */
+  private static int sweep() {
+    for (int step = 0; step < 2 * frames.length; step++) {
+      int frame = clockHand;
+      clockHand = (clockHand + 1) % frames.length;
+      Page page = frames[frame];
+      if (page == null) {
+        if (reservedFrames.contains(frame)) continue;
+        return frame;
+      }
+      if (page.pinCount.get() != 0) continue;
+      if (page.referenced) {
+        /* second chance */
+        page.referenced = false;
+        continue;
+      }
+      if (!page.pinCount.compareAndSet(0, -1)) continue;
+      /* a page being output is written back like a dirty one, not read from disk before. */
+      if (!page.isDirty.get() && !page.pageWriteAndOutputLatch.isLocked()) drop(page);
+      return frame;
+    }
+    return -1;
+  }
+
+  /**
+   * remove a page that can no longer be pinned from buffer. {@code poolLatch} shall be held.
+   *
+   * @param page page in buffer with {@code pinCount < 0}
+   */
+  private static void drop(Page page) {
+    pageTable.remove(concat(page.spaceId, page.pageId), page);
+    if (frames[page.frameIndex] == page) frames[page.frameIndex] = null;
+  }
+
+  /**
+   * drop a page from its frame without writing it back. {@code poolLatch} shall be held.
+   *
+   * @param page page in buffer
+   */
+  private static void discard(Page page) {
+    page.pageWriteAndOutputLatch.lock();
+    page.isDirty.set(false);
+    page.pinCount.set(-1);
+    page.pageWriteAndOutputLatch.unlock();
+    drop(page);
+  }
+
+  /**
+   * write the page back to disk if it is dirty.
+   *
+   * @param page page in buffer
+   */
+  static void flush(Page page) throws Exception {
+    if (!page.isDirty.get()) return;
+    /* avoid writing and outputting page simultaneously */
+    page.pageWriteAndOutputLatch.lock();
+    try {
+      if (page.isDirty.compareAndSet(true, false)) output(page);
+    } catch (Exception e) {
+      page.isDirty.set(true);
+      throw e;
+    } finally {
+      page.pageWriteAndOutputLatch.unlock();
+    }
+  }
+
+  /**
+   * background flusher. It writes dirty pages that are not pinned, so that the CLOCK policy mostly
+   * finds clean victims.
+   */
+  public static void flushPages() {
+    while (true) {
+      try {
+        Thread.sleep(ServerRuntime.config.bufferFlushInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (Page page : frames) {
+        if (page == null || !page.isDirty.get() || page.pinCount.get() != 0) continue;
+        try {
+          flush(page);
+        } catch (Exception e) {
+          /* the page is still dirty and will be written again. */
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** write every dirty page in buffer back to disk and force it to the device. */
+  public static void flushAll() throws Exception {
+    for (Page page : frames) {
+      if (page != null) flush(page);
     }
-    tablespaceFile.close();
+    pageStore.force();
+  }
+
+  /**
+   * make a fuzzy checkpoint. It neither waits for the buffer to be quiescent nor copies
+   * tablespaces. The dirty page table, with the recovery LSN of each page, and the active
+   * transactions are recorded in a checkpoint record, and redo can start from the minimum recovery
+   * LSN. Pages that have stayed dirty since the previous checkpoint are then written back even if
+   * they are pinned, so that the minimum recovery LSN keeps moving under load. Nothing is done if
+   * no log is written and no page is dirty since the last checkpoint.
+   *
+   * @return true if the checkpoint is made
+   */
+  public static boolean checkpoint() throws Exception {
+    checkpointLatch.lock();
+    try {
+      long beginLSN = IO.currentLSN();
+      if (beginLSN == lastCheckpointRecordLSN && dirtyPageNumber() == 0) return false;
+      long previousLSN = lastCheckpointLSN;
+
+      JSONArray dirtyPages = new JSONArray();
+      long minRecoveryLSN = beginLSN;
+      for (Page page : frames) {
+        if (page == null) continue;
+        /* a write that is logged before beginLSN has marked its page dirty once the latch is free. */
+        page.pageWriteAndOutputLatch.lock();
+        boolean dirty = page.isDirty.get();
+        long recoveryLSN = page.recoveryLSN;
+        page.pageWriteAndOutputLatch.unlock();
+        if (!dirty) continue;
+        dirtyPages.put(new JSONArray().put(page.spaceId).put(page.pageId).put(recoveryLSN));
+        minRecoveryLSN = Math.min(minRecoveryLSN, recoveryLSN);
+      }
+      /* restart from this checkpoint reads no log before truncateLSN. */
+      long truncateLSN = minRecoveryLSN;
+      JSONArray activeTransactions = new JSONArray();
+      for (Map.Entry<Long, Long> transaction : IO.activeTransactions(beginLSN).entrySet()) {
+        activeTransactions.put(
+            new JSONArray().put(transaction.getKey()).put(transaction.getValue()));
+        truncateLSN = Math.min(truncateLSN, transaction.getValue());
+      }
+      JSONObject record = new JSONObject();
+      record.put("version", lastCheckpointVersion + 1);
+      record.put("beginLSN", beginLSN);
+      record.put("minRecoveryLSN", minRecoveryLSN);
+      record.put("activeTransactions", activeTransactions);
+      record.put("dirtyPages", dirtyPages);
+
+      lastCheckpointRecordLSN = IO.writeCheckpoint(record.toString());
+      record.put("checkpointLSN", lastCheckpointRecordLSN);
+      writeMasterRecord(record.toString());
+      lastCheckpointVersion++;
+      lastCheckpointLSN = beginLSN;
+      IO.truncateLog(truncateLSN);
+
+      for (Page page : frames) {
+        if (page != null && page.isDirty.get() && page.recoveryLSN <= previousLSN) flush(page);
+      }
+      return true;
+    } finally {
+      checkpointLatch.unlock();
+    }
+  }
+
+  /**
+   * replace the master record, which points to the last checkpoint, atomically. It is forced before
+   * it replaces the former one, since the log before the former checkpoint may be truncated then.
+   *
+   * @param record checkpoint record
+   */
+  private static void writeMasterRecord(String record) throws IOException {
+    Path path = Paths.get(ServerRuntime.config.testPathRecover);
+    Path temporary = Paths.get(ServerRuntime.config.testPathRecover + ".tmp");
+    try (FileChannel file =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      ByteBuffer bytes = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+      while (bytes.hasRemaining()) file.write(bytes);
+      file.force(false);
+    }
+    Files.move(
+        temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public static int pinnedPageNumber() {
+    int number = 0;
+    for (Page page : frames) {
+      if (page != null && page.pinCount.get() > 0) number++;
+    }
+    return number;
+  }
 
-    return page;
+  public static int dirtyPageNumber() {
+    int number = 0;
+    for (Page page : frames) {
+      if (page != null && page.isDirty.get()) number++;
+    }
+    return number;
   }
 
   /**
-   * recover a page from sharedSuite in {@code recoverArea}.
+   * read a page from disk.
    *
-   * @param sharedSuite shared suite
-   * @return recovered page
+   * @param key concat(spaceId, pageId)
+   * @param pageBytes buffer of {@code pageSize} bytes to read into
+   * @throws Exception if the reading process fails.
    */
-  public static Page recover(SharedSuite sharedSuite) {
-    byte[] pageBytes = sharedSuite.bytes;
-    int pageType = ((int) pageBytes[12] << 8) | pageBytes[13];
-    Page page;
-    switch (pageType) {
+  public static Page input(Long key, ByteBuffer pageBytes) throws Exception {
+    pageStore.read((int) (key >> 32), key.intValue(), pageBytes);
+    switch (pageBytes.getShort(12)) {
       case OVERALL_PAGE:
-        page = new OverallPage(pageBytes);
-        break;
+        return new OverallPage(pageBytes);
       case INDEX_PAGE:
-        page = new IndexPage(pageBytes, true);
-        break;
+        return new IndexPage(pageBytes);
+      case HASH_PAGE:
+        return new HashPage(pageBytes);
       default:
-        page = new Page(pageBytes);
+        return new Page(pageBytes);
     }
-    page.pageReadAndWriteLatch = sharedSuite.pageReadAndWriteLatch;
-    page.pageWriteAndOutputLatch = sharedSuite.pageWriteAndOutputLatch;
-    page.bLinkTreeLatch = sharedSuite.bLinkTreeLatch;
-    page.infimumRecord = sharedSuite.infimumRecord;
-    page.maxPageId = sharedSuite.maxPageId;
-    page.freespaceStart = sharedSuite.freespaceStart;
-    page.isDirty = sharedSuite.isDirty;
-
-    return page;
   }
 
   /**
-   * Output a shared suite to disk.
+   * Output a page to disk. The write-ahead log of the page is forced first.
    *
-   * @param key concat(spaceId, pageId)
-   * @param suite shared suite
+   * @param page page
    * @throws Exception IO error
    */
-  public static void output(Long key, SharedSuite suite) throws Exception {
-    int spaceId = (int) (key >> 32);
-    int pageId = key.intValue();
-    String tablespaceFilename = ServerRuntime.getTablespaceFile(spaceId);
-    RandomAccessFile tablespaceFile = new RandomAccessFile(tablespaceFilename, "rw");
-    tablespaceFile.seek(ServerRuntime.config.pageSize * ((long) 0x00000000FFFFFFFF & pageId));
-    tablespaceFile.write(suite.bytes, 0, ServerRuntime.config.pageSize);
-    tablespaceFile.close();
+  public static void output(Page page) throws Exception {
+    if (!ServerRuntime.config.useDummyLog) {
+      WriteLog.force(page.pageLSN);
+      page.stampLSN();
+    }
+    pageStore.write(page.spaceId, page.pageId, page.bytes);
+  }
+
+  /**
+   * read the bytes of a page from disk without putting it into buffer. It is used by recovery.
+   *
+   * @param spaceId spaceId
+   * @param pageId pageId
+   * @param dst buffer of {@code pageSize} bytes to read into
+   * @return false if the page is beyond the end of its tablespace file, and nothing is read.
+   */
+  public static boolean readPageBytes(int spaceId, int pageId, ByteBuffer dst) throws Exception {
+    long length = new File(ServerRuntime.getTablespaceFile(spaceId)).length();
+    if (length < (Integer.toUnsignedLong(pageId) + 1) * ServerRuntime.config.pageSize) return false;
+    pageStore.read(spaceId, pageId, dst);
+    return true;
+  }
+
+  /**
+   * write the bytes of a page to disk, bypassing buffer. It is used by recovery.
+   *
+   * @param spaceId spaceId
+   * @param pageId pageId
+   * @param src bytes of the page
+   */
+  public static void writePageBytes(int spaceId, int pageId, ByteBuffer src) throws Exception {
+    pageStore.write(spaceId, pageId, src);
+  }
+
+  /**
+   * release the file of a tablespace, which shall be called after the tablespace file is replaced.
+   *
+   * @param spaceId tablespace
+   */
+  public static void closeTablespace(int spaceId) {
+    pageStore.close(spaceId);
   }
 }
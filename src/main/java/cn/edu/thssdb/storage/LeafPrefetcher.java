@@ -0,0 +1,97 @@
+package cn.edu.thssdb.storage;
+
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.Page;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-ahead of one scan over the leaf level. The scan reports every leaf it has visited. Once the
+ * scan has followed {@code SEQUENTIAL_THRESHOLD} right links in a row, leaves ahead of it are read
+ * into buffer asynchronously by following their right links, keeping up to {@code prefetchDepth}
+ * leaves ahead. So the disk reads of the following leaves overlap the scan of the current one. <br>
+ * Prefetched pages are not pinned when the scan reaches them; they are simply found in buffer.
+ */
+public class LeafPrefetcher {
+
+  /** number of right links followed in a row before read-ahead starts. */
+  public static final int SEQUENTIAL_THRESHOLD = 2;
+
+  static final ExecutorService executor =
+      Executors.newFixedThreadPool(
+          2,
+          runnable -> {
+            Thread thread = new Thread(runnable, "leaf-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final int spaceId;
+  private final int depth;
+
+  /* position of the leaf which the scan is visiting, counted from the first visited leaf. */
+  private volatile int position = 0;
+  /* position of the last leaf read ahead, and its right link. */
+  private int loadedPosition = 0;
+  private int frontier = 0;
+  private boolean running = false;
+
+  public LeafPrefetcher(int spaceId) {
+    this.spaceId = spaceId;
+    this.depth = ServerRuntime.config.prefetchDepth;
+  }
+
+  /**
+   * report that the scan has visited a leaf and is going to follow its right link.
+   *
+   * @param rightPageId right link of the visited leaf. Not positive if the scan ends.
+   */
+  public void visit(int rightPageId) {
+    int current = ++position;
+    if (depth <= 0 || rightPageId <= 0 || current < SEQUENTIAL_THRESHOLD) return;
+    synchronized (this) {
+      if (loadedPosition <= current) {
+        /* read-ahead is behind the scan (or has not started). restart from the scan. */
+        loadedPosition = current;
+        frontier = rightPageId;
+      }
+      if (running || frontier <= 0 || loadedPosition - current > depth / 2) return;
+      running = true;
+    }
+    executor.execute(this::readAhead);
+  }
+
+  private void readAhead() {
+    while (true) {
+      int pageId;
+      synchronized (this) {
+        if (frontier <= 0 || loadedPosition - position >= depth) {
+          running = false;
+          return;
+        }
+        pageId = frontier;
+      }
+      int rightPageId = 0;
+      try {
+        Page page = DiskBuffer.prefetch(spaceId, pageId);
+        if (page != null) {
+          if (page instanceof IndexPage) rightPageId = ((IndexPage) page).getRightPageId();
+          DiskBuffer.unpin(page);
+        }
+      } catch (Exception ignore) {
+        /* read-ahead is only a hint. the scan reads the page itself. */
+      }
+      synchronized (this) {
+        if (frontier != pageId) continue; /* restarted by visit() */
+        loadedPosition++;
+        frontier = rightPageId;
+        if (rightPageId <= 0) {
+          running = false;
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package cn.edu.thssdb.storage;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.exception.DeadlockException;
+import cn.edu.thssdb.runtime.LockManager;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Pair;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reclamation of the space of deleted records in background. A delete only marks a record in its
+ * leaf, and the leaf is noted here. Every {@code vacuumInterval}, each noted leaf whose deleted
+ * records are at least {@code vacuumThreshold} of its records is purged by {@code
+ * IndexPage.vacuum}: the deleted records no one can see any more are unlinked, and their places are
+ * taken by later inserts into the leaf before it grows or splits. A leaf whose deleted records are
+ * still seen by some snapshot stays noted and is visited again. <br>
+ * The leaves of one pass are purged by one transaction. A leaf is checked against the threshold
+ * before anything is logged, and the transaction starts in the log only when the first leaf is
+ * purged, so a pass that purges nothing writes no log and forces nothing.
+ */
+public class Vacuum {
+
+  /* leaves with deleted records, as concat(spaceId, pageId). */
+  private static final Set<Long> pages = ConcurrentHashMap.newKeySet();
+
+  private static Thread worker = null;
+
+  /* number of starts. A pass stops when the server is set up again. */
+  private static final AtomicInteger generation = new AtomicInteger(0);
+
+  /**
+   * note that a record of a leaf has been deleted.
+   *
+   * @param page leaf
+   */
+  public static void noteDeleted(IndexPage page) {
+    pages.add(DiskBuffer.concat(page.spaceId, page.pageId));
+  }
+
+  /**
+   * start vacuum in background if it is not running. Leaves noted before are forgotten, and a pass
+   * under way reads no more leaves, since they may belong to the files of a former server.
+   */
+  public static synchronized void start() {
+    generation.incrementAndGet();
+    pages.clear();
+    if (worker != null) return;
+    worker = new Thread(Vacuum::vacuumLoop, "vacuum");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private static void vacuumLoop() {
+    while (true) {
+      try {
+        Thread.sleep(ServerRuntime.config.vacuumInterval);
+        vacuum();
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * visit every noted leaf once. A deadlock ends the pass, and the leaves left are visited by the
+   * next one.
+   *
+   * @return number of records purged
+   */
+  public static int vacuum() {
+    if (pages.isEmpty()) return 0;
+    double threshold = ServerRuntime.config.vacuumThreshold;
+    int purged = 0;
+    boolean started = false;
+    int passGeneration = generation.get();
+    long transactionId = ServerRuntime.newTransaction();
+    try {
+      for (long page : new ArrayList<>(pages)) {
+        if (generation.get() != passGeneration) break;
+        pages.remove(page);
+        int spaceId = (int) (page >>> 32);
+        int pageId = (int) page;
+        try {
+          /* the table is not dropped while it is vacuumed. */
+          ServerRuntime.getTableLock(transactionId, spaceId, LockManager.INTENTION_EXCLUSIVE);
+          if (!ServerRuntime.catalog.tableMetadata.containsKey(spaceId)) continue;
+          IndexPage leaf = (IndexPage) IO.read(spaceId, pageId);
+          try {
+            if (!leaf.needsVacuum(threshold)) continue;
+            if (!started) {
+              IO.writeTransactionStart(0, transactionId);
+              started = true;
+            }
+            Pair<Integer, Integer> result = leaf.vacuum(transactionId, threshold);
+            purged += result.left;
+            if (result.right > 0) pages.add(page);
+          } finally {
+            IO.unpin(leaf);
+          }
+        } catch (DeadlockException e) {
+          pages.add(page);
+          break;
+        }
+      }
+    } finally {
+      if (started) IO.pushTransactionCommit(transactionId);
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+    return purged;
+  }
+}
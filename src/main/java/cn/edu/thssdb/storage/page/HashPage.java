@@ -0,0 +1,475 @@
+package cn.edu.thssdb.storage.page;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Page of an extendible hash table, which maps a 64-bit hash to a positive integer. <br>
+ * Page {@code indexRootPageIndex} of the tablespace is the directory. Its header holds the global
+ * depth (2 bytes), followed by 2^depth bucket pageIds (4 bytes each). The bucket of a hash is found
+ * by the lowest {@code depth} bits of the hash. A directory too deep for one page is split into
+ * directory pages of 2^{@code pageDepth()} bucket pageIds each, and the directory page then holds
+ * the pageIds of these pages instead. <br>
+ * Other pages are buckets. The header of a bucket holds its local depth (2 bytes) and the number of
+ * used slots (2 bytes). A bucket is an open addressing table of slots, each holding a hash (8
+ * bytes) and its value (4 bytes), probed linearly from the slot chosen by the highest bits of the
+ * hash. A value of 0 is an empty slot, and -1 a removed one. A bucket more than three quarters used
+ * is split in two, and the directory is doubled when needed. A full bucket that can split no more
+ * takes a new hash in place of another, which is counted in {@code getMetrics()}. <br>
+ * Changes are logged as redo-only, so they are never undone. The table holds hints that the user
+ * checks before trusting them, which stay safe however transactions end.
+ */
+public class HashPage extends Page {
+
+  private static final int HEADER_LENGTH = 40;
+  private static final int SLOT_LENGTH = 12;
+  private static final int EMPTY = 0;
+  private static final int REMOVED = -1;
+
+  /* hashes that took the place of another, and hashes left out of the table. */
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong omissions = new AtomicLong();
+
+  /** global depth of the directory, or local depth of a bucket. */
+  public int depth;
+
+  /** number of slots of a bucket that are not empty, including removed ones. */
+  public int usedSlots;
+
+  /**
+   * latch of the directory. Lookups and changes that fit in their bucket hold it shared, and the
+   * latch of the bucket to read or write slots. A split holds it exclusively.
+   */
+  public final ReentrantReadWriteLock directoryLatch = new ReentrantReadWriteLock();
+
+  public HashPage(ByteBuffer bytes) {
+    super(bytes);
+    if (pageType == HASH_PAGE) {
+      depth = parseShortBig(32);
+      usedSlots = parseShortBig(34);
+    }
+  }
+
+  /**
+   * create the pages of an empty hash table in a new tablespace: the overall page, the directory,
+   * and one bucket.
+   *
+   * @param transactionId transactionId who creates the table
+   * @param spaceId spaceId
+   */
+  public static void createHashTable(long transactionId, int spaceId) {
+    IO.unpin(
+        OverallPage.createOverallPage(
+            transactionId, spaceId, ServerRuntime.config.overallPageIndex));
+    HashPage directory =
+        createHashPage(transactionId, spaceId, ServerRuntime.config.indexRootPageIndex, 0);
+    directory.setEntry(transactionId, 0, ServerRuntime.config.indexLeftmostLeafIndex);
+    IO.unpin(directory);
+    IO.unpin(
+        createHashPage(transactionId, spaceId, ServerRuntime.config.indexLeftmostLeafIndex, 0));
+  }
+
+  private static HashPage createHashPage(long transactionId, int spaceId, int pageId, int depth) {
+    HashPage hashPage = new HashPage(ByteBuffer.allocate(ServerRuntime.config.pageSize));
+    hashPage.spaceId = spaceId;
+    hashPage.pageId = pageId;
+    IO.traceNewPage(hashPage);
+    hashPage.pageType = HASH_PAGE;
+    hashPage.depth = depth;
+    hashPage.writeFILHeader(transactionId);
+    hashPage.writeHashHeader(transactionId);
+    return hashPage;
+  }
+
+  /**
+   * spread the bits of a string over a 64-bit hash, so that both its lowest bits and its highest
+   * bits are uniform.
+   *
+   * @param key key string
+   * @return hash of the key
+   */
+  public static long hash(String key) {
+    /* FNV-1a, followed by the finalizer of MurmurHash3. */
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb93fe1a85ec3L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * find the value of a hash. This page shall be the directory.
+   *
+   * @param hash hash
+   * @return value, or 0 if the hash is not in the table
+   */
+  public int find(long hash) {
+    directoryLatch.readLock().lock();
+    try {
+      HashPage bucket = (HashPage) IO.read(spaceId, bucketOf(hash));
+      bucket.bLinkTreeLatch.lock();
+      try {
+        int slot = bucket.probe(hash);
+        return slot < 0 ? EMPTY : bucket.valueAt(slot);
+      } finally {
+        bucket.bLinkTreeLatch.unlock();
+        IO.unpin(bucket);
+      }
+    } finally {
+      directoryLatch.readLock().unlock();
+    }
+  }
+
+  /**
+   * set the value of a hash, splitting its bucket if it is full. This page shall be the directory.
+   * If the directory can grow no more and the bucket is full, the hash takes the place of another.
+   *
+   * @param transactionId transaction
+   * @param hash hash
+   * @param value positive value
+   */
+  public void put(long transactionId, long hash, int value) {
+    directoryLatch.readLock().lock();
+    try {
+      HashPage bucket = (HashPage) IO.read(spaceId, bucketOf(hash));
+      bucket.bLinkTreeLatch.lock();
+      try {
+        if (bucket.putInBucket(transactionId, hash, value, bucket.capacity() * 3 / 4)) return;
+      } finally {
+        bucket.bLinkTreeLatch.unlock();
+        IO.unpin(bucket);
+      }
+    } finally {
+      directoryLatch.readLock().unlock();
+    }
+
+    directoryLatch.writeLock().lock();
+    try {
+      while (true) {
+        HashPage bucket = (HashPage) IO.read(spaceId, bucketOf(hash));
+        try {
+          if (bucket.putInBucket(transactionId, hash, value, bucket.capacity() * 3 / 4)) return;
+          if (bucket.depth < maxDepth()) {
+            /* the hash is left out if no page can be allocated. */
+            if (split(transactionId, bucket, hash)) continue;
+            omissions.incrementAndGet();
+            return;
+          }
+          /* the bucket cannot split. Removed slots are dropped, and then it is filled up. */
+          ArrayList<long[]> live = bucket.liveSlots();
+          if (live.size() < bucket.usedSlots) bucket.rebuild(transactionId, live);
+          if (bucket.putInBucket(transactionId, hash, value, bucket.capacity() - 1)) return;
+          /* the last empty slot is kept, so that every probe ends. */
+          int home = bucket.homeOf(hash);
+          if (bucket.valueAt(home) == EMPTY) {
+            omissions.incrementAndGet();
+          } else {
+            bucket.writeSlot(transactionId, home, hash, value);
+            evictions.incrementAndGet();
+          }
+          return;
+        } finally {
+          IO.unpin(bucket);
+        }
+      }
+    } finally {
+      directoryLatch.writeLock().unlock();
+    }
+  }
+
+  /**
+   * remove a hash from the table. This page shall be the directory.
+   *
+   * @param transactionId transaction
+   * @param hash hash
+   */
+  public void remove(long transactionId, long hash) {
+    directoryLatch.readLock().lock();
+    try {
+      HashPage bucket = (HashPage) IO.read(spaceId, bucketOf(hash));
+      bucket.bLinkTreeLatch.lock();
+      try {
+        int slot = bucket.probe(hash);
+        if (slot >= 0) bucket.writeSlot(transactionId, slot, hash, REMOVED);
+      } finally {
+        bucket.bLinkTreeLatch.unlock();
+        IO.unpin(bucket);
+      }
+    } finally {
+      directoryLatch.readLock().unlock();
+    }
+  }
+
+  /**
+   * split a bucket into itself and a new bucket, by one more bit of the hash. The directory is
+   * doubled if the bucket is as deep as it. The caller shall hold the directory exclusively.
+   *
+   * @param hash a hash of the bucket
+   * @return false if no page can be allocated for the new bucket
+   */
+  private boolean split(long transactionId, HashPage bucket, long hash) {
+    if (bucket.depth == depth && !doubleDirectory(transactionId)) return false;
+    int newPageId = allocatePage(transactionId);
+    if (newPageId < 0) return false;
+    int bit = 1 << bucket.depth;
+    HashPage newBucket = createHashPage(transactionId, spaceId, newPageId, bucket.depth + 1);
+    try {
+      ArrayList<long[]> kept = new ArrayList<>();
+      ArrayList<long[]> moved = new ArrayList<>();
+      for (long[] slot : bucket.liveSlots()) ((slot[0] & bit) == 0 ? kept : moved).add(slot);
+      bucket.depth++;
+      bucket.rebuild(transactionId, kept);
+      newBucket.rebuild(transactionId, moved);
+    } finally {
+      IO.unpin(newBucket);
+    }
+    /* the entries of the bucket share its lowest bits; those with the new bit set move. */
+    for (int index = (int) (hash & (bit - 1)) | bit; index < 1 << depth; index += bit << 1) {
+      setEntry(transactionId, index, newPageId);
+    }
+    return true;
+  }
+
+  /**
+   * double the directory, each new entry pointing to the bucket of the entry it copies. A directory
+   * that outgrows this page moves to directory pages, and each directory page is copied after.
+   *
+   * @return false if no page can be allocated for the copies
+   */
+  private boolean doubleDirectory(long transactionId) {
+    int pageDepth = pageDepth();
+    if (depth < pageDepth) {
+      int length = 4 << depth;
+      byte[] entries = getBytes(HEADER_LENGTH, length);
+      IO.write(transactionId, this, HEADER_LENGTH + length, length, entries, true);
+    } else {
+      int[] sources = depth == pageDepth ? new int[] {pageId} : readDirectoryPages();
+      int[] directoryPages = new int[sources.length * 2];
+      for (int i = 0; i < directoryPages.length; i++) {
+        if (depth > pageDepth && i < sources.length) {
+          directoryPages[i] = sources[i];
+          continue;
+        }
+        directoryPages[i] = allocatePage(transactionId);
+        if (directoryPages[i] < 0) return false;
+        HashPage source =
+            sources[i % sources.length] == pageId
+                ? this
+                : (HashPage) IO.read(spaceId, sources[i % sources.length]);
+        HashPage copy = createHashPage(transactionId, spaceId, directoryPages[i], 0);
+        int length = 4 << pageDepth;
+        IO.write(
+            transactionId,
+            copy,
+            HEADER_LENGTH,
+            length,
+            source.getBytes(HEADER_LENGTH, length),
+            true);
+        IO.unpin(copy);
+        if (source != this) IO.unpin(source);
+      }
+      ByteBuffer newValue = ByteBuffer.allocate(directoryPages.length * 4);
+      for (int directoryPage : directoryPages) newValue.putInt(directoryPage);
+      IO.write(
+          transactionId, this, HEADER_LENGTH, directoryPages.length * 4, newValue.array(), true);
+    }
+    depth++;
+    writeHashHeader(transactionId);
+    return true;
+  }
+
+  /** @return pageId of a new page of the tablespace, or -1 if none can be allocated */
+  private int allocatePage(long transactionId) {
+    OverallPage overallPage = (OverallPage) IO.read(spaceId, ServerRuntime.config.overallPageIndex);
+    try {
+      return overallPage.allocatePage(transactionId);
+    } catch (Exception e) {
+      return -1;
+    } finally {
+      IO.unpin(overallPage);
+    }
+  }
+
+  private int bucketOf(long hash) {
+    return entry((int) (hash & ((1L << depth) - 1)));
+  }
+
+  /** pageIds of the directory pages, if the directory is too deep for this page. */
+  private int[] readDirectoryPages() {
+    int[] directoryPages = new int[1 << (depth - pageDepth())];
+    for (int i = 0; i < directoryPages.length; i++) {
+      directoryPages[i] = parseIntegerBig(HEADER_LENGTH + 4 * i);
+    }
+    return directoryPages;
+  }
+
+  /** pageId of the bucket of an entry of the directory. */
+  private int entry(int index) {
+    int pageDepth = pageDepth();
+    if (depth <= pageDepth) return parseIntegerBig(HEADER_LENGTH + 4 * index);
+    HashPage directoryPage =
+        (HashPage) IO.read(spaceId, parseIntegerBig(HEADER_LENGTH + 4 * (index >>> pageDepth)));
+    try {
+      return directoryPage.parseIntegerBig(HEADER_LENGTH + 4 * (index & ((1 << pageDepth) - 1)));
+    } finally {
+      IO.unpin(directoryPage);
+    }
+  }
+
+  private void setEntry(long transactionId, int index, int bucketPageId) {
+    int pageDepth = pageDepth();
+    byte[] newValue = ByteBuffer.allocate(4).putInt(bucketPageId).array();
+    if (depth <= pageDepth) {
+      IO.write(transactionId, this, HEADER_LENGTH + 4 * index, 4, newValue, true);
+      return;
+    }
+    HashPage directoryPage =
+        (HashPage) IO.read(spaceId, parseIntegerBig(HEADER_LENGTH + 4 * (index >>> pageDepth)));
+    int offset = HEADER_LENGTH + 4 * (index & ((1 << pageDepth) - 1));
+    IO.write(transactionId, directoryPage, offset, 4, newValue, true);
+    IO.unpin(directoryPage);
+  }
+
+  /** the deepest directory that fits in a page. */
+  static int pageDepth() {
+    int pageDepth = 0;
+    while (HEADER_LENGTH + 4 * (2 << pageDepth) <= ServerRuntime.config.pageSize) pageDepth++;
+    return pageDepth;
+  }
+
+  /** the deepest directory, whose directory page is full of the pageIds of directory pages. */
+  private static int maxDepth() {
+    return 2 * pageDepth();
+  }
+
+  /** number of hashes that took the place of another, and of hashes left out of hash tables. */
+  public static LinkedHashMap<String, Long> getMetrics() {
+    LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+    metrics.put("evicted", evictions.get());
+    metrics.put("omitted", omissions.get());
+    return metrics;
+  }
+
+  private int capacity() {
+    return (ServerRuntime.config.pageSize - HEADER_LENGTH) / SLOT_LENGTH;
+  }
+
+  private int homeOf(long hash) {
+    return (int) ((hash >>> 32) % capacity());
+  }
+
+  private long hashAt(int slot) {
+    return parseLongBig(HEADER_LENGTH + SLOT_LENGTH * slot);
+  }
+
+  private int valueAt(int slot) {
+    return parseIntegerBig(HEADER_LENGTH + SLOT_LENGTH * slot + 8);
+  }
+
+  /**
+   * find the slot of a hash in this bucket.
+   *
+   * @return slot, or -1 if the hash is not in the bucket
+   */
+  private int probe(long hash) {
+    int capacity = capacity();
+    for (int i = 0, slot = homeOf(hash); i < capacity; i++, slot = (slot + 1) % capacity) {
+      int value = valueAt(slot);
+      if (value == EMPTY) return -1;
+      if (value != REMOVED && hashAt(slot) == hash) return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * set the value of a hash in this bucket.
+   *
+   * @param limit number of used slots the bucket may have
+   * @return false if the hash is new and the bucket has reached the limit
+   */
+  private boolean putInBucket(long transactionId, long hash, int value, int limit) {
+    int capacity = capacity();
+    int removed = -1;
+    for (int i = 0, slot = homeOf(hash); i < capacity; i++, slot = (slot + 1) % capacity) {
+      int valueInSlot = valueAt(slot);
+      if (valueInSlot == EMPTY) {
+        if (removed < 0) {
+          if (usedSlots >= limit) return false;
+          usedSlots++;
+          writeHashHeader(transactionId);
+          writeSlot(transactionId, slot, hash, value);
+          return true;
+        }
+        break;
+      }
+      if (valueInSlot == REMOVED) {
+        if (removed < 0) removed = slot;
+      } else if (hashAt(slot) == hash) {
+        if (valueInSlot != value) writeSlot(transactionId, slot, hash, value);
+        return true;
+      }
+    }
+    if (removed < 0) return false;
+    writeSlot(transactionId, removed, hash, value);
+    return true;
+  }
+
+  /** (hash, value) of each slot in use. */
+  private ArrayList<long[]> liveSlots() {
+    ArrayList<long[]> slots = new ArrayList<>();
+    for (int slot = 0; slot < capacity(); slot++) {
+      int value = valueAt(slot);
+      if (value != EMPTY && value != REMOVED) slots.add(new long[] {hashAt(slot), value});
+    }
+    return slots;
+  }
+
+  /** empty this bucket and put the slots in it again, which shall be fewer than its capacity. */
+  private void rebuild(long transactionId, ArrayList<long[]> slots) {
+    int capacity = capacity();
+    ByteBuffer newValue = ByteBuffer.allocate(capacity * SLOT_LENGTH);
+    for (long[] slot : slots) {
+      int position = homeOf(slot[0]);
+      while (newValue.getInt(SLOT_LENGTH * position + 8) != EMPTY) {
+        position = (position + 1) % capacity;
+      }
+      newValue.putLong(SLOT_LENGTH * position, slot[0]);
+      newValue.putInt(SLOT_LENGTH * position + 8, (int) slot[1]);
+    }
+    IO.write(transactionId, this, HEADER_LENGTH, capacity * SLOT_LENGTH, newValue.array(), true);
+    usedSlots = slots.size();
+    writeHashHeader(transactionId);
+  }
+
+  private void writeSlot(long transactionId, int slot, long hash, int value) {
+    byte[] newValue = ByteBuffer.allocate(SLOT_LENGTH).putLong(hash).putInt(value).array();
+    IO.write(transactionId, this, HEADER_LENGTH + SLOT_LENGTH * slot, SLOT_LENGTH, newValue, true);
+  }
+
+  /**
+   * write hash header to both disk buffer and WAL log buffer. The header consists of {@code depth}
+   * (2 bytes) and {@code usedSlots} (2 bytes).
+   *
+   * @param transactionId transactionId
+   */
+  private void writeHashHeader(long transactionId) {
+    byte[] newValue = new byte[4];
+    newValue[0] = (byte) (depth >> 8);
+    newValue[1] = (byte) depth;
+    newValue[2] = (byte) (usedSlots >> 8);
+    newValue[3] = (byte) usedSlots;
+    IO.write(transactionId, this, 32, 4, newValue, true);
+  }
+}
@@ -1,17 +1,24 @@
 package cn.edu.thssdb.storage.page;
 
 import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.exception.DeadlockException;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.KeyComparator;
 import cn.edu.thssdb.schema.RecordLogical;
 import cn.edu.thssdb.schema.Table;
 import cn.edu.thssdb.schema.ValueWrapper;
-import cn.edu.thssdb.storage.DiskBuffer;
+import cn.edu.thssdb.storage.Vacuum;
+import cn.edu.thssdb.storage.writeahead.UndoLog;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
 import cn.edu.thssdb.utils.Pair;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Stack;
 
 import static java.lang.System.exit;
@@ -83,9 +90,16 @@ public class IndexPage extends Page {
     public int childPageId = 0;
     /* non-primary key values. */
     public byte[] nonPrimaryKeys;
-    /** this field stores parsed value of nonPrimaryKey, ready for comparison */
+    /**
+     * this field stores parsed value of nonPrimaryKey, ready for comparison. It is null for data
+     * records parsed from page until they are requested, use {@code getNonPrimaryKeyValues()} to
+     * read it.
+     */
     public ValueWrapper[] nonPrimaryKeyValues;
 
+    /** table metadata used to parse {@code nonPrimaryKeyValues} lazily. */
+    private Table.TableMetadata metadata = null;
+
     public static final byte SYSTEM_INFIMUM_RECORD = 0;
     public static final byte SYSTEM_SUPREME_RECORD = 1;
     public static final byte USER_DATA_RECORD = 2;
@@ -110,13 +124,46 @@ public class IndexPage extends Page {
       }
       this.childPageId = record.childPageId;
       this.nonPrimaryKeys = Arrays.copyOf(record.nonPrimaryKeys, record.nonPrimaryKeys.length);
-      this.nonPrimaryKeyValues = new ValueWrapper[record.nonPrimaryKeyValues.length];
-      for (int i = 0; i < nonPrimaryKeyValues.length; i++) {
-        this.nonPrimaryKeyValues[i] = new ValueWrapper(record.nonPrimaryKeyValues[i]);
+      this.metadata = record.metadata;
+      ValueWrapper[] recordNonPrimaryKeyValues = record.nonPrimaryKeyValues;
+      if (recordNonPrimaryKeyValues != null) {
+        this.nonPrimaryKeyValues = new ValueWrapper[recordNonPrimaryKeyValues.length];
+        for (int i = 0; i < nonPrimaryKeyValues.length; i++) {
+          this.nonPrimaryKeyValues[i] = new ValueWrapper(recordNonPrimaryKeyValues[i]);
+        }
       }
       this.nextRecordInPage = null;
     }
 
+    /**
+     * get parsed value of nonPrimaryKey. Values are parsed from {@code nonPrimaryKeys} at the first
+     * time they are requested.
+     *
+     * @return non-primary key values
+     */
+    public ValueWrapper[] getNonPrimaryKeyValues() {
+      ValueWrapper[] values = nonPrimaryKeyValues;
+      if (values != null) return values;
+      int nonPrimaryKeyNumber = metadata.getNonPrimaryKeyNumber();
+      ArrayList<Integer> nonPrimaryOffsetList = metadata.getNonPrimaryKeyOffsetInOrder();
+      values = new ValueWrapper[nonPrimaryKeyNumber];
+      for (int i = 0; i < nonPrimaryKeyNumber; i++) {
+        Column column = metadata.getColumnDetailByOrderInType(i, false);
+        if (this.isNullBit(i)) values[i] = new ValueWrapper(true, column.type);
+        else
+          values[i] =
+              new ValueWrapper(
+                  nonPrimaryKeys,
+                  nonPrimaryOffsetList.get(i),
+                  column.type,
+                  column.getLength(),
+                  column.offPage);
+      }
+      /* publish only fully parsed values. */
+      nonPrimaryKeyValues = values;
+      return values;
+    }
+
     public static RecordInPage createRecordInPageEntry(
         byte recordType,
         int primaryKeyLength,
@@ -165,7 +212,8 @@ public class IndexPage extends Page {
 
     /**
      * parse **every** filed of record. primary keys and non-primary keys are stored in bytes[].
-     * parse until it meets a SYSTEM_SUPREME_LOG
+     * primary key values are parsed at once for comparison, while non-primary key values are parsed
+     * only when they are requested. parse until it meets a SYSTEM_SUPREME_LOG
      *
      * @param page page
      * @param pos basic position
@@ -178,13 +226,11 @@ public class IndexPage extends Page {
       int nullBitmapLength = metadata.getNullBitmapLengthInByte();
       this.myOffset = pos;
       /* variable length */
-      this.flags = page.bytes[pos - 4];
-      this.recordType = page.bytes[pos - 3];
+      this.flags = page.bytes.get(pos - 4);
+      this.recordType = page.bytes.get(pos - 3);
       this.nextAbsoluteOffset = page.parseShortBig(pos - 2);
       int primaryKeyNumber = metadata.getPrimaryKeyNumber();
-      int nonPrimaryKeyNumber = metadata.getNonPrimaryKeyNumber();
       ArrayList<Integer> primaryOffsetList;
-      ArrayList<Integer> nonPrimaryOffsetList;
       /* base point */
       switch (this.recordType) {
         case (SYSTEM_SUPREME_RECORD):
@@ -208,60 +254,48 @@ public class IndexPage extends Page {
         case (USER_POINTER_RECORD):
           this.nullBitmap = new byte[0];
 
-          this.primaryKeys = new byte[primaryKeyLength];
-          System.arraycopy(page.bytes, pos, this.primaryKeys, 0, primaryKeyLength);
+          this.primaryKeys = page.getBytes(pos, primaryKeyLength);
           this.primaryKeyValues = new ValueWrapper[metadata.getPrimaryKeyNumber()];
 
           this.nonPrimaryKeys = new byte[0];
           this.nonPrimaryKeyValues = new ValueWrapper[0];
 
           primaryOffsetList = metadata.getPrimaryOffsetInOrder();
-          primaryKeyNumber = metadata.getPrimaryKeyNumber();
           for (int i = 0; i < primaryKeyNumber; i++) {
             Column column = metadata.getColumnDetailByPrimaryField(i);
-            int length = column.getLength();
-            byte[] newValue = new byte[length];
-            System.arraycopy(primaryKeys, primaryOffsetList.get(i), newValue, 0, length);
-            primaryKeyValues[i] = new ValueWrapper(newValue, column.type, length, column.offPage);
+            primaryKeyValues[i] =
+                new ValueWrapper(
+                    this.primaryKeys,
+                    primaryOffsetList.get(i),
+                    column.type,
+                    column.getLength(),
+                    column.offPage);
           }
 
           this.childPageId = page.parseIntegerBig(pos + primaryKeyLength);
           break;
         case (USER_DATA_RECORD):
-          this.nullBitmap = new byte[nullBitmapLength];
-          System.arraycopy(
-              page.bytes, pos - 4 - nullBitmapLength, this.nullBitmap, 0, nullBitmapLength);
+          this.nullBitmap = page.getBytes(pos - 4 - nullBitmapLength, nullBitmapLength);
 
-          this.primaryKeys = new byte[primaryKeyLength];
-          System.arraycopy(page.bytes, pos, this.primaryKeys, 0, primaryKeyLength);
+          this.primaryKeys = page.getBytes(pos, primaryKeyLength);
           this.primaryKeyValues = new ValueWrapper[metadata.getPrimaryKeyNumber()];
 
-          this.nonPrimaryKeys = new byte[nonPrimaryKeyLength];
-          System.arraycopy(
-              page.bytes, pos + primaryKeyLength, this.nonPrimaryKeys, 0, nonPrimaryKeyLength);
-          this.nonPrimaryKeyValues = new ValueWrapper[metadata.getNonPrimaryKeyNumber()];
+          this.nonPrimaryKeys = page.getBytes(pos + primaryKeyLength, nonPrimaryKeyLength);
+          /* non-primary key values are parsed lazily. see getNonPrimaryKeyValues(). */
+          this.nonPrimaryKeyValues = null;
+          this.metadata = metadata;
 
           primaryOffsetList = metadata.getPrimaryOffsetInOrder();
           for (int i = 0; i < primaryKeyNumber; i++) {
             Column column = metadata.getColumnDetailByOrderInType(i, true);
-            int length = column.getLength();
-            byte[] newValue = new byte[length];
-            System.arraycopy(primaryKeys, primaryOffsetList.get(i), newValue, 0, length);
-            primaryKeyValues[i] = new ValueWrapper(newValue, column.type, length, column.offPage);
+            primaryKeyValues[i] =
+                new ValueWrapper(
+                    this.primaryKeys,
+                    primaryOffsetList.get(i),
+                    column.type,
+                    column.getLength(),
+                    column.offPage);
           }
-
-          nonPrimaryOffsetList = metadata.getNonPrimaryKeyOffsetInOrder();
-          for (int i = 0; i < nonPrimaryKeyNumber; i++) {
-            Column column = metadata.getColumnDetailByOrderInType(i, false);
-            int length = column.getLength();
-            byte[] newValue = new byte[length];
-            System.arraycopy(nonPrimaryKeys, nonPrimaryOffsetList.get(i), newValue, 0, length);
-            if (this.isNullBit(i)) nonPrimaryKeyValues[i] = new ValueWrapper(true, column.type);
-            else
-              nonPrimaryKeyValues[i] =
-                  new ValueWrapper(newValue, column.type, length, column.offPage);
-          }
-
           break;
       }
     }
@@ -274,22 +308,42 @@ public class IndexPage extends Page {
      * @param pos position of the record
      */
     public void write(long transactionId, Page page, int pos) {
+      byte[] newValue = toBytes();
+      if (newValue == null) return;
+      IO.write(transactionId, page, pos - nullBitmap.length - 4, newValue.length, newValue, false);
+    }
+
+    /**
+     * make the bytes of this record as it is stored in page, which begin {@code nullBitmap.length +
+     * 4} bytes before the position of the record.
+     *
+     * @return bytes of the record, or null if the record type is unknown
+     */
+    private byte[] toBytes() {
       int primaryKeyLength = primaryKeys.length;
-      int nonPrimaryKeyLength = nonPrimaryKeys.length;
       int nullBitmapLength = nullBitmap.length;
-      byte[] newValue =
-          new byte
-              [nullBitmapLength
-                  + 4
-                  + primaryKeyLength
-                  + nonPrimaryKeyLength
-                  + 4
-                  + 15]; /* maximum */
+      int length;
+      switch (recordType) {
+        case USER_DATA_RECORD:
+          length = nullBitmapLength + 4 + primaryKeyLength + nonPrimaryKeys.length;
+          break;
+        case USER_POINTER_RECORD:
+          length = nullBitmapLength + 4 + primaryKeyLength + 4;
+          break;
+        case SYSTEM_SUPREME_RECORD:
+        case SYSTEM_INFIMUM_RECORD:
+          length = nullBitmapLength + 4 + 2;
+          break;
+        default:
+          return null;
+      }
+      byte[] newValue = new byte[length];
       System.arraycopy(nullBitmap, 0, newValue, 0, nullBitmapLength);
       newValue[nullBitmapLength] = flags;
       newValue[nullBitmapLength + 1] = recordType;
       newValue[nullBitmapLength + 2] = (byte) (nextAbsoluteOffset >> 8);
       newValue[nullBitmapLength + 3] = (byte) nextAbsoluteOffset;
+      /* system records keep their 2-byte names in primaryKeys. */
       System.arraycopy(primaryKeys, 0, newValue, nullBitmapLength + 4, primaryKeyLength);
 
       switch (recordType) {
@@ -299,41 +353,18 @@ public class IndexPage extends Page {
               0,
               newValue,
               nullBitmapLength + 4 + primaryKeyLength,
-              nonPrimaryKeyLength);
-          IO.write(
-              transactionId,
-              page,
-              pos - nullBitmapLength - 4,
-              nullBitmapLength + 4 + primaryKeyLength + nonPrimaryKeyLength,
-              newValue,
-              false);
+              nonPrimaryKeys.length);
           break;
         case USER_POINTER_RECORD:
           newValue[nullBitmapLength + 4 + primaryKeyLength] = (byte) (this.childPageId >> 24);
           newValue[nullBitmapLength + 4 + primaryKeyLength + 1] = (byte) (this.childPageId >> 16);
           newValue[nullBitmapLength + 4 + primaryKeyLength + 2] = (byte) (this.childPageId >> 8);
           newValue[nullBitmapLength + 4 + primaryKeyLength + 3] = (byte) this.childPageId;
-          IO.write(
-              transactionId,
-              page,
-              pos - nullBitmapLength - 4,
-              nullBitmapLength + 4 + primaryKeyLength + 4,
-              newValue,
-              false);
-          break;
-        case SYSTEM_SUPREME_RECORD:
-        case SYSTEM_INFIMUM_RECORD:
-          IO.write(
-              transactionId,
-              page,
-              pos - nullBitmapLength - 4,
-              nullBitmapLength + 4 + 2,
-              newValue,
-              false);
           break;
         default:
           break;
       }
+      return newValue;
     }
 
     /**
@@ -377,18 +408,16 @@ public class IndexPage extends Page {
     }
   }
 
-  public IndexPage(byte[] bytes, boolean suiteRecover) {
+  public IndexPage(ByteBuffer bytes) {
     super(bytes);
-    if (!suiteRecover) {
-      infimumRecord =
-          RecordInPage.createRecordInPageEntry(
-              RecordInPage.SYSTEM_INFIMUM_RECORD, 0, 0, 0, 52 + 10, 0);
-      if (pageType == INDEX_PAGE) {
-        parseIndexHeader();
-        parseAllRecords();
-        if (infimumRecord.nextRecordInPage.recordType == RecordInPage.USER_POINTER_RECORD) {
-          this.pageReadAndWriteLatch = null;
-        }
+    infimumRecord =
+        RecordInPage.createRecordInPageEntry(
+            RecordInPage.SYSTEM_INFIMUM_RECORD, 0, 0, 0, 52 + 10, 0);
+    if (pageType == INDEX_PAGE) {
+      parseIndexHeader();
+      parseAllRecords();
+      if (infimumRecord.nextRecordInPage.recordType == RecordInPage.USER_POINTER_RECORD) {
+        this.lockable = false;
       }
     }
   }
@@ -402,7 +431,7 @@ public class IndexPage extends Page {
    * @return index page
    */
   public static IndexPage createIndexPage(long transactionId, int spaceId, int pageId) {
-    IndexPage indexPage = new IndexPage(new byte[ServerRuntime.config.pageSize], false);
+    IndexPage indexPage = new IndexPage(ByteBuffer.allocate(ServerRuntime.config.pageSize));
     indexPage.spaceId = spaceId;
     indexPage.pageId = pageId;
     IO.traceNewPage(indexPage);
@@ -432,15 +461,40 @@ public class IndexPage extends Page {
     freespaceStart.set(parseShortBig(32));
   }
 
+  /**
+   * write the whole page to both disk buffer and WAL log buffer. The index header and the records
+   * are written by one log, so that restart never finds the records of a page half rewritten.
+   *
+   * @param transactionId transactionId
+   */
   public void writeAll(long transactionId) {
     writeFILHeader(transactionId);
-    writeIndexHeader(transactionId);
+    ArrayList<RecordInPage> records = new ArrayList<>();
+    ArrayList<byte[]> recordBytes = new ArrayList<>();
+    int end = 34;
     RecordInPage record = infimumRecord;
     while (true) {
-      record.write(transactionId, this, record.myOffset);
+      byte[] bytes = record.toBytes();
+      if (bytes != null) {
+        records.add(record);
+        recordBytes.add(bytes);
+        end = Math.max(end, record.myOffset - record.nullBitmap.length - 4 + bytes.length);
+      }
       if (record.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) break;
       record = record.nextRecordInPage;
     }
+    /* bytes between the records are kept as they are. */
+    byte[] newValue = new byte[end - 32];
+    for (int i = 0; i < newValue.length; i++) newValue[i] = this.bytes.get(32 + i);
+    newValue[0] = (byte) (freespaceStart.get() >> 8);
+    newValue[1] = (byte) freespaceStart.get();
+    for (int i = 0; i < records.size(); i++) {
+      byte[] bytes = recordBytes.get(i);
+      RecordInPage written = records.get(i);
+      System.arraycopy(
+          bytes, 0, newValue, written.myOffset - written.nullBitmap.length - 4 - 32, bytes.length);
+    }
+    IO.write(transactionId, this, 32, newValue.length, newValue, false);
   }
 
   /**
@@ -455,6 +509,90 @@ public class IndexPage extends Page {
     IO.write(transactionId, this, 32, 2, newValue, false);
   }
 
+  /**
+   * get the comparator of primary keys of the table this page belongs to.
+   *
+   * @return key comparator
+   */
+  private KeyComparator getKeyComparator() {
+    return ServerRuntime.catalog.tableMetadata.get(this.spaceId).keyComparator;
+  }
+
+  /**
+   * rebuild slot directory using the linked list starting from {@code infimumRecord}. The directory
+   * is kept in memory only, so it is rebuilt when the page is parsed, and after the linked list is
+   * rearranged (e.g. splitting), so that readers switch to the new directory as soon as possible.
+   */
+  public void rebuildSlotDirectory() {
+    ArrayList<RecordInPage> records = new ArrayList<>();
+    getRecordInPageAndReturnSupreme(records);
+    slotDirectory.set(records.toArray(new RecordInPage[0]));
+  }
+
+  /**
+   * publish a new slot directory with {@code record} inserted just after {@code previousRecord}.
+   * {@code previousRecord.nextRecordInPage} shall already be {@code record}.
+   *
+   * @param previousRecord record that is just before the newly inserted one
+   * @param record newly inserted record
+   */
+  private void insertIntoSlotDirectory(RecordInPage previousRecord, RecordInPage record) {
+    RecordInPage[] slots = slotDirectory.get();
+    int position = 0;
+    if (previousRecord != infimumRecord) {
+      position = indexOfSlot(slots, previousRecord) + 1;
+      if (position == 0) {
+        /* previous record is not traced by slot directory. This shall never happen. */
+        rebuildSlotDirectory();
+        return;
+      }
+    }
+    RecordInPage[] newSlots = new RecordInPage[slots.length + 1];
+    System.arraycopy(slots, 0, newSlots, 0, position);
+    newSlots[position] = record;
+    System.arraycopy(slots, position, newSlots, position + 1, slots.length - position);
+    slotDirectory.set(newSlots);
+  }
+
+  /**
+   * publish a new slot directory with {@code oldRecord} replaced by {@code newRecord}.
+   *
+   * @param oldRecord record to be replaced
+   * @param newRecord record that occupies the same position
+   */
+  private void replaceInSlotDirectory(RecordInPage oldRecord, RecordInPage newRecord) {
+    RecordInPage[] slots = slotDirectory.get();
+    int position = indexOfSlot(slots, oldRecord);
+    if (position < 0) {
+      rebuildSlotDirectory();
+      return;
+    }
+    RecordInPage[] newSlots = Arrays.copyOf(slots, slots.length);
+    newSlots[position] = newRecord;
+    slotDirectory.set(newSlots);
+  }
+
+  /**
+   * find the slot of a record by binary search on its primary key.
+   *
+   * @param slots slot directory
+   * @param record record traced by the directory
+   * @return index of the slot, or -1 if the record is not traced
+   */
+  private int indexOfSlot(RecordInPage[] slots, RecordInPage record) {
+    KeyComparator comparator = getKeyComparator();
+    int low = 0;
+    int high = slots.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int result = comparator.compare(record.primaryKeyValues, slots[middle].primaryKeyValues);
+      if (result > 0) low = middle + 1;
+      else if (result < 0) high = middle - 1;
+      else return slots[middle] == record ? middle : -1;
+    }
+    return -1;
+  }
+
   /**
    * Parse the system + user record part of this page using {@code page.bytes}. {@code this.spaceId}
    * shall be parsed first. <b> {@code this.spaceId} and its tableMetadata must be traceable in
@@ -465,7 +603,15 @@ public class IndexPage extends Page {
    *     and supremeRecord.
    */
   public Pair<Integer, ArrayList<RecordLogical>> getAllRecordLogical(long transactionId) {
-    ServerRuntime.getReadLock(transactionId, this.pageReadAndWriteLatch, this);
+    if (readsSnapshot(transactionId)) {
+      ArrayList<RecordLogical> recordList = new ArrayList<>();
+      int rightPageId =
+          scanSnapshot(
+              transactionId,
+              (record, image) -> recordList.add(image == null ? new RecordLogical(record) : image));
+      return new Pair<>(rightPageId, recordList);
+    }
+    ServerRuntime.getReadLock(transactionId, this);
     ArrayList<RecordLogical> recordList = new ArrayList<>();
     RecordInPage record = infimumRecord;
     while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
@@ -476,10 +622,139 @@ public class IndexPage extends Page {
       }
       record = record.nextRecordInPage;
     }
-    ServerRuntime.releaseReadLock(this.pageReadAndWriteLatch);
+    ServerRuntime.releaseReadLock(transactionId, this);
     return new Pair<>(record.nextAbsoluteOffset, recordList);
   }
 
+  public interface recordVisitor {
+    /**
+     * visit a record through cursor. The cursor shall not be kept after this method returns.
+     *
+     * @param cursor cursor that points to the record
+     * @return false if the scan shall stop.
+     */
+    boolean visit(RecordCursor cursor);
+  }
+
+  /**
+   * Visit every data record that is not deleted in this page through {@code cursor}, under the read
+   * lock, or in the snapshot of the transaction. Unlike {@code getAllRecordLogical}, no record is
+   * copied: the visitor reads and compares fields in place and only materializes what it returns.
+   *
+   * @param transactionId transaction that request this method
+   * @param cursor cursor of the table, which is moved to each record
+   * @param visitor visitor
+   * @return the right pageId, or -1 if the visitor stops the scan.
+   */
+  public int scanRecords(long transactionId, RecordCursor cursor, recordVisitor visitor) {
+    if (readsSnapshot(transactionId)) {
+      return scanSnapshot(
+          transactionId,
+          (record, image) -> {
+            if (image == null) cursor.moveTo(this, record.myOffset);
+            else cursor.moveTo(image);
+            return visitor.visit(cursor);
+          });
+    }
+    ServerRuntime.getReadLock(transactionId, this);
+    RecordInPage record = infimumRecord.nextRecordInPage;
+    while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+      if (record.isNotDeleted()) {
+        cursor.moveTo(this, record.myOffset);
+        if (!visitor.visit(cursor)) {
+          ServerRuntime.releaseReadLock(transactionId, this);
+          return -1;
+        }
+      }
+      record = record.nextRecordInPage;
+    }
+    ServerRuntime.releaseReadLock(transactionId, this);
+    return record.nextAbsoluteOffset;
+  }
+
+  private interface versionVisitor {
+    /**
+     * visit a data record as it is in the snapshot.
+     *
+     * @param record record in page
+     * @param image older image of the record that is visible instead, or null if the record in page
+     *     is visible as it is
+     * @return false if the scan shall stop.
+     */
+    boolean visit(RecordInPage record, RecordLogical image);
+  }
+
+  /**
+   * check if the transaction reads this page in its snapshot rather than under a read lock.
+   *
+   * @param transactionId transaction
+   * @return true if it reads snapshot
+   */
+  private boolean readsSnapshot(long transactionId) {
+    return this.lockable && ServerRuntime.readsSnapshot(transactionId);
+  }
+
+  /**
+   * Visit every data record of this page that exists in the snapshot of the transaction. No lock is
+   * taken. {@code this.bLinkTreeLatch} is held instead, since a writer changes a record and its
+   * versions under it.
+   *
+   * @param transactionId transaction that request this method
+   * @param visitor visitor
+   * @return the right pageId, or -1 if the visitor stops the scan.
+   */
+  private int scanSnapshot(long transactionId, versionVisitor visitor) {
+    long snapshot = VersionStore.snapshotOf(transactionId);
+    bLinkTreeLatch.lock();
+    try {
+      boolean versions = VersionStore.hasVersions(spaceId);
+      RecordInPage record = infimumRecord.nextRecordInPage;
+      while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+        if (versions && record.recordType == RecordInPage.USER_DATA_RECORD) {
+          Pair<Boolean, RecordLogical> version = readVersion(transactionId, snapshot, record);
+          if (version.left && !visitor.visit(record, version.right)) return -1;
+        } else if (record.isNotDeleted() && !visitor.visit(record, null)) return -1;
+        record = record.nextRecordInPage;
+      }
+      return record.nextAbsoluteOffset;
+    } finally {
+      bLinkTreeLatch.unlock();
+    }
+  }
+
+  /**
+   * find the version of a data record in this page visible to a snapshot. {@code
+   * this.bLinkTreeLatch} shall be held.
+   *
+   * @param transactionId reader
+   * @param snapshot snapshot of the reader
+   * @param record data record in page, which may be marked as deleted
+   * @return (false, null) if the record does not exist in the snapshot. Otherwise (true, null) if
+   *     the record in page is visible as it is, or (true, image) if an older image is.
+   */
+  private Pair<Boolean, RecordLogical> readVersion(
+      long transactionId, long snapshot, RecordInPage record) {
+    Pair<Boolean, RecordLogical> version =
+        VersionStore.read(transactionId, snapshot, spaceId, record.primaryKeyValues);
+    if (version.left) return new Pair<>(record.isNotDeleted(), null);
+    return new Pair<>(version.right != null, version.right);
+  }
+
+  /**
+   * get the right link of this page without latches. The result may be stale, so it shall be used
+   * only as a hint (e.g. by read-ahead).
+   *
+   * @return the right pageId, or 0 if there is none
+   */
+  public int getRightPageId() {
+    RecordInPage[] slots = slotDirectory.get();
+    RecordInPage record = slots.length == 0 ? infimumRecord : slots[slots.length - 1];
+    while (record != null && record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+      record = record.nextRecordInPage;
+    }
+    return record == null || record.isRightest() ? 0 : record.nextAbsoluteOffset;
+  }
+
   /**
    * get leftmost leaf page (data page) of this tree. This method shall be only used by root page.
    *
@@ -492,22 +767,28 @@ public class IndexPage extends Page {
       /* only root page can have access to this method. */
       return null;
     }
-    if (this.pageReadAndWriteLatch == null)
+    if (!this.lockable)
       return new Pair<>(ServerRuntime.config.indexLeftmostLeafIndex, new ArrayList<>());
     if (this.infimumRecord.nextRecordInPage.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
       return new Pair<>(ServerRuntime.config.indexLeftmostLeafIndex, new ArrayList<>());
     }
+    IndexPage leftPage = null;
     try {
-      IndexPage leftPage =
-          (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
-      ServerRuntime.getWriteLock(transactionId, leftPage.pageReadAndWriteLatch, leftPage);
-      return new Pair<>(0, new ArrayList<>());
+      leftPage = (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
     } catch (Exception e) {
       System.out.println(e);
       exit(24);
     }
-    /* This shall never happen! */
-    return new Pair<>(-1, new ArrayList<>());
+    try {
+      /* the tree is empty. The read lock keeps out the first insertion when serializable. */
+      if (!leftPage.readsSnapshot(transactionId)) {
+        ServerRuntime.getReadLock(transactionId, leftPage);
+        ServerRuntime.releaseReadLock(transactionId, leftPage);
+      }
+      return new Pair<>(0, new ArrayList<>());
+    } finally {
+      IO.unpin(leftPage);
+    }
   }
 
   /**
@@ -516,7 +797,7 @@ public class IndexPage extends Page {
    * ServerRuntime.</b> The method shall be only called once when inputting this page from disk.
    */
   public void parseAllRecords() {
-    Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
     int currentPos = 52 + 4;
     RecordInPage record = infimumRecord;
     while (true) {
@@ -528,16 +809,138 @@ public class IndexPage extends Page {
       record.nextRecordInPage = new RecordInPage();
       record = record.nextRecordInPage;
     }
+    rebuildSlotDirectory();
+    rebuildFreeList();
   }
 
   /**
-   * If there is enough space to insert certain record.
+   * If there is enough space to insert certain record. A record takes a place in {@code
+   * freeOffsets} if there is one, so it needs no space then.
    *
    * @param maxLength max length of record
    * @return true for not safe.
    */
   private boolean notSafeToInsert(int maxLength) {
-    return freespaceStart.get() + maxLength >= ServerRuntime.config.pageSize;
+    int recordLength = freeOffsets.isEmpty() ? maxLength : 0;
+    return freespaceStart.get() + recordLength >= ServerRuntime.config.pageSize;
+  }
+
+  /**
+   * rebuild {@code freeOffsets} from the records linked in this page. Data records take places of
+   * the same length one after another from the start of the record area, so each place below {@code
+   * freespaceStart} that no record takes is free. Pages of pointer records have no free list.
+   */
+  private void rebuildFreeList() {
+    ArrayList<Integer> offsets = new ArrayList<>();
+    RecordInPage[] slots = slotDirectory.get();
+    if (slots.length > 0 && slots[0].recordType == RecordInPage.USER_DATA_RECORD) {
+      Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+      int recordLength = metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD);
+      int headerLength = metadata.getNullBitmapLengthInByte() + 4;
+      HashSet<Integer> taken = new HashSet<>();
+      for (RecordInPage record : slots) taken.add(record.myOffset);
+      for (int offset = 64 + headerLength;
+          offset - headerLength + recordLength <= freespaceStart.get();
+          offset += recordLength) {
+        if (!taken.contains(offset)) offsets.add(offset);
+      }
+    }
+    freeOffsets = offsets;
+  }
+
+  /**
+   * purge the deleted data records of this page that no one can see any more: neither a snapshot
+   * nor the rollback of a running transaction keeps a version of them. They are unlinked from the
+   * page, and their places go to {@code freeOffsets}, or back to the free space if they are at the
+   * end of the record area. The records that remain do not move, and none moves to another page.
+   * <br>
+   * The last record is kept even if it is deleted, since it bounds the primary keys of this page:
+   * {@code scanInternal} sends larger keys to the right page. <br>
+   * {@code bLinkTreeLatch} and {@code 2PL-WriteLock} shall be acquired before calling this method.
+   *
+   * @param transactionId transaction
+   * @return (number of records purged, number of deleted records kept since some version of them is
+   *     still kept)
+   */
+  private Pair<Integer, Integer> purgeDeletedRecords(long transactionId) {
+    RecordInPage[] slots = slotDirectory.get();
+    if (slots.length < 2 || slots[0].recordType != RecordInPage.USER_DATA_RECORD)
+      return new Pair<>(0, 0);
+    ArrayList<RecordInPage> kept = new ArrayList<>();
+    ArrayList<RecordInPage> relinked = new ArrayList<>();
+    int pending = 0;
+    RecordInPage previousRecord = infimumRecord;
+    for (int i = 0; i < slots.length - 1; i++) {
+      RecordInPage record = slots[i];
+      if (record.isNotDeleted() || VersionStore.hasVersion(spaceId, record.primaryKeyValues)) {
+        if (!record.isNotDeleted()) pending++;
+        kept.add(record);
+        previousRecord = record;
+        continue;
+      }
+      previousRecord.nextAbsoluteOffset = record.nextAbsoluteOffset;
+      /* ********************** BEGIN ATOMIC ********************** */
+      previousRecord.nextRecordInPage = record.nextRecordInPage;
+      /* ********************** END ATOMIC ********************** */
+      if (relinked.isEmpty() || relinked.get(relinked.size() - 1) != previousRecord)
+        relinked.add(previousRecord);
+      freeOffsets.add(record.myOffset);
+    }
+    if (relinked.isEmpty()) return new Pair<>(0, pending);
+    kept.add(slots[slots.length - 1]);
+    slotDirectory.set(kept.toArray(new RecordInPage[0]));
+
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    int recordLength = metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD);
+    int headerLength = metadata.getNullBitmapLengthInByte() + 4;
+    while (freeOffsets.remove(Integer.valueOf(freespaceStart.get() - recordLength + headerLength)))
+      freespaceStart.addAndGet(-recordLength);
+
+    /* records are unlinked before their space is given back, so a crash in between only leaves the
+    space unused. */
+    for (RecordInPage record : relinked) record.write(transactionId, this, record.myOffset);
+    writeIndexHeader(transactionId);
+    return new Pair<>(slots.length - kept.size(), pending);
+  }
+
+  /**
+   * purge the deleted records of this leaf as {@code purgeDeletedRecords} does, if they are at
+   * least {@code threshold} of its records. It is called by {@code Vacuum} in background.
+   *
+   * @param transactionId transaction
+   * @param threshold fraction of deleted records that makes the leaf sparse enough to purge
+   * @return (number of records purged, number of deleted records kept since some version of them is
+   *     still kept)
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock.
+   */
+  public Pair<Integer, Integer> vacuum(long transactionId, double threshold) {
+    if (!needsVacuum(threshold)) return new Pair<>(0, 0);
+    ServerRuntime.getWriteLock(transactionId, this);
+    bLinkTreeLatch.lock();
+    try {
+      if (!needsVacuum(threshold)) return new Pair<>(0, 0);
+      return purgeDeletedRecords(transactionId);
+    } finally {
+      bLinkTreeLatch.unlock();
+    }
+  }
+
+  /**
+   * check if the deleted records of this leaf are at least {@code threshold} of its records. It
+   * takes neither locks nor latches, so the result is a hint unless {@code this.bLinkTreeLatch} is
+   * held.
+   *
+   * @param threshold fraction of deleted records that makes the leaf sparse enough to purge
+   * @return true if {@code vacuum} would purge this leaf
+   */
+  public boolean needsVacuum(double threshold) {
+    if (!lockable) return false;
+    RecordInPage[] slots = slotDirectory.get();
+    int deleted = 0;
+    for (RecordInPage record : slots) {
+      if (!record.isNotDeleted()) deleted++;
+    }
+    return deleted > 0 && deleted >= threshold * slots.length;
   }
 
   /**
@@ -563,41 +966,138 @@ public class IndexPage extends Page {
   private void insertDataRecordInternal(
       long transactionId, RecordLogical recordToBeInserted, RecordInPage previousRecord) {
 
-    Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
 
     RecordInPage record = makeRecordInPageFromLogical(recordToBeInserted, metadata);
+    /* the version is recorded before the page changes. */
+    UndoLog.logInsert(transactionId, spaceId, record);
+    if (placeDataRecord(record, previousRecord, metadata)) {
+      writeIndexHeader(transactionId);
+      record.write(transactionId, this, record.myOffset);
+      previousRecord.write(transactionId, this, previousRecord.myOffset);
+    } else {
+      record.write(transactionId, this, record.myOffset);
+    }
+  }
+
+  /**
+   * link {@code record} (a data record) into this page just after the {@code previousRecord}, or in
+   * place of the deleted record with the same primary keys, as {@code insertDataRecordInternal}
+   * describes. The page bytes are not written.
+   *
+   * @param record record to be inserted
+   * @param previousRecord record that is just before the record to be inserted
+   * @param metadata metadata of table
+   * @return true if the record is linked after {@code previousRecord}, or false if it takes the
+   *     place of a deleted one, so that nothing but the record itself changes in page
+   */
+  private boolean placeDataRecord(
+      RecordInPage record, RecordInPage previousRecord, Table.TableMetadata metadata) {
     if (previousRecord.nextRecordInPage.recordType == RecordInPage.SYSTEM_SUPREME_RECORD
-        || ValueWrapper.compareArray(
-                recordToBeInserted.primaryKeyValues,
-                previousRecord.nextRecordInPage.primaryKeyValues)
+        || metadata.keyComparator.compare(
+                record.primaryKeyValues, previousRecord.nextRecordInPage.primaryKeyValues)
             != 0) {
       /* We allocate some free space and insert this record. */
 
       record.setNextRecordInPage(previousRecord.nextRecordInPage);
-      record.myOffset = this.freespaceStart.get() + 4 + metadata.getNullBitmapLengthInByte();
+      boolean reused = !freeOffsets.isEmpty();
+      if (reused) record.myOffset = freeOffsets.remove(freeOffsets.size() - 1);
+      else record.myOffset = this.freespaceStart.get() + 4 + metadata.getNullBitmapLengthInByte();
 
       previousRecord.nextAbsoluteOffset = record.myOffset;
       /* ********************** BEGIN ATOMIC ********************** */
       previousRecord.nextRecordInPage = record;
       /* ********************** END ATOMIC ********************** */
+      insertIntoSlotDirectory(previousRecord, record);
 
-      this.freespaceStart.set(
-          record.myOffset + metadata.getPrimaryKeyLength() + metadata.getNonPrimaryKeyLength());
-      writeIndexHeader(transactionId);
-      record.write(transactionId, this, record.myOffset);
-      previousRecord.write(transactionId, this, previousRecord.myOffset);
-    } else {
-      /* The space has already been allocated. However, the record on it is deleted. */
-      record.setNextRecordInPage(previousRecord.nextRecordInPage.nextRecordInPage);
+      if (!reused)
+        this.freespaceStart.set(
+            record.myOffset + metadata.getPrimaryKeyLength() + metadata.getNonPrimaryKeyLength());
+      return true;
+    }
+    /* The space has already been allocated. However, the record on it is deleted. */
+    record.setNextRecordInPage(previousRecord.nextRecordInPage.nextRecordInPage);
 
-      record.myOffset = previousRecord.nextRecordInPage.myOffset;
-      /* reference assignment is atomic.*/
-      /* ********************** BEGIN ATOMIC ********************** */
-      previousRecord.nextRecordInPage = record;
-      /* ********************** END ATOMIC ********************** */
+    RecordInPage deletedRecord = previousRecord.nextRecordInPage;
+    record.myOffset = deletedRecord.myOffset;
+    /* reference assignment is atomic.*/
+    /* ********************** BEGIN ATOMIC ********************** */
+    previousRecord.nextRecordInPage = record;
+    /* ********************** END ATOMIC ********************** */
+    /* the offset is unchanged, so only the in-memory directory is updated. */
+    replaceInSlotDirectory(deletedRecord, record);
+    return false;
+  }
 
-      record.write(transactionId, this, record.myOffset);
+  /**
+   * insert {@code records[from]} into this page just after {@code previousRecord}, followed by as
+   * many of the next records as belong to this page and fit in it. The page is written once for all
+   * of them: one log for the changed part of the record area, besides the index header. <br>
+   * {@code bLinkTreeLatch} and {@code 2PL-WriteLock} shall be acquired before calling this method,
+   * and there shall be enough space for the first record.
+   *
+   * @param transactionId transaction
+   * @param records data records in strictly ascending order of primary key
+   * @param from the first record to insert
+   * @param leafPageIds pageIds of the leaves the records are inserted into, set for those inserted
+   * @param previousRecord record that is just before {@code records[from]}
+   * @return number of records inserted
+   */
+  private int insertDataRecordsInternal(
+      long transactionId,
+      ArrayList<RecordLogical> records,
+      int from,
+      int[] leafPageIds,
+      RecordInPage previousRecord) {
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    int maxLength = metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD);
+    ArrayList<RecordInPage> changedRecords = new ArrayList<>();
+    boolean linked = false;
+    int index = from;
+    while (true) {
+      RecordInPage record = makeRecordInPageFromLogical(records.get(index), metadata);
+      /* the version is recorded before the page changes. */
+      UndoLog.logInsert(transactionId, spaceId, record);
+      boolean linkedAfter = placeDataRecord(record, previousRecord, metadata);
+      changedRecords.add(record);
+      if (linkedAfter) {
+        changedRecords.add(previousRecord);
+        linked = true;
+      }
+      leafPageIds[index++] = this.pageId;
+      if (index == records.size() || notSafeToInsert(maxLength)) break;
+      Pair<Boolean, RecordInPage> result =
+          scanInternal(transactionId, records.get(index).primaryKeyValues);
+      /* the record exists, or belongs to a page on the right. */
+      if (result.left || result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) break;
+      previousRecord = result.right;
+    }
+
+    /* the changed records and the space allocated lie in [changedFrom, changedTo). */
+    int changedFrom = freespaceStart.get();
+    int changedTo = freespaceStart.get();
+    ArrayList<byte[]> changedBytes = new ArrayList<>();
+    for (RecordInPage record : changedRecords) {
+      byte[] recordBytes = record.toBytes();
+      changedBytes.add(recordBytes);
+      int start = record.myOffset - record.nullBitmap.length - 4;
+      changedFrom = Math.min(changedFrom, start);
+      changedTo = Math.max(changedTo, start + recordBytes.length);
+    }
+    byte[] newValue = getBytes(changedFrom, changedTo - changedFrom);
+    for (int i = 0; i < changedRecords.size(); i++) {
+      RecordInPage record = changedRecords.get(i);
+      byte[] recordBytes = changedBytes.get(i);
+      System.arraycopy(
+          recordBytes,
+          0,
+          newValue,
+          record.myOffset - record.nullBitmap.length - 4 - changedFrom,
+          recordBytes.length);
     }
+    if (linked) writeIndexHeader(transactionId);
+    IO.write(transactionId, this, changedFrom, newValue.length, newValue, false);
+    return index - from;
   }
 
   /**
@@ -657,7 +1157,8 @@ public class IndexPage extends Page {
   }
 
   /**
-   * insert {@code dataRecordToBeInserted} (a data record) into b-link tree
+   * insert {@code dataRecordToBeInserted} (a data record) into b-link tree. The row is locked by
+   * its primary key before the tree is searched.
    *
    * @param transactionId transaction
    * @param dataRecordToBeInserted data record to be inserted
@@ -665,16 +1166,30 @@ public class IndexPage extends Page {
    */
   public boolean insertDataRecordIntoTree(
       long transactionId, RecordLogical dataRecordToBeInserted) {
-    Pair<Boolean, RecordInPage> result;
+    return insertDataRecordIntoTreeAndReturnLeaf(transactionId, dataRecordToBeInserted) > 0;
+  }
+
+  /**
+   * insert {@code dataRecordToBeInserted} (a data record) into b-link tree, as {@code
+   * insertDataRecordIntoTree} does.
+   *
+   * @param transactionId transaction
+   * @param dataRecordToBeInserted data record to be inserted
+   * @return pageId of the leaf the record is inserted into, or 0 if it fails. Later splits only
+   *     move the record right of the leaf.
+   */
+  public int insertDataRecordIntoTreeAndReturnLeaf(
+      long transactionId, RecordLogical dataRecordToBeInserted) {
     Stack<IndexPage> ancestors = new Stack<>();
     IndexPage currentPage = this;
+    ServerRuntime.getRowLock(transactionId, spaceId, dataRecordToBeInserted.primaryKeyValues);
 
     if (currentPage.isRoot()
         && currentPage.infimumRecord.nextRecordInPage.recordType
             == RecordInPage.SYSTEM_SUPREME_RECORD) {
       // TODO: prettier plz :-)
       /* The first insert of the whole b-link tree. Assert(currentPage == rootPage)*/
-      Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+      Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
 
       /* The page has already been inited when creating table. */
       int leftPageId = ServerRuntime.config.indexLeftmostLeafIndex;
@@ -684,7 +1199,12 @@ public class IndexPage extends Page {
       } catch (Exception ignored) {
       }
       /* 2PL write lock of new page */
-      ServerRuntime.getWriteLock(transactionId, leftPage.pageReadAndWriteLatch, leftPage);
+      try {
+        ServerRuntime.getWriteLock(transactionId, leftPage);
+      } catch (DeadlockException e) {
+        IO.unpin(leftPage);
+        throw e;
+      }
 
       /* prepare records in new left page*/
       RecordInPage leftPageSupremeRecord = leftPage.infimumRecord.nextRecordInPage;
@@ -714,7 +1234,7 @@ public class IndexPage extends Page {
       newSupremeRecord.setRightest();
 
       /* update freespace */
-      this.freespaceStart.set(leftPointerRecord.myOffset + metadata.getPrimaryKeyNumber() + 4);
+      this.freespaceStart.set(leftPointerRecord.myOffset + metadata.getPrimaryKeyLength() + 4);
       leftPage.freespaceStart.set(
           onlyRecordInLeft.myOffset
               + metadata.getNonPrimaryKeyLength()
@@ -724,28 +1244,54 @@ public class IndexPage extends Page {
       /* ******************************** BEGIN ATOMIC ********************* */
       infimumRecord.nextRecordInPage = leftPointerRecord;
       /* ******************************** END ATOMIC ********************* */
+      leftPage.rebuildSlotDirectory();
+      this.rebuildSlotDirectory();
 
       leftPage.writeAll(transactionId);
       this.writeAll(transactionId);
+      IO.unpin(leftPage);
 
-      currentPage.pageReadAndWriteLatch = null;
-      DiskBuffer.recoverArea.get(DiskBuffer.concat(currentPage.spaceId, currentPage.pageId))
-              .pageReadAndWriteLatch =
-          null;
-      return true;
+      currentPage.lockable = false;
+      return leftPageId;
+    }
+    currentPage = descendToLeaf(transactionId, dataRecordToBeInserted.primaryKeyValues, ancestors);
+    try {
+      return currentPage.moveRightAndInsertData(transactionId, dataRecordToBeInserted, ancestors);
+    } finally {
+      IO.unpin(currentPage);
+      while (!ancestors.isEmpty()) IO.unpin(ancestors.pop());
     }
+  }
+
+  /**
+   * descend from this page to the leaf where {@code searchKey} shall be inserted, or one on its
+   * left. The rightmost page of each layer passed is pushed into {@code ancestors}, and keeps its
+   * pin until it is popped.
+   *
+   * @param transactionId transaction
+   * @param searchKey primary key to insert
+   * @param ancestors stack to push the pages of the layers above into
+   * @return the leaf, pinned for the caller
+   */
+  private IndexPage descendToLeaf(
+      long transactionId, ValueWrapper[] searchKey, Stack<IndexPage> ancestors) {
+    Pair<Boolean, RecordInPage> result;
+    IndexPage currentPage = this;
+    IO.pin(currentPage);
     do {
-      result = currentPage.scanInternal(transactionId, dataRecordToBeInserted.primaryKeyValues);
+      result = currentPage.scanInternal(transactionId, searchKey);
+      int nextPageId;
       if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        if (result.right.isPointToNextLevel()) ancestors.add(currentPage);
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
+        nextPageId = result.right.childPageId;
       } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        if (result.right.isPointToNextLevel()) ancestors.add(currentPage);
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
+        nextPageId = result.right.nextAbsoluteOffset;
       } else break;
+      IndexPage nextPage = (IndexPage) IO.read(this.spaceId, nextPageId);
+      if (result.right.isPointToNextLevel()) ancestors.add(currentPage);
+      else IO.unpin(currentPage);
+      currentPage = nextPage;
     } while (true);
-
-    return currentPage.moveRightAndInsertData(transactionId, dataRecordToBeInserted, ancestors);
+    return currentPage;
   }
 
   /**
@@ -758,9 +1304,9 @@ public class IndexPage extends Page {
    * @param transactionId transaction
    * @param dataRecordToBeInserted data record to be inserted
    * @param ancestors a stack containing the rightmost page of each layer above
-   * @return true if the insertion succeed
+   * @return pageId of the page the record is inserted into, or 0 if the insertion fails
    */
-  private boolean moveRightAndInsertData(
+  private int moveRightAndInsertData(
       long transactionId, RecordLogical dataRecordToBeInserted, Stack<IndexPage> ancestors) {
 
     IndexPage currentPage = this;
@@ -768,68 +1314,202 @@ public class IndexPage extends Page {
       System.out.println("why insert data into pointer page?");
       exit(30);
     }
-    Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
     Pair<Boolean, RecordInPage> insertResult;
-    do {
-      insertResult =
-          currentPage.scanInternal(transactionId, dataRecordToBeInserted.primaryKeyValues);
-      if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
-        ServerRuntime.getWriteLock(transactionId, currentPage.pageReadAndWriteLatch, currentPage);
+    IO.pin(currentPage);
+    try {
+      do {
         insertResult =
             currentPage.scanInternal(transactionId, dataRecordToBeInserted.primaryKeyValues);
-
         if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
-
-          /* The record already exists. */
-          if (insertResult.left) return false;
-
-          if (currentPage.notSafeToInsert(
-              metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD))) {
-
-            /* split currentPage and require the 2PL lock of right page.*/
-            currentPage.bLinkTreeLatch.lock();
-            IndexPage rightPage = currentPage.splitMyself(transactionId, ancestors, true);
-            currentPage.bLinkTreeLatch.unlock();
-            if (rightPage == null) return false;
-
+          ServerRuntime.getWriteLock(transactionId, currentPage);
+          /* other transactions may change the page as well, so it is searched again under the
+           * latch, and the position found stays valid until the insertion is done. */
+          currentPage.bLinkTreeLatch.lock();
+          try {
             insertResult =
                 currentPage.scanInternal(transactionId, dataRecordToBeInserted.primaryKeyValues);
+
             if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
-              /* insert it into current page. */
-              currentPage.bLinkTreeLatch.lock();
-              currentPage.insertDataRecordInternal(
-                  transactionId, dataRecordToBeInserted, insertResult.right);
-              currentPage.bLinkTreeLatch.unlock();
-              return true;
-            } else {
-              /* insert it into right page. */
-              /* first find the insert position of right page. */
-              rightPage.bLinkTreeLatch.lock();
-              insertResult =
-                  rightPage.scanInternal(transactionId, dataRecordToBeInserted.primaryKeyValues);
-              rightPage.insertDataRecordInternal(
-                  transactionId, dataRecordToBeInserted, insertResult.right);
-              rightPage.bLinkTreeLatch.unlock();
-              return true;
+
+              /* The record already exists. */
+              if (insertResult.left) return 0;
+
+              int maxLength = metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD);
+              if (currentPage.notSafeToInsert(maxLength)
+                  && currentPage.purgeDeletedRecords(transactionId).left > 0) {
+                /* the page makes room by purging deleted records rather than splitting. The
+                 * record found may be one of them. */
+                insertResult =
+                    currentPage.scanInternal(
+                        transactionId, dataRecordToBeInserted.primaryKeyValues);
+              }
+              if (currentPage.notSafeToInsert(maxLength)) {
+
+                /* split currentPage and require the 2PL lock of right page.*/
+                IndexPage rightPage = currentPage.splitMyself(transactionId, ancestors, true);
+                if (rightPage == null) return 0;
+                int leafPageId;
+
+                insertResult =
+                    currentPage.scanInternal(
+                        transactionId, dataRecordToBeInserted.primaryKeyValues);
+                if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+                  /* insert it into current page. */
+                  currentPage.insertDataRecordInternal(
+                      transactionId, dataRecordToBeInserted, insertResult.right);
+                  leafPageId = currentPage.pageId;
+                } else {
+                  /* insert it into right page. */
+                  /* first find the insert position of right page. */
+                  rightPage.bLinkTreeLatch.lock();
+                  insertResult =
+                      rightPage.scanInternal(
+                          transactionId, dataRecordToBeInserted.primaryKeyValues);
+                  rightPage.insertDataRecordInternal(
+                      transactionId, dataRecordToBeInserted, insertResult.right);
+                  rightPage.bLinkTreeLatch.unlock();
+                  leafPageId = rightPage.pageId;
+                }
+                IO.unpin(rightPage);
+                return leafPageId;
+              } else {
+                /* safely insert! */
+                currentPage.insertDataRecordInternal(
+                    transactionId, dataRecordToBeInserted, insertResult.right);
+                return currentPage.pageId;
+              }
             }
-          } else {
-            /* safely insert! */
-            currentPage.bLinkTreeLatch.lock();
-            currentPage.insertDataRecordInternal(
-                transactionId, dataRecordToBeInserted, insertResult.right);
+          } finally {
             currentPage.bLinkTreeLatch.unlock();
-            return true;
           }
+          /* the page has split since it was searched. */
+          currentPage = moveToPage(currentPage, insertResult.right.nextAbsoluteOffset);
+
+        } else {
+          currentPage = moveToPage(currentPage, insertResult.right.nextAbsoluteOffset);
         }
-        return true;
+      } while (true);
+    } finally {
+      IO.unpin(currentPage);
+    }
+  }
 
+  /**
+   * insert data records into b-link tree, which are sorted by primary key. All the rows are locked
+   * in order before the tree is searched. Then the tree is descended once for each leaf the records
+   * go to, rather than once for each record, and the records of the same leaf are inserted together
+   * by {@code insertDataRecordsInternal}.
+   *
+   * @param transactionId transaction
+   * @param sortedRecords data records in strictly ascending order of primary key
+   * @return pageIds of the leaves the records are inserted into, as {@code
+   *     insertDataRecordIntoTreeAndReturnLeaf} returns. Insertion stops at the first record whose
+   *     primary key already exists, and the pageIds of the records from it on are 0.
+   */
+  public int[] insertDataRecordsIntoTree(
+      long transactionId, ArrayList<RecordLogical> sortedRecords) {
+    for (RecordLogical record : sortedRecords)
+      ServerRuntime.getRowLock(transactionId, spaceId, record.primaryKeyValues);
+    int[] leafPageIds = new int[sortedRecords.size()];
+    int from = 0;
+    while (from < sortedRecords.size()) {
+      int inserted;
+      if (isRoot()
+          && infimumRecord.nextRecordInPage.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
+        /* the first insert of the tree builds its first leaf. */
+        leafPageIds[from] =
+            insertDataRecordIntoTreeAndReturnLeaf(transactionId, sortedRecords.get(from));
+        inserted = leafPageIds[from] > 0 ? 1 : 0;
       } else {
+        Stack<IndexPage> ancestors = new Stack<>();
+        IndexPage currentPage =
+            descendToLeaf(transactionId, sortedRecords.get(from).primaryKeyValues, ancestors);
         try {
-          currentPage = (IndexPage) IO.read(this.spaceId, insertResult.right.nextAbsoluteOffset);
-        } catch (Exception ignored) {
+          inserted =
+              currentPage.moveRightAndInsertDataRecords(
+                  transactionId, sortedRecords, from, leafPageIds, ancestors);
+        } finally {
+          IO.unpin(currentPage);
+          while (!ancestors.isEmpty()) IO.unpin(ancestors.pop());
         }
       }
-    } while (true);
+      if (inserted == 0) break;
+      from += inserted;
+    }
+    return leafPageIds;
+  }
+
+  /**
+   * move right until find the proper page to insert {@code records[from]}, as {@code
+   * moveRightAndInsertData} does, and insert it together with the records after it that belong to
+   * the same page. If the page has no room for the first record, only that one is inserted by
+   * {@code moveRightAndInsertData}, which splits the page.
+   *
+   * @param transactionId transaction
+   * @param records data records in strictly ascending order of primary key
+   * @param from the first record to insert
+   * @param leafPageIds pageIds of the leaves the records are inserted into, set for those inserted
+   * @param ancestors a stack containing the rightmost page of each layer above
+   * @return number of records inserted, or 0 if the insertion of {@code records[from]} fails
+   */
+  private int moveRightAndInsertDataRecords(
+      long transactionId,
+      ArrayList<RecordLogical> records,
+      int from,
+      int[] leafPageIds,
+      Stack<IndexPage> ancestors) {
+    IndexPage currentPage = this;
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    ValueWrapper[] searchKey = records.get(from).primaryKeyValues;
+    Pair<Boolean, RecordInPage> insertResult;
+    IO.pin(currentPage);
+    try {
+      do {
+        insertResult = currentPage.scanInternal(transactionId, searchKey);
+        if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+          ServerRuntime.getWriteLock(transactionId, currentPage);
+          currentPage.bLinkTreeLatch.lock();
+          try {
+            insertResult = currentPage.scanInternal(transactionId, searchKey);
+            if (insertResult.right.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+              /* The record already exists. */
+              if (insertResult.left) return 0;
+              int maxLength = metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD);
+              if (currentPage.notSafeToInsert(maxLength)
+                  && currentPage.purgeDeletedRecords(transactionId).left > 0)
+                insertResult = currentPage.scanInternal(transactionId, searchKey);
+              if (currentPage.notSafeToInsert(maxLength)) break;
+              return currentPage.insertDataRecordsInternal(
+                  transactionId, records, from, leafPageIds, insertResult.right);
+            }
+          } finally {
+            currentPage.bLinkTreeLatch.unlock();
+          }
+        }
+        currentPage = moveToPage(currentPage, insertResult.right.nextAbsoluteOffset);
+      } while (true);
+      /* the page is full: split it for the first record alone. */
+      leafPageIds[from] =
+          currentPage.moveRightAndInsertData(transactionId, records.get(from), ancestors);
+      return leafPageIds[from] > 0 ? 1 : 0;
+    } finally {
+      IO.unpin(currentPage);
+    }
+  }
+
+  /**
+   * read page {@code pageId} of this tablespace and release the pin of {@code currentPage}, which
+   * is used when walking from page to page.
+   *
+   * @param currentPage pinned page to leave
+   * @param pageId page to go to
+   * @return the pinned page
+   */
+  private IndexPage moveToPage(IndexPage currentPage, int pageId) {
+    IndexPage nextPage = (IndexPage) IO.read(this.spaceId, pageId);
+    IO.unpin(currentPage);
+    return nextPage;
   }
 
   /**
@@ -864,6 +1544,7 @@ public class IndexPage extends Page {
     /* ********************** BEGIN ATOMIC ********************** */
     previousPointerRecord.nextRecordInPage = pointerRecordToBeInserted;
     /* ********************** END ATOMIC ********************** */
+    insertIntoSlotDirectory(previousPointerRecord, pointerRecordToBeInserted);
 
     /* modify previous pointer record's value */
     previousPointerRecord.primaryKeys =
@@ -892,10 +1573,10 @@ public class IndexPage extends Page {
    * Therefore, we shall only handle situations when the root is pointer page.
    *
    * @param transactionId transaction
-   * @return left of newly made two pages.
+   * @return left of newly made two pages, pinned for the caller.
    */
   public IndexPage splitRoot(long transactionId) {
-    Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
 
     ArrayList<RecordInPage> recordInPage = new ArrayList<>();
     RecordInPage oldSupremeRecord = getRecordInPageAndReturnSupreme(recordInPage);
@@ -908,8 +1589,12 @@ public class IndexPage extends Page {
     try {
       OverallPage overallPage =
           (OverallPage) IO.read(this.spaceId, ServerRuntime.config.overallPageIndex);
-      leftPageId = overallPage.allocatePage(transactionId);
-      rightPageId = overallPage.allocatePage(transactionId);
+      try {
+        leftPageId = overallPage.allocatePage(transactionId);
+        rightPageId = overallPage.allocatePage(transactionId);
+      } finally {
+        IO.unpin(overallPage);
+      }
     } catch (Exception e) {
       return null;
     }
@@ -921,7 +1606,7 @@ public class IndexPage extends Page {
         prepareHalfPageRecordList(leftPage, metadata, recordInPage, 0, recordInPage.size() / 2);
     leftPageSupremeRecord.nextAbsoluteOffset = rightPageId;
     leftPageSupremeRecord.unsetRightest();
-    leftPage.pageReadAndWriteLatch = null;
+    leftPage.lockable = false;
     leftPage.freespaceStart.set(
         maxRecordInLeft.myOffset
             + metadata.getNonPrimaryKeyLength()
@@ -936,7 +1621,7 @@ public class IndexPage extends Page {
     /* set link to the right of next layer. */
     rightPageSupremeRecord.nextAbsoluteOffset = oldSupremeRecord.nextAbsoluteOffset;
     rightPageSupremeRecord.setRightest();
-    rightPage.pageReadAndWriteLatch = null;
+    rightPage.lockable = false;
     rightPage.freespaceStart.set(
         maxRecordInRight.myOffset
             + metadata.getNonPrimaryKeyLength()
@@ -957,16 +1642,21 @@ public class IndexPage extends Page {
     /* build root link list. */
     leftPointerRecord.setNextRecordInPage(rightPointerRecord);
     rightPointerRecord.setNextRecordInPage(newSupremeRecord);
-    this.freespaceStart.set(rightPointerRecord.myOffset + metadata.getPrimaryKeyNumber() + 4);
+    this.freespaceStart.set(rightPointerRecord.myOffset + metadata.getPrimaryKeyLength() + 4);
+
+    leftPage.rebuildSlotDirectory();
+    rightPage.rebuildSlotDirectory();
 
     infimumRecord.nextAbsoluteOffset = leftPointerRecord.myOffset;
     /* ******************************** BEGIN ATOMIC ********************* */
     infimumRecord.nextRecordInPage = leftPointerRecord;
     /* ******************************** END ATOMIC ********************* */
+    this.rebuildSlotDirectory();
 
     leftPage.writeAll(transactionId);
     rightPage.writeAll(transactionId);
     this.writeAll(transactionId);
+    IO.unpin(rightPage);
     return leftPage;
   }
 
@@ -980,7 +1670,7 @@ public class IndexPage extends Page {
    *
    * @param transactionId transaction
    * @param ancestors a stack containing the rightmost page of each layer above
-   * @return the newly made page, which is the right of {@code this}.
+   * @return the newly made page, which is the right of {@code this}, pinned for the caller.
    */
   private IndexPage splitMyself(
       long transactionId, Stack<IndexPage> ancestors, boolean requireLock) {
@@ -989,7 +1679,7 @@ public class IndexPage extends Page {
       return splitRoot(transactionId);
     }
 
-    Table.TableMetadata metadata = ServerRuntime.tableMetadata.get(this.spaceId);
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
     ArrayList<RecordInPage> originalRecordsInPage = new ArrayList<>();
     RecordInPage oldSupremeRecord = getRecordInPageAndReturnSupreme(originalRecordsInPage);
     if (originalRecordsInPage.size() < 2) {
@@ -1002,7 +1692,11 @@ public class IndexPage extends Page {
     try {
       OverallPage overallPage =
           (OverallPage) IO.read(this.spaceId, ServerRuntime.config.overallPageIndex);
-      rightPageId = overallPage.allocatePage(transactionId);
+      try {
+        rightPageId = overallPage.allocatePage(transactionId);
+      } finally {
+        IO.unpin(overallPage);
+      }
     } catch (Exception e) {
       return null;
     }
@@ -1017,22 +1711,23 @@ public class IndexPage extends Page {
             originalRecordsInPage.size() / 2,
             originalRecordsInPage.size());
     if (maxRecordInRight == null) {
+      IO.unpin(rightPage);
       return null;
     }
     maxRecordInRight.setNextRecordInPage(rightPageSupremeRecord);
+    rightPage.rebuildSlotDirectory();
     rightPage.freespaceStart.set(
         maxRecordInRight.myOffset
             + metadata.getMaxRecordLength(maxRecordInRight.recordType)
             - 4
             - maxRecordInRight.nullBitmap.length);
 
-    if (this.pageReadAndWriteLatch == null) {
-      rightPage.pageReadAndWriteLatch = null;
-      DiskBuffer.recoverArea.get(DiskBuffer.concat(rightPage.spaceId, rightPage.pageId))
-              .pageReadAndWriteLatch =
-          null;
+    if (!this.lockable) {
+      rightPage.lockable = false;
     } else {
-      ServerRuntime.getWriteLock(transactionId, rightPage.pageReadAndWriteLatch, rightPage);
+      ServerRuntime.getWriteLock(transactionId, rightPage);
+      /* rows of other transactions may move to the right page. */
+      ServerRuntime.inheritLocks(this, rightPage);
     }
 
     /* make new supreme record */
@@ -1046,6 +1741,7 @@ public class IndexPage extends Page {
     /* ********************** BEGIN ATOMIC ********************** */
     maxRecordInLeft.nextRecordInPage = newLeftPageSupremeRecord;
     /* ********************** END ATOMIC ********************** */
+    this.rebuildSlotDirectory();
 
     /* replace records' position in left */
     RecordInPage previousRecord = infimumRecord;
@@ -1062,6 +1758,12 @@ public class IndexPage extends Page {
     }
 
     this.freespaceStart.set(currentPos - 4 - metadata.getNullBitmapLengthInByte());
+    this.rebuildFreeList();
+
+    /* the right page is written before this page drops its records, and the parent is told last.
+    Until then the right page is reached by the link of this page. */
+    rightPage.writeAll(transactionId);
+    this.writeAll(transactionId);
 
     int maxLength = metadata.getMaxRecordLength(RecordInPage.USER_POINTER_RECORD);
     IndexPage maybeParent = ancestors.pop();
@@ -1075,9 +1777,7 @@ public class IndexPage extends Page {
         rightPageId,
         maxRecordInLeft,
         maxRecordInRight);
-
-    this.writeAll(transactionId);
-    rightPage.writeAll(transactionId);
+    IO.unpin(maybeParent);
 
     return rightPage;
   }
@@ -1224,56 +1924,332 @@ public class IndexPage extends Page {
       return false;
     }
 
-    do {
-      maybeParent.bLinkTreeLatch.lock();
-      insertResult = maybeParent.scanInternalForPage(transactionId, leftOfChildPageId);
-      if (insertResult.left) {
-
-        if (maybeParent.notSafeToInsert(maxLength)) {
-          IndexPage candidateParent = maybeParent.splitMyself(transactionId, ancestors, false);
-          if (candidateParent == null) {
-            exit(12);
-            return false;
-          }
-          if (maybeParent.isRoot()) {
-            ancestors.push(maybeParent);
-          } else {
-            insertResult = maybeParent.scanInternalForPage(transactionId, leftOfChildPageId);
-            if (insertResult.left) {
-              /* split and the pointer record is in the left. */
-              maybeParent.insertPointerRecordInternal(
-                  transactionId,
-                  maxRecordInRight,
-                  childPageToPoint,
-                  insertResult.right,
-                  maxRecordInLeft);
-              maybeParent.bLinkTreeLatch.unlock();
-              return true;
+    IO.pin(maybeParent);
+    try {
+      do {
+        maybeParent.bLinkTreeLatch.lock();
+        insertResult = maybeParent.scanInternalForPage(transactionId, leftOfChildPageId);
+        if (insertResult.left) {
+
+          if (maybeParent.notSafeToInsert(maxLength)) {
+            IndexPage candidateParent = maybeParent.splitMyself(transactionId, ancestors, false);
+            if (candidateParent == null) {
+              exit(12);
+              return false;
+            }
+            if (maybeParent.isRoot()) {
+              IO.pin(maybeParent);
+              ancestors.push(maybeParent);
+            } else {
+              insertResult = maybeParent.scanInternalForPage(transactionId, leftOfChildPageId);
+              if (insertResult.left) {
+                /* split and the pointer record is in the left. */
+                maybeParent.insertPointerRecordInternal(
+                    transactionId,
+                    maxRecordInRight,
+                    childPageToPoint,
+                    insertResult.right,
+                    maxRecordInLeft);
+                maybeParent.bLinkTreeLatch.unlock();
+                IO.unpin(candidateParent);
+                return true;
+              }
             }
+            maybeParent.bLinkTreeLatch.unlock();
+            IO.unpin(maybeParent);
+            maybeParent = candidateParent;
+          } else {
+            maybeParent.insertPointerRecordInternal(
+                transactionId,
+                maxRecordInRight,
+                childPageToPoint,
+                insertResult.right,
+                maxRecordInLeft);
+            maybeParent.bLinkTreeLatch.unlock();
+            return true;
           }
-          maybeParent.bLinkTreeLatch.unlock();
-          maybeParent = candidateParent;
         } else {
-          maybeParent.insertPointerRecordInternal(
-              transactionId,
-              maxRecordInRight,
-              childPageToPoint,
-              insertResult.right,
-              maxRecordInLeft);
-          maybeParent.bLinkTreeLatch.unlock();
-          return true;
-        }
-      } else {
-        IndexPage previousPage = maybeParent;
-        try {
-          maybeParent = (IndexPage) IO.read(this.spaceId, insertResult.right.nextAbsoluteOffset);
-        } catch (Exception neverShallHappen) {
+          IndexPage previousPage = maybeParent;
+          try {
+            maybeParent = (IndexPage) IO.read(this.spaceId, insertResult.right.nextAbsoluteOffset);
+          } catch (Exception neverShallHappen) {
+            previousPage.bLinkTreeLatch.unlock();
+            return false;
+          }
           previousPage.bLinkTreeLatch.unlock();
+          IO.unpin(previousPage);
+        }
+      } while (true);
+    } finally {
+      IO.unpin(maybeParent);
+    }
+  }
+
+  /**
+   * check if the tree of this root holds no live record but in one leaf, which is the shape of a
+   * table just created, or of one whose records have all been deleted before any split. No snapshot
+   * may see a deleted record through {@code VersionStore} either, since loading drops deleted
+   * records from the leaf. The table shall be locked exclusively.
+   *
+   * @return true if {@code bulkLoad} can be used on this root
+   */
+  public boolean canBulkLoad() {
+    if (!isRoot()) return false;
+    RecordInPage firstRecord = infimumRecord.nextRecordInPage;
+    if (firstRecord.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) return true;
+    if (firstRecord.recordType != RecordInPage.USER_POINTER_RECORD
+        || firstRecord.childPageId != ServerRuntime.config.indexLeftmostLeafIndex
+        || firstRecord.nextRecordInPage.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+      return false;
+    }
+    IndexPage leaf = (IndexPage) IO.read(spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
+    try {
+      RecordInPage record = leaf.infimumRecord.nextRecordInPage;
+      while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+        if (record.isNotDeleted() || VersionStore.hasImage(spaceId, record.primaryKeyValues))
           return false;
+        record = record.nextRecordInPage;
+      }
+      return record.isRightest();
+    } finally {
+      IO.unpin(leaf);
+    }
+  }
+
+  /**
+   * build the b-link tree of this root bottom-up from data records sorted by primary key, instead
+   * of inserting them one by one. Leaves are packed to {@code fillFactor} from left to right and
+   * linked as splits would have linked them. Then the pointer records of each level are packed into
+   * the level above, until they fit in the root. <br>
+   * Pages are taken from {@code OverallPage.allocatePage}, and each new page is written at once
+   * with redo-only logs, since no one can reach it before the tree is published. The leftmost leaf
+   * and the root are changed last, atomically under their latches. <br>
+   * {@code canBulkLoad} shall be true, and the table locked exclusively until the transaction ends.
+   * Inserted records are recorded in {@code UndoLog} as usual, so a crash before the transaction
+   * commits deletes them again at restart.
+   *
+   * @param transactionId transaction
+   * @param sortedRecords data records in strictly ascending order of primary key
+   * @param fillFactor fraction of a page to fill, in (0, 1]
+   * @return number of records loaded
+   * @throws Exception if primary keys are not strictly ascending, or pages cannot be allocated. The
+   *     tree is unchanged then.
+   */
+  public int bulkLoad(long transactionId, Iterator<RecordLogical> sortedRecords, double fillFactor)
+      throws Exception {
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    int leftmostLeafId = ServerRuntime.config.indexLeftmostLeafIndex;
+    /* (max record, pageId) of each page of the level built last. */
+    ArrayList<Pair<RecordInPage, Integer>> level = new ArrayList<>();
+    ArrayList<RecordInPage> leftmostRecords = null;
+    int rightOfLeftmost = 0;
+    int loaded = 0;
+
+    OverallPage overallPage =
+        (OverallPage) IO.read(this.spaceId, ServerRuntime.config.overallPageIndex);
+    try {
+      int recordsPerLeaf =
+          recordsPerPage(metadata.getMaxRecordLength(RecordInPage.USER_DATA_RECORD), fillFactor);
+      ArrayList<RecordInPage> records = new ArrayList<>();
+      int leafId = leftmostLeafId;
+      RecordInPage previousRecord = null;
+      while (sortedRecords.hasNext()) {
+        RecordInPage record = makeRecordInPageFromLogical(sortedRecords.next(), metadata);
+        if (previousRecord != null
+            && metadata.keyComparator.compare(
+                    previousRecord.primaryKeyValues, record.primaryKeyValues)
+                >= 0) {
+          throw new Exception(
+              "The primary key "
+                  + ValueWrapper.toKeyString(record.primaryKeyValues)
+                  + " is duplicated or out of order.");
         }
-        previousPage.bLinkTreeLatch.unlock();
+        if (records.size() == recordsPerLeaf) {
+          int rightLeafId = overallPage.allocatePage(transactionId);
+          if (leafId == leftmostLeafId) {
+            leftmostRecords = records;
+            rightOfLeftmost = rightLeafId;
+          } else {
+            writeNewPage(transactionId, leafId, records, rightLeafId, false);
+          }
+          level.add(new Pair<>(records.get(records.size() - 1), leafId));
+          leafId = rightLeafId;
+          records = new ArrayList<>();
+        }
+        /* the version is recorded before the record can be seen. */
+        UndoLog.logInsert(transactionId, spaceId, record);
+        records.add(record);
+        previousRecord = record;
+        loaded++;
       }
-    } while (true);
+      if (loaded == 0) return 0;
+      if (leafId == leftmostLeafId) leftmostRecords = records;
+      else writeNewPage(transactionId, leafId, records, 0, true);
+      level.add(new Pair<>(records.get(records.size() - 1), leafId));
+
+      int pointersPerPage =
+          recordsPerPage(metadata.getMaxRecordLength(RecordInPage.USER_POINTER_RECORD), fillFactor);
+      while (level.size() > pointersPerPage) {
+        int pageNumber = (level.size() + pointersPerPage - 1) / pointersPerPage;
+        int[] pageIds = new int[pageNumber];
+        for (int i = 0; i < pageNumber; i++) pageIds[i] = overallPage.allocatePage(transactionId);
+        ArrayList<Pair<RecordInPage, Integer>> upperLevel = new ArrayList<>();
+        for (int i = 0; i < pageNumber; i++) {
+          int end = Math.min(level.size(), (i + 1) * pointersPerPage);
+          ArrayList<RecordInPage> pointers = makePointerRecords(level, i * pointersPerPage, end);
+          /* the rightmost page of a level links to the rightmost page of the level below. */
+          if (i == pageNumber - 1) {
+            writeNewPage(transactionId, pageIds[i], pointers, level.get(end - 1).right, true);
+          } else {
+            writeNewPage(transactionId, pageIds[i], pointers, pageIds[i + 1], false);
+          }
+          upperLevel.add(new Pair<>(level.get(end - 1).left, pageIds[i]));
+        }
+        level = upperLevel;
+      }
+    } finally {
+      IO.unpin(overallPage);
+    }
+
+    /* publish the leftmost leaf first: the old root still points to it. */
+    IndexPage leftmostLeaf = (IndexPage) IO.read(this.spaceId, leftmostLeafId);
+    leftmostLeaf.bLinkTreeLatch.lock();
+    try {
+      leftmostLeaf.publishRecords(
+          transactionId,
+          linkRecords(leftmostRecords, rightOfLeftmost, rightOfLeftmost == 0),
+          leftmostRecords.size(),
+          false);
+    } finally {
+      leftmostLeaf.bLinkTreeLatch.unlock();
+      IO.unpin(leftmostLeaf);
+    }
+    ArrayList<RecordInPage> pointers = makePointerRecords(level, 0, level.size());
+    this.bLinkTreeLatch.lock();
+    try {
+      publishRecords(
+          transactionId,
+          linkRecords(pointers, level.get(level.size() - 1).right, true),
+          pointers.size(),
+          false);
+      this.lockable = false;
+    } finally {
+      this.bLinkTreeLatch.unlock();
+    }
+    return loaded;
+  }
+
+  /**
+   * number of records of a type that bulk load puts into a page. A full page is one that {@code
+   * notSafeToInsert} would split.
+   *
+   * @param recordLength max length of a record
+   * @param fillFactor fraction of a page to fill
+   * @return number of records, at least 2 so that each level is smaller than the one below
+   */
+  private static int recordsPerPage(int recordLength, double fillFactor) {
+    int capacity = (ServerRuntime.config.pageSize - 64 - 1) / (recordLength + 2);
+    return Math.max(2, Math.min(capacity, (int) (capacity * fillFactor)));
+  }
+
+  private static ArrayList<RecordInPage> makePointerRecords(
+      ArrayList<Pair<RecordInPage, Integer>> children, int begin, int end) {
+    ArrayList<RecordInPage> pointers = new ArrayList<>();
+    for (int i = begin; i < end; i++) {
+      pointers.add(makePointerRecord(children.get(i).left, children.get(i).right));
+    }
+    return pointers;
+  }
+
+  /**
+   * link {@code records} of the same type one after another from the beginning of a page, and end
+   * them with a new supreme record. The page is not changed.
+   *
+   * @param records records in ascending order
+   * @param supremeNext {@code nextAbsoluteOffset} of the supreme record
+   * @param rightest if the supreme record is the rightest
+   * @return the first record
+   */
+  private RecordInPage linkRecords(
+      ArrayList<RecordInPage> records, int supremeNext, boolean rightest) {
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    RecordInPage nextRecord =
+        RecordInPage.createRecordInPageEntry(
+            RecordInPage.SYSTEM_SUPREME_RECORD, 0, 0, 0, supremeNext, 0);
+    if (rightest) nextRecord.setRightest();
+    int length = metadata.getMaxRecordLength(records.get(0).recordType);
+    int firstPos = 64 + metadata.getNullBitmapLengthInByte() + 4;
+    for (int i = records.size() - 1; i >= 0; i--) {
+      RecordInPage record = records.get(i);
+      record.myOffset = firstPos + i * length;
+      record.setNextRecordInPage(nextRecord);
+      nextRecord = record;
+    }
+    return nextRecord;
+  }
+
+  /**
+   * make a new page holding {@code records} for bulk load, and write it with redo-only logs.
+   *
+   * @param transactionId transaction
+   * @param pageId allocated pageId
+   * @param records records in ascending order
+   * @param supremeNext {@code nextAbsoluteOffset} of the supreme record
+   * @param rightest if the supreme record is the rightest
+   */
+  private void writeNewPage(
+      long transactionId,
+      int pageId,
+      ArrayList<RecordInPage> records,
+      int supremeNext,
+      boolean rightest) {
+    IndexPage page = createIndexPage(transactionId, this.spaceId, pageId);
+    try {
+      if (records.get(0).recordType == RecordInPage.USER_POINTER_RECORD) page.lockable = false;
+      page.publishRecords(
+          transactionId, linkRecords(records, supremeNext, rightest), records.size(), true);
+    } finally {
+      IO.unpin(page);
+    }
+  }
+
+  /**
+   * replace all records of this page by the linked records starting from {@code firstRecord}, which
+   * have been placed one after another by {@code linkRecords}. The record area is written by one
+   * log. {@code this.bLinkTreeLatch} shall be held if the page can be reached by others.
+   *
+   * @param transactionId transaction
+   * @param firstRecord the first record
+   * @param recordNumber number of records
+   * @param redoOnly if the page is new, so that it needs no undo
+   */
+  private void publishRecords(
+      long transactionId, RecordInPage firstRecord, int recordNumber, boolean redoOnly) {
+    Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(this.spaceId);
+    infimumRecord.nextAbsoluteOffset = firstRecord.myOffset;
+    /* ********************** BEGIN ATOMIC ********************** */
+    infimumRecord.nextRecordInPage = firstRecord;
+    /* ********************** END ATOMIC ********************** */
+    rebuildSlotDirectory();
+    this.freespaceStart.set(
+        64 + recordNumber * metadata.getMaxRecordLength(firstRecord.recordType));
+    rebuildFreeList();
+    writeIndexHeader(transactionId);
+
+    byte[] newValue = new byte[freespaceStart.get() - 52];
+    RecordInPage record = infimumRecord;
+    while (true) {
+      byte[] recordBytes = record.toBytes();
+      System.arraycopy(
+          recordBytes,
+          0,
+          newValue,
+          record.myOffset - record.nullBitmap.length - 4 - 52,
+          recordBytes.length);
+      if (record.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) break;
+      record = record.nextRecordInPage;
+    }
+    IO.write(transactionId, this, 52, newValue.length, newValue, redoOnly);
   }
 
   /**
@@ -1291,28 +2267,73 @@ public class IndexPage extends Page {
       long transactionId, ValueWrapper[] searchKey) throws Exception {
     Pair<Boolean, RecordInPage> result;
     IndexPage currentPage = this;
+    IO.pin(currentPage);
     do {
       result = currentPage.scanInternal(transactionId, searchKey);
       if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
+        currentPage = moveToPage(currentPage, result.right.childPageId);
       } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
+        currentPage = moveToPage(currentPage, result.right.nextAbsoluteOffset);
       } else break;
     } while (true);
 
-    do {
-      ServerRuntime.getReadLock(transactionId, currentPage.pageReadAndWriteLatch, currentPage);
-      result = currentPage.scanInternal(transactionId, searchKey);
-      ServerRuntime.releaseReadLock(currentPage.pageReadAndWriteLatch);
-      if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
-      } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
-      } else break;
-    } while (true);
+    try {
+      do {
+        result = currentPage.scanForReader(transactionId, searchKey);
+        if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
+          currentPage = moveToPage(currentPage, result.right.childPageId);
+        } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
+          currentPage = moveToPage(currentPage, result.right.nextAbsoluteOffset);
+        } else break;
+      } while (true);
+    } finally {
+      IO.unpin(currentPage);
+    }
 
     return result;
   }
+
+  /**
+   * {@code scanInternal} for a reader, under the read lock or in the snapshot of the transaction. A
+   * data record found is the version visible to the reader, which may be an image made from an
+   * older version.
+   *
+   * @param transactionId transaction id
+   * @param searchKey search key
+   * @return see as scanInternal. If the record with the key does not exist in the snapshot, it may
+   *     be returned with false.
+   */
+  private Pair<Boolean, RecordInPage> scanForReader(long transactionId, ValueWrapper[] searchKey) {
+    if (!readsSnapshot(transactionId)) {
+      ServerRuntime.getReadLock(transactionId, this);
+      Pair<Boolean, RecordInPage> result = scanInternal(transactionId, searchKey);
+      ServerRuntime.releaseReadLock(transactionId, this);
+      return result;
+    }
+    long snapshot = VersionStore.snapshotOf(transactionId);
+    bLinkTreeLatch.lock();
+    try {
+      Pair<Boolean, RecordInPage> result = scanInternal(transactionId, searchKey);
+      if (result.right.recordType == RecordInPage.USER_POINTER_RECORD
+          || result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD
+          || !VersionStore.hasVersions(spaceId)) return result;
+      RecordInPage record = result.right;
+      if (!result.left) {
+        /* a deleted record with the key follows the record returned, and may still be visible. */
+        record = record.nextRecordInPage;
+        if (record.recordType != RecordInPage.USER_DATA_RECORD
+            || getKeyComparator().compare(searchKey, record.primaryKeyValues) != 0) return result;
+      }
+      Pair<Boolean, RecordLogical> version = readVersion(transactionId, snapshot, record);
+      if (!version.left) return new Pair<>(false, record);
+      if (version.right == null) return new Pair<>(true, record);
+      Table.TableMetadata metadata = ServerRuntime.catalog.tableMetadata.get(spaceId);
+      return new Pair<>(true, makeRecordInPageFromLogical(version.right, metadata));
+    } finally {
+      bLinkTreeLatch.unlock();
+    }
+  }
+
   /**
    * scan tree for search key and return page
    *
@@ -1323,19 +2344,39 @@ public class IndexPage extends Page {
    */
   public Pair<Integer, ArrayList<RecordLogical>> scanTreeAndReturnPage(
       long transactionId, ValueWrapper[] searchKey) throws Exception {
+    IndexPage leaf = scanTreeAndReturnLeaf(transactionId, searchKey);
+    try {
+      return leaf.getAllRecordLogical(transactionId);
+    } finally {
+      IO.unpin(leaf);
+    }
+  }
+
+  /**
+   * scan tree for search key and return the leaf page (data page) that shall contain it. No lock is
+   * acquired.
+   *
+   * @param transactionId transaction id
+   * @param searchKey search key
+   * @return leaf page, pinned for the caller
+   * @throws Exception IO error
+   */
+  public IndexPage scanTreeAndReturnLeaf(long transactionId, ValueWrapper[] searchKey)
+      throws Exception {
     Pair<Boolean, RecordInPage> result;
 
     IndexPage currentPage = this;
+    IO.pin(currentPage);
     do {
       result = currentPage.scanInternal(transactionId, searchKey);
       if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
+        currentPage = moveToPage(currentPage, result.right.childPageId);
       } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
+        currentPage = moveToPage(currentPage, result.right.nextAbsoluteOffset);
       } else break;
     } while (true);
 
-    return currentPage.getAllRecordLogical(transactionId);
+    return currentPage;
   }
 
   /**
@@ -1354,6 +2395,9 @@ public class IndexPage extends Page {
    * largest record in the page is not larger than the search key, that largest record will be
    * returned.
    *
+   * <p>The position is located by binary search on {@code slotDirectory}, which needs {@code O(log
+   * n)} comparisons instead of walking through the linked list.
+   *
    * @param transactionId transactionKey
    * @param searchKey value of primary key
    * @return a pair of boolean and recordInPage. The boolean indicates whether the searchKey is
@@ -1361,21 +2405,37 @@ public class IndexPage extends Page {
    *     explained above.
    */
   public Pair<Boolean, RecordInPage> scanInternal(long transactionId, ValueWrapper[] searchKey) {
-    RecordInPage record = infimumRecord.nextRecordInPage;
-    RecordInPage previousRecord = infimumRecord;
-    while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
-      int compareResult = ValueWrapper.compareArray(searchKey, record.primaryKeyValues);
+    KeyComparator comparator = getKeyComparator();
+    RecordInPage[] slots = slotDirectory.get();
+    /* binary search for the first record that is not less than the search key. */
+    int low = 0;
+    int high = slots.length;
+    int compareResult = 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int result = comparator.compare(searchKey, slots[middle].primaryKeyValues);
+      if (result > 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+        compareResult = result;
+      }
+    }
+    RecordInPage previousRecord = (low == 0) ? infimumRecord : slots[low - 1];
+    if (low < slots.length) {
+      RecordInPage record = slots[low];
       if (compareResult == 0) {
         if (record.isNotDeleted()) {
           return new Pair<>(true, record);
         } else {
           return new Pair<>(false, previousRecord);
         }
-      } else if (compareResult < 0) {
-        if (record.recordType == RecordInPage.USER_POINTER_RECORD) return new Pair<>(false, record);
-        else return new Pair<>(false, previousRecord);
       }
-      previousRecord = record;
+      if (record.recordType == RecordInPage.USER_POINTER_RECORD) return new Pair<>(false, record);
+      else return new Pair<>(false, previousRecord);
+    }
+    RecordInPage record = previousRecord.nextRecordInPage;
+    while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
       record = record.nextRecordInPage;
     }
     if (record.nextAbsoluteOffset == 0 || record.isRightest()) {
@@ -1420,19 +2480,43 @@ public class IndexPage extends Page {
     Boolean isSatisfied(RecordInPage record);
   }
 
+  /**
+   * lock a row found in this page while {@code this.bLinkTreeLatch} is held. If another transaction
+   * holds the row, the latch is released while waiting for it, and taken again afterwards. The page
+   * may have changed in the meantime, so the caller shall scan it again.
+   *
+   * @param transactionId transaction
+   * @param record record to lock
+   * @return true if the row was locked without releasing the latch
+   * @throws DeadlockException the transaction is chosen as the victim of a deadlock. The latch is
+   *     released in this case.
+   */
+  private boolean lockRowUnderLatch(long transactionId, RecordInPage record) {
+    if (ServerRuntime.tryRowLock(transactionId, spaceId, record.primaryKeyValues)) return true;
+    ValueWrapper[] key = record.primaryKeyValues;
+    bLinkTreeLatch.unlock();
+    ServerRuntime.getRowLock(transactionId, spaceId, key);
+    bLinkTreeLatch.lock();
+    return false;
+  }
+
   public int deleteFromLeftmostDataPage(
       long transactionId, recordCondition condition, ArrayList<RecordInPage> recordDeleted) {
-    if (this.pageReadAndWriteLatch == null) return ServerRuntime.config.indexLeftmostLeafIndex;
+    if (!this.lockable) return ServerRuntime.config.indexLeftmostLeafIndex;
     if (this.infimumRecord.nextRecordInPage.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
       return ServerRuntime.config.indexLeftmostLeafIndex;
     }
+    IndexPage leftPage;
     try {
-      IndexPage leftPage =
-          (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
-      ServerRuntime.getWriteLock(transactionId, leftPage.pageReadAndWriteLatch, leftPage);
+      leftPage = (IndexPage) IO.read(this.spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
     } catch (Exception e) {
       return 0;
     }
+    try {
+      ServerRuntime.getWriteLock(transactionId, leftPage);
+    } finally {
+      IO.unpin(leftPage);
+    }
     return 0;
   }
 
@@ -1445,7 +2529,7 @@ public class IndexPage extends Page {
   public int deleteWithCondition(
       long transactionId, recordCondition condition, ArrayList<RecordInPage> recordsDeleted) {
 
-    ServerRuntime.getWriteLock(transactionId, this.pageReadAndWriteLatch, this);
+    ServerRuntime.getWriteLock(transactionId, this);
     bLinkTreeLatch.lock();
 
     RecordInPage record = infimumRecord;
@@ -1453,9 +2537,15 @@ public class IndexPage extends Page {
       if (record.recordType != RecordInPage.SYSTEM_INFIMUM_RECORD) {
         if (condition.isSatisfied(record)) {
           if (record.isNotDeleted()) {
+            if (!lockRowUnderLatch(transactionId, record)) {
+              record = infimumRecord;
+              continue;
+            }
+            UndoLog.logDelete(transactionId, spaceId, record);
             record.setDeleted();
             if (recordsDeleted != null) recordsDeleted.add(record);
             record.write(transactionId, this, record.myOffset);
+            Vacuum.noteDeleted(this);
           }
         }
       }
@@ -1488,12 +2578,16 @@ public class IndexPage extends Page {
           e.printStackTrace();
           exit(62);
         }
-        ServerRuntime.getWriteLock(transactionId, leftPage.pageReadAndWriteLatch, leftPage);
+        try {
+          ServerRuntime.getWriteLock(transactionId, leftPage);
+        } finally {
+          IO.unpin(leftPage);
+        }
         return new Pair<>(0, 0);
       }
     }
 
-    ServerRuntime.getWriteLock(transactionId, this.pageReadAndWriteLatch, this);
+    ServerRuntime.getWriteLock(transactionId, this);
     this.bLinkTreeLatch.lock();
 
     RecordInPage record = this.infimumRecord.nextRecordInPage;
@@ -1502,9 +2596,16 @@ public class IndexPage extends Page {
       if (record.recordType != RecordInPage.SYSTEM_INFIMUM_RECORD) {
         if (condition.isSatisfied(record)) {
           if (record.isNotDeleted()) {
+            if (!lockRowUnderLatch(transactionId, record)) {
+              record = this.infimumRecord.nextRecordInPage;
+              previousRecord = this.infimumRecord;
+              continue;
+            }
+            UndoLog.logDelete(transactionId, spaceId, record);
             record.setDeleted();
             if (recordDeleted != null) recordDeleted.add(record);
             record.write(transactionId, this, record.myOffset);
+            Vacuum.noteDeleted(this);
           }
         }
       }
@@ -1512,7 +2613,7 @@ public class IndexPage extends Page {
       record = record.nextRecordInPage;
     }
 
-    int compareResult = ValueWrapper.compareArray(previousRecord.primaryKeyValues, searchKey);
+    int compareResult = getKeyComparator().compare(previousRecord.primaryKeyValues, searchKey);
     this.bLinkTreeLatch.unlock();
 
     return new Pair<>(record.nextAbsoluteOffset, compareResult);
@@ -1528,6 +2629,21 @@ public class IndexPage extends Page {
    */
   public RecordLogical scanTreeAndDeleteRecordWithKey(long transactionId, ValueWrapper[] searchKey)
       throws Exception {
+    return scanTreeAndDeleteRecordWithKey(transactionId, searchKey, null);
+  }
+
+  /**
+   * scan the whole tree and find the page where the record with search key resides. Delete that
+   * record if it satisfies the condition, which is checked on the record under the row lock.
+   *
+   * @param transactionId transaction Id
+   * @param searchKey search key
+   * @param condition condition, or null if any record with the key is deleted
+   * @return the record deleted, or null if nothing is deleted
+   */
+  public RecordLogical scanTreeAndDeleteRecordWithKey(
+      long transactionId, ValueWrapper[] searchKey, recordCondition condition) throws Exception {
+    ServerRuntime.getRowLock(transactionId, spaceId, searchKey);
 
     if (this.infimumRecord.nextRecordInPage.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
       if (this.infimumRecord.nextRecordInPage.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
@@ -1538,64 +2654,77 @@ public class IndexPage extends Page {
           e.printStackTrace();
           exit(62);
         }
-        ServerRuntime.getWriteLock(transactionId, leftPage.pageReadAndWriteLatch, leftPage);
+        try {
+          ServerRuntime.getWriteLock(transactionId, leftPage);
+        } finally {
+          IO.unpin(leftPage);
+        }
         return null;
       }
     }
 
     Pair<Boolean, RecordInPage> result;
     IndexPage currentPage = this;
+    IO.pin(currentPage);
     do {
       result = currentPage.scanInternal(transactionId, searchKey);
       if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
+        currentPage = moveToPage(currentPage, result.right.childPageId);
       } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
+        currentPage = moveToPage(currentPage, result.right.nextAbsoluteOffset);
       } else break;
     } while (true);
 
     RecordLogical recordDeleted = null;
+    KeyComparator comparator = getKeyComparator();
 
-    do {
-      ServerRuntime.getWriteLock(transactionId, currentPage.pageReadAndWriteLatch, currentPage);
-      currentPage.bLinkTreeLatch.lock();
-
-      RecordInPage record = currentPage.infimumRecord.nextRecordInPage;
-      boolean notExistOrFound = false;
-      while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
-        if (record.recordType != RecordInPage.SYSTEM_INFIMUM_RECORD) {
-          int compareResult = ValueWrapper.compareArray(record.primaryKeyValues, searchKey);
-          if (compareResult >= 0) {
-            if (compareResult > 0) {
-              if (record.recordType == RecordInPage.USER_DATA_RECORD) {
-                notExistOrFound = true;
-              }
-            } else {
-              if (record.recordType == RecordInPage.USER_DATA_RECORD) {
-                if (record.isNotDeleted()) {
-                  record.setDeleted();
-                  recordDeleted = new RecordLogical(record);
-                  record.write(transactionId, currentPage, record.myOffset);
-                  //                  System.out.println("record delete" + record);
+    try {
+      do {
+        ServerRuntime.getWriteLock(transactionId, currentPage);
+        currentPage.bLinkTreeLatch.lock();
+
+        RecordInPage record = currentPage.infimumRecord.nextRecordInPage;
+        boolean notExistOrFound = false;
+        while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
+          if (record.recordType != RecordInPage.SYSTEM_INFIMUM_RECORD) {
+            int compareResult = comparator.compare(record.primaryKeyValues, searchKey);
+            if (compareResult >= 0) {
+              if (compareResult > 0) {
+                if (record.recordType == RecordInPage.USER_DATA_RECORD) {
+                  notExistOrFound = true;
+                }
+              } else {
+                if (record.recordType == RecordInPage.USER_DATA_RECORD) {
+                  if (record.isNotDeleted()
+                      && (condition == null || condition.isSatisfied(record))) {
+                    UndoLog.logDelete(transactionId, spaceId, record);
+                    record.setDeleted();
+                    recordDeleted = new RecordLogical(record);
+                    record.write(transactionId, currentPage, record.myOffset);
+                    Vacuum.noteDeleted(currentPage);
+                    //                  System.out.println("record delete" + record);
+                  }
+                  notExistOrFound = true;
                 }
-                notExistOrFound = true;
               }
+              break;
             }
-            break;
           }
+          record = record.nextRecordInPage;
         }
-        record = record.nextRecordInPage;
-      }
 
-      currentPage.bLinkTreeLatch.unlock();
-      if (notExistOrFound) break;
-
-      if (record.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, record.childPageId);
-      } else if (record.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, record.nextAbsoluteOffset);
-      } else break;
-    } while (true);
+        currentPage.bLinkTreeLatch.unlock();
+        if (notExistOrFound) break;
+
+        if (record.recordType == RecordInPage.USER_POINTER_RECORD) {
+          currentPage = moveToPage(currentPage, record.childPageId);
+        } else if (record.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
+          currentPage = moveToPage(currentPage, record.nextAbsoluteOffset);
+        } else break;
+      } while (true);
+    } finally {
+      IO.unpin(currentPage);
+    }
 
     return recordDeleted;
   }
@@ -1619,18 +2748,25 @@ public class IndexPage extends Page {
 
     Pair<Boolean, RecordInPage> result;
     IndexPage currentPage = this;
+    IO.pin(currentPage);
     do {
       result = currentPage.scanInternal(transactionId, searchKey);
       if (result.right.recordType == RecordInPage.USER_POINTER_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.childPageId);
+        currentPage = moveToPage(currentPage, result.right.childPageId);
       } else if (result.right.recordType == RecordInPage.SYSTEM_SUPREME_RECORD) {
-        currentPage = (IndexPage) IO.read(this.spaceId, result.right.nextAbsoluteOffset);
+        currentPage = moveToPage(currentPage, result.right.nextAbsoluteOffset);
       } else break;
     } while (true);
 
     int compareResult = 0;
+    KeyComparator comparator = getKeyComparator();
 
-    ServerRuntime.getWriteLock(transactionId, currentPage.pageReadAndWriteLatch, currentPage);
+    try {
+      ServerRuntime.getWriteLock(transactionId, currentPage);
+    } catch (DeadlockException e) {
+      IO.unpin(currentPage);
+      throw e;
+    }
     currentPage.bLinkTreeLatch.lock();
 
     RecordInPage record = currentPage.infimumRecord;
@@ -1640,9 +2776,23 @@ public class IndexPage extends Page {
 
         if (condition.isSatisfied(record)) {
           if (record.isNotDeleted()) {
+            boolean locked;
+            try {
+              locked = currentPage.lockRowUnderLatch(transactionId, record);
+            } catch (DeadlockException e) {
+              IO.unpin(currentPage);
+              throw e;
+            }
+            if (!locked) {
+              record = currentPage.infimumRecord;
+              previousRecord = null;
+              continue;
+            }
+            UndoLog.logDelete(transactionId, spaceId, record);
             record.setDeleted();
             if (recordsDeleted != null) recordsDeleted.add(record);
-            record.write(transactionId, this, record.myOffset);
+            record.write(transactionId, currentPage, record.myOffset);
+            Vacuum.noteDeleted(currentPage);
             //            System.out.println("record delete" + record);
           } else {
             System.out.println("record is already deleted: " + record);
@@ -1654,9 +2804,10 @@ public class IndexPage extends Page {
     }
 
     if (previousRecord != null)
-      compareResult = ValueWrapper.compareArray(previousRecord.primaryKeyValues, searchKey);
+      compareResult = comparator.compare(previousRecord.primaryKeyValues, searchKey);
 
     currentPage.bLinkTreeLatch.unlock();
+    IO.unpin(currentPage);
 
     return new Pair<>(record.nextAbsoluteOffset, compareResult);
   }
@@ -1670,15 +2821,21 @@ public class IndexPage extends Page {
    */
   public int deleteAll(long transactionId, ArrayList<RecordInPage> recordDeleted) {
 
-    ServerRuntime.getWriteLock(transactionId, this.pageReadAndWriteLatch, this);
+    ServerRuntime.getWriteLock(transactionId, this);
     bLinkTreeLatch.lock();
 
     RecordInPage record = infimumRecord;
     while (record.recordType != RecordInPage.SYSTEM_SUPREME_RECORD) {
       if (record.recordType != RecordInPage.SYSTEM_INFIMUM_RECORD) {
         if (record.isNotDeleted()) {
+          if (!lockRowUnderLatch(transactionId, record)) {
+            record = infimumRecord;
+            continue;
+          }
+          UndoLog.logDelete(transactionId, spaceId, record);
           record.setDeleted();
           record.write(transactionId, this, record.myOffset);
+          Vacuum.noteDeleted(this);
         }
       }
       record = record.nextRecordInPage;
@@ -1710,6 +2867,7 @@ public class IndexPage extends Page {
       System.out.println(page.pageId + "->" + record.childPageId);
       IndexPage son = (IndexPage) IO.read(page.spaceId, record.childPageId);
       printStructrue(son);
+      IO.unpin(son);
       if (record.nextAbsoluteOffset != record.nextRecordInPage.myOffset) {
         exit(81);
       }
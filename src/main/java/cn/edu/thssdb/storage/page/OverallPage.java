@@ -3,11 +3,12 @@ package cn.edu.thssdb.storage.page;
 import cn.edu.thssdb.communication.IO;
 import cn.edu.thssdb.runtime.ServerRuntime;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class OverallPage extends Page {
 
-  public OverallPage(byte[] bytes) {
+  public OverallPage(ByteBuffer bytes) {
     super(bytes);
     parseTablespace();
   }
@@ -19,7 +20,7 @@ public class OverallPage extends Page {
    * @param pageId pageId
    */
   public static OverallPage createOverallPage(long transactionId, int spaceId, int pageId) {
-    OverallPage overallPage = new OverallPage(new byte[ServerRuntime.config.pageSize]);
+    OverallPage overallPage = new OverallPage(ByteBuffer.allocate(ServerRuntime.config.pageSize));
     overallPage.spaceId = spaceId;
     overallPage.pageId = pageId;
     overallPage.maxPageId = new AtomicInteger();
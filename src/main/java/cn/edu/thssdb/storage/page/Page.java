@@ -2,29 +2,21 @@ package cn.edu.thssdb.storage.page;
 
 import cn.edu.thssdb.communication.IO;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /** Basic class for all page */
 public class Page {
-  public SharedSuite makeSuite() {
-    SharedSuite suite = new SharedSuite();
-    suite.freespaceStart = this.freespaceStart;
-    suite.bLinkTreeLatch = this.bLinkTreeLatch;
-    suite.bytes = this.bytes;
-    suite.infimumRecord = this.infimumRecord;
-    suite.pageWriteAndOutputLatch = this.pageWriteAndOutputLatch;
-    suite.pageReadAndWriteLatch = this.pageReadAndWriteLatch;
-    suite.maxPageId = this.maxPageId;
-    suite.counter = 1;
-    suite.isDirty = this.isDirty;
-    return suite;
-  }
-
   public AtomicInteger freespaceStart = new AtomicInteger();
-  public ReentrantReadWriteLock pageReadAndWriteLatch = new ReentrantReadWriteLock();
+  /**
+   * whether transactions lock this page. Only leaves hold data records, so others are not locked.
+   */
+  public boolean lockable = true;
+
   public ReentrantLock pageWriteAndOutputLatch = new ReentrantLock();
 
   /* FIL Header */
@@ -58,48 +50,120 @@ public class Page {
    */
   protected int nextPageId;
 
-  /** the type of current page. OVERALL(0), INDEX_ROOT(2), DATA(3), */
+  /** the type of current page. OVERALL(0), INDEX_ROOT(2), DATA(3), HASH(4) */
   public int pageType;
 
   public static final int OVERALL_PAGE = 0;
   public static final int INDEX_PAGE = 2;
   public static final int DATA_PAGE = 3;
+  public static final int HASH_PAGE = 4;
 
-  /* raw bytes of this page. */
-  public byte[] bytes;
+  /**
+   * raw bytes of this page in big-endian. It is a heap buffer, or a slice of the off-heap arena of
+   * {@code DiskBuffer} if {@code useDirectBuffer} is set. A slice is reused by another page after
+   * eviction, so the bytes shall be accessed only while the page is pinned.
+   */
+  public ByteBuffer bytes;
 
   public ReentrantLock bLinkTreeLatch = new ReentrantLock();
 
   public IndexPage.RecordInPage infimumRecord;
 
+  /**
+   * user records of this page in ascending primary key order. The array is never modified in place;
+   * a new array is published on every change so that readers can binary search it without latches.
+   */
+  public AtomicReference<IndexPage.RecordInPage[]> slotDirectory =
+      new AtomicReference<>(new IndexPage.RecordInPage[0]);
+
+  /**
+   * {@code myOffset} of each place of a data record below {@code freespaceStart} that no record
+   * takes, e.g. one of a record that has been purged. It is guarded by {@code bLinkTreeLatch}.
+   */
+  public ArrayList<Integer> freeOffsets = new ArrayList<>();
+
   public AtomicInteger maxPageId = null;
 
   public AtomicBoolean isDirty = new AtomicBoolean(false);
 
-  public Page(byte[] bytes) {
+  /**
+   * sequence number of the log when this page became dirty. Changes that are not yet on disk are
+   * all described by logs from this one on. It is meaningless if the page is clean.
+   */
+  public volatile long recoveryLSN = 0;
+
+  /**
+   * sequence number of the last write-ahead log of this page. The log shall be on disk before the
+   * page is.
+   */
+  public volatile long pageLSN = 0;
+
+  /**
+   * number of pins on this page in buffer. A pinned page is never evicted. It is {@code -1} after
+   * the page is evicted.
+   */
+  public final AtomicInteger pinCount = new AtomicInteger(0);
+
+  /** reference bit of the CLOCK policy. */
+  public volatile boolean referenced = false;
+
+  /** index of the frame in buffer that holds this page. */
+  public int frameIndex = -1;
+
+  public Page(ByteBuffer bytes) {
     this.bytes = bytes;
     parseFILHeader();
+    pageLSN = LSN;
   }
 
   public int parseIntegerBig(int pos) {
-    return ((bytes[pos] & 0xFF) << 24)
-        | ((bytes[pos + 1] & 0xFF) << 16)
-        | ((bytes[pos + 2] & 0xFF) << 8)
-        | (bytes[pos + 3] & 0xFF);
+    return bytes.getInt(pos);
   }
 
   public long parseLongBig(int pos) {
-    return Integer.toUnsignedLong(parseIntegerBig(pos)) << 32 | parseIntegerBig(pos + 4);
+    return Integer.toUnsignedLong(parseIntegerBig(pos)) << 32
+        | Integer.toUnsignedLong(parseIntegerBig(pos + 4));
   }
 
   public int parseShortBig(int pos) {
-    return ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF);
+    return bytes.getShort(pos) & 0xFFFF;
   }
 
   public long parseSevenByteBig(int pos) {
     return (Integer.toUnsignedLong(parseIntegerBig(pos)) << 24)
         | (Integer.toUnsignedLong(parseShortBig(pos + 4)) << 8)
-        | Integer.toUnsignedLong(bytes[pos + 6] & 0xFF);
+        | Integer.toUnsignedLong(bytes.get(pos + 6) & 0xFF);
+  }
+
+  /**
+   * copy {@code length} bytes from {@code pos} of this page into {@code dst}.
+   *
+   * @param pos position in page
+   * @param dst destination
+   * @param dstOffset offset in destination
+   * @param length number of bytes
+   */
+  public void getBytes(int pos, byte[] dst, int dstOffset, int length) {
+    if (bytes.hasArray()) {
+      System.arraycopy(bytes.array(), bytes.arrayOffset() + pos, dst, dstOffset, length);
+    } else {
+      ByteBuffer view = bytes.duplicate();
+      view.position(pos);
+      view.get(dst, dstOffset, length);
+    }
+  }
+
+  /**
+   * copy {@code length} bytes from {@code pos} of this page into a new array.
+   *
+   * @param pos position in page
+   * @param length number of bytes
+   * @return new array
+   */
+  public byte[] getBytes(int pos, int length) {
+    byte[] dst = new byte[length];
+    getBytes(pos, dst, 0, length);
+    return dst;
   }
 
   /** parse FIL Header */
@@ -114,6 +178,12 @@ public class Page {
     nextPageId = parseIntegerBig(28);
   }
 
+  /** write {@code pageLSN} into the FIL header without logging it, right before output. */
+  public void stampLSN() {
+    LSN = pageLSN;
+    bytes.putLong(16, pageLSN);
+  }
+
   /**
    * Write FIL Header on both disk buffer and WAL log buffer.
    *
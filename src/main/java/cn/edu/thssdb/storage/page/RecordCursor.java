@@ -0,0 +1,217 @@
+package cn.edu.thssdb.storage.page;
+
+import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.KeyComparator;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.type.DataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Flyweight view of a user data record inside {@code Page.bytes}. A cursor is made once per scan
+ * and moved from record to record. Fields are read and compared in place; only fields that are
+ * explicitly requested are turned into objects. <br>
+ * The cursor is valid only while the latch of the page it points to is held. A cursor may also
+ * point to the image of an older version of a record, for snapshot reads.
+ *
+ * <p>Fields are addressed by {@code Column.primary}: {@code [0, primaryKeyNumber)} for primary keys
+ * and {@code [-nonPrimaryKeyNumber, -1]} for non-primary keys.
+ */
+public class RecordCursor {
+  private final int nullBitmapLength;
+  private final Column[] primaryColumns;
+  private final Column[] nonPrimaryColumns;
+  /* offsets of each field relative to myOffset of the record. */
+  private final int[] primaryOffsets;
+  private final int[] nonPrimaryOffsets;
+  /* copy of one field, used when the page is not backed by an array (off-heap frame). */
+  private final byte[] scratch;
+
+  private Page page = null;
+  private int myOffset = 0;
+  /* older version the cursor points to instead of a record in page. */
+  private RecordLogical image = null;
+
+  public RecordCursor(Table.TableMetadata metadata) {
+    this.nullBitmapLength = metadata.getNullBitmapLengthInByte();
+    int primaryKeyNumber = metadata.getPrimaryKeyNumber();
+    int nonPrimaryKeyNumber = metadata.getNonPrimaryKeyNumber();
+    primaryColumns = new Column[primaryKeyNumber];
+    primaryOffsets = new int[primaryKeyNumber];
+    nonPrimaryColumns = new Column[nonPrimaryKeyNumber];
+    nonPrimaryOffsets = new int[nonPrimaryKeyNumber];
+    ArrayList<Integer> primaryOffsetList = metadata.getPrimaryOffsetInOrder();
+    for (int i = 0; i < primaryKeyNumber; i++) {
+      primaryColumns[i] = metadata.getColumnDetailByOrderInType(i, true);
+      primaryOffsets[i] = primaryOffsetList.get(i);
+    }
+    ArrayList<Integer> nonPrimaryOffsetList = metadata.getNonPrimaryKeyOffsetInOrder();
+    for (int i = 0; i < nonPrimaryKeyNumber; i++) {
+      nonPrimaryColumns[i] = metadata.getColumnDetailByOrderInType(i, false);
+      nonPrimaryOffsets[i] = metadata.getPrimaryKeyLength() + nonPrimaryOffsetList.get(i);
+    }
+    scratch = new byte[metadata.getMaxRecordLength(IndexPage.RecordInPage.USER_DATA_RECORD)];
+  }
+
+  /**
+   * point the cursor to the record at {@code myOffset} of {@code page}.
+   *
+   * @param page page
+   * @param myOffset base point of the record
+   */
+  public void moveTo(Page page, int myOffset) {
+    this.page = page;
+    this.myOffset = myOffset;
+    this.image = null;
+  }
+
+  /**
+   * point the cursor to an image of the record made from an older version.
+   *
+   * @param image record image
+   */
+  public void moveTo(RecordLogical image) {
+    this.image = image;
+  }
+
+  public int getOffset() {
+    return myOffset;
+  }
+
+  public boolean isNotDeleted() {
+    if (image != null) return true;
+    return (page.bytes.get(myOffset - 4) & IndexPage.RecordInPage.DELETE_FLAG) == 0;
+  }
+
+  public Column getColumn(int primary) {
+    return primary >= 0 ? primaryColumns[primary] : nonPrimaryColumns[-primary - 1];
+  }
+
+  private int getFieldPosition(int primary) {
+    return myOffset + (primary >= 0 ? primaryOffsets[primary] : nonPrimaryOffsets[-primary - 1]);
+  }
+
+  /**
+   * if the field is null. Primary keys are never null.
+   *
+   * @param primary primary field of the column
+   * @return true if it is null
+   */
+  public boolean isNull(int primary) {
+    if (primary >= 0) return false;
+    if (image != null) return image.nonPrimaryKeyValues[-primary - 1].isNull;
+    int order = -primary - 1;
+    int bitmapByte = page.bytes.get(myOffset - 4 - nullBitmapLength + order / 8);
+    return (bitmapByte & (1 << (order % 8))) != 0;
+  }
+
+  /**
+   * compare the field with {@code value} without materializing the field. Strings are compared as
+   * unsigned UTF-8 bytes, which is the order of code points.
+   *
+   * @param primary primary field of the column
+   * @param value value to compare with
+   * @return the same as {@code ValueWrapper.compareTo}. null if either of them is null.
+   */
+  public Integer compareTo(int primary, ValueWrapper value) {
+    if (value.isNull || isNull(primary)) return null;
+    if (image != null) return getImageValue(primary).compareTo(value);
+    int pos = getFieldPosition(primary);
+    Column column = getColumn(primary);
+    int length =
+        column.type == DataType.STRING
+            ? getStringLength(pos, column.getLength())
+            : column.getLength();
+    KeyComparator.FieldComparator comparator = KeyComparator.forType(column.type);
+    if (page.bytes.hasArray()) {
+      return comparator.compare(
+          page.bytes.array(),
+          page.bytes.arrayOffset() + pos,
+          length,
+          value.bytes,
+          0,
+          value.getValueLength());
+    }
+    page.getBytes(pos, scratch, 0, length);
+    return comparator.compare(scratch, 0, length, value.bytes, 0, value.getValueLength());
+  }
+
+  private int getStringLength(int pos, int maxLength) {
+    for (int i = 0; i < maxLength; i++) {
+      if (page.bytes.get(pos + i) == 0) return i;
+    }
+    return maxLength;
+  }
+
+  /**
+   * materialize one field.
+   *
+   * @param primary primary field of the column
+   * @return newly made value wrapper
+   */
+  public ValueWrapper getValue(int primary) {
+    if (image != null) return new ValueWrapper(getImageValue(primary));
+    Column column = getColumn(primary);
+    if (isNull(primary)) return new ValueWrapper(true, column.type);
+    return new ValueWrapper(
+        page.getBytes(getFieldPosition(primary), column.getLength()),
+        column.type,
+        column.getLength(),
+        column.offPage);
+  }
+
+  /**
+   * turn one field into string directly, the same as {@code getValue(primary).toString()}.
+   *
+   * @param primary primary field of the column
+   * @return string of the value
+   */
+  public String getString(int primary) {
+    if (isNull(primary)) return "null";
+    if (image != null) return getImageValue(primary).toString();
+    int pos = getFieldPosition(primary);
+    Column column = getColumn(primary);
+    switch (column.type) {
+      case INT:
+        return String.valueOf(page.parseIntegerBig(pos));
+      case LONG:
+        return String.valueOf(page.parseLongBig(pos));
+      case DOUBLE:
+        return String.valueOf(Double.longBitsToDouble(page.parseLongBig(pos)));
+      case FLOAT:
+        return String.valueOf(Float.intBitsToFloat(page.parseIntegerBig(pos)));
+      case STRING:
+      default:
+        int length = getStringLength(pos, column.getLength());
+        if (page.bytes.hasArray()) {
+          return new String(
+              page.bytes.array(), page.bytes.arrayOffset() + pos, length, StandardCharsets.UTF_8);
+        }
+        page.getBytes(pos, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+  }
+
+  private ValueWrapper getImageValue(int primary) {
+    return primary >= 0 ? image.primaryKeyValues[primary] : image.nonPrimaryKeyValues[-primary - 1];
+  }
+
+  /**
+   * materialize the whole record. This shall be used only when the record is returned.
+   *
+   * @return record logical
+   */
+  public RecordLogical toRecordLogical() {
+    RecordLogical record = new RecordLogical(primaryColumns.length, nonPrimaryColumns.length);
+    for (int i = 0; i < primaryColumns.length; i++) {
+      record.primaryKeyValues[i] = getValue(i);
+    }
+    for (int i = 0; i < nonPrimaryColumns.length; i++) {
+      record.nonPrimaryKeyValues[i] = getValue(-i - 1);
+    }
+    return record;
+  }
+}
@@ -0,0 +1,100 @@
+package cn.edu.thssdb.storage.pagestore;
+
+import cn.edu.thssdb.runtime.ServerRuntime;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Page store on one persistent {@code FileChannel} per tablespace file. Positional reads and writes
+ * do not move the position of the channel, so threads share the channel without locking.
+ */
+public class ChannelPageStore implements PageStore {
+
+  /** map from tablespace filename to its opened channel. */
+  private final ConcurrentHashMap<String, FileChannel> channels = new ConcurrentHashMap<>();
+
+  private FileChannel getChannel(String filename) throws IOException {
+    FileChannel channel = channels.get(filename);
+    if (channel != null) return channel;
+    synchronized (channels) {
+      channel = channels.get(filename);
+      if (channel == null) {
+        channel = new RandomAccessFile(filename, "rw").getChannel();
+        channels.put(filename, channel);
+      }
+      return channel;
+    }
+  }
+
+  @Override
+  public void read(int spaceId, int pageId, ByteBuffer dst) throws IOException {
+    String filename = ServerRuntime.getTablespaceFile(spaceId);
+    long position = ServerRuntime.config.pageSize * Integer.toUnsignedLong(pageId);
+    while (true) {
+      FileChannel channel = getChannel(filename);
+      ByteBuffer target = (ByteBuffer) dst.duplicate().clear();
+      try {
+        while (target.hasRemaining()) {
+          if (channel.read(target, position + target.position()) < 0) {
+            throw new IOException(
+                "read page error. Wrong length"
+                    + target.position()
+                    + "input:"
+                    + spaceId
+                    + " "
+                    + pageId);
+          }
+        }
+        return;
+      } catch (ClosedChannelException e) {
+        /* closed by close() or by an interrupt of another thread. open it again. */
+        channels.remove(filename, channel);
+      }
+    }
+  }
+
+  @Override
+  public void write(int spaceId, int pageId, ByteBuffer src) throws IOException {
+    String filename = ServerRuntime.getTablespaceFile(spaceId);
+    long position = ServerRuntime.config.pageSize * Integer.toUnsignedLong(pageId);
+    while (true) {
+      FileChannel channel = getChannel(filename);
+      ByteBuffer source = (ByteBuffer) src.duplicate().clear();
+      try {
+        while (source.hasRemaining()) {
+          channel.write(source, position + source.position());
+        }
+        return;
+      } catch (ClosedChannelException e) {
+        channels.remove(filename, channel);
+      }
+    }
+  }
+
+  @Override
+  public void force() throws IOException {
+    for (FileChannel channel : channels.values()) {
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException ignore) {
+        /* nothing is left unwritten in a closed channel. */
+      }
+    }
+  }
+
+  @Override
+  public void close(int spaceId) {
+    FileChannel channel = channels.remove(ServerRuntime.getTablespaceFile(spaceId));
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
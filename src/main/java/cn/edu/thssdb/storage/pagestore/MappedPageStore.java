@@ -0,0 +1,87 @@
+package cn.edu.thssdb.storage.pagestore;
+
+import cn.edu.thssdb.runtime.ServerRuntime;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Page store on memory-mapped regions of tablespace files. A region of {@code REGION_PAGES} pages
+ * is mapped on its first access and kept until the tablespace is closed, so reading a page is a
+ * memory copy from the page cache. It suits read-mostly tablespaces. <br>
+ * Mapping a region extends the file to the end of the region. Pages that are never written there
+ * read as zero.
+ */
+public class MappedPageStore implements PageStore {
+
+  /** number of pages in one mapped region. */
+  public static final int REGION_PAGES = 64;
+
+  /** map from tablespace filename to its mapped regions. */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, MappedByteBuffer>> files =
+      new ConcurrentHashMap<>();
+
+  /**
+   * get the bytes of a page inside its mapped region.
+   *
+   * @return a new view whose position and limit enclose the page
+   */
+  private ByteBuffer getPage(int spaceId, int pageId) throws IOException {
+    String filename = ServerRuntime.getTablespaceFile(spaceId);
+    ConcurrentHashMap<Integer, MappedByteBuffer> regions =
+        files.computeIfAbsent(filename, k -> new ConcurrentHashMap<>());
+    int pageSize = ServerRuntime.config.pageSize;
+    int regionIndex = Integer.divideUnsigned(pageId, REGION_PAGES);
+    MappedByteBuffer region = regions.get(regionIndex);
+    if (region == null) {
+      synchronized (regions) {
+        region = regions.get(regionIndex);
+        if (region == null) {
+          try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            region =
+                file.getChannel()
+                    .map(
+                        FileChannel.MapMode.READ_WRITE,
+                        (long) regionIndex * REGION_PAGES * pageSize,
+                        (long) REGION_PAGES * pageSize);
+          }
+          regions.put(regionIndex, region);
+        }
+      }
+    }
+    ByteBuffer page = region.duplicate();
+    int offset = Integer.remainderUnsigned(pageId, REGION_PAGES) * pageSize;
+    page.limit(offset + pageSize);
+    page.position(offset);
+    return page;
+  }
+
+  @Override
+  public void read(int spaceId, int pageId, ByteBuffer dst) throws IOException {
+    ((ByteBuffer) dst.duplicate().clear()).put(getPage(spaceId, pageId));
+  }
+
+  @Override
+  public void write(int spaceId, int pageId, ByteBuffer src) throws IOException {
+    getPage(spaceId, pageId).put((ByteBuffer) src.duplicate().clear());
+  }
+
+  @Override
+  public void force() {
+    for (ConcurrentHashMap<Integer, MappedByteBuffer> regions : files.values()) {
+      for (MappedByteBuffer region : regions.values()) {
+        region.force();
+      }
+    }
+  }
+
+  @Override
+  public void close(int spaceId) {
+    /* a mapping cannot be released explicitly. it is unmapped once the buffer is collected. */
+    files.remove(ServerRuntime.getTablespaceFile(spaceId));
+  }
+}
@@ -0,0 +1,46 @@
+package cn.edu.thssdb.storage.pagestore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes whole pages of tablespace files. Implementations keep files open across calls,
+ * so that paging in and out does not cost an open/close pair. Every method is thread safe.
+ */
+public interface PageStore {
+
+  /**
+   * read a page from disk.
+   *
+   * @param spaceId tablespace
+   * @param pageId page
+   * @param dst buffer of {@code pageSize} bytes to read into. Its position and limit are unchanged.
+   * @throws IOException if the page does not exist or the reading fails.
+   */
+  void read(int spaceId, int pageId, ByteBuffer dst) throws IOException;
+
+  /**
+   * write a page to disk.
+   *
+   * @param spaceId tablespace
+   * @param pageId page
+   * @param src buffer of {@code pageSize} bytes. Its position and limit are unchanged.
+   * @throws IOException if the writing fails.
+   */
+  void write(int spaceId, int pageId, ByteBuffer src) throws IOException;
+
+  /**
+   * force every written page to the storage device.
+   *
+   * @throws IOException if the forcing fails.
+   */
+  void force() throws IOException;
+
+  /**
+   * release the file of a tablespace. It shall be called when the tablespace file is replaced, so
+   * that no stale handle is used afterwards. The file is opened again on the next access.
+   *
+   * @param spaceId tablespace
+   */
+  void close(int spaceId);
+}
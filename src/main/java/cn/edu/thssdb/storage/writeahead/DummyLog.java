@@ -1,10 +1,14 @@
 package cn.edu.thssdb.storage.writeahead;
 
+import cn.edu.thssdb.runtime.Configuration;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.utils.Pair;
 
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -13,6 +17,9 @@ import java.util.regex.Pattern;
 
 public class DummyLog {
   public static BufferedWriter writer;
+  /* file under the writer, kept to force it to disk. */
+  static FileOutputStream stream;
+  static Thread flusher;
   public static ConcurrentLinkedQueue<String> dummyLogList = new ConcurrentLinkedQueue<>();
   public static ReentrantLock dummyLogOutputLock = new ReentrantLock();
   /**
@@ -58,19 +65,80 @@ public class DummyLog {
     return dirtyCounter.incrementAndGet();
   }
 
+  /**
+   * open the log file for appending and start the flusher if it is not running.
+   *
+   * @param filename log file
+   */
+  public static void open(String filename) throws IOException {
+    dummyLogOutputLock.lock();
+    try {
+      if (writer != null) writer.close();
+      stream = new FileOutputStream(filename, true);
+      writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+      if (flusher == null) {
+        flusher = new Thread(DummyLog::flushLoop, "dummy-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+      }
+    } finally {
+      dummyLogOutputLock.unlock();
+    }
+  }
+
   /** output dummy log from buffer to disk */
   public static void outputDummyLogToDisk() throws Exception {
     String log;
     dummyLogOutputLock.lock();
-    if (writer == null)
-      writer = new BufferedWriter(new FileWriter(ServerRuntime.config.DummyLogFilename, true));
+    try {
+      if (writer == null) open(ServerRuntime.config.DummyLogFilename);
+      while (true) {
+        log = dummyLogList.poll();
+        if (log == null) break;
+        writer.write(log);
+        checkCounter.incrementAndGet();
+      }
+      writer.flush();
+      stream.getFD().sync();
+    } finally {
+      dummyLogOutputLock.unlock();
+    }
+  }
+
+  /**
+   * wait until the log with {@code stamp} is output to disk. A caller that waits for the output of
+   * another one usually finds its log covered by it, so concurrent commits share one output.
+   *
+   * @param stamp value returned by {@code writeDummyLog}
+   */
+  public static void force(int stamp) throws Exception {
+    if (checkCounter.get() >= stamp) return;
+    dummyLogOutputLock.lock();
+    try {
+      if (checkCounter.get() < stamp) outputDummyLogToDisk();
+    } finally {
+      dummyLogOutputLock.unlock();
+    }
+  }
+
+  /**
+   * the flusher. Under ASYNC durability, it outputs the buffer every {@code asyncFlushInterval}.
+   */
+  static void flushLoop() {
     while (true) {
-      log = dummyLogList.poll();
-      if (log == null) break;
-      writer.write(log);
-      checkCounter.incrementAndGet();
+      try {
+        Thread.sleep(ServerRuntime.config.asyncFlushInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (ServerRuntime.config.durability != Configuration.Durability.ASYNC) continue;
+      if (checkCounter.get() >= dirtyCounter.get()) continue;
+      try {
+        outputDummyLogToDisk();
+      } catch (Exception e) {
+        /* the logs stay in buffer and are output again. */
+        e.printStackTrace();
+      }
     }
-    writer.flush();
-    dummyLogOutputLock.unlock();
   }
 }
@@ -0,0 +1,219 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.DiskBuffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static cn.edu.thssdb.storage.DiskBuffer.concat;
+import static cn.edu.thssdb.storage.writeahead.WriteLog.*;
+
+/**
+ * ARIES-style restart recovery from the write-ahead log. <br>
+ * Analysis starts from the last checkpoint and rebuilds the dirty page table and the transactions
+ * that have not finished. Redo repeats history from the minimum recovery LSN, and skips a change if
+ * the LSN in the FIL header of its page shows that the page on disk has it already, so the changes
+ * of unfinished transactions are repeated as well. Undo is logical: rows are locked, not pages, so
+ * other transactions may have changed the same page since, and its bytes before the change are no
+ * longer right. Each unfinished transaction gets back its undo chain from the undo logs that no
+ * compensation log has undone, and is rolled back through the trees by {@code UndoLog}. Only the
+ * log after the checkpoint, and after the first log of any transaction active at the checkpoint, is
+ * read, so restart time depends on the checkpoint distance instead of the age of the database.
+ */
+public class Recovery {
+
+  /** offset of the LSN in the FIL header. */
+  static final int PAGE_LSN_OFFSET = 16;
+
+  /** pages touched by recovery, from concat(spaceId, pageId) to bytes. */
+  private final HashMap<Long, ByteBuffer> pages = new HashMap<>();
+
+  /** map from page to its recovery LSN. */
+  private final HashMap<Long, Long> dirtyPages = new HashMap<>();
+
+  /** map from unfinished transaction to the LSN of its first log. */
+  private final HashMap<Long, Long> transactions = new HashMap<>();
+
+  /** map from unfinished transaction to its undo logs not compensated, from LSN to log. */
+  private final HashMap<Long, LinkedHashMap<Long, WriteLogEntry>> undoLogs = new HashMap<>();
+
+  /** LSN where analysis starts. */
+  private long analysisLSN = FIRST_LSN;
+
+  /** recover pages of every tablespace. It shall be called after metadata is loaded. */
+  public static void recover() throws Exception {
+    new Recovery().run();
+  }
+
+  private void run() throws Exception {
+    long readLSN = readCheckpoint();
+    ArrayList<WriteLogEntry> entries = read(ServerRuntime.config.WALFilename, readLSN);
+    analyze(entries);
+    int redone = redo(entries);
+    /* the logs redone are on disk already. Undo then reads the pages through the buffer. */
+    for (Map.Entry<Long, ByteBuffer> page : pages.entrySet()) {
+      DiskBuffer.writePageBytes(
+          (int) (page.getKey() >> 32), page.getKey().intValue(), page.getValue());
+    }
+    DiskBuffer.flushAll();
+    int losers = transactions.size();
+    int undone = undo();
+    /* compensation logs go to disk before the pages they describe. */
+    forceAll();
+    DiskBuffer.flushAll();
+    System.out.println(
+        "recovery: "
+            + entries.size()
+            + " logs from LSN "
+            + readLSN
+            + ", "
+            + redone
+            + " changes redone, "
+            + undone
+            + " changes of "
+            + losers
+            + " transactions undone");
+    if (!entries.isEmpty()) DiskBuffer.checkpoint();
+  }
+
+  /**
+   * load the dirty page table and the active transactions of the last checkpoint.
+   *
+   * @return LSN from which the log shall be read
+   */
+  private long readCheckpoint() throws Exception {
+    File masterFile = new File(ServerRuntime.config.testPathRecover);
+    if (!masterFile.exists()) return FIRST_LSN;
+    JSONObject record =
+        new JSONObject(new String(Files.readAllBytes(masterFile.toPath()), StandardCharsets.UTF_8));
+    analysisLSN = Math.max(FIRST_LSN, record.getLong("beginLSN"));
+    long readLSN = analysisLSN;
+    JSONArray pageArray = record.getJSONArray("dirtyPages");
+    for (int i = 0; i < pageArray.length(); i++) {
+      JSONArray page = pageArray.getJSONArray(i);
+      long recoveryLSN = Math.max(FIRST_LSN, page.getLong(2));
+      dirtyPages.put(concat(page.getInt(0), page.getInt(1)), recoveryLSN);
+      readLSN = Math.min(readLSN, recoveryLSN);
+    }
+    JSONArray transactionArray = record.getJSONArray("activeTransactions");
+    for (int i = 0; i < transactionArray.length(); i++) {
+      JSONArray transaction = transactionArray.getJSONArray(i);
+      long firstLSN = Math.max(FIRST_LSN, transaction.getLong(1));
+      transactions.put(transaction.getLong(0), firstLSN);
+      readLSN = Math.min(readLSN, firstLSN);
+    }
+    return readLSN;
+  }
+
+  /** bring the dirty page table and the unfinished transactions up to the end of the log. */
+  private void analyze(ArrayList<WriteLogEntry> entries) {
+    for (WriteLogEntry entry : entries) {
+      switch (entry.type) {
+        case COMMIT_LOG:
+        case ABORT_LOG:
+          transactions.remove(entry.transactionId);
+          undoLogs.remove(entry.transactionId);
+          break;
+        case CHECKPOINT_LOG:
+          break;
+        case COMMON_LOG:
+          if (entry.lsn >= analysisLSN)
+            dirtyPages.putIfAbsent(concat(entry.spaceId, entry.pageId), entry.lsn);
+          transactions.putIfAbsent(entry.transactionId, entry.lsn);
+          break;
+        case UNDO_LOG:
+          transactions.putIfAbsent(entry.transactionId, entry.lsn);
+          undoLogs
+              .computeIfAbsent(entry.transactionId, k -> new LinkedHashMap<>())
+              .put(entry.lsn, entry);
+          break;
+        case COMPENSATION_LOG:
+          transactions.putIfAbsent(entry.transactionId, entry.lsn);
+          LinkedHashMap<Long, WriteLogEntry> chain = undoLogs.get(entry.transactionId);
+          if (chain != null) chain.remove(entry.undoneLSN);
+          break;
+        default:
+          transactions.putIfAbsent(entry.transactionId, entry.lsn);
+          break;
+      }
+    }
+  }
+
+  /**
+   * repeat every change that may be missing on disk.
+   *
+   * @return number of changes applied
+   */
+  private int redo(ArrayList<WriteLogEntry> entries) throws Exception {
+    int redone = 0;
+    for (WriteLogEntry entry : entries) {
+      if (entry.type != COMMON_LOG) continue;
+      Long recoveryLSN = dirtyPages.get(concat(entry.spaceId, entry.pageId));
+      if (recoveryLSN == null || entry.lsn < recoveryLSN) continue;
+      ByteBuffer page = getPage(entry.spaceId, entry.pageId);
+      if (page == null || page.getLong(PAGE_LSN_OFFSET) >= entry.lsn) continue;
+      apply(page, entry.offset, entry.newValue, entry.lsn);
+      redone++;
+    }
+    return redone;
+  }
+
+  /**
+   * roll back unfinished transactions through the trees, one after another, and end each of them
+   * with an abort log. The catalog is loaded, and no other transaction runs yet.
+   *
+   * @return number of changes undone
+   */
+  private int undo() {
+    int undone = 0;
+    for (Long transactionId : transactions.keySet()) {
+      ArrayList<UndoLog.UndoRecord> chain = new ArrayList<>();
+      LinkedHashMap<Long, WriteLogEntry> logs = undoLogs.get(transactionId);
+      if (logs != null) {
+        for (WriteLogEntry entry : logs.values()) {
+          chain.add(
+              new UndoLog.UndoRecord(
+                  entry.undoType, entry.spaceId, UndoLog.decode(entry.newValue), entry.lsn));
+        }
+      }
+      ServerRuntime.resumeTransaction(transactionId);
+      UndoLog.restore(transactionId, chain);
+      undone += IO.pushTransactionAbort(transactionId);
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+    return undone;
+  }
+
+  /**
+   * bytes of a page, read from disk on first use.
+   *
+   * @return null if the tablespace no longer exists
+   */
+  private ByteBuffer getPage(int spaceId, int pageId) throws Exception {
+    long key = concat(spaceId, pageId);
+    ByteBuffer page = pages.get(key);
+    if (page != null) return page;
+    if (!Files.exists(Paths.get(ServerRuntime.getTablespaceFile(spaceId)))) return null;
+    page = ByteBuffer.allocate(ServerRuntime.config.pageSize);
+    /* a page beyond the end of the tablespace has never been written, and starts from zeros. */
+    DiskBuffer.readPageBytes(spaceId, pageId, page);
+    pages.put(key, page);
+    return page;
+  }
+
+  private static void apply(ByteBuffer page, int offset, byte[] value, long lsn) {
+    for (int i = 0; i < value.length; i++) page.put(offset + i, value[i]);
+    page.putLong(PAGE_LSN_OFFSET, lsn);
+  }
+}
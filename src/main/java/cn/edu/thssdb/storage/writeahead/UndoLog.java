@@ -0,0 +1,233 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.type.DataType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.System.exit;
+
+/**
+ * Undo chain of running transactions. Every insert and delete of a data record appends the image of
+ * the record before the change, so that a transaction, or its work since a savepoint, can be rolled
+ * back. <br>
+ * Undo is logical: a record is found again by its primary key, because a split may have moved it to
+ * another page since it was changed. The changes made by undo go through the b-link tree and are
+ * logged as usual. Rows touched by the transaction stay locked until it ends, and the same
+ * before-images are kept in {@code VersionStore}, so no other transaction sees the records in
+ * between. <br>
+ * With the write-ahead log, each change is also logged as an undo record before the page changes,
+ * and each change undone as a compensation record afterwards. Restart rebuilds the chain of an
+ * unfinished transaction from the undo records that are not compensated, and rolls it back by the
+ * same logical undo, so the records other transactions have since put on the same pages are kept.
+ */
+public class UndoLog {
+
+  public static final int INSERT = 0;
+  public static final int DELETE = 1;
+
+  /** one change of a data record. */
+  public static class UndoRecord {
+    public final int type;
+    public final int spaceId;
+    /* primary keys of an inserted record, or the whole record before it is deleted. */
+    public final RecordLogical image;
+    /* LSN of the undo log, or -1 if it is not logged. */
+    public final long lsn;
+
+    public UndoRecord(int type, int spaceId, RecordLogical image, long lsn) {
+      this.type = type;
+      this.spaceId = spaceId;
+      this.image = image;
+      this.lsn = lsn;
+    }
+  }
+
+  /** map from transaction to its changes, oldest first. */
+  private static final ConcurrentHashMap<Long, ArrayList<UndoRecord>> chains =
+      new ConcurrentHashMap<>();
+
+  /** transactions being rolled back, whose changes are compensations and not undone again. */
+  private static final Set<Long> undoing = ConcurrentHashMap.newKeySet();
+
+  private static ArrayList<UndoRecord> chainOf(long transactionId) {
+    return chains.computeIfAbsent(transactionId, k -> new ArrayList<>());
+  }
+
+  private static UndoRecord logChange(
+      long transactionId, int type, int spaceId, RecordLogical image) {
+    long lsn = -1;
+    if (!ServerRuntime.config.useDummyLog && !undoing.contains(transactionId)) {
+      lsn = WriteLog.addUndoLog(transactionId, spaceId, type, encode(type, image));
+    }
+    return new UndoRecord(type, spaceId, image, lsn);
+  }
+
+  /**
+   * record that a data record is going to be inserted, or take the place of a deleted one.
+   *
+   * @param transactionId transaction
+   * @param spaceId tablespace of the record
+   * @param record record after insertion
+   */
+  public static void logInsert(long transactionId, int spaceId, IndexPage.RecordInPage record) {
+    VersionStore.beforeChange(transactionId, spaceId, record.primaryKeyValues, null);
+    chainOf(transactionId)
+        .add(logChange(transactionId, INSERT, spaceId, new RecordLogical(record)));
+  }
+
+  /**
+   * record that a data record is going to be deleted.
+   *
+   * @param transactionId transaction
+   * @param spaceId tablespace of the record
+   * @param record record before deletion
+   */
+  public static void logDelete(long transactionId, int spaceId, IndexPage.RecordInPage record) {
+    RecordLogical image = new RecordLogical(record);
+    VersionStore.beforeChange(transactionId, spaceId, image.primaryKeyValues, image);
+    chainOf(transactionId).add(logChange(transactionId, DELETE, spaceId, image));
+  }
+
+  /**
+   * current position of the undo chain, to which the transaction may roll back later.
+   *
+   * @param transactionId transaction
+   * @return number of changes made so far
+   */
+  public static int savepoint(long transactionId) {
+    ArrayList<UndoRecord> chain = chains.get(transactionId);
+    return chain == null ? 0 : chain.size();
+  }
+
+  /**
+   * undo changes of the transaction made after {@code savepoint}, newest first.
+   *
+   * @param transactionId transaction
+   * @param savepoint position returned by {@code savepoint}
+   * @return number of changes undone
+   */
+  public static int rollback(long transactionId, int savepoint) {
+    ArrayList<UndoRecord> chain = chains.get(transactionId);
+    if (chain == null) return 0;
+    int undone = 0;
+    /* undo may wait for locks, but it is never aborted by the deadlock detector. */
+    ServerRuntime.lockManager.setRollingBack(transactionId, true);
+    undoing.add(transactionId);
+    for (int i = chain.size() - 1; i >= savepoint; i--) {
+      UndoRecord undo = chain.get(i);
+      /* changes of a dropped table are gone with it. */
+      if (ServerRuntime.catalog.tableMetadata.containsKey(undo.spaceId)) {
+        try {
+          IndexPage rootPage =
+              (IndexPage) IO.read(undo.spaceId, ServerRuntime.config.indexRootPageIndex);
+          try {
+            if (undo.type == INSERT) {
+              rootPage.scanTreeAndDeleteRecordWithKey(transactionId, undo.image.primaryKeyValues);
+            } else {
+              /* the deleted record keeps its space, and is brought back in place. */
+              rootPage.insertDataRecordIntoTree(transactionId, undo.image);
+            }
+          } finally {
+            IO.unpin(rootPage);
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+          exit(67);
+        }
+        undone++;
+      }
+      if (undo.lsn >= 0) WriteLog.addCompensationLog(transactionId, undo.lsn);
+      /* changes made by undo itself are not undone again. */
+      chain.subList(i, chain.size()).clear();
+    }
+    undoing.remove(transactionId);
+    ServerRuntime.lockManager.setRollingBack(transactionId, false);
+    return undone;
+  }
+
+  /**
+   * drop the undo chain of a transaction that has ended.
+   *
+   * @param transactionId transaction
+   */
+  public static void forget(long transactionId) {
+    chains.remove(transactionId);
+  }
+
+  /**
+   * give a transaction unfinished at a crash the chain rebuilt from its undo logs, so that it can
+   * be rolled back.
+   *
+   * @param transactionId transaction
+   * @param chain changes that are not compensated, oldest first
+   */
+  static void restore(long transactionId, ArrayList<UndoRecord> chain) {
+    chains.put(transactionId, chain);
+  }
+
+  /**
+   * encode the image of an undo record. Only the primary keys of an inserted record are kept. Every
+   * value is laid out as a type byte, a flag byte (1 for null, 2 for off-page), an int length and
+   * the bytes.
+   *
+   * @param type INSERT or DELETE
+   * @param image image of the record
+   * @return bytes of the image
+   */
+  static byte[] encode(int type, RecordLogical image) {
+    ValueWrapper[] nonPrimaryKeyValues =
+        type == INSERT ? new ValueWrapper[0] : image.nonPrimaryKeyValues;
+    int length = 8;
+    for (ValueWrapper value : image.primaryKeyValues) length += 6 + value.bytes.length;
+    for (ValueWrapper value : nonPrimaryKeyValues) length += 6 + value.bytes.length;
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.putInt(image.primaryKeyValues.length);
+    buffer.putInt(nonPrimaryKeyValues.length);
+    for (ValueWrapper value : image.primaryKeyValues) encodeValue(buffer, value);
+    for (ValueWrapper value : nonPrimaryKeyValues) encodeValue(buffer, value);
+    return buffer.array();
+  }
+
+  private static void encodeValue(ByteBuffer buffer, ValueWrapper value) {
+    buffer.put((byte) value.type.ordinal());
+    buffer.put((byte) ((value.isNull ? 1 : 0) | (value.offPage ? 2 : 0)));
+    buffer.putInt(value.bytes.length);
+    buffer.put(value.bytes);
+  }
+
+  /**
+   * decode the image of an undo record made by {@code encode}.
+   *
+   * @param bytes bytes of the image
+   * @return image of the record
+   */
+  static RecordLogical decode(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    RecordLogical image = new RecordLogical(buffer.getInt(), buffer.getInt());
+    for (int i = 0; i < image.primaryKeyValues.length; i++) {
+      image.primaryKeyValues[i] = decodeValue(buffer);
+    }
+    for (int i = 0; i < image.nonPrimaryKeyValues.length; i++) {
+      image.nonPrimaryKeyValues[i] = decodeValue(buffer);
+    }
+    return image;
+  }
+
+  private static ValueWrapper decodeValue(ByteBuffer buffer) {
+    DataType type = DataType.values()[buffer.get()];
+    int flags = buffer.get();
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    ValueWrapper value = new ValueWrapper(bytes, type, bytes.length, (flags & 2) != 0);
+    value.isNull = (flags & 1) != 0;
+    return value;
+  }
+}
@@ -0,0 +1,348 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.utils.Pair;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Old versions of data records for snapshot reads. A page holds only the newest version of each
+ * record. Before a transaction changes a record for the first time, the image of the record before
+ * the change is pushed to the version chain of its primary key, which is the same before-image the
+ * undo chain keeps. <br>
+ * Each transaction gets a snapshot when it begins: the commit timestamp of the latest committed
+ * transaction. A change is visible to a snapshot if it was committed at or before the snapshot, or
+ * made by the reader itself. A reader that finds an invisible change on a record reads the image
+ * before the oldest invisible change instead, and a record absent in that image is skipped. Writers
+ * always change the newest version, so readers never wait for writers and writers never wait for
+ * readers. <br>
+ * Versions that every running snapshot can see through are dropped when the transactions that made
+ * them end. A transaction that commits after the oldest running snapshot waits in {@code retained}
+ * instead, in commit order, and its versions are dropped once every snapshot before its commit has
+ * ended. So a transaction that ends visits only the records changed by the transactions it held
+ * back.
+ */
+public class VersionStore {
+
+  /** commit timestamp of the latest committed transaction. */
+  private static final AtomicLong clock = new AtomicLong(0);
+
+  /** a transaction that has changed records. */
+  private static class Writer {
+    final long transactionId;
+    /* 0 until the transaction commits. */
+    volatile long commitTimestamp = 0;
+    /* the changes of the transaction have been undone. */
+    volatile boolean aborted = false;
+    /* (spaceId, primary key) of each record changed. */
+    final ArrayList<Pair<Integer, String>> keys = new ArrayList<>();
+
+    Writer(long transactionId) {
+      this.transactionId = transactionId;
+    }
+  }
+
+  /** one change of a record. */
+  private static class Version {
+    final Writer writer;
+    /* record before the change, or null if it did not exist. */
+    final RecordLogical before;
+    final Version older;
+
+    Version(Writer writer, RecordLogical before, Version older) {
+      this.writer = writer;
+      this.before = before;
+      this.older = older;
+    }
+  }
+
+  /** map from tablespace to the version chain of each changed record, newest first. */
+  private static final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Version>> tables =
+      new ConcurrentHashMap<>();
+
+  private static final ConcurrentHashMap<Long, Writer> writers = new ConcurrentHashMap<>();
+
+  /** map from running transaction to its snapshot. */
+  private static final ConcurrentHashMap<Long, Long> snapshots = new ConcurrentHashMap<>();
+
+  private static final AtomicInteger versionCount = new AtomicInteger(0);
+
+  /**
+   * committed transactions whose versions some running snapshot may still need, in commit order.
+   * Guarded by itself.
+   */
+  private static final ArrayDeque<Writer> retained = new ArrayDeque<>();
+
+  /**
+   * take the snapshot of a transaction that begins, or a new one for a statement under read
+   * committed.
+   *
+   * @param transactionId transaction
+   */
+  public static void begin(long transactionId) {
+    /* a commit may not drop versions between reading the clock and publishing the snapshot. */
+    synchronized (clock) {
+      snapshots.put(transactionId, clock.get());
+    }
+  }
+
+  /**
+   * snapshot of a transaction. A transaction that was not begun here sees the latest commits.
+   *
+   * @param transactionId transaction
+   * @return commit timestamp of the latest transaction it can see
+   */
+  public static long snapshotOf(long transactionId) {
+    Long snapshot = snapshots.get(transactionId);
+    return snapshot == null ? clock.get() : snapshot;
+  }
+
+  /**
+   * a transaction ends. If it held the oldest snapshot, versions kept only for it are dropped. A
+   * transaction that ends without commit or abort keeps its changes in pages, so they are taken as
+   * committed.
+   *
+   * @param transactionId transaction
+   */
+  public static void end(long transactionId) {
+    commit(transactionId);
+    Long snapshot = snapshots.remove(transactionId);
+    if (snapshot == null) return;
+    synchronized (retained) {
+      if (retained.isEmpty()) return;
+    }
+    long oldest = oldestSnapshot();
+    while (true) {
+      Writer writer;
+      synchronized (retained) {
+        writer = retained.peek();
+        if (writer == null || writer.commitTimestamp > oldest) return;
+        retained.poll();
+      }
+      pruneKeys(writer, oldest);
+    }
+  }
+
+  /**
+   * record the image of a data record before a transaction changes it. Only the first change of the
+   * record by a transaction is kept, since no one else can see the ones after.
+   *
+   * @param transactionId transaction
+   * @param spaceId tablespace of the record
+   * @param primaryKeyValues primary key of the record
+   * @param before record before the change, or null if it does not exist
+   */
+  public static void beforeChange(
+      long transactionId, int spaceId, ValueWrapper[] primaryKeyValues, RecordLogical before) {
+    Writer writer = writers.computeIfAbsent(transactionId, Writer::new);
+    String key = ValueWrapper.toKeyString(primaryKeyValues);
+    boolean[] pushed = {false};
+    tables
+        .computeIfAbsent(spaceId, k -> new ConcurrentHashMap<>())
+        .compute(
+            key,
+            (k, head) -> {
+              if (head != null && head.writer == writer) return head;
+              pushed[0] = true;
+              return new Version(writer, before, head);
+            });
+    if (pushed[0]) {
+      /* a transaction changes records from one thread at a time. */
+      writer.keys.add(new Pair<>(spaceId, key));
+      versionCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * the transaction commits. All its changes become visible to later snapshots at once.
+   *
+   * @param transactionId transaction
+   */
+  public static void commit(long transactionId) {
+    Writer writer = writers.remove(transactionId);
+    if (writer == null) return;
+    long oldest;
+    synchronized (clock) {
+      long timestamp = clock.get() + 1;
+      writer.commitTimestamp = timestamp;
+      clock.set(timestamp);
+      oldest = oldestSnapshot();
+      if (timestamp > oldest) {
+        synchronized (retained) {
+          retained.add(writer);
+        }
+      }
+    }
+    pruneKeys(writer, oldest);
+  }
+
+  /**
+   * the changes of the transaction have been undone, so its versions are no longer needed.
+   *
+   * @param transactionId transaction
+   */
+  public static void abort(long transactionId) {
+    Writer writer = writers.remove(transactionId);
+    if (writer == null) return;
+    writer.aborted = true;
+    pruneKeys(writer, oldestSnapshot());
+  }
+
+  /**
+   * drop all versions of a tablespace, so that every snapshot sees its records as they are in
+   * pages. It is used when a transaction fills a new tablespace that no one else can read yet.
+   *
+   * @param spaceId tablespace
+   */
+  public static void forget(int spaceId) {
+    ConcurrentHashMap<String, Version> chains = tables.remove(spaceId);
+    if (chains == null) return;
+    for (Version version : chains.values()) {
+      for (; version != null; version = version.older) versionCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * commit timestamp of the latest committed transaction, which is the snapshot a transaction
+   * beginning now would take.
+   *
+   * @return commit timestamp
+   */
+  public static long latestCommit() {
+    return clock.get();
+  }
+
+  /**
+   * check if the table has any old version, so that a scan can skip the version lookup.
+   *
+   * @param spaceId tablespace
+   * @return true if some record of the table has old versions
+   */
+  public static boolean hasVersions(int spaceId) {
+    ConcurrentHashMap<String, Version> chains = tables.get(spaceId);
+    return chains != null && !chains.isEmpty();
+  }
+
+  /**
+   * check if a record has any version kept, i.e. a running transaction has changed it, or some
+   * snapshot may not see its latest change. A deleted record without versions can be purged.
+   *
+   * @param spaceId tablespace of the record
+   * @param primaryKeyValues primary key of the record
+   * @return true if the record has versions
+   */
+  public static boolean hasVersion(int spaceId, ValueWrapper[] primaryKeyValues) {
+    ConcurrentHashMap<String, Version> chains = tables.get(spaceId);
+    return chains != null && chains.containsKey(ValueWrapper.toKeyString(primaryKeyValues));
+  }
+
+  /**
+   * check if any old version of a record holds an image of it, so that some snapshot may still see
+   * the record even if it is deleted in page.
+   *
+   * @param spaceId tablespace of the record
+   * @param primaryKeyValues primary key of the record
+   * @return true if an image of the record is kept
+   */
+  public static boolean hasImage(int spaceId, ValueWrapper[] primaryKeyValues) {
+    ConcurrentHashMap<String, Version> chains = tables.get(spaceId);
+    Version version =
+        chains == null ? null : chains.get(ValueWrapper.toKeyString(primaryKeyValues));
+    for (; version != null; version = version.older) {
+      if (version.before != null) return true;
+    }
+    return false;
+  }
+
+  /**
+   * find the version of a record visible to the snapshot of a transaction.
+   *
+   * @param transactionId reader
+   * @param snapshot snapshot of the reader
+   * @param spaceId tablespace of the record
+   * @param primaryKeyValues primary key of the record
+   * @return (true, null) if the record in page is visible as it is. Otherwise (false, image), where
+   *     image is null if the record does not exist in the snapshot.
+   */
+  public static Pair<Boolean, RecordLogical> read(
+      long transactionId, long snapshot, int spaceId, ValueWrapper[] primaryKeyValues) {
+    ConcurrentHashMap<String, Version> chains = tables.get(spaceId);
+    Version version =
+        chains == null ? null : chains.get(ValueWrapper.toKeyString(primaryKeyValues));
+    if (version == null || isVisible(version.writer, transactionId, snapshot))
+      return new Pair<>(true, null);
+    RecordLogical image = null;
+    while (version != null && !isVisible(version.writer, transactionId, snapshot)) {
+      image = version.before;
+      version = version.older;
+    }
+    return new Pair<>(false, image);
+  }
+
+  private static boolean isVisible(Writer writer, long transactionId, long snapshot) {
+    if (writer.transactionId == transactionId) return true;
+    long commitTimestamp = writer.commitTimestamp;
+    return commitTimestamp != 0 && commitTimestamp <= snapshot;
+  }
+
+  private static long oldestSnapshot() {
+    synchronized (clock) {
+      long oldest = clock.get();
+      for (long snapshot : snapshots.values()) oldest = Math.min(oldest, snapshot);
+      return oldest;
+    }
+  }
+
+  private static void pruneKeys(Writer writer, long oldest) {
+    for (Pair<Integer, String> key : writer.keys) {
+      ConcurrentHashMap<String, Version> chains = tables.get(key.left);
+      if (chains != null) prune(chains, key.right, oldest);
+    }
+  }
+
+  /**
+   * drop the versions of a record that no snapshot needs: undone ones, and those visible to every
+   * running snapshot together with all older ones.
+   *
+   * @param oldest oldest running snapshot
+   */
+  private static void prune(ConcurrentHashMap<String, Version> chains, String key, long oldest) {
+    chains.compute(
+        key,
+        (k, head) -> {
+          ArrayList<Version> kept = new ArrayList<>();
+          int dropped = 0;
+          for (Version version = head; version != null; version = version.older) {
+            long commitTimestamp = version.writer.commitTimestamp;
+            if (commitTimestamp != 0 && commitTimestamp <= oldest) {
+              for (; version != null; version = version.older) dropped++;
+              break;
+            }
+            if (version.writer.aborted) dropped++;
+            else kept.add(version);
+          }
+          if (dropped == 0) return head;
+          versionCount.addAndGet(-dropped);
+          Version rebuilt = null;
+          for (int i = kept.size() - 1; i >= 0; i--) {
+            Version version = kept.get(i);
+            rebuilt = new Version(version.writer, version.before, rebuilt);
+          }
+          return rebuilt;
+        });
+  }
+
+  /**
+   * number of old versions kept.
+   *
+   * @return number of versions
+   */
+  public static int size() {
+    return versionCount.get();
+  }
+}
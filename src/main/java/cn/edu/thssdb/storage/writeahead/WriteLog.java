@@ -1,26 +1,58 @@
 package cn.edu.thssdb.storage.writeahead;
 
+import cn.edu.thssdb.runtime.Configuration;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.utils.Pair;
+import org.json.JSONObject;
 
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Vector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.zip.CRC32;
+
+import static java.lang.System.exit;
+
+/**
+ * Physical write-ahead log. Records are encoded in a compact binary format and appended to a
+ * preallocated ring buffer. A flusher thread writes the ring to the log file and forces it, so that
+ * the commits of concurrent transactions that arrive during one {@code force} are made durable
+ * together by the next one (group commit). <br>
+ * The file begins with an 8-byte magic number and the 8-byte LSN of the first record in the file.
+ * LSNs grow with the log, so the LSN of a record is its offset in a log that has never been
+ * truncated. Once the log before the last checkpoint is no longer needed by restart, the file is
+ * truncated by {@code truncate}, and LSNs of the records left are kept. Every record is laid out as
+ * follows, in big-endian:
+ *
+ * <pre>
+ * int  length         bytes of the whole record, including this field and the checksum
+ * long lsn            log sequence number, i.e. offset of the record in the file
+ * long transactionId
+ * int  type
+ * ...  body           depends on type, see {@code WriteLogEntry}
+ * int  checksum       CRC32 of every byte before it
+ * </pre>
+ */
 public class WriteLog {
 
-  public static int checkpointSize = 0;
-  public static FileOutputStream stream;
-  public static ReentrantReadWriteLock writeLogBufferLatch = new ReentrantReadWriteLock();
-  public static ReentrantLock writeLogFileLatch = new ReentrantLock();
-  public static String logString = "";
-
   public static class WriteLogEntry {
     byte[] newValue;
     byte[] oldValue;
 
+    public long lsn;
+
     public long transactionId;
 
     public int length;
@@ -31,11 +63,18 @@ public class WriteLog {
 
     public int databaseId;
 
+    /** {@code UndoLog.INSERT} or {@code UndoLog.DELETE} of an undo record. */
+    public int undoType;
+
+    /** LSN of the undo record that a compensation record has undone. */
+    public long undoneLSN;
+
     /**
      * Type of the record. COMMON(0) COMMIT(1); transaction commit; START(2); transaction start;
      * ABORT(3); transaction abort; CREATE_DATABASE(4); create database newValue (databaseId);
      * DELETE_DATABASE(5); delete database newValue (databaseId); CREATE_TABLE(6); create table
-     * newValue (tableId);
+     * newValue (tableId); UNDO(7); logical undo of a data record newValue (spaceId, undoType);
+     * COMPENSATION(8); the undo record at undoneLSN is undone;
      */
     public int type;
 
@@ -63,13 +102,146 @@ public class WriteLog {
       this.redo_only = redo_only;
     }
 
+    public byte[] getNewValue() {
+      return newValue;
+    }
+
+    public byte[] getOldValue() {
+      return oldValue;
+    }
+
+    /** bytes of the body. */
+    private int bodyLength() {
+      switch (type) {
+        case COMMON_LOG:
+          return 17 + (redo_only ? 0 : length) + length;
+        case CREATE_DATABASE_LOG:
+        case DELETE_DATABASE_LOG:
+        case CREATE_TABLE_LOG:
+          return 4 + newValue.length;
+        case UNDO_LOG:
+          return 5 + newValue.length;
+        case COMPENSATION_LOG:
+          return 8;
+        case CHECKPOINT_LOG:
+          return newValue.length;
+        default:
+          return 0;
+      }
+    }
+
+    /** bytes of the encoded record. */
+    public int encodedLength() {
+      return HEADER_LENGTH + bodyLength() + 4;
+    }
+
+    /**
+     * encode the record at the position of {@code buffer}, and advance the position.
+     *
+     * @param buffer big-endian buffer with at least {@code encodedLength()} bytes remaining
+     */
+    public void encode(ByteBuffer buffer) {
+      int start = buffer.position();
+      buffer.putInt(encodedLength());
+      buffer.putLong(lsn);
+      buffer.putLong(transactionId);
+      buffer.putInt(type);
+      switch (type) {
+        case COMMON_LOG:
+          buffer.putInt(spaceId);
+          buffer.putInt(pageId);
+          buffer.putInt(offset);
+          buffer.putInt(length);
+          buffer.put((byte) (redo_only ? 1 : 0));
+          if (!redo_only) buffer.put(oldValue, 0, length);
+          buffer.put(newValue, 0, length);
+          break;
+        case CREATE_DATABASE_LOG:
+        case DELETE_DATABASE_LOG:
+        case CREATE_TABLE_LOG:
+          buffer.putInt(databaseId);
+          buffer.put(newValue);
+          break;
+        case UNDO_LOG:
+          buffer.putInt(spaceId);
+          buffer.put((byte) undoType);
+          buffer.put(newValue);
+          break;
+        case COMPENSATION_LOG:
+          buffer.putLong(undoneLSN);
+          break;
+        case CHECKPOINT_LOG:
+          buffer.put(newValue);
+          break;
+        default:
+          break;
+      }
+      buffer.putInt(checksum(buffer, start, buffer.position() - start));
+    }
+
+    /**
+     * decode the record at the position of {@code buffer}, and advance the position past it.
+     *
+     * @param buffer big-endian buffer
+     * @return the record, or null if the record is truncated or its checksum does not match, which
+     *     marks the end of the log. The position is not moved in that case.
+     */
+    public static WriteLogEntry decode(ByteBuffer buffer) {
+      int start = buffer.position();
+      if (buffer.remaining() < HEADER_LENGTH + 4) return null;
+      int recordLength = buffer.getInt(start);
+      if (recordLength < HEADER_LENGTH + 4 || recordLength > buffer.remaining()) return null;
+      if (checksum(buffer, start, recordLength - 4) != buffer.getInt(start + recordLength - 4))
+        return null;
+      buffer.position(start + 4);
+      long lsn = buffer.getLong();
+      WriteLogEntry entry = new WriteLogEntry(buffer.getLong(), buffer.getInt());
+      entry.lsn = lsn;
+      int bodyEnd = start + recordLength - 4;
+      switch (entry.type) {
+        case COMMON_LOG:
+          entry.spaceId = buffer.getInt();
+          entry.pageId = buffer.getInt();
+          entry.offset = buffer.getInt();
+          entry.length = buffer.getInt();
+          entry.redo_only = buffer.get() != 0;
+          entry.oldValue = new byte[entry.redo_only ? 0 : entry.length];
+          buffer.get(entry.oldValue);
+          entry.newValue = new byte[entry.length];
+          buffer.get(entry.newValue);
+          break;
+        case CREATE_DATABASE_LOG:
+        case DELETE_DATABASE_LOG:
+        case CREATE_TABLE_LOG:
+          entry.databaseId = buffer.getInt();
+          entry.newValue = new byte[bodyEnd - buffer.position()];
+          buffer.get(entry.newValue);
+          break;
+        case UNDO_LOG:
+          entry.spaceId = buffer.getInt();
+          entry.undoType = buffer.get();
+          entry.newValue = new byte[bodyEnd - buffer.position()];
+          buffer.get(entry.newValue);
+          break;
+        case COMPENSATION_LOG:
+          entry.undoneLSN = buffer.getLong();
+          break;
+        case CHECKPOINT_LOG:
+          entry.newValue = new byte[bodyEnd - buffer.position()];
+          buffer.get(entry.newValue);
+          break;
+        default:
+          break;
+      }
+      buffer.position(start + recordLength);
+      return entry;
+    }
+
     @Override
     public String toString() {
-      // TODO: we may use compressed format for WAL latter, currently we use plain-text.
-      // TODO: this is only for test.
       switch (type) {
         case CHECKPOINT_LOG:
-          return "CHECKPOINT dirty pages are all written to disk.";
+          return "CHECKPOINT RECORD: " + new String(newValue);
         case COMMIT_LOG:
           return "TRANSACTION COMMIT RECORD: transactionId: " + transactionId;
         case START_LOG:
@@ -91,6 +263,20 @@ public class WriteLog {
               + databaseId
               + " tableInfo: \n"
               + new String(newValue);
+        case UNDO_LOG:
+          return "UNDO RECORD: transactionId: "
+              + transactionId
+              + " spaceId: "
+              + spaceId
+              + " undoType: "
+              + undoType
+              + " image length: "
+              + newValue.length;
+        case COMPENSATION_LOG:
+          return "COMPENSATION RECORD: transactionId: "
+              + transactionId
+              + " undoneLSN: "
+              + undoneLSN;
         default:
           StringBuilder result =
               new StringBuilder(
@@ -118,11 +304,6 @@ public class WriteLog {
           return result.toString();
       }
     }
-
-    public void writeToDisk() throws Exception {
-      WriteLog.stream.write((this + "\n").getBytes());
-      //      WriteLogstream.close();
-    }
   }
 
   /* Log Type */
@@ -133,11 +314,326 @@ public class WriteLog {
   public static final int CREATE_DATABASE_LOG = 4;
   public static final int DELETE_DATABASE_LOG = 5;
   public static final int CREATE_TABLE_LOG = 6;
+  public static final int UNDO_LOG = 7;
+  public static final int COMPENSATION_LOG = 8;
 
   public static final int CHECKPOINT_LOG = 1000;
 
-  /** Write Ahead Log Buffer */
-  private static Vector<WriteLogEntry> buffer = new Vector<>();
+  /** bytes of length, lsn, transactionId and type. */
+  static final int HEADER_LENGTH = 24;
+
+  /** "THSSWAL2", the first 8 bytes of a log file. */
+  static final long LOG_MAGIC = 0x5448535357414C32L;
+
+  /** bytes of the magic number and the LSN of the first record in the file. */
+  static final int FILE_HEADER_LENGTH = 16;
+
+  /** LSN of the first record of a new log file. */
+  public static final long FIRST_LSN = FILE_HEADER_LENGTH;
+
+  /** bytes read at a time when a log file is scanned. A longer record is read as a whole. */
+  static final int SCAN_CHUNK = 1024 * 1024;
+
+  /**
+   * CRC32 of {@code length} bytes of {@code buffer} from {@code start}.
+   *
+   * @return checksum in the low 32 bits
+   */
+  static int checksum(ByteBuffer buffer, int start, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer range = buffer.duplicate();
+    range.limit(start + length).position(start);
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+
+  /** LSN of the last log put into buffer, or 0 if the log is empty. */
+  public static final AtomicLong logSequenceNumber = new AtomicLong(0);
+
+  /** LSN of the last log that is forced to disk. */
+  static volatile long durableLSN = 0;
+
+  /** map from active transaction to the LSN of its first log. */
+  public static final ConcurrentHashMap<Long, Long> activeTransactions = new ConcurrentHashMap<>();
+
+  /** latch of the ring buffer and the log file. */
+  static final ReentrantLock logLatch = new ReentrantLock();
+
+  /** signalled when a commit waits for the flusher, or the ring is filling up. */
+  static final Condition flushRequested = logLatch.newCondition();
+
+  /** signalled when the flusher has forced logs and freed space in the ring. */
+  static final Condition flushed = logLatch.newCondition();
+
+  /**
+   * Write Ahead Log Buffer. Bytes of the log from LSN {@code head} to {@code tail} are not in the
+   * file yet. The byte with LSN {@code p} is kept at {@code p % capacity} of the ring.
+   */
+  static final ByteBuffer ring = ByteBuffer.allocateDirect(ServerRuntime.config.walBufferSize);
+
+  /* LSNs, guarded by logLatch. */
+  static long head = 0;
+  static long tail = 0;
+
+  /* number of threads waiting for durability, guarded by logLatch. */
+  static int flushWaiters = 0;
+
+  /* whether the flusher is writing bytes from head on, guarded by logLatch. */
+  static boolean flushing = false;
+
+  static FileChannel channel;
+
+  static String filename;
+
+  /* LSN of the first record in the log file, guarded by logLatch. */
+  static long startLSN = FIRST_LSN;
+
+  static Thread flusher;
+
+  /**
+   * open the log file for appending and start the flusher if it is not running. The end of the log
+   * is searched from the last checkpoint on, which is known to be complete, so the log before it is
+   * not read. A torn record at the end of the file is cut off, and appending continues after the
+   * last complete record.
+   *
+   * @param filename log file
+   */
+  public static void open(String filename) throws IOException {
+    logLatch.lock();
+    try {
+      if (channel != null) channel.close();
+      channel =
+          FileChannel.open(
+              Paths.get(filename),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      WriteLog.filename = filename;
+      if (channel.size() < FILE_HEADER_LENGTH) {
+        channel.truncate(0);
+        writeHeader(channel, FIRST_LSN);
+        channel.force(false);
+      }
+      startLSN = readHeader(channel, filename);
+      Pair<Long, Long> scanned = null;
+      long checkpointLSN = lastCheckpointLSN();
+      if (checkpointLSN > startLSN && checkpointLSN < fileEndLSN(channel, startLSN)) {
+        scanned = scan(channel, startLSN, checkpointLSN, null);
+        /* the master record belongs to another log. */
+        if (scanned.left == 0) scanned = null;
+      }
+      if (scanned == null) scanned = scan(channel, startLSN, startLSN, null);
+      channel.truncate(scanned.right - startLSN + FIRST_LSN);
+      head = scanned.right;
+      tail = scanned.right;
+      logSequenceNumber.set(scanned.left);
+      durableLSN = scanned.left;
+      activeTransactions.clear();
+      if (flusher == null) {
+        flusher = new Thread(WriteLog::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+      }
+    } finally {
+      logLatch.unlock();
+    }
+  }
+
+  /**
+   * LSN of the checkpoint record in the master record.
+   *
+   * @return 0 if there is no master record
+   */
+  private static long lastCheckpointLSN() {
+    try {
+      Path master = Paths.get(ServerRuntime.config.testPathRecover);
+      if (!Files.exists(master)) return 0;
+      JSONObject record =
+          new JSONObject(new String(Files.readAllBytes(master), StandardCharsets.UTF_8));
+      return record.optLong("checkpointLSN", 0);
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  private static void writeHeader(FileChannel file, long firstLSN) throws IOException {
+    ByteBuffer header =
+        ByteBuffer.allocate(FILE_HEADER_LENGTH).putLong(0, LOG_MAGIC).putLong(8, firstLSN);
+    while (header.hasRemaining()) file.write(header, header.position());
+  }
+
+  /** @return LSN of the first record in the file */
+  private static long readHeader(FileChannel file, String filename) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+    while (header.hasRemaining() && file.read(header, header.position()) > 0) {}
+    if (header.getLong(0) != LOG_MAGIC) throw new IOException(filename + " is not a log file.");
+    return header.getLong(8);
+  }
+
+  /** @return LSN after the last byte of the file */
+  private static long fileEndLSN(FileChannel file, long firstLSN) throws IOException {
+    return firstLSN - FIRST_LSN + file.size();
+  }
+
+  /**
+   * read every complete record of a log file. Reading stops at the first torn or corrupted record.
+   *
+   * @param filename log file
+   * @return records in log order
+   */
+  public static ArrayList<WriteLogEntry> read(String filename) throws IOException {
+    return read(filename, FIRST_LSN);
+  }
+
+  /**
+   * read complete records of a log file from a record on. Reading stops at the first torn or
+   * corrupted record.
+   *
+   * @param filename log file
+   * @param fromLSN LSN of the first record to read. Records before the first record in the file
+   *     have been truncated, and reading starts from the first record in that case.
+   * @return records in log order
+   */
+  public static ArrayList<WriteLogEntry> read(String filename, long fromLSN) throws IOException {
+    ArrayList<WriteLogEntry> entries = new ArrayList<>();
+    try (FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      long firstLSN = readHeader(file, filename);
+      scan(file, firstLSN, Math.max(firstLSN, fromLSN), entries);
+    }
+    return entries;
+  }
+
+  /**
+   * scan complete records of a log file from a record on. The file is read in chunks of {@code
+   * SCAN_CHUNK} bytes, so scanning needs no more memory than the longest record. Scanning stops at
+   * the first torn or corrupted record.
+   *
+   * @param file log file
+   * @param firstLSN LSN of the first record in the file
+   * @param fromLSN LSN of the first record to read
+   * @param entries complete records are added to it in log order, or null if they are not kept
+   * @return LSN of the last complete record (0 if there is none), and LSN after it
+   */
+  private static Pair<Long, Long> scan(
+      FileChannel file, long firstLSN, long fromLSN, ArrayList<WriteLogEntry> entries)
+      throws IOException {
+    long shift = firstLSN - FIRST_LSN;
+    long endLSN = fileEndLSN(file, firstLSN);
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_CHUNK);
+    buffer.limit(0);
+    /* LSN of the first byte of buffer. */
+    long bufferLSN = fromLSN;
+    long lastLSN = 0;
+    long lsn;
+    while (true) {
+      lsn = bufferLSN + buffer.position();
+      WriteLogEntry entry = WriteLogEntry.decode(buffer);
+      if (entry == null) {
+        int remaining = buffer.remaining();
+        int needed =
+            remaining < HEADER_LENGTH + 4 ? HEADER_LENGTH + 4 : buffer.getInt(buffer.position());
+        /* a corrupted record, or a record cut off by the end of the file. */
+        if (needed < HEADER_LENGTH + 4 || needed <= remaining || lsn + needed > endLSN) break;
+        buffer.compact();
+        if (buffer.capacity() < needed) {
+          buffer.flip();
+          buffer = ByteBuffer.allocate(needed).put(buffer);
+        }
+        bufferLSN = lsn;
+        while (buffer.hasRemaining()) {
+          if (file.read(buffer, bufferLSN + buffer.position() - shift) <= 0) break;
+        }
+        buffer.flip();
+        if (buffer.remaining() == remaining) break;
+        continue;
+      }
+      if (entry.lsn != lsn) {
+        /* a stale record left behind a truncated tail. */
+        break;
+      }
+      lastLSN = lsn;
+      if (entries != null) entries.add(entry);
+    }
+    return new Pair<>(lastLSN, lsn);
+  }
+
+  /**
+   * discard the log before {@code lsn}, which restart does not read any more. The records from
+   * {@code lsn} on are copied into a new file, which replaces the log file atomically, and their
+   * LSNs do not change. The file is only truncated when the part discarded is at least {@code
+   * walTruncateSize} and at least as long as the part copied, so that a byte of log is copied no
+   * more than once on average.
+   *
+   * @param lsn LSN of a record, such that every restart from the master record reads no log before
+   *     it. The master record shall be on disk.
+   * @return true if the log file is truncated
+   */
+  public static synchronized boolean truncate(long lsn) throws IOException {
+    FileChannel file;
+    long shift;
+    long copied;
+    logLatch.lock();
+    try {
+      lsn = Math.min(lsn, head);
+      if (lsn - startLSN < Math.max(ServerRuntime.config.walTruncateSize, head - lsn)) return false;
+      file = channel;
+      shift = startLSN - FIRST_LSN;
+      copied = head;
+    } finally {
+      logLatch.unlock();
+    }
+    Path path = Paths.get(filename);
+    Path temporary = Paths.get(filename + ".tmp");
+    FileChannel target =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      writeHeader(target, lsn);
+      /* bytes before head are in the file and never written again, so they are copied unlatched. */
+      transfer(file, lsn - shift, copied - lsn, target, FIRST_LSN);
+      target.force(false);
+      logLatch.lock();
+      try {
+        while (flushing) flushed.awaitUninterruptibly();
+        if (channel != file) {
+          target.close();
+          Files.delete(temporary);
+          return false;
+        }
+        /* bytes written by the flusher during the copy. */
+        transfer(file, copied - shift, head - copied, target, FIRST_LSN + copied - lsn);
+        target.force(false);
+        Files.move(
+            temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file.close();
+        channel = target;
+        startLSN = lsn;
+      } finally {
+        logLatch.unlock();
+      }
+    } catch (IOException e) {
+      target.close();
+      throw e;
+    }
+    return true;
+  }
+
+  /** copy {@code count} bytes of {@code source} from {@code position} to {@code target}. */
+  private static void transfer(
+      FileChannel source, long position, long count, FileChannel target, long targetPosition)
+      throws IOException {
+    target.position(targetPosition);
+    while (count > 0) {
+      long transferred = source.transferTo(position, count, target);
+      if (transferred <= 0) throw new IOException(filename + " is shorter than the log.");
+      position += transferred;
+      count -= transferred;
+    }
+  }
 
   /**
    * Add Common Write Log to WAL Buffer
@@ -149,8 +645,9 @@ public class WriteLog {
    * @param length length of bytes to write
    * @param oldValue old value. For undo, oldValue's length shall be 0.
    * @param newValue new value to write
+   * @return LSN of the log
    */
-  public static void addCommonLog(
+  public static long addCommonLog(
       long transactionId,
       int spaceId,
       int pageId,
@@ -158,84 +655,239 @@ public class WriteLog {
       int length,
       byte[] oldValue,
       byte[] newValue) {
-    writeLogBufferLatch.readLock().lock();
-
-    WriteLogEntry entry;
-    if (oldValue.length > 0) {
-      entry =
-          new WriteLogEntry(
-              transactionId, spaceId, pageId, offset, length, oldValue, newValue, false);
-    } else {
-      entry =
-          new WriteLogEntry(
-              transactionId, spaceId, pageId, offset, length, oldValue, newValue, true);
-    }
+    WriteLogEntry entry =
+        new WriteLogEntry(
+            transactionId,
+            spaceId,
+            pageId,
+            offset,
+            length,
+            oldValue,
+            newValue,
+            oldValue.length == 0);
     entry.type = COMMON_LOG; /* 0 for common entry */
-    //    buffer.add(entry);
-    logString += entry.toString() + "\n";
-
-    writeLogBufferLatch.readLock().unlock();
+    return append(entry);
   }
 
-  public static void addSpecialLog(long transactionId, int type) {
-    writeLogBufferLatch.readLock().lock();
-
-    WriteLogEntry entry = new WriteLogEntry(transactionId, type);
-    //    buffer.add(entry);
-    //    logString += entry.toString();
-    logString += entry.toString() + "\n";
-
-    writeLogBufferLatch.readLock().unlock();
+  public static long addSpecialLog(long transactionId, int type) {
+    return append(new WriteLogEntry(transactionId, type));
   }
 
-  public static void addSpecialDatabaseLog(
+  public static long addSpecialDatabaseLog(
       long transactionId, int type, int databaseId, byte[] databaseName) {
-    writeLogBufferLatch.readLock().lock();
-
     WriteLogEntry entry = new WriteLogEntry(transactionId, type);
     entry.databaseId = databaseId;
     entry.newValue = databaseName;
-    //    buffer.add(entry);
-    //    logString += entry.toString();
-    logString += entry.toString() + "\n";
-
-    writeLogBufferLatch.readLock().unlock();
+    return append(entry);
   }
 
-  public static void addCreateTableLog(
+  public static long addCreateTableLog(
       long transactionId, int databaseId, Table.TableMetadata metadata) {
-    writeLogBufferLatch.readLock().lock();
-
     WriteLogEntry entry = new WriteLogEntry(transactionId, CREATE_TABLE_LOG);
     entry.databaseId = databaseId;
     entry.newValue = metadata.object.toString().getBytes(StandardCharsets.UTF_8);
-    //    buffer.add(entry);
-    //    logString += entry.toString();
-    logString += entry.toString() + "\n";
+    return append(entry);
+  }
 
-    writeLogBufferLatch.readLock().unlock();
+  /**
+   * Add Undo Log to WAL Buffer. It is added before the data record changes.
+   *
+   * @param transactionId transaction
+   * @param spaceId tablespace of the data record
+   * @param undoType {@code UndoLog.INSERT} or {@code UndoLog.DELETE}
+   * @param image encoded image of the data record, see {@code UndoLog.encode}
+   * @return LSN of the undo log
+   */
+  public static long addUndoLog(long transactionId, int spaceId, int undoType, byte[] image) {
+    WriteLogEntry entry = new WriteLogEntry(transactionId, UNDO_LOG);
+    entry.spaceId = spaceId;
+    entry.undoType = undoType;
+    entry.newValue = image;
+    return append(entry);
   }
 
-  public static void outputWriteLogToDisk(boolean fileLatchRequired) throws Exception {
-    if (fileLatchRequired) WriteLog.writeLogFileLatch.lock();
+  /**
+   * Add Compensation Log to WAL Buffer. It is added after the change is undone.
+   *
+   * @param transactionId transaction
+   * @param undoneLSN LSN of the undo log that is undone
+   * @return LSN of the compensation log
+   */
+  public static long addCompensationLog(long transactionId, long undoneLSN) {
+    WriteLogEntry entry = new WriteLogEntry(transactionId, COMPENSATION_LOG);
+    entry.undoneLSN = undoneLSN;
+    return append(entry);
+  }
 
-    /* avoid writing WAL buffer and outputting it to disk simultaneously */
-    WriteLog.writeLogBufferLatch.writeLock().lock();
+  /**
+   * Add Checkpoint Log to WAL Buffer
+   *
+   * @param record checkpoint record
+   * @return LSN of the checkpoint log
+   */
+  public static long addCheckpointLog(byte[] record) {
+    WriteLogEntry entry = new WriteLogEntry(-2, CHECKPOINT_LOG);
+    entry.newValue = record;
+    return append(entry);
+  }
 
-    stream = new FileOutputStream(ServerRuntime.config.WALFilename, true);
+  /**
+   * give the record its LSN and copy it into the ring. It waits for the flusher if the ring is
+   * full. A record larger than the ring is written straight to the file after the ring is drained.
+   *
+   * @param entry record
+   * @return LSN of the record
+   */
+  static long append(WriteLogEntry entry) {
+    int recordLength = entry.encodedLength();
+    ByteBuffer encoded = ByteBuffer.allocate(recordLength);
+    logLatch.lock();
+    try {
+      int capacity = ring.capacity();
+      long required = Math.min(recordLength, capacity);
+      if (capacity - (tail - head) < required) {
+        flushWaiters++;
+        while (capacity - (tail - head) < required) {
+          flushRequested.signal();
+          flushed.awaitUninterruptibly();
+        }
+        flushWaiters--;
+      }
+      entry.lsn = tail;
+      entry.encode(encoded);
+      if (recordLength > capacity) {
+        encoded.flip();
+        long offset = tail - startLSN + FIRST_LSN;
+        while (encoded.hasRemaining()) channel.write(encoded, offset + encoded.position());
+        tail += recordLength;
+        head = tail;
+      } else {
+        int position = (int) (tail % capacity);
+        int first = Math.min(recordLength, capacity - position);
+        ByteBuffer target = ring.duplicate();
+        target.position(position);
+        target.put(encoded.array(), 0, first);
+        if (first < recordLength) {
+          target.position(0);
+          target.put(encoded.array(), first, recordLength - first);
+        }
+        tail += recordLength;
+        if (tail - head > capacity / 2) flushRequested.signal();
+      }
+      logSequenceNumber.set(entry.lsn);
+      if (entry.type == COMMIT_LOG || entry.type == ABORT_LOG) {
+        activeTransactions.remove(entry.transactionId);
+      } else if (entry.type != CHECKPOINT_LOG) {
+        activeTransactions.putIfAbsent(entry.transactionId, entry.lsn);
+      }
+      return entry.lsn;
+    } catch (IOException e) {
+      e.printStackTrace();
+      exit(64);
+      return -1;
+    } finally {
+      logLatch.unlock();
+    }
+  }
+
+  /**
+   * wait until every log up to {@code lsn} is forced to disk. Concurrent callers share one force.
+   *
+   * @param lsn log sequence number
+   */
+  public static void force(long lsn) {
+    /* a page read before the log is opened again may carry an LSN of the former log. */
+    lsn = Math.min(lsn, logSequenceNumber.get());
+    if (durableLSN >= lsn) return;
+    logLatch.lock();
+    try {
+      flushWaiters++;
+      while (durableLSN < lsn) {
+        flushRequested.signal();
+        flushed.awaitUninterruptibly();
+      }
+      flushWaiters--;
+    } finally {
+      logLatch.unlock();
+    }
+  }
+
+  /** wait until every log put into buffer is forced to disk. */
+  public static void forceAll() {
+    force(logSequenceNumber.get());
+  }
 
-    WriteLog.stream.write(logString.getBytes());
-    logString = "";
-    //    logString += entry.toString() + "\n";
-    //    for (WriteLog.WriteLogEntry entry : WriteLog.buffer) {
-    //      entry.writeToDisk();
-    //    }
-    //    WriteLog.buffer.clear();
-    stream.close();
+  private static Configuration.Durability durability() {
+    return ServerRuntime.config.durability;
+  }
 
-    /* avoid writing WAL buffer and outputting it to disk simultaneously */
-    WriteLog.writeLogBufferLatch.writeLock().unlock();
+  /** time (in milliseconds) the flusher waits before it writes logs that no one waits for. */
+  private static long flushInterval() {
+    if (durability() == Configuration.Durability.ASYNC)
+      return ServerRuntime.config.asyncFlushInterval;
+    return ServerRuntime.config.walFlushInterval;
+  }
 
-    if (fileLatchRequired) WriteLog.writeLogFileLatch.unlock();
+  /**
+   * the flusher. Each round takes every byte appended to the ring so far, writes it without holding
+   * the latch, forces the file once and wakes up every waiter whose log is covered.
+   */
+  static void flushLoop() {
+    while (true) {
+      long from;
+      long to;
+      long lsn;
+      long shift;
+      FileChannel file;
+      logLatch.lock();
+      try {
+        while (true) {
+          boolean requested = flushWaiters > 0 && durableLSN < logSequenceNumber.get();
+          if (requested || tail - head > ring.capacity() / 2) break;
+          try {
+            boolean timeout = !flushRequested.await(flushInterval(), TimeUnit.MILLISECONDS);
+            if (timeout && tail != head && durability() != Configuration.Durability.NONE) break;
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        from = head;
+        to = tail;
+        lsn = logSequenceNumber.get();
+        file = channel;
+        shift = startLSN - FIRST_LSN;
+        flushing = true;
+      } finally {
+        logLatch.unlock();
+      }
+      try {
+        /* appenders only write after tail, so the bytes from head to tail are stable. */
+        int capacity = ring.capacity();
+        long position = from;
+        while (position < to) {
+          int start = (int) (position % capacity);
+          int end = (int) Math.min(capacity, start + (to - position));
+          ByteBuffer source = ring.duplicate();
+          source.limit(end).position(start);
+          while (source.hasRemaining()) {
+            file.write(source, position - shift + source.position() - start);
+          }
+          position += end - start;
+        }
+        file.force(false);
+      } catch (IOException e) {
+        e.printStackTrace();
+        exit(65);
+      }
+      logLatch.lock();
+      try {
+        head = to;
+        durableLSN = lsn;
+        flushing = false;
+        flushed.signalAll();
+      } finally {
+        logLatch.unlock();
+      }
+    }
   }
 }
@@ -0,0 +1,146 @@
+package cn.edu.thssdb.benchmark;
+
+import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.KeyComparator;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.type.DataType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Micro benchmark of primary key comparison: the per-table {@code KeyComparator} against the former
+ * {@code ValueWrapper.compareArray}, which decoded strings into {@code java.lang.String}, boxed the
+ * result and compared each field twice. Each case runs warm-up rounds before measured rounds, and
+ * results are accumulated into a sink so that the comparisons are not eliminated.
+ */
+public class ComparatorBenchmarkTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ComparatorBenchmarkTest.class);
+
+  private static final int KEY_NUMBER = 4096;
+  private static final int OPERATIONS = 1 << 22;
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURE_ROUNDS = 10;
+
+  private interface KeyCompare {
+    int compare(ValueWrapper[] a, ValueWrapper[] b);
+  }
+
+  /** the former implementation of {@code ValueWrapper.compareTo}. */
+  private static Integer legacyCompareTo(ValueWrapper a, ValueWrapper o) {
+    if (a.isNull || o.isNull) return null;
+    switch (a.type) {
+      case INT:
+        return Integer.compare(a.parseIntegerBig(), o.parseIntegerBig());
+      case LONG:
+        return Long.compare(a.parseLongBig(), o.parseLongBig());
+      case FLOAT:
+        return Float.compare(
+            Float.intBitsToFloat(a.parseIntegerBig()), Float.intBitsToFloat(o.parseIntegerBig()));
+      case DOUBLE:
+        return Double.compare(
+            Double.longBitsToDouble(a.parseLongBig()), Double.longBitsToDouble(o.parseLongBig()));
+      case STRING:
+      default:
+        return a.toString().compareTo(o.toString());
+    }
+  }
+
+  /** the former implementation of {@code ValueWrapper.compareArray}. */
+  private static Integer legacyCompareArray(ValueWrapper[] a, ValueWrapper[] b) {
+    int i;
+    for (i = 0; i < Math.min(a.length, b.length); i++) {
+      if (legacyCompareTo(a[i], b[i]) == null || legacyCompareTo(a[i], b[i]) != 0) break;
+    }
+    if (i < Math.min(a.length, b.length)) return legacyCompareTo(a[i], b[i]);
+    return a.length - b.length;
+  }
+
+  private static ValueWrapper[][] makeKeys(ArrayList<Column> columns) {
+    ValueWrapper[][] keys = new ValueWrapper[KEY_NUMBER][columns.size()];
+    for (int i = 0; i < KEY_NUMBER; i++) {
+      for (int j = 0; j < columns.size(); j++) {
+        Column column = columns.get(j);
+        keys[i][j] = new ValueWrapper(column);
+        switch (column.type) {
+          case INT:
+            /* few distinct values so that later fields are compared as well. */
+            keys[i][j].setWithNull(String.valueOf(ThreadLocalRandom.current().nextInt(16)));
+            break;
+          case LONG:
+            keys[i][j].setWithNull(String.valueOf(ThreadLocalRandom.current().nextLong()));
+            break;
+          case STRING:
+          default:
+            StringBuilder builder = new StringBuilder("key_");
+            for (int k = 0; k < column.getStringLength() - 8; k++) {
+              builder.append((char) ('a' + ThreadLocalRandom.current().nextInt(26)));
+            }
+            keys[i][j].setWithNull("'" + builder + "'");
+            break;
+        }
+      }
+    }
+    return keys;
+  }
+
+  private static double measure(ValueWrapper[][] keys, KeyCompare compare) {
+    long sink = 0;
+    double nanosPerOperation = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < OPERATIONS; i++) {
+        sink += compare.compare(keys[i & (KEY_NUMBER - 1)], keys[(i * 31 + 7) & (KEY_NUMBER - 1)]);
+      }
+      long elapsed = System.nanoTime() - start;
+      if (round >= WARMUP_ROUNDS) nanosPerOperation += (double) elapsed / OPERATIONS;
+    }
+    LOGGER.debug("sink: {}", sink);
+    return nanosPerOperation / MEASURE_ROUNDS;
+  }
+
+  private static void run(String name, ArrayList<Column> columns) {
+    ValueWrapper[][] keys = makeKeys(columns);
+    KeyComparator comparator = new KeyComparator(columns);
+    for (int i = 0; i < KEY_NUMBER; i++) {
+      int other = (i * 31 + 7) & (KEY_NUMBER - 1);
+      assertEquals(
+          Integer.signum(legacyCompareArray(keys[i], keys[other])),
+          Integer.signum(comparator.compare(keys[i], keys[other])));
+    }
+    double legacy = measure(keys, ComparatorBenchmarkTest::legacyCompareArray);
+    double specialized = measure(keys, comparator::compare);
+    LOGGER.info(
+        String.format(
+            "%-16s compareArray: %8.2f ns/op, KeyComparator: %8.2f ns/op, speedup: %.2fx",
+            name, legacy, specialized, legacy / specialized));
+  }
+
+  private static Column makeColumn(String name, DataType type, int length) {
+    Column column = new Column();
+    column.prepare(name, type, length);
+    return column;
+  }
+
+  @Test
+  public void comparatorBenchmark() {
+    LOGGER.info("======================== Key comparator benchmark ======================== ");
+    ArrayList<Column> columns = new ArrayList<>();
+    columns.add(makeColumn("id", DataType.LONG, 0));
+    run("LONG", columns);
+
+    columns = new ArrayList<>();
+    columns.add(makeColumn("name", DataType.STRING, 32));
+    run("STRING(32)", columns);
+
+    columns = new ArrayList<>();
+    columns.add(makeColumn("id", DataType.INT, 0));
+    columns.add(makeColumn("name", DataType.STRING, 32));
+    run("INT, STRING(32)", columns);
+  }
+}
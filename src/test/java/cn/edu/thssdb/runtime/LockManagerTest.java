@@ -0,0 +1,205 @@
+package cn.edu.thssdb.runtime;
+
+import cn.edu.thssdb.exception.DeadlockException;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.type.DataType;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+  private static final LockManager.LockKey A = new LockManager.LockKey(1, 1);
+  private static final LockManager.LockKey B = new LockManager.LockKey(1, 2);
+
+  private static void waitUntilWaiting(LockManager manager, long count) throws Exception {
+    for (int i = 0; i < 500; i++) {
+      if (manager.getMetrics().get("waiting") == count) return;
+      Thread.sleep(10);
+    }
+    fail("waiters did not arrive");
+  }
+
+  @Test
+  public void testSharedAndExclusive() throws Exception {
+    LockManager manager = new LockManager();
+    manager.acquire(1, A, LockManager.SHARED);
+    manager.acquire(2, A, LockManager.SHARED);
+
+    AtomicBoolean granted = new AtomicBoolean(false);
+    Thread writer =
+        new Thread(
+            () -> {
+              manager.acquire(3, A, LockManager.EXCLUSIVE);
+              granted.set(true);
+            });
+    writer.start();
+    waitUntilWaiting(manager, 1);
+
+    /* a reader arriving after the writer queues behind it. */
+    Thread reader = new Thread(() -> manager.acquire(4, A, LockManager.SHARED));
+    reader.start();
+    waitUntilWaiting(manager, 2);
+
+    manager.releaseAll(1);
+    assertFalse(granted.get());
+    manager.release(2, A);
+    writer.join(5000);
+    assertTrue(granted.get());
+    assertTrue(reader.isAlive());
+
+    manager.releaseAll(3);
+    reader.join(5000);
+    assertFalse(reader.isAlive());
+    manager.releaseAll(4);
+
+    assertEquals(0, (long) manager.getMetrics().get("locks"));
+    assertEquals(2, (long) manager.getMetrics().get("waits"));
+    assertEquals(2, manager.getLockMetrics(10).get(A.toString())[0]);
+  }
+
+  @Test
+  public void testReentrantAndConversion() {
+    LockManager manager = new LockManager();
+    manager.acquire(1, A, LockManager.SHARED);
+    manager.acquire(1, A, LockManager.EXCLUSIVE);
+    manager.acquire(1, A, LockManager.SHARED);
+    manager.release(1, A);
+    manager.release(1, A);
+    assertEquals(1, (long) manager.getMetrics().get("locks"));
+    manager.release(1, A);
+    assertEquals(0, (long) manager.getMetrics().get("locks"));
+    assertEquals(0, (long) manager.getMetrics().get("waits"));
+  }
+
+  @Test
+  public void testIntentionLocks() {
+    LockManager manager = new LockManager();
+    LockManager.LockKey table = LockManager.LockKey.table(1);
+    manager.acquire(1, table, LockManager.INTENTION_EXCLUSIVE);
+    manager.acquire(2, table, LockManager.INTENTION_EXCLUSIVE);
+    assertFalse(manager.tryAcquire(3, table, LockManager.SHARED));
+    assertTrue(manager.tryAcquire(3, table, LockManager.INTENTION_SHARED));
+
+    /* writers of different rows in the same page do not wait for each other. */
+    manager.acquire(1, A, LockManager.INTENTION_EXCLUSIVE);
+    manager.acquire(2, A, LockManager.INTENTION_EXCLUSIVE);
+    ValueWrapper[] one = {new ValueWrapper(new byte[] {0, 0, 0, 1}, DataType.INT, 4, false)};
+    ValueWrapper[] two = {new ValueWrapper(new byte[] {0, 0, 0, 2}, DataType.INT, 4, false)};
+    assertTrue(manager.tryAcquire(1, LockManager.LockKey.row(1, one), LockManager.EXCLUSIVE));
+    assertTrue(manager.tryAcquire(2, LockManager.LockKey.row(1, two), LockManager.EXCLUSIVE));
+    assertFalse(manager.tryAcquire(2, LockManager.LockKey.row(1, one), LockManager.EXCLUSIVE));
+    /* but a reader of the whole page does. */
+    assertFalse(manager.tryAcquire(3, A, LockManager.SHARED));
+
+    /* the rows of page A that move to page B stay covered. */
+    assertEquals(2, manager.inherit(A, B).size());
+    assertFalse(manager.tryAcquire(3, B, LockManager.SHARED));
+    manager.releaseAll(1);
+    manager.releaseAll(2);
+    assertTrue(manager.tryAcquire(3, B, LockManager.SHARED));
+
+    /* a reader that starts to write converts to SIX. */
+    manager.acquire(3, B, LockManager.INTENTION_EXCLUSIVE);
+    assertTrue(manager.tryAcquire(4, B, LockManager.INTENTION_SHARED));
+    assertFalse(manager.tryAcquire(4, B, LockManager.INTENTION_EXCLUSIVE));
+    manager.releaseAll(3);
+    manager.releaseAll(4);
+    assertEquals(0, (long) manager.getMetrics().get("locks"));
+  }
+
+  @Test
+  public void testConversionDeadlock() throws Exception {
+    LockManager manager = new LockManager();
+    manager.acquire(1, A, LockManager.SHARED);
+    manager.acquire(2, A, LockManager.SHARED);
+
+    /* both readers want to write the page they have read. */
+    CountDownLatch done = new CountDownLatch(2);
+    AtomicReference<Throwable> older = new AtomicReference<>();
+    AtomicReference<Throwable> younger = new AtomicReference<>();
+    new Thread(
+            () -> {
+              try {
+                manager.acquire(1, A, LockManager.INTENTION_EXCLUSIVE);
+              } catch (Throwable e) {
+                older.set(e);
+              }
+              done.countDown();
+            })
+        .start();
+    waitUntilWaiting(manager, 1);
+    new Thread(
+            () -> {
+              try {
+                manager.acquire(2, A, LockManager.INTENTION_EXCLUSIVE);
+              } catch (Throwable e) {
+                younger.set(e);
+                manager.releaseAll(2);
+              }
+              done.countDown();
+            })
+        .start();
+    waitUntilWaiting(manager, 2);
+
+    manager.detectDeadlocks();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNull(older.get());
+    assertTrue(younger.get() instanceof DeadlockException);
+    /* the survivor holds SIX: readers may still come, writers may not. */
+    assertTrue(manager.tryAcquire(3, A, LockManager.INTENTION_SHARED));
+    assertFalse(manager.tryAcquire(4, A, LockManager.SHARED));
+    manager.releaseAll(1);
+    manager.releaseAll(3);
+  }
+
+  @Test
+  public void testDeadlockAbortsYoungest() throws Exception {
+    LockManager manager = new LockManager();
+    manager.acquire(1, A, LockManager.EXCLUSIVE);
+    manager.acquire(2, B, LockManager.EXCLUSIVE);
+
+    CountDownLatch done = new CountDownLatch(2);
+    AtomicReference<Throwable> older = new AtomicReference<>();
+    AtomicReference<Throwable> younger = new AtomicReference<>();
+    new Thread(
+            () -> {
+              try {
+                manager.acquire(1, B, LockManager.EXCLUSIVE);
+              } catch (Throwable e) {
+                older.set(e);
+              }
+              done.countDown();
+            })
+        .start();
+    new Thread(
+            () -> {
+              try {
+                manager.acquire(2, A, LockManager.EXCLUSIVE);
+              } catch (Throwable e) {
+                younger.set(e);
+                /* the victim is rolled back, which releases its locks. */
+                manager.releaseAll(2);
+              }
+              done.countDown();
+            })
+        .start();
+    waitUntilWaiting(manager, 2);
+
+    /* the background detector may have found the cycle already. */
+    manager.detectDeadlocks();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNull(older.get());
+    assertTrue(younger.get() instanceof DeadlockException);
+    assertFalse(manager.isVictim(2));
+    assertEquals(1, (long) manager.getMetrics().get("deadlocks"));
+    assertEquals(0, manager.detectDeadlocks());
+    manager.releaseAll(1);
+    assertEquals(0, (long) manager.getMetrics().get("locks"));
+  }
+}
@@ -0,0 +1,65 @@
+package cn.edu.thssdb.runtime;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+  @Test
+  public void testAcquireAndRelease() {
+    MemoryBudget budget = new MemoryBudget(100);
+    assertTrue(budget.acquire(60, 0, TimeUnit.MILLISECONDS));
+    assertFalse(budget.acquire(50, 10, TimeUnit.MILLISECONDS));
+    /* a request larger than the whole budget is rejected at once. */
+    assertFalse(budget.acquire(101, 1, TimeUnit.SECONDS));
+    budget.release(60);
+    assertTrue(budget.acquire(100, 0, TimeUnit.MILLISECONDS));
+    budget.release(100);
+    assertEquals(0, budget.getUsed());
+    assertEquals(100, (long) budget.getMetrics().get("peak"));
+    assertEquals(2, (long) budget.getMetrics().get("admitted"));
+    assertEquals(2, (long) budget.getMetrics().get("rejected"));
+  }
+
+  @Test
+  public void testReserveNeverWaits() {
+    MemoryBudget budget = new MemoryBudget(100);
+    budget.reserve(150);
+    assertEquals(150, budget.getUsed());
+    assertFalse(budget.acquire(1, 10, TimeUnit.MILLISECONDS));
+    budget.release(150);
+    assertTrue(budget.acquire(1, 0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testWaitersAreAdmittedInOrder() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    assertTrue(budget.acquire(90, 0, TimeUnit.MILLISECONDS));
+    /* a large request waits first. */
+    CountDownLatch largeAdmitted = new CountDownLatch(1);
+    Thread large =
+        new Thread(
+            () -> {
+              if (budget.acquire(80, 10, TimeUnit.SECONDS)) largeAdmitted.countDown();
+            });
+    large.start();
+    while (budget.getMetrics().get("waiting") != 1) Thread.sleep(1);
+    /* a small request that would fit now does not overtake it. */
+    AtomicBoolean smallAdmitted = new AtomicBoolean(false);
+    Thread small = new Thread(() -> smallAdmitted.set(budget.acquire(10, 10, TimeUnit.SECONDS)));
+    small.start();
+    while (budget.getMetrics().get("waiting") != 2) Thread.sleep(1);
+    assertFalse(smallAdmitted.get());
+
+    budget.release(90);
+    assertTrue(largeAdmitted.await(10, TimeUnit.SECONDS));
+    small.join();
+    assertTrue(smallAdmitted.get());
+    assertEquals(90, budget.getUsed());
+  }
+}
@@ -0,0 +1,115 @@
+package cn.edu.thssdb.schema;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.Configuration;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testBulkLoad() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "L", 100);
+
+    /* rows in random order, more than one run, so that runs are spilled and merged. */
+    int recordNumber = 3000;
+    ArrayList<String> lines = new ArrayList<>();
+    for (int time = 1; time <= recordNumber; time++) lines.add("'value" + time + "', " + time);
+    Collections.shuffle(lines);
+    File file = new File(ServerRuntime.config.testPath, "load.csv");
+    Files.write(file.toPath(), lines);
+    int runSize = ServerRuntime.config.bulkLoadRunSize;
+    double fillFactor = ServerRuntime.config.bulkLoadFillFactor;
+    ServerRuntime.config.bulkLoadRunSize = 1000;
+    /* nearly empty pages make a tree of several levels. */
+    ServerRuntime.config.bulkLoadFillFactor = 0.02;
+
+    long transactionId = ServerRuntime.newTransaction();
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    assertTrue(rootPage.canBulkLoad());
+    try {
+      assertEquals(recordNumber, new BulkLoader(tableMetadata).load(transactionId, file.getPath()));
+    } finally {
+      ServerRuntime.config.bulkLoadRunSize = runSize;
+      ServerRuntime.config.bulkLoadFillFactor = fillFactor;
+    }
+    assertFalse(rootPage.canBulkLoad());
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    /* a snapshot reader sees the records once the load commits. */
+    transactionId = ServerRuntime.newTransaction(Configuration.Isolation.REPEATABLE_READ);
+
+    /* leaves are packed to the fill factor, in order of primary key. */
+    int capacity =
+        (ServerRuntime.config.pageSize - 64 - 1)
+            / (tableMetadata.getMaxRecordLength(IndexPage.RecordInPage.USER_DATA_RECORD) + 2);
+    int recordsPerLeaf = Math.max(2, (int) (capacity * 0.02));
+    int leafNumber = 0;
+    int expected = 1;
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId > 0) {
+      IndexPage leaf = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      Pair<Integer, ArrayList<RecordLogical>> records = leaf.getAllRecordLogical(transactionId);
+      IO.unpin(leaf);
+      for (RecordLogical record : records.right) {
+        assertEquals(expected++, Integer.parseInt(record.primaryKeyValues[0].toString()));
+      }
+      leafNumber++;
+      pageId = records.left;
+    }
+    assertEquals(recordNumber + 1, expected);
+    assertEquals((recordNumber + recordsPerLeaf - 1) / recordsPerLeaf, leafNumber);
+
+    /* every record is found from the root, and the tree takes inserts as usual. */
+    for (int time = 1; time <= recordNumber; time++) {
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          rootPage.scanTreeAndReturnRecord(transactionId, StorageFixture.key(tableMetadata, time));
+      assertTrue(result.left);
+      ValueWrapper value = StorageFixture.value(tableMetadata, "'value" + time + "'");
+      assertEquals(0, (int) value.compareTo(result.right.getNonPrimaryKeyValues()[0]));
+    }
+    IO.unpin(rootPage);
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    transactionId = ServerRuntime.newTransaction();
+    assertFalse(tableMetadata.insertRecord(transactionId, StorageFixture.row(1, "'again'")));
+    for (int time = recordNumber + 1; time <= recordNumber * 2; time++) {
+      assertTrue(
+          tableMetadata.insertRecord(
+              transactionId, StorageFixture.row(time, "'value" + time + "'")));
+    }
+
+    /* a table that is not empty is loaded row by row, and a duplicate key fails the load. */
+    lines.clear();
+    lines.add("'more', " + (recordNumber * 2 + 1));
+    lines.add("'duplicate', 2");
+    Files.write(file.toPath(), lines);
+    try {
+      new BulkLoader(tableMetadata).load(transactionId, file.getPath());
+      fail();
+    } catch (Exception e) {
+      assertTrue(e.getMessage().contains("already exists"));
+    }
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+}
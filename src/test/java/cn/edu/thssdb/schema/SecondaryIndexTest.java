@@ -0,0 +1,155 @@
+package cn.edu.thssdb.schema;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.page.HashPage;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class SecondaryIndexTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testSecondaryIndex() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "J", 100);
+
+    /* records of one value spread over many leaves of the index; every seventh value is null. */
+    int recordNumber = 600;
+    long transactionId = ServerRuntime.newTransaction();
+    for (int time = 1; time <= recordNumber / 2; time++) {
+      assertTrue(
+          tableMetadata.insertRecord(
+              transactionId,
+              StorageFixture.row(time, time % 7 == 0 ? "null" : "'value" + time % 10 + "'")));
+    }
+    /* the records already in the table are indexed when the index is created. */
+    SecondaryIndex index =
+        SecondaryIndex.prepare("index0", tableMetadata, "column-1", SecondaryIndex.BTREE);
+    currentDatabase.createIndex(transactionId, tableMetadata, index);
+    assertSame(index, tableMetadata.getIndexOnColumn("column-1"));
+    assertSame(index.tree, ServerRuntime.catalog.tableMetadata.get(index.tree.spaceId));
+    for (int time = recordNumber / 2 + 1; time <= recordNumber; time++) {
+      assertTrue(
+          tableMetadata.insertRecord(
+              transactionId,
+              StorageFixture.row(time, time % 7 == 0 ? "null" : "'value" + time % 10 + "'")));
+    }
+
+    ValueWrapper three = StorageFixture.value(tableMetadata, "'value3'");
+    ValueWrapper five = StorageFixture.value(tableMetadata, "'value5'");
+    int[] count = new int[10];
+    for (int time = 1; time <= recordNumber; time++) if (time % 7 != 0) count[time % 10]++;
+
+    ArrayList<ValueWrapper[]> primaryKeys =
+        index.findPrimaryKeys(transactionId, three, true, three, true);
+    assertEquals(count[3], primaryKeys.size());
+    for (int i = 0; i < primaryKeys.size(); i++) {
+      int key = Integer.parseInt(primaryKeys.get(i)[0].toString());
+      assertEquals(3, key % 10);
+      if (i > 0) assertTrue(key > Integer.parseInt(primaryKeys.get(i - 1)[0].toString()));
+    }
+    assertEquals(
+        count[3] + count[4], index.findPrimaryKeys(transactionId, three, true, five, false).size());
+    assertEquals(
+        count[0] + count[1] + count[2] + count[3],
+        index.findPrimaryKeys(transactionId, null, false, three, true).size());
+    assertEquals(
+        count[6] + count[7] + count[8] + count[9],
+        index.findPrimaryKeys(transactionId, five, false, null, false).size());
+
+    /* records deleted from the table leave the index with their entries. */
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    for (ValueWrapper[] primaryKey : primaryKeys) {
+      if (Integer.parseInt(primaryKey[0].toString()) % 2 == 0) continue;
+      RecordLogical recordDeleted =
+          rootPage.scanTreeAndDeleteRecordWithKey(transactionId, primaryKey);
+      assertNotNull(recordDeleted);
+      tableMetadata.deleteFromIndexes(transactionId, recordDeleted);
+    }
+    IO.unpin(rootPage);
+    assertEquals(0, index.findPrimaryKeys(transactionId, three, true, three, true).size());
+    assertEquals(count[5], index.findPrimaryKeys(transactionId, five, true, five, true).size());
+
+    currentDatabase.dropIndex(transactionId, tableMetadata, index);
+    assertNull(tableMetadata.getIndexOnColumn("column-1"));
+    assertNull(ServerRuntime.catalog.tableMetadata.get(index.tree.spaceId));
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+
+  @Test
+  public void testHashIndex() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "K", 100);
+
+    /* enough records to split both the leaves of the table and the buckets of the hash table. */
+    int recordNumber = 6000;
+    long transactionId = ServerRuntime.newTransaction();
+    for (int time = 1; time <= recordNumber / 4; time++) {
+      assertTrue(
+          tableMetadata.insertRecord(
+              transactionId, StorageFixture.row(time, "'value" + time + "'")));
+    }
+    /* the records already in the table are hashed when the index is created. */
+    SecondaryIndex index =
+        SecondaryIndex.prepare("index0", tableMetadata, "column0", SecondaryIndex.HASH);
+    currentDatabase.createIndex(transactionId, tableMetadata, index);
+    assertSame(index, tableMetadata.getHashIndex());
+    assertNull(tableMetadata.getIndexOnColumn("column0"));
+    for (int time = recordNumber / 4 + 1; time <= recordNumber; time++) {
+      assertTrue(
+          tableMetadata.insertRecord(
+              transactionId, StorageFixture.row(time, "'value" + time + "'")));
+    }
+
+    HashPage directory = (HashPage) IO.read(index.spaceId, ServerRuntime.config.indexRootPageIndex);
+    assertTrue(directory.depth > 0);
+    for (int time = 1; time <= recordNumber; time++) {
+      ValueWrapper[] primaryKey = StorageFixture.key(tableMetadata, time);
+      assertTrue(directory.find(HashPage.hash(ValueWrapper.toKeyString(primaryKey))) > 0);
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          index.findRecord(transactionId, tableMetadata, primaryKey);
+      assertTrue(result.left);
+      assertEquals(time, Integer.parseInt(result.right.primaryKeyValues[0].toString()));
+      ValueWrapper value = StorageFixture.value(tableMetadata, "'value" + time + "'");
+      assertEquals(0, (int) value.compareTo(result.right.getNonPrimaryKeyValues()[0]));
+    }
+
+    /* deleted records leave the hash table, and are not found any more. */
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    for (int time = 1; time <= recordNumber; time += 3) {
+      RecordLogical recordDeleted =
+          rootPage.scanTreeAndDeleteRecordWithKey(
+              transactionId, StorageFixture.key(tableMetadata, time));
+      assertNotNull(recordDeleted);
+      tableMetadata.deleteFromIndexes(transactionId, recordDeleted);
+    }
+    IO.unpin(rootPage);
+    for (int time = 1; time <= recordNumber + 1; time++) {
+      ValueWrapper[] primaryKey = StorageFixture.key(tableMetadata, time);
+      boolean exists = time <= recordNumber && time % 3 != 1;
+      assertEquals(exists, directory.find(HashPage.hash(ValueWrapper.toKeyString(primaryKey))) > 0);
+      assertEquals(exists, index.findRecord(transactionId, tableMetadata, primaryKey).left);
+    }
+    IO.unpin(directory);
+
+    currentDatabase.dropIndex(transactionId, tableMetadata, index);
+    assertNull(tableMetadata.getHashIndex());
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+}
@@ -1,6 +1,7 @@
 package cn.edu.thssdb.schema;
 
 import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.StorageFixture;
 import cn.edu.thssdb.type.DataType;
 import cn.edu.thssdb.utils.Pair;
 import org.apache.commons.io.FileUtils;
@@ -9,6 +10,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static cn.edu.thssdb.schema.ValueWrapper.compareArray;
@@ -23,6 +25,7 @@ public class ValueWrapperTest {
   public void setup() throws Exception {
     System.out.println("maximum memory: " + Runtime.getRuntime().maxMemory());
     System.out.println(" ##### START TEST");
+    StorageFixture.leaveFormerServer();
     ServerRuntime.config.testPath = "./testOnly" + ThreadLocalRandom.current().nextInt();
     ServerRuntime.config.MetadataFilename = ServerRuntime.config.testPath + "/example.json";
     ServerRuntime.config.WALFilename = ServerRuntime.config.testPath + "/WAL.log";
@@ -44,7 +47,8 @@ public class ValueWrapperTest {
     int transactionId = ServerRuntime.newTablespace();
     Database.DatabaseMetadata.createDatabase(transactionId, databaseName);
     currentDatabase =
-        ServerRuntime.databaseMetadata.get(ServerRuntime.databaseNameLookup.get(databaseName));
+        ServerRuntime.catalog.databaseMetadata.get(
+            ServerRuntime.catalog.databaseNameLookup.get(databaseName));
     assertNotNull(currentDatabase);
     System.out.println("START TEST : metadata info setup");
   }
@@ -286,4 +290,82 @@ public class ValueWrapperTest {
       }
     }
   }
+
+  @Test
+  public void testKeyComparator() {
+    DataType[] types = new DataType[5];
+    types[0] = DataType.INT;
+    types[1] = DataType.STRING;
+    types[2] = DataType.FLOAT;
+    types[3] = DataType.LONG;
+    types[4] = DataType.DOUBLE;
+    for (int i = 0; i < 128; i++) {
+      ArrayList<Column> columns = new ArrayList<>();
+      int keyNumber = ThreadLocalRandom.current().nextInt(1, 4);
+      for (int j = 0; j < keyNumber; j++) {
+        Column column = new Column();
+        column.prepare(
+            "test" + j,
+            types[ThreadLocalRandom.current().nextInt(types.length)],
+            ThreadLocalRandom.current().nextInt(1, 16));
+        columns.add(column);
+      }
+      KeyComparator comparator = new KeyComparator(columns);
+
+      for (int j = 0; j < 256; j++) {
+        ValueWrapper[] a = new ValueWrapper[keyNumber];
+        ValueWrapper[] b = new ValueWrapper[keyNumber];
+        int expected = 0;
+        for (int k = 0; k < keyNumber; k++) {
+          Pair<String, ValueWrapper> x = createSingleValueWrapperRandomly(columns.get(k));
+          Pair<String, ValueWrapper> y =
+              ThreadLocalRandom.current().nextDouble() < 0.3
+                  ? new Pair<>(x.left, new ValueWrapper(x.right))
+                  : createSingleValueWrapperRandomly(columns.get(k));
+          a[k] = x.right;
+          b[k] = y.right;
+          if (expected != 0) continue;
+          /* null is less than any other value. */
+          if (x.right.isNull || y.right.isNull) {
+            expected = Boolean.compare(!x.right.isNull, !y.right.isNull);
+            continue;
+          }
+          switch (columns.get(k).type) {
+            case INT:
+              expected = Integer.compare(Integer.parseInt(x.left), Integer.parseInt(y.left));
+              break;
+            case LONG:
+              expected = Long.compare(Long.parseLong(x.left), Long.parseLong(y.left));
+              break;
+            case FLOAT:
+              expected = Float.compare(Float.parseFloat(x.left), Float.parseFloat(y.left));
+              break;
+            case DOUBLE:
+              expected = Double.compare(Double.parseDouble(x.left), Double.parseDouble(y.left));
+              break;
+            case STRING:
+              expected = x.left.compareTo(y.left);
+              break;
+          }
+        }
+        assertEquals(Integer.signum(expected), Integer.signum(comparator.compare(a, b)));
+        assertEquals(Integer.signum(-expected), Integer.signum(comparator.compare(b, a)));
+        assertEquals(Integer.signum(expected), Integer.signum(compareArray(a, b)));
+        assertEquals(0, comparator.compare(a, a));
+      }
+    }
+
+    /* strings are ordered by unsigned bytes, which is the order of code points. */
+    Column column = new Column();
+    column.prepare("test", DataType.STRING, 8);
+    ValueWrapper ascii = new ValueWrapper(column);
+    ascii.setWithNull("'z'");
+    ValueWrapper chinese = new ValueWrapper(column);
+    chinese.setWithNull("'甲'");
+    ValueWrapper prefix = new ValueWrapper(column);
+    prefix.setWithNull("'甲乙'");
+    assertTrue(ascii.compareTo(chinese) < 0);
+    assertTrue(chinese.compareTo(prefix) < 0);
+    assertTrue(prefix.compareTo(chinese) > 0);
+  }
 }
@@ -0,0 +1,155 @@
+package cn.edu.thssdb.storage;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.RecordCursor;
+import cn.edu.thssdb.type.DataType;
+import cn.edu.thssdb.utils.Pair;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.*;
+
+public class DiskBufferTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testBufferPoolEvictionSingleThread() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "F", 1000);
+    int pinnedBefore = DiskBuffer.pinnedPageNumber();
+
+    /* about 16 records per page, so the tree has more pages than frames in buffer. */
+    int recordNumber = 16 * ServerRuntime.config.bufferSize;
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    for (int time = 0; time < recordNumber; time++) {
+      long transactionId = ServerRuntime.newTransaction();
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              transactionId, StorageFixture.record(tableMetadata, time)));
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+    IO.unpin(rootPage);
+    /* every pin taken by the tree and the transactions is released. */
+    assertEquals(pinnedBefore, DiskBuffer.pinnedPageNumber());
+
+    /* evicted pages are read back from disk with the same content. */
+    int dataPageNumber = 0;
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId != 0) {
+      IndexPage page = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      IndexPage.RecordInPage supremeRecord =
+          page.getRecordInPageAndReturnSupreme(new ArrayList<>());
+      pageId = supremeRecord.isRightest() ? 0 : supremeRecord.nextAbsoluteOffset;
+      IO.unpin(page);
+      dataPageNumber++;
+    }
+    assertTrue(dataPageNumber > ServerRuntime.config.bufferSize);
+
+    rootPage = (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    for (int time = 0; time < recordNumber; time += 97) {
+      long transactionId = ServerRuntime.newTransaction();
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          rootPage.scanTreeAndReturnRecord(transactionId, StorageFixture.key(tableMetadata, time));
+      ServerRuntime.releaseAllLocks(transactionId);
+      assertTrue(result.left);
+      assertEquals("value" + time, result.right.getNonPrimaryKeyValues()[0].toString());
+    }
+    IO.unpin(rootPage);
+    assertEquals(pinnedBefore, DiskBuffer.pinnedPageNumber());
+
+    /* a scan with read-ahead visits every record in order. Under read committed, leaves are
+    released one by one, so the scan goes through more leaves than frames. */
+    boolean serializable = ServerRuntime.config.serializable;
+    ServerRuntime.config.serializable = false;
+    long transactionId = ServerRuntime.newTransaction();
+    RecordCursor cursor = new RecordCursor(tableMetadata);
+    LeafPrefetcher prefetcher = new LeafPrefetcher(tableMetadata.spaceId);
+    int[] expectedKey = {0};
+    pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      pageId =
+          page.scanRecords(
+              transactionId,
+              cursor,
+              (recordCursor) -> {
+                assertEquals(String.valueOf(expectedKey[0]), recordCursor.getString(0));
+                expectedKey[0]++;
+                return true;
+              });
+      IO.unpin(page);
+      prefetcher.visit(pageId);
+    }
+    ServerRuntime.releaseAllLocks(transactionId);
+    ServerRuntime.config.serializable = serializable;
+    assertEquals(recordNumber, expectedKey[0]);
+    /* pins taken by read-ahead are released as well. */
+    for (int i = 0; i < 100 && DiskBuffer.pinnedPageNumber() != pinnedBefore; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(pinnedBefore, DiskBuffer.pinnedPageNumber());
+  }
+
+  @Test
+  public void testFuzzyCheckpointWithPinnedPage() throws Exception {
+    Table.TableMetadata tableMetadata = new Table.TableMetadata();
+    tableMetadata.prepare(
+        "G" + ThreadLocalRandom.current().nextInt(), ServerRuntime.newTablespace());
+    Column keyColumn = new Column();
+    keyColumn.prepare("column0", DataType.INT, 0);
+    keyColumn.setPrimaryKey(0);
+    ArrayList<Column> columns = new ArrayList<>();
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Integer> orders = new ArrayList<>();
+    columns.add(keyColumn);
+    names.add("column0");
+    orders.add(0);
+    tableMetadata.setColumnsAndCompute(names, columns, orders, 1, 0);
+    long transactionId = ServerRuntime.newTransaction();
+    currentDatabase.createTable(transactionId, tableMetadata);
+
+    /* the root stays pinned and dirty while checkpoints are made. */
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    IO.write(transactionId, rootPage, 0, 4, rootPage.getBytes(0, 4), false);
+    assertTrue(rootPage.isDirty.get());
+    DiskBuffer.checkpoint();
+    JSONObject record =
+        new JSONObject(
+            new String(Files.readAllBytes(Paths.get(ServerRuntime.config.testPathRecover))));
+    assertTrue(record.getLong("minRecoveryLSN") <= rootPage.recoveryLSN);
+    assertTrue(record.getLong("minRecoveryLSN") <= record.getLong("checkpointLSN"));
+    JSONArray activeTransactions = record.getJSONArray("activeTransactions");
+    boolean active = false;
+    for (int i = 0; i < activeTransactions.length(); i++) {
+      active |= activeTransactions.getJSONArray(i).getLong(0) == transactionId;
+    }
+    assertTrue(active);
+
+    /* the page has stayed dirty since the previous checkpoint, so it is written back. */
+    DiskBuffer.checkpoint();
+    assertFalse(rootPage.isDirty.get());
+    assertTrue(rootPage.pinCount.get() > 0);
+    IO.unpin(rootPage);
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+}
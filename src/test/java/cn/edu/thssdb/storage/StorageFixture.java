@@ -0,0 +1,129 @@
+package cn.edu.thssdb.storage;
+
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Column;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.schema.ValueWrapper;
+import cn.edu.thssdb.type.DataType;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Fixture shared by the tests of storage: a server running in a directory of its own with an empty
+ * database, and tables of an INT primary key "column0" and a STRING value "column-1" in it.
+ */
+public class StorageFixture {
+
+  public static final String DATABASE_NAME = "testIndexPageDatabase";
+
+  /**
+   * stops a vacuum pass of the server set up before and writes its pages back, so that nothing of
+   * it is read or written once the files of the server move.
+   */
+  public static void leaveFormerServer() throws Exception {
+    Vacuum.start();
+    DiskBuffer.flushAll();
+  }
+
+  /** points the files of the server at a new directory, sets it up and creates a database. */
+  public static Database.DatabaseMetadata setupDatabase() throws Exception {
+    leaveFormerServer();
+    ServerRuntime.config.testPath = "./testOnly" + ThreadLocalRandom.current().nextInt();
+    ServerRuntime.config.MetadataFilename = ServerRuntime.config.testPath + "/example.json";
+    ServerRuntime.config.WALFilename = ServerRuntime.config.testPath + "/WAL.log";
+    ServerRuntime.config.DummyLogFilename = ServerRuntime.config.testPath + "/dummy.log";
+    ServerRuntime.config.tablespacePath = ServerRuntime.config.testPath + "/" + "base";
+    ServerRuntime.config.testPathRecover = ServerRuntime.config.testPath + "/" + "checkpoint";
+    ServerRuntime.config.DummyLogRecoverFilename =
+        ServerRuntime.config.testPath + "/" + "DummyLogRecover.log";
+
+    File testDir = new File(ServerRuntime.config.testPath);
+    try {
+      FileUtils.deleteDirectory(testDir);
+    } catch (Exception ignore) {
+    }
+    testDir.mkdirs();
+    ServerRuntime.setup();
+
+    long transactionId = ServerRuntime.newTransaction();
+    Database.DatabaseMetadata.createDatabase(transactionId, DATABASE_NAME);
+    ServerRuntime.releaseAllLocks(transactionId);
+    Database.DatabaseMetadata database =
+        ServerRuntime.catalog.databaseMetadata.get(
+            ServerRuntime.catalog.databaseNameLookup.get(DATABASE_NAME));
+    assertNotNull(database);
+    return database;
+  }
+
+  /** creates a table of the key "column0" and a value "column-1" of at most valueLength chars. */
+  public static Table.TableMetadata createKeyValueTable(
+      Database.DatabaseMetadata database, String namePrefix, int valueLength) throws Exception {
+    Table.TableMetadata tableMetadata = new Table.TableMetadata();
+    tableMetadata.prepare(
+        namePrefix + ThreadLocalRandom.current().nextInt(), ServerRuntime.newTablespace());
+    ArrayList<Column> columns = new ArrayList<>();
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Integer> orders = new ArrayList<>();
+    Column valueColumn = new Column();
+    valueColumn.prepare("column-1", DataType.STRING, valueLength);
+    valueColumn.setPrimaryKey(-1);
+    Column keyColumn = new Column();
+    keyColumn.prepare("column0", DataType.INT, 0);
+    keyColumn.setPrimaryKey(0);
+    columns.add(valueColumn);
+    columns.add(keyColumn);
+    names.add("column-1");
+    names.add("column0");
+    orders.add(-1);
+    orders.add(0);
+    tableMetadata.setColumnsAndCompute(names, columns, orders, 1, 1);
+
+    long transactionId = ServerRuntime.newTransaction();
+    database.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
+    return tableMetadata;
+  }
+
+  /** the primary key of the given key in a table made by createKeyValueTable. */
+  public static ValueWrapper[] key(Table.TableMetadata tableMetadata, int key) {
+    ValueWrapper[] primaryKey = {
+      new ValueWrapper(tableMetadata.getColumnDetailByOrderInType(0, true))
+    };
+    primaryKey[0].setWithNull(String.valueOf(key));
+    return primaryKey;
+  }
+
+  /** a value of the value column, in the literal form of SQL, such as 'value1' or null. */
+  public static ValueWrapper value(Table.TableMetadata tableMetadata, String literal) {
+    ValueWrapper value = new ValueWrapper(tableMetadata.getColumnDetailByOrderInType(0, false));
+    value.setWithNull(literal);
+    return value;
+  }
+
+  /** a record of the given key and the value "value" followed by the key. */
+  public static RecordLogical record(Table.TableMetadata tableMetadata, int key) {
+    return record(tableMetadata, key, "'value" + key + "'");
+  }
+
+  public static RecordLogical record(Table.TableMetadata tableMetadata, int key, String literal) {
+    RecordLogical record = new RecordLogical(tableMetadata);
+    record.primaryKeyValues[0] = key(tableMetadata, key)[0];
+    record.nonPrimaryKeyValues[0] = value(tableMetadata, literal);
+    return record;
+  }
+
+  /** the values of a row of the given key, in the order of insertRecord. */
+  public static ArrayList<String> row(int key, String literal) {
+    ArrayList<String> values = new ArrayList<>();
+    values.add(String.valueOf(key));
+    values.add(literal);
+    return values;
+  }
+}
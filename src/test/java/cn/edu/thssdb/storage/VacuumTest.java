@@ -0,0 +1,97 @@
+package cn.edu.thssdb.storage;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.Configuration;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.OverallPage;
+import cn.edu.thssdb.storage.writeahead.VersionStore;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class VacuumTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testSpaceReclamation() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "V", 100);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    OverallPage overallPage =
+        (OverallPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.overallPageIndex);
+
+    /* each round replaces all rows by rows of other keys spread over the same leaves. */
+    int recordNumber = 400;
+    int roundNumber = 5;
+    int pageNumber = 0;
+    for (int round = 0; round < roundNumber; round++) {
+      ArrayList<ArrayList<String>> rows = new ArrayList<>();
+      for (int time = 0; time < recordNumber; time++) {
+        rows.add(StorageFixture.row(time * roundNumber + round, "'value" + round + "'"));
+      }
+      long transactionId = ServerRuntime.newTransaction();
+      assertTrue(tableMetadata.insertRecords(transactionId, rows));
+      ServerRuntime.releaseAllLocks(transactionId);
+      if (round == 0) pageNumber = overallPage.maxPageId.get();
+
+      transactionId = ServerRuntime.newTransaction(Configuration.Isolation.REPEATABLE_READ);
+      int expected = 0;
+      int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+      while (pageId > 0) {
+        IndexPage leaf = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+        Pair<Integer, ArrayList<RecordLogical>> records = leaf.getAllRecordLogical(transactionId);
+        IO.unpin(leaf);
+        for (RecordLogical record : records.right) {
+          assertEquals(
+              expected++ * roundNumber + round,
+              Integer.parseInt(record.primaryKeyValues[0].toString()));
+        }
+        pageId = records.left;
+      }
+      assertEquals(recordNumber, expected);
+      ServerRuntime.releaseAllLocks(transactionId);
+
+      transactionId = ServerRuntime.newTransaction();
+      for (int time = 0; time < recordNumber; time++) {
+        assertNotNull(
+            rootPage.scanTreeAndDeleteRecordWithKey(
+                transactionId, StorageFixture.key(tableMetadata, time * roundNumber + round)));
+      }
+      ServerRuntime.releaseAllLocks(transactionId);
+      /* no one else reads the table, so no snapshot needs the deleted records. */
+      VersionStore.forget(tableMetadata.spaceId);
+    }
+    /* inserts take the places of purged records instead of splitting leaves. */
+    assertTrue(overallPage.maxPageId.get() < 2 * pageNumber);
+
+    /* vacuum leaves nothing but the last record of each leaf, which bounds its keys. */
+    Vacuum.vacuum();
+    long transactionId = ServerRuntime.newTransaction();
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId > 0) {
+      IndexPage leaf = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      leaf.vacuum(transactionId, 0);
+      assertTrue(leaf.slotDirectory.get().length <= 1);
+      pageId = leaf.getRightPageId();
+      IO.unpin(leaf);
+    }
+    ServerRuntime.releaseAllLocks(transactionId);
+    IO.unpin(overallPage);
+    IO.unpin(rootPage);
+  }
+}
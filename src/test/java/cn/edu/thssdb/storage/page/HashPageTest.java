@@ -0,0 +1,57 @@
+package cn.edu.thssdb.storage.page;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.SecondaryIndex;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.StorageFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HashPageTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testDirectorySpansPages() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "N", 100);
+    long transactionId = ServerRuntime.newTransaction();
+    SecondaryIndex index =
+        SecondaryIndex.prepare("index0", tableMetadata, "column0", SecondaryIndex.HASH);
+    currentDatabase.createIndex(transactionId, tableMetadata, index);
+    HashPage directory = (HashPage) IO.read(index.spaceId, ServerRuntime.config.indexRootPageIndex);
+    long evicted = HashPage.getMetrics().get("evicted");
+    long omitted = HashPage.getMetrics().get("omitted");
+
+    /* the hashes differ in no bit a directory of one page looks at, but in the next one. So
+    their bucket splits until the directory outgrows its page. */
+    int pageDepth = HashPage.pageDepth();
+    int hashNumber = 2000;
+    long[] hashes = new long[hashNumber];
+    for (int i = 0; i < hashNumber; i++) {
+      hashes[i] = ((long) (i * 0x9E3779B1) << 32) | ((long) (i % 2) << pageDepth);
+      directory.put(transactionId, hashes[i], i + 1);
+    }
+    assertEquals(pageDepth + 1, directory.depth);
+    for (int i = 0; i < hashNumber; i++) assertEquals(i + 1, directory.find(hashes[i]));
+
+    for (int i = 0; i < hashNumber; i += 3) directory.remove(transactionId, hashes[i]);
+    for (int i = 0; i < hashNumber; i++) {
+      assertEquals(i % 3 == 0 ? 0 : i + 1, directory.find(hashes[i]));
+    }
+    /* no hash has lost its place. */
+    assertEquals(evicted, (long) HashPage.getMetrics().get("evicted"));
+    assertEquals(omitted, (long) HashPage.getMetrics().get("omitted"));
+    IO.unpin(directory);
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+}
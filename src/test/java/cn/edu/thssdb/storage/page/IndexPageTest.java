@@ -1,17 +1,19 @@
 package cn.edu.thssdb.storage.page;
 
 import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.Configuration;
 import cn.edu.thssdb.runtime.ServerRuntime;
 import cn.edu.thssdb.schema.*;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.writeahead.UndoLog;
 import cn.edu.thssdb.type.DataType;
 import cn.edu.thssdb.utils.Pair;
-import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static org.junit.Assert.*;
@@ -19,37 +21,13 @@ import static org.junit.Assert.assertFalse;
 
 public class IndexPageTest {
 
-  static File testDir;
-  String databaseName = "testIndexPageDatabase";
   Database.DatabaseMetadata currentDatabase = null;
 
   @Before
   public void setup() throws Exception {
     System.out.println("maximum memory: " + Runtime.getRuntime().maxMemory());
     System.out.println(" ##### START TEST");
-    ServerRuntime.config.testPath = "./testOnly" + ThreadLocalRandom.current().nextInt();
-    ServerRuntime.config.MetadataFilename = ServerRuntime.config.testPath + "/example.json";
-    ServerRuntime.config.WALFilename = ServerRuntime.config.testPath + "/WAL.log";
-    ServerRuntime.config.DummyLogFilename = ServerRuntime.config.testPath + "/dummy.log";
-    ServerRuntime.config.tablespacePath = ServerRuntime.config.testPath + "/" + "base";
-    ServerRuntime.config.testPathRecover = ServerRuntime.config.testPath + "/" + "checkpoint";
-    ServerRuntime.config.DummyLogRecoverFilename =
-        ServerRuntime.config.testPath + "/" + "DummyLogRecover.log";
-
-    testDir = new File(ServerRuntime.config.testPath);
-    try {
-      FileUtils.deleteDirectory(testDir);
-    } catch (Exception ignore) {
-    }
-
-    testDir.mkdirs();
-    ServerRuntime.setup();
-    /* create an empty database for testing purpose. */
-    long transactionId = ServerRuntime.newTransaction();
-    Database.DatabaseMetadata.createDatabase(transactionId, databaseName);
-    currentDatabase =
-        ServerRuntime.databaseMetadata.get(ServerRuntime.databaseNameLookup.get(databaseName));
-    assertNotNull(currentDatabase);
+    currentDatabase = StorageFixture.setupDatabase();
     System.out.println("START TEST : metadata info setup");
   }
 
@@ -105,6 +83,7 @@ public class IndexPageTest {
 
     long transactionId = ServerRuntime.newTransaction();
     currentDatabase.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
 
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
@@ -152,9 +131,8 @@ public class IndexPageTest {
       }
 
       assertEquals(r, checkR);
-      if (!r) continue;
-
       ServerRuntime.releaseAllLocks(transactionId);
+      if (!r) continue;
 
       recordsInRoot.add(record);
 
@@ -167,6 +145,7 @@ public class IndexPageTest {
       while (dataResult.left.intValue() != 0) {
         testPage = (IndexPage) IO.read(tableMetadata.spaceId, dataResult.left);
         dataResult = testPage.getAllRecordLogical(transactionId);
+        IO.unpin(testPage);
         for (int i = 0; i < dataResult.right.size(); i++) {
           recordsParseData.add(dataResult.right.get(i));
           //        System.out.println(dataResult.right.get(i));
@@ -176,10 +155,10 @@ public class IndexPageTest {
       ServerRuntime.releaseAllLocks(transactionId);
 
       dataResult = rootPage.getLeftmostDataPage(transactionId);
+      ServerRuntime.releaseAllLocks(transactionId);
       if (dataResult.left.intValue() == 0) {
         continue;
       }
-      ServerRuntime.releaseAllLocks(transactionId);
       assertNotEquals(dataResult.left.intValue(), 0);
 
       transactionId = ServerRuntime.newTransaction();
@@ -204,6 +183,7 @@ public class IndexPageTest {
     while (dataResult.left.intValue() != 0) {
       testPage = (IndexPage) IO.read(tableMetadata.spaceId, dataResult.left);
       dataResult = testPage.getAllRecordLogical(transactionId);
+      IO.unpin(testPage);
       for (int i = 0; i < dataResult.right.size(); i++) {
         recordsParseData.add(dataResult.right.get(i));
         //        System.out.println(dataResult.right.get(i));
@@ -219,8 +199,7 @@ public class IndexPageTest {
     for (int i = 0; i < recordsParseData.size(); i++) {
       assertEquals(
           ValueWrapper.compareArray(
-                  recordsParseData.get(i).primaryKeyValues, recordsInRoot.get(i).primaryKeyValues)
-              .intValue(),
+              recordsParseData.get(i).primaryKeyValues, recordsInRoot.get(i).primaryKeyValues),
           0);
       Integer result =
           ValueWrapper.compareArray(
@@ -234,12 +213,11 @@ public class IndexPageTest {
       assertTrue(scanResult.left);
       assertEquals(
           ValueWrapper.compareArray(
-                  scanResult.right.primaryKeyValues, recordsInRoot.get(i).primaryKeyValues)
-              .intValue(),
+              scanResult.right.primaryKeyValues, recordsInRoot.get(i).primaryKeyValues),
           0);
       result =
           ValueWrapper.compareArray(
-              scanResult.right.nonPrimaryKeyValues, recordsInRoot.get(i).nonPrimaryKeyValues);
+              scanResult.right.getNonPrimaryKeyValues(), recordsInRoot.get(i).nonPrimaryKeyValues);
       if (result != null) assertEquals(result.intValue(), 0);
 
       transactionId = ServerRuntime.newTransaction();
@@ -266,6 +244,7 @@ public class IndexPageTest {
       }
       assertTrue(found);
     }
+    IO.unpin(rootPage);
   }
 
   @Test
@@ -310,6 +289,7 @@ public class IndexPageTest {
             < ServerRuntime.config.pageSize - 64);
 
     currentDatabase.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
 
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
@@ -355,6 +335,7 @@ public class IndexPageTest {
     }
 
     recordsInRoot.sort((a, b) -> ValueWrapper.compareArray(a.primaryKeyValues, b.primaryKeyValues));
+    IO.unpin(rootPage);
   }
 
   @Test
@@ -393,6 +374,7 @@ public class IndexPageTest {
     long transactionId = ServerRuntime.newTransaction();
 
     currentDatabase.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
 
     IndexPage rootPage =
         (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
@@ -461,12 +443,272 @@ public class IndexPageTest {
               transactionId,
               tableMetadata.spaceId,
               ServerRuntime.config.indexRootPageIndex + time + 1);
-      assertEquals(
-          IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex + time + 1).pageId,
-          ServerRuntime.config.indexRootPageIndex + time + 1);
+      Page page =
+          IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex + time + 1);
+      assertEquals(page.pageId, ServerRuntime.config.indexRootPageIndex + time + 1);
+      IO.unpin(page);
 
       insertPos = pageIndex.scanInternal(transactionId, recordInPage.primaryKeyValues);
       assertFalse(insertPos.left);
+      IO.unpin(pageIndex);
+    }
+    IO.unpin(rootPage);
+  }
+  /** key comparator that counts how many times it is called. */
+  static class CountingKeyComparator extends KeyComparator {
+    static long comparisons = 0;
+
+    CountingKeyComparator(ArrayList<Column> primaryColumns) {
+      super(primaryColumns);
+    }
+
+    @Override
+    public int compare(ValueWrapper[] a, ValueWrapper[] b) {
+      comparisons++;
+      return super.compare(a, b);
+    }
+  }
+
+  @Test
+  public void testSlotDirectoryBinarySearchSingleThread() throws Exception {
+    Table.TableMetadata tableMetadata = new Table.TableMetadata();
+    tableMetadata.prepare(
+        "D" + ThreadLocalRandom.current().nextInt(), ServerRuntime.newTablespace());
+    ArrayList<Column> columns = new ArrayList<>();
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Integer> orders = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      Column column = new Column();
+      String columnName = "column" + String.valueOf(i - 1);
+      column.prepare(columnName, DataType.INT, 0);
+      column.setPrimaryKey(i - 1);
+      names.add(columnName);
+      columns.add(column);
+      orders.add(i - 1);
+    }
+    tableMetadata.setColumnsAndCompute(names, columns, orders, 1, 1);
+    ArrayList<Column> primaryColumns = new ArrayList<>();
+    primaryColumns.add(tableMetadata.getColumnDetailByOrderInType(0, true));
+    tableMetadata.keyComparator = new CountingKeyComparator(primaryColumns);
+
+    long transactionId = ServerRuntime.newTransaction();
+    currentDatabase.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+
+    int recordNumber = 4000;
+    for (int time = 0; time < recordNumber; time++) {
+      RecordLogical record = new RecordLogical(tableMetadata);
+      record.primaryKeyValues[0] =
+          new ValueWrapper(tableMetadata.getColumnDetailByOrderInType(0, true));
+      record.primaryKeyValues[0].setWithNull(String.valueOf(ThreadLocalRandom.current().nextInt()));
+      record.nonPrimaryKeyValues[0] =
+          new ValueWrapper(tableMetadata.getColumnDetailByOrderInType(0, false));
+      record.nonPrimaryKeyValues[0].setWithNull(String.valueOf(time));
+      transactionId = ServerRuntime.newTransaction();
+      rootPage.insertDataRecordIntoTree(transactionId, record);
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+
+    long binaryComparisons = 0;
+    long linearComparisons = 0;
+    long lookups = 0;
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId != 0) {
+      IndexPage page = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      IndexPage.RecordInPage[] slots = page.slotDirectory.get();
+
+      /* slot directory is consistent with the linked list. */
+      IndexPage.RecordInPage record = page.infimumRecord.nextRecordInPage;
+      for (int i = 0; i < slots.length; i++) {
+        assertSame(record, slots[i]);
+        if (i > 0) {
+          assertTrue(
+              ValueWrapper.compareArray(slots[i - 1].primaryKeyValues, slots[i].primaryKeyValues)
+                  < 0);
+        }
+        record = record.nextRecordInPage;
+      }
+      assertEquals(record.recordType, IndexPage.RecordInPage.SYSTEM_SUPREME_RECORD);
+
+      for (IndexPage.RecordInPage slot : slots) {
+        if (!slot.isNotDeleted()) continue;
+        ValueWrapper[] searchKey = new ValueWrapper[] {new ValueWrapper(slot.primaryKeyValues[0])};
+
+        CountingKeyComparator.comparisons = 0;
+        Pair<Boolean, IndexPage.RecordInPage> result = page.scanInternal(transactionId, searchKey);
+        binaryComparisons += CountingKeyComparator.comparisons;
+        assertTrue(result.left);
+        assertSame(result.right, slot);
+
+        /* the linked list walk that scanInternal used to do. */
+        CountingKeyComparator.comparisons = 0;
+        IndexPage.RecordInPage linearRecord = page.infimumRecord.nextRecordInPage;
+        while (tableMetadata.keyComparator.compare(searchKey, linearRecord.primaryKeyValues) > 0) {
+          linearRecord = linearRecord.nextRecordInPage;
+        }
+        linearComparisons += CountingKeyComparator.comparisons;
+        lookups++;
+      }
+
+      pageId = record.isRightest() ? 0 : record.nextAbsoluteOffset;
+    }
+
+    System.out.println(
+        "lookups: "
+            + lookups
+            + ", comparisons per lookup: linear "
+            + (double) linearComparisons / lookups
+            + ", binary search "
+            + (double) binaryComparisons / lookups);
+    assertTrue(lookups > 0);
+    assertTrue(binaryComparisons < linearComparisons);
+  }
+
+  @Test
+  public void testRecordCursorSingleThread() throws Exception {
+    DataType[] types = new DataType[5];
+    types[0] = DataType.INT;
+    types[1] = DataType.STRING;
+    types[2] = DataType.FLOAT;
+    types[3] = DataType.LONG;
+    types[4] = DataType.DOUBLE;
+
+    Table.TableMetadata tableMetadata = new Table.TableMetadata();
+    tableMetadata.prepare(
+        "E" + ThreadLocalRandom.current().nextInt(), ServerRuntime.newTablespace());
+    ArrayList<Column> columns = new ArrayList<>();
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Integer> orders = new ArrayList<>();
+    int primaryKeyNumber = 2;
+    int nonPrimaryKeyNumber = 5;
+    for (int i = 0; i < primaryKeyNumber + nonPrimaryKeyNumber; i++) {
+      Column column = new Column();
+      String columnName = "column" + String.valueOf(i - nonPrimaryKeyNumber);
+      column.prepare(
+          columnName,
+          types[ThreadLocalRandom.current().nextInt(types.length)],
+          ThreadLocalRandom.current().nextInt(5) + 1);
+      column.setPrimaryKey(i - nonPrimaryKeyNumber);
+      names.add(columnName);
+      columns.add(column);
+      orders.add(i - nonPrimaryKeyNumber);
     }
+    tableMetadata.setColumnsAndCompute(
+        names, columns, orders, primaryKeyNumber, nonPrimaryKeyNumber);
+
+    long transactionId = ServerRuntime.newTransaction();
+    currentDatabase.createTable(transactionId, tableMetadata);
+    ServerRuntime.releaseAllLocks(transactionId);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+
+    for (int time = 0; time < 1000; time++) {
+      RecordLogical record = new RecordLogical(tableMetadata);
+      for (int i = 0; i < record.primaryKeyValues.length; i++) {
+        Pair<String, ValueWrapper> r =
+            ValueWrapperTest.createSingleValueWrapperRandomly(
+                tableMetadata.getColumnDetailByOrderInType(i, true));
+        while (r.right.isNull)
+          r =
+              ValueWrapperTest.createSingleValueWrapperRandomly(
+                  tableMetadata.getColumnDetailByOrderInType(i, true));
+        record.primaryKeyValues[i] = r.right;
+      }
+      for (int i = 0; i < record.nonPrimaryKeyValues.length; i++) {
+        record.nonPrimaryKeyValues[i] =
+            ValueWrapperTest.createSingleValueWrapperRandomly(
+                    tableMetadata.getColumnDetailByOrderInType(i, false))
+                .right;
+      }
+      transactionId = ServerRuntime.newTransaction();
+      rootPage.insertDataRecordIntoTree(transactionId, record);
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+
+    /* records read through cursor are the same as the deep copied ones. */
+    transactionId = ServerRuntime.newTransaction();
+    RecordCursor cursor = new RecordCursor(tableMetadata);
+    int pageId = rootPage.getLeftmostDataPage(transactionId).left;
+    int recordNumber = 0;
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      ArrayList<RecordLogical> records = page.getAllRecordLogical(transactionId).right;
+      ArrayList<RecordLogical> recordsByCursor = new ArrayList<>();
+      pageId =
+          page.scanRecords(
+              transactionId,
+              cursor,
+              (recordCursor) -> {
+                RecordLogical record = recordCursor.toRecordLogical();
+                for (int i = -nonPrimaryKeyNumber; i < primaryKeyNumber; i++) {
+                  ValueWrapper value =
+                      i < 0 ? record.nonPrimaryKeyValues[-i - 1] : record.primaryKeyValues[i];
+                  assertEquals(recordCursor.getString(i), value.toString());
+                  assertEquals(recordCursor.isNull(i), value.isNull);
+                  if (!value.isNull) assertEquals(recordCursor.compareTo(i, value).intValue(), 0);
+                }
+                recordsByCursor.add(record);
+                return true;
+              });
+      assertEquals(records.size(), recordsByCursor.size());
+      for (int i = 0; i < records.size(); i++) {
+        assertEquals(records.get(i).toString(), recordsByCursor.get(i).toString());
+      }
+      recordNumber += records.size();
+    }
+    ServerRuntime.releaseAllLocks(transactionId);
+    assertTrue(recordNumber > 0);
+  }
+
+  @Test
+  public void testInsertRecords() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "M", 100);
+    /* even keys fill an empty table over many leaves, then odd keys go between them. */
+    int recordNumber = 2000;
+    for (int parity = 0; parity < 2; parity++) {
+      ArrayList<ArrayList<String>> rows = new ArrayList<>();
+      for (int time = 2 - parity; time <= recordNumber; time += 2) {
+        rows.add(StorageFixture.row(time, "'value" + time + "'"));
+      }
+      Collections.shuffle(rows);
+      long transactionId = ServerRuntime.newTransaction();
+      assertTrue(tableMetadata.insertRecords(transactionId, rows));
+      ServerRuntime.releaseAllLocks(transactionId);
+    }
+
+    /* a batch with an existing key fails after inserting the rows before it in key order. */
+    long transactionId = ServerRuntime.newTransaction();
+    ArrayList<ArrayList<String>> rows = new ArrayList<>();
+    for (int time : new int[] {recordNumber + 1, 5, 0}) {
+      rows.add(StorageFixture.row(time, "'again'"));
+    }
+    assertFalse(tableMetadata.insertRecords(transactionId, rows));
+    assertEquals(1, UndoLog.rollback(transactionId, 0));
+    UndoLog.forget(transactionId);
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    transactionId = ServerRuntime.newTransaction(Configuration.Isolation.REPEATABLE_READ);
+    int leafNumber = 0;
+    int expected = 1;
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId > 0) {
+      IndexPage leaf = (IndexPage) IO.read(tableMetadata.spaceId, pageId);
+      Pair<Integer, ArrayList<RecordLogical>> records = leaf.getAllRecordLogical(transactionId);
+      IO.unpin(leaf);
+      for (RecordLogical record : records.right) {
+        assertEquals(expected, Integer.parseInt(record.primaryKeyValues[0].toString()));
+        ValueWrapper value = StorageFixture.value(tableMetadata, "'value" + expected + "'");
+        assertEquals(0, (int) value.compareTo(record.nonPrimaryKeyValues[0]));
+        expected++;
+      }
+      leafNumber++;
+      pageId = records.left;
+    }
+    assertEquals(recordNumber + 1, expected);
+    assertTrue(leafNumber > 1);
+    ServerRuntime.releaseAllLocks(transactionId);
   }
 }
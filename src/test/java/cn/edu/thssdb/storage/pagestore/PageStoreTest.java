@@ -0,0 +1,94 @@
+package cn.edu.thssdb.storage.pagestore;
+
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.storage.StorageFixture;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageStoreTest {
+
+  static File testDir;
+  static final int SPACE_ID = 7;
+
+  @Before
+  public void setup() throws Exception {
+    StorageFixture.leaveFormerServer();
+    ServerRuntime.config.testPath = "./testOnly" + ThreadLocalRandom.current().nextInt();
+    ServerRuntime.config.tablespacePath = ServerRuntime.config.testPath + "/" + "base";
+    testDir = new File(ServerRuntime.config.testPath);
+    new File(ServerRuntime.config.tablespacePath).mkdirs();
+    new File(ServerRuntime.getTablespaceFile(SPACE_ID)).createNewFile();
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    FileUtils.deleteDirectory(testDir);
+  }
+
+  private static ByteBuffer makePage(int pageId, boolean direct) {
+    int pageSize = ServerRuntime.config.pageSize;
+    ByteBuffer page = direct ? ByteBuffer.allocateDirect(pageSize) : ByteBuffer.allocate(pageSize);
+    for (int i = 0; i < pageSize; i += 4) {
+      page.putInt(i, pageId * 31 + i);
+    }
+    return page;
+  }
+
+  private static void testStore(PageStore store) throws Exception {
+    /* pages across several mapped regions, written out of order. */
+    int[] pageIds = {
+      0, 1, 2, MappedPageStore.REGION_PAGES + 3, 5, 2 * MappedPageStore.REGION_PAGES
+    };
+    for (int i = 0; i < pageIds.length; i++) {
+      store.write(SPACE_ID, pageIds[i], makePage(pageIds[i], i % 2 == 0));
+    }
+    store.force();
+    for (int i = 0; i < pageIds.length; i++) {
+      ByteBuffer page = makePage(0, i % 2 == 1);
+      page.putInt(0, -1);
+      store.read(SPACE_ID, pageIds[i], page);
+      assertEquals(0, page.position());
+      assertEquals(makePage(pageIds[i], false), page);
+    }
+    /* the file is opened again after close. */
+    store.close(SPACE_ID);
+    ByteBuffer page = ByteBuffer.allocate(ServerRuntime.config.pageSize);
+    store.read(SPACE_ID, pageIds[3], page);
+    assertEquals(makePage(pageIds[3], false), page);
+    store.close(SPACE_ID);
+  }
+
+  @Test
+  public void testChannelPageStore() throws Exception {
+    testStore(new ChannelPageStore());
+  }
+
+  @Test
+  public void testMappedPageStore() throws Exception {
+    testStore(new MappedPageStore());
+  }
+
+  @Test
+  public void testStoresShareFileFormat() throws Exception {
+    ChannelPageStore channelStore = new ChannelPageStore();
+    MappedPageStore mappedStore = new MappedPageStore();
+    channelStore.write(SPACE_ID, 4, makePage(4, false));
+    mappedStore.write(SPACE_ID, 9, makePage(9, true));
+    mappedStore.force();
+    ByteBuffer page = ByteBuffer.allocate(ServerRuntime.config.pageSize);
+    mappedStore.read(SPACE_ID, 4, page);
+    assertEquals(makePage(4, false), page);
+    channelStore.read(SPACE_ID, 9, page);
+    assertEquals(makePage(9, false), page);
+    channelStore.close(SPACE_ID);
+    mappedStore.close(SPACE_ID);
+  }
+}
@@ -0,0 +1,193 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.DiskBuffer;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest {
+
+  static final int SPACE_ID = 900001;
+
+  boolean useDummyLog;
+  String testPath;
+  String tablespacePath;
+  String WALFilename;
+  String testPathRecover;
+
+  @Before
+  public void setup() throws Exception {
+    StorageFixture.leaveFormerServer();
+    useDummyLog = ServerRuntime.config.useDummyLog;
+    tablespacePath = ServerRuntime.config.tablespacePath;
+    WALFilename = ServerRuntime.config.WALFilename;
+    testPathRecover = ServerRuntime.config.testPathRecover;
+
+    testPath = Files.createTempDirectory("recovery").toString();
+    ServerRuntime.config.useDummyLog = false;
+    ServerRuntime.config.tablespacePath = testPath;
+    ServerRuntime.config.WALFilename = testPath + "/WAL.log";
+    ServerRuntime.config.testPathRecover = testPath + "/checkpoint";
+    WriteLog.open(ServerRuntime.config.WALFilename);
+    try (RandomAccessFile file =
+        new RandomAccessFile(ServerRuntime.getTablespaceFile(SPACE_ID), "rw")) {
+      file.setLength(2L * ServerRuntime.config.pageSize);
+    }
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    StorageFixture.leaveFormerServer();
+    ServerRuntime.config.useDummyLog = useDummyLog;
+    ServerRuntime.config.tablespacePath = tablespacePath;
+    ServerRuntime.config.WALFilename = WALFilename;
+    ServerRuntime.config.testPathRecover = testPathRecover;
+  }
+
+  private static ByteBuffer readPage(int pageId) throws Exception {
+    ByteBuffer page = ByteBuffer.allocate(ServerRuntime.config.pageSize);
+    assertTrue(DiskBuffer.readPageBytes(SPACE_ID, pageId, page));
+    return page;
+  }
+
+  private static byte[] range(ByteBuffer page, int offset, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = page.get(offset + i);
+    return bytes;
+  }
+
+  @Test
+  public void testRepeatHistoryAndAbortUnfinished() throws Exception {
+    byte[] zeros = new byte[4];
+    byte[] value = {1, 2, 3, 4};
+    /* transaction 1 commits; transaction 2 is unfinished at the crash. Pages are never written. */
+    long committedLSN = WriteLog.addCommonLog(1, SPACE_ID, 0, 100, 4, zeros, value);
+    WriteLog.force(WriteLog.addSpecialLog(1, WriteLog.COMMIT_LOG));
+    WriteLog.addCommonLog(2, SPACE_ID, 1, 200, 4, zeros, value);
+    WriteLog.addCommonLog(2, SPACE_ID, 0, 300, 4, zeros, value);
+    /* a page beyond the end of the tablespace. */
+    WriteLog.addCommonLog(1000, SPACE_ID, 2, 100, 4, new byte[0], value);
+    WriteLog.force(WriteLog.addSpecialLog(1000, WriteLog.COMMIT_LOG));
+    WriteLog.forceAll();
+    /* the pages above are not in buffer, so a checkpoint made in background meanwhile would skip
+    them. The crash comes before any checkpoint. */
+    Files.deleteIfExists(Paths.get(ServerRuntime.config.testPathRecover));
+
+    Recovery.recover();
+    /* changes of the unfinished transaction are repeated as well. It has no undo log, since undo
+    is logical, so nothing is undone. */
+    ByteBuffer page = readPage(0);
+    assertArrayEquals(value, range(page, 100, 4));
+    assertArrayEquals(value, range(page, 300, 4));
+    assertTrue(page.getLong(Recovery.PAGE_LSN_OFFSET) > committedLSN);
+    assertArrayEquals(value, range(readPage(1), 200, 4));
+    assertArrayEquals(value, range(readPage(2), 100, 4));
+
+    /* the unfinished transaction ends with an abort log. */
+    ArrayList<WriteLog.WriteLogEntry> entries = WriteLog.read(ServerRuntime.config.WALFilename);
+    boolean aborted = false;
+    for (WriteLog.WriteLogEntry entry : entries) {
+      aborted |= entry.type == WriteLog.ABORT_LOG && entry.transactionId == 2;
+    }
+    assertTrue(aborted);
+
+    /* recovering again changes nothing. */
+    long lsn = page.getLong(Recovery.PAGE_LSN_OFFSET);
+    WriteLog.open(ServerRuntime.config.WALFilename);
+    Recovery.recover();
+    page = readPage(0);
+    assertArrayEquals(value, range(page, 100, 4));
+    assertArrayEquals(value, range(page, 300, 4));
+    assertEquals(lsn, page.getLong(Recovery.PAGE_LSN_OFFSET));
+  }
+
+  @Test
+  public void testUndoUnfinishedLogically() throws Exception {
+    Database.DatabaseMetadata database = StorageFixture.setupDatabase();
+    Table.TableMetadata tableMetadata = StorageFixture.createKeyValueTable(database, "R", 100);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    int recordNumber = 400;
+    long transactionId = ServerRuntime.newTransaction();
+    for (int time = 0; time < recordNumber; time++) {
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              transactionId, StorageFixture.record(tableMetadata, time, "'old'")));
+    }
+    IO.pushTransactionCommit(transactionId);
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    /* the loser deletes the even records and inserts others. A transaction that commits then
+    updates the odd records and splits the same leaves, since rows are locked, not pages. */
+    long loser = ServerRuntime.newTransaction();
+    for (int time = 0; time < recordNumber; time += 2) {
+      assertNotNull(
+          rootPage.scanTreeAndDeleteRecordWithKey(loser, StorageFixture.key(tableMetadata, time)));
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              loser, StorageFixture.record(tableMetadata, recordNumber + time, "'loser'")));
+    }
+    long winner = ServerRuntime.newTransaction();
+    for (int time = 1; time < recordNumber; time += 2) {
+      assertNotNull(
+          rootPage.scanTreeAndDeleteRecordWithKey(winner, StorageFixture.key(tableMetadata, time)));
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              winner, StorageFixture.record(tableMetadata, time, "'new'")));
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              winner, StorageFixture.record(tableMetadata, recordNumber + time, "'new'")));
+    }
+    IO.pushTransactionCommit(winner);
+    ServerRuntime.releaseAllLocks(winner);
+
+    /* crash: the pages of both are on disk, and the loser is forgotten but for its logs. */
+    WriteLog.forceAll();
+    DiskBuffer.flushAll();
+    UndoLog.forget(loser);
+    VersionStore.abort(loser);
+    ServerRuntime.releaseAllLocks(loser);
+
+    Recovery.recover();
+    transactionId = ServerRuntime.newTransaction();
+    for (int time = 0; time < 2 * recordNumber; time++) {
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          rootPage.scanTreeAndReturnRecord(transactionId, StorageFixture.key(tableMetadata, time));
+      boolean byLoser = time >= recordNumber && time % 2 == 0;
+      assertEquals(String.valueOf(time), !byLoser, result.left);
+      if (byLoser) continue;
+      String expected = time % 2 == 0 ? "old" : "new";
+      assertEquals(expected, result.right.getNonPrimaryKeyValues()[0].toString());
+    }
+    IO.unpin(rootPage);
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    /* every undo log of the loser is compensated before its abort log. */
+    int undoLogs = 0;
+    int compensationLogs = 0;
+    boolean aborted = false;
+    for (WriteLog.WriteLogEntry entry : WriteLog.read(ServerRuntime.config.WALFilename)) {
+      if (entry.transactionId != loser) continue;
+      if (entry.type == WriteLog.UNDO_LOG) undoLogs++;
+      if (entry.type == WriteLog.COMPENSATION_LOG) compensationLogs++;
+      if (entry.type == WriteLog.ABORT_LOG) aborted = compensationLogs == undoLogs;
+    }
+    assertEquals(recordNumber, undoLogs);
+    assertTrue(aborted);
+  }
+}
@@ -0,0 +1,122 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.plan.LogicalGenerator;
+import cn.edu.thssdb.rpc.thrift.ExecuteStatementResp;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.RecordLogical;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.utils.Global;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.*;
+
+public class UndoLogTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  @Test
+  public void testRollbackToSavepoint() throws Exception {
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "H", 100);
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    long transactionId = ServerRuntime.newTransaction();
+    /* enough records to split pages, so undo has to find records again through the tree. */
+    int recordNumber = 500;
+    for (int time = 0; time < recordNumber; time++) {
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              transactionId, StorageFixture.record(tableMetadata, time)));
+    }
+    int savepoint = UndoLog.savepoint(transactionId);
+    assertEquals(recordNumber, savepoint);
+
+    /* delete the even records and insert others after the savepoint. */
+    for (int time = 0; time < recordNumber; time += 2) {
+      assertNotNull(
+          rootPage.scanTreeAndDeleteRecordWithKey(
+              transactionId, StorageFixture.key(tableMetadata, time)));
+    }
+    for (int time = recordNumber; time < 2 * recordNumber; time++) {
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              transactionId, StorageFixture.record(tableMetadata, time)));
+    }
+
+    assertEquals(recordNumber / 2 + recordNumber, UndoLog.rollback(transactionId, savepoint));
+    assertEquals(savepoint, UndoLog.savepoint(transactionId));
+    for (int time = 0; time < 2 * recordNumber; time++) {
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          rootPage.scanTreeAndReturnRecord(transactionId, StorageFixture.key(tableMetadata, time));
+      assertEquals(time < recordNumber, result.left);
+      if (result.left)
+        assertEquals("value" + time, result.right.getNonPrimaryKeyValues()[0].toString());
+    }
+
+    /* rolling back the whole transaction leaves the table empty. */
+    assertEquals(recordNumber, UndoLog.rollback(transactionId, 0));
+    UndoLog.forget(transactionId);
+    for (int time = 0; time < recordNumber; time++) {
+      assertFalse(
+          rootPage.scanTreeAndReturnRecord(transactionId, StorageFixture.key(tableMetadata, time))
+              .left);
+    }
+    IO.unpin(rootPage);
+    ServerRuntime.releaseAllLocks(transactionId);
+  }
+
+  @Test
+  public void testUpdatePrimaryKeyWithoutWhere() throws Exception {
+    long sessionId = ServerRuntime.newSession();
+    String sqlDatabaseName = "u" + Math.abs(ThreadLocalRandom.current().nextInt());
+    String tableName = "u" + Math.abs(ThreadLocalRandom.current().nextInt());
+    String[] statements = {
+      "create database " + sqlDatabaseName,
+      "use " + sqlDatabaseName,
+      "create table " + tableName + " (id int, name string(10), primary key(id))",
+      "insert into " + tableName + " values (1, 'a'), (2, 'b'), (3, 'c')"
+    };
+    for (String statement : statements) {
+      ExecuteStatementResp response =
+          ServerRuntime.runPlan(sessionId, LogicalGenerator.generate(statement), statement);
+      assertEquals(response.status.msg, Global.SUCCESS_CODE, response.status.getCode());
+    }
+
+    /* every row would get the same primary key, so the update is rejected and undone. */
+    String statement = "update " + tableName + " set id = 5";
+    ExecuteStatementResp response =
+        ServerRuntime.runPlan(sessionId, LogicalGenerator.generate(statement), statement);
+    assertEquals(Global.FAILURE_CODE, response.status.getCode());
+
+    Table.TableMetadata tableMetadata =
+        ServerRuntime.catalog
+            .databaseMetadata
+            .get(ServerRuntime.catalog.databaseNameLookup.get(sqlDatabaseName))
+            .getTableByName(tableName);
+    long transactionId = ServerRuntime.newTransaction();
+    IndexPage leaf =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexLeftmostLeafIndex);
+    Pair<Integer, ArrayList<RecordLogical>> records = leaf.getAllRecordLogical(transactionId);
+    IO.unpin(leaf);
+    ServerRuntime.releaseAllLocks(transactionId);
+    assertEquals(3, records.right.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i + 1, Integer.parseInt(records.right.get(i).primaryKeyValues[0].toString()));
+    }
+    ServerRuntime.closeSession(sessionId);
+  }
+}
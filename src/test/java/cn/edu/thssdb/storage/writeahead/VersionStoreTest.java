@@ -0,0 +1,126 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.communication.IO;
+import cn.edu.thssdb.runtime.Configuration;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import cn.edu.thssdb.schema.Database;
+import cn.edu.thssdb.schema.Table;
+import cn.edu.thssdb.storage.StorageFixture;
+import cn.edu.thssdb.storage.page.IndexPage;
+import cn.edu.thssdb.storage.page.RecordCursor;
+import cn.edu.thssdb.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class VersionStoreTest {
+
+  Database.DatabaseMetadata currentDatabase = null;
+
+  @Before
+  public void setup() throws Exception {
+    currentDatabase = StorageFixture.setupDatabase();
+  }
+
+  private static ArrayList<String> scanInSnapshot(long transactionId, Table.TableMetadata metadata)
+      throws Exception {
+    ArrayList<String> rows = new ArrayList<>();
+    RecordCursor cursor = new RecordCursor(metadata);
+    int pageId = ServerRuntime.config.indexLeftmostLeafIndex;
+    while (pageId > 0) {
+      IndexPage page = (IndexPage) IO.read(metadata.spaceId, pageId);
+      pageId =
+          page.scanRecords(
+              transactionId,
+              cursor,
+              (recordCursor) -> rows.add(recordCursor.getString(0) + recordCursor.getString(-1)));
+      IO.unpin(page);
+    }
+    return rows;
+  }
+
+  @Test
+  public void testSnapshotRead() throws Exception {
+    boolean serializable = ServerRuntime.config.serializable;
+    ServerRuntime.config.serializable = false;
+    Table.TableMetadata tableMetadata =
+        StorageFixture.createKeyValueTable(currentDatabase, "I", 100);
+
+    IndexPage rootPage =
+        (IndexPage) IO.read(tableMetadata.spaceId, ServerRuntime.config.indexRootPageIndex);
+    int recordNumber = 100;
+    long transactionId = ServerRuntime.newTransaction();
+    for (int time = 0; time < recordNumber; time++) {
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              transactionId, StorageFixture.record(tableMetadata, time, "'old'")));
+    }
+    IO.pushTransactionCommit(transactionId);
+    ServerRuntime.releaseAllLocks(transactionId);
+
+    long reader = ServerRuntime.newTransaction();
+    ArrayList<String> before = scanInSnapshot(reader, tableMetadata);
+    assertEquals(recordNumber, before.size());
+
+    /* the writer deletes the even records, updates the others and inserts new ones. */
+    long writer = ServerRuntime.newTransaction();
+    for (int time = 0; time < 2 * recordNumber; time++) {
+      if (time < recordNumber)
+        assertNotNull(
+            rootPage.scanTreeAndDeleteRecordWithKey(
+                writer, StorageFixture.key(tableMetadata, time)));
+      if (time % 2 == 0 && time < recordNumber) continue;
+      assertTrue(
+          rootPage.insertDataRecordIntoTree(
+              writer, StorageFixture.record(tableMetadata, time, "'new'")));
+    }
+    /* the reader neither waits for the writer nor sees its changes, before or after commit. */
+    assertEquals(before, scanInSnapshot(reader, tableMetadata));
+    assertEquals(recordNumber * 3 / 2, scanInSnapshot(writer, tableMetadata).size());
+    IO.pushTransactionCommit(writer);
+    ServerRuntime.releaseAllLocks(writer);
+    assertEquals(before, scanInSnapshot(reader, tableMetadata));
+    for (int time = 0; time < 2 * recordNumber; time++) {
+      Pair<Boolean, IndexPage.RecordInPage> result =
+          rootPage.scanTreeAndReturnRecord(reader, StorageFixture.key(tableMetadata, time));
+      assertEquals(time < recordNumber, result.left);
+      if (result.left) assertEquals("old", result.right.getNonPrimaryKeyValues()[0].toString());
+    }
+    ServerRuntime.releaseAllLocks(reader);
+
+    /* a later snapshot sees the commit, but not the changes of a transaction rolled back. */
+    long aborted = ServerRuntime.newTransaction();
+    for (int time = 1; time < recordNumber; time += 2) {
+      assertNotNull(
+          rootPage.scanTreeAndDeleteRecordWithKey(
+              aborted, StorageFixture.key(tableMetadata, time)));
+    }
+    reader = ServerRuntime.newTransaction();
+    ArrayList<String> after = scanInSnapshot(reader, tableMetadata);
+    assertEquals(recordNumber * 3 / 2, after.size());
+    for (String row : after) assertTrue(row.endsWith("new"));
+    IO.pushTransactionAbort(aborted);
+    ServerRuntime.releaseAllLocks(aborted);
+    assertEquals(after, scanInSnapshot(reader, tableMetadata));
+    ServerRuntime.releaseAllLocks(reader);
+
+    /* under read committed, each statement sees the commits before it. */
+    reader = ServerRuntime.newTransaction(Configuration.Isolation.READ_COMMITTED);
+    assertTrue(ServerRuntime.readsSnapshot(reader));
+    writer = ServerRuntime.newTransaction(Configuration.Isolation.SERIALIZABLE);
+    assertFalse(ServerRuntime.readsSnapshot(writer));
+    assertNotNull(
+        rootPage.scanTreeAndDeleteRecordWithKey(writer, StorageFixture.key(tableMetadata, 1)));
+    IO.pushTransactionCommit(writer);
+    ServerRuntime.releaseAllLocks(writer);
+    assertEquals(after, scanInSnapshot(reader, tableMetadata));
+    ServerRuntime.beginStatement(reader);
+    assertEquals(after.size() - 1, scanInSnapshot(reader, tableMetadata).size());
+    ServerRuntime.releaseAllLocks(reader);
+    IO.unpin(rootPage);
+    ServerRuntime.config.serializable = serializable;
+  }
+}
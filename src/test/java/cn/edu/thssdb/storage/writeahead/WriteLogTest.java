@@ -0,0 +1,187 @@
+package cn.edu.thssdb.storage.writeahead;
+
+import cn.edu.thssdb.runtime.Configuration;
+import cn.edu.thssdb.runtime.ServerRuntime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteLogTest {
+
+  String filename;
+
+  @Before
+  public void setup() throws Exception {
+    filename = Files.createTempDirectory("wal").resolve("WAL.log").toString();
+    WriteLog.open(filename);
+  }
+
+  @Test
+  public void testEncodeAndDecode() {
+    WriteLog.WriteLogEntry common =
+        new WriteLog.WriteLogEntry(
+            7, 3, 5, 100, 3, new byte[] {1, 2, 3}, new byte[] {4, 5, 6}, false);
+    common.lsn = 42;
+    WriteLog.WriteLogEntry database = new WriteLog.WriteLogEntry(8, WriteLog.CREATE_DATABASE_LOG);
+    database.databaseId = 2;
+    database.newValue = "db".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(common.encodedLength() + database.encodedLength());
+    common.encode(buffer);
+    database.encode(buffer);
+    assertFalse(buffer.hasRemaining());
+
+    buffer.flip();
+    WriteLog.WriteLogEntry decoded = WriteLog.WriteLogEntry.decode(buffer);
+    assertNotNull(decoded);
+    assertEquals(42, decoded.lsn);
+    assertEquals(7, decoded.transactionId);
+    assertEquals(3, decoded.spaceId);
+    assertEquals(5, decoded.pageId);
+    assertEquals(100, decoded.offset);
+    assertArrayEquals(new byte[] {1, 2, 3}, decoded.getOldValue());
+    assertArrayEquals(new byte[] {4, 5, 6}, decoded.getNewValue());
+    decoded = WriteLog.WriteLogEntry.decode(buffer);
+    assertNotNull(decoded);
+    assertEquals(2, decoded.databaseId);
+    assertEquals("db", new String(decoded.getNewValue(), StandardCharsets.UTF_8));
+
+    /* a corrupted record is not accepted. */
+    buffer.put(30, (byte) (buffer.get(30) + 1));
+    buffer.position(0);
+    assertNull(WriteLog.WriteLogEntry.decode(buffer));
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    int threadNumber = 8;
+    int transactionNumber = 50;
+    AtomicInteger notDurable = new AtomicInteger(0);
+    ArrayList<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadNumber; t++) {
+      long base = t * 1000L;
+      threads.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < transactionNumber; i++) {
+                  long transactionId = base + i;
+                  WriteLog.addCommonLog(
+                      transactionId, 1, 2, 64, 2, new byte[] {0, 0}, new byte[] {1, 1});
+                  long lsn = WriteLog.addSpecialLog(transactionId, WriteLog.COMMIT_LOG);
+                  WriteLog.force(lsn);
+                  if (WriteLog.durableLSN < lsn) notDurable.incrementAndGet();
+                }
+              }));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    assertEquals(0, notDurable.get());
+
+    ArrayList<WriteLog.WriteLogEntry> entries = WriteLog.read(filename);
+    assertEquals(2 * threadNumber * transactionNumber, entries.size());
+    HashSet<Long> committed = new HashSet<>();
+    /* the LSN of a record is its offset in the file. */
+    long lsn = WriteLog.FIRST_LSN;
+    for (int i = 0; i < entries.size(); i++) {
+      assertEquals(lsn, entries.get(i).lsn);
+      lsn += entries.get(i).encodedLength();
+      if (entries.get(i).type == WriteLog.COMMIT_LOG) committed.add(entries.get(i).transactionId);
+    }
+    assertEquals(threadNumber * transactionNumber, committed.size());
+  }
+
+  @Test
+  public void testTornTailIsCutOff() throws Exception {
+    WriteLog.force(WriteLog.addSpecialLog(1, WriteLog.COMMIT_LOG));
+    long lsn = WriteLog.logSequenceNumber.get();
+    try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+      /* half of a record. */
+      file.seek(file.length());
+      file.write(new byte[] {0, 0, 0, 40, 0, 0, 0});
+    }
+    WriteLog.open(filename);
+    assertEquals(lsn, WriteLog.logSequenceNumber.get());
+    WriteLog.force(WriteLog.addSpecialLog(2, WriteLog.COMMIT_LOG));
+    ArrayList<WriteLog.WriteLogEntry> entries = WriteLog.read(filename);
+    assertEquals(2, entries.size());
+    assertEquals(lsn + entries.get(0).encodedLength(), entries.get(1).lsn);
+  }
+
+  @Test
+  public void testTruncate() throws Exception {
+    long walTruncateSize = ServerRuntime.config.walTruncateSize;
+    ServerRuntime.config.walTruncateSize = 1024;
+    try {
+      /* a record longer than a chunk of scanning. */
+      WriteLog.addCheckpointLog(new byte[2 * WriteLog.SCAN_CHUNK]);
+      for (long transactionId = 1; transactionId <= 100; transactionId++) {
+        WriteLog.addCommonLog(transactionId, 1, 2, 64, 8, new byte[8], new byte[8]);
+        WriteLog.addSpecialLog(transactionId, WriteLog.COMMIT_LOG);
+      }
+      long lsn = WriteLog.addSpecialLog(101, WriteLog.START_LOG);
+      WriteLog.forceAll();
+      ArrayList<WriteLog.WriteLogEntry> entries = WriteLog.read(filename);
+      assertEquals(202, entries.size());
+      assertEquals(2 * WriteLog.SCAN_CHUNK, entries.get(0).getNewValue().length);
+      long length = new File(filename).length();
+
+      /* the part discarded is shorter than walTruncateSize. */
+      assertFalse(WriteLog.truncate(WriteLog.FIRST_LSN));
+      assertTrue(WriteLog.truncate(lsn));
+      assertEquals(length - (lsn - WriteLog.FIRST_LSN), new File(filename).length());
+
+      long next = WriteLog.addSpecialLog(101, WriteLog.COMMIT_LOG);
+      WriteLog.force(next);
+      entries = WriteLog.read(filename);
+      assertEquals(2, entries.size());
+      assertEquals(lsn, entries.get(0).lsn);
+      assertEquals(next, entries.get(1).lsn);
+
+      /* LSNs go on after the log is opened again. */
+      WriteLog.open(filename);
+      assertEquals(next, WriteLog.logSequenceNumber.get());
+      assertEquals(
+          next + entries.get(1).encodedLength(), WriteLog.addSpecialLog(102, WriteLog.START_LOG));
+    } finally {
+      ServerRuntime.config.walTruncateSize = walTruncateSize;
+    }
+  }
+
+  @Test
+  public void testDurabilityModes() throws Exception {
+    Configuration.Durability durability = ServerRuntime.config.durability;
+    int asyncFlushInterval = ServerRuntime.config.asyncFlushInterval;
+    ServerRuntime.config.asyncFlushInterval = 50;
+    try {
+      /* without durability, the flusher does not force logs on its own. */
+      ServerRuntime.config.durability = Configuration.Durability.NONE;
+      Thread.sleep(5 * ServerRuntime.config.walFlushInterval);
+      long lsn = WriteLog.addSpecialLog(1, WriteLog.COMMIT_LOG);
+      Thread.sleep(5 * ServerRuntime.config.walFlushInterval);
+      assertTrue(WriteLog.durableLSN < lsn);
+      WriteLog.forceAll();
+      assertTrue(WriteLog.durableLSN >= lsn);
+
+      /* with async durability, a commit is forced within the flush interval. */
+      ServerRuntime.config.durability = Configuration.Durability.ASYNC;
+      lsn = WriteLog.addSpecialLog(2, WriteLog.COMMIT_LOG);
+      for (int i = 0; i < 20 && WriteLog.durableLSN < lsn; i++) {
+        Thread.sleep(ServerRuntime.config.asyncFlushInterval);
+      }
+      assertTrue(WriteLog.durableLSN >= lsn);
+    } finally {
+      ServerRuntime.config.durability = durability;
+      ServerRuntime.config.asyncFlushInterval = asyncFlushInterval;
+    }
+  }
+}